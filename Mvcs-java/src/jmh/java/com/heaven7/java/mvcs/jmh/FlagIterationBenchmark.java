@@ -0,0 +1,96 @@
+package com.heaven7.java.mvcs.jmh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.heaven7.java.mvcs.util.BitFlags;
+import com.heaven7.java.mvcs.util.MathUtil;
+
+/**
+ * compare the state mask decomposition of {@linkplain MathUtil#max2K(int)} with {@linkplain BitFlags}.
+ * run it by 'gradle jmh'.
+ * @author heaven7
+ * @since 1.3.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FlagIterationBenchmark {
+
+	/** the state count of the mask. */
+	@Param({ "5", "20", "30" })
+	int stateCount;
+
+	int mask;
+	final List<Integer> tempFlags = new ArrayList<Integer>(6);
+
+	@Setup
+	public void setup() {
+		mask = (int) ((1L << stateCount) - 1);
+	}
+
+	/** the old descending loop of enter/exit/reenter. */
+	@Benchmark
+	public int max2KDescending() {
+		int sum = 0;
+		int maxKey;
+		for (int flags = mask; flags > 0;) {
+			maxKey = MathUtil.max2K(flags);
+			if (maxKey > 0) {
+				sum += maxKey;
+				flags -= maxKey;
+			}
+		}
+		return sum;
+	}
+
+	/** the old ascending loop which boxed the flags to a list. */
+	@Benchmark
+	public int max2KAscendingBoxed() {
+		final List<Integer> list = tempFlags;
+		int maxKey;
+		for (int flags = mask; flags > 0;) {
+			maxKey = MathUtil.max2K(flags);
+			if (maxKey > 0) {
+				list.add(0, maxKey);
+				flags -= maxKey;
+			}
+		}
+		int sum = 0;
+		for (int flag : list) {
+			sum += flag;
+		}
+		list.clear();
+		return sum;
+	}
+
+	@Benchmark
+	public int bitFlagsDescending() {
+		int sum = 0;
+		for (int flags = mask, maxKey; flags != 0; flags ^= maxKey) {
+			maxKey = BitFlags.highest(flags);
+			sum += maxKey;
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public int bitFlagsAscending() {
+		int sum = 0;
+		for (int flags = mask, flag; flags != 0; flags ^= flag) {
+			flag = BitFlags.lowest(flags);
+			sum += flag;
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,54 @@
+package com.heaven7.java.mvcs.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.heaven7.java.mvcs.Message;
+import com.heaven7.java.mvcs.MessagePool;
+
+/**
+ * the obtain/recycle throughput of {@linkplain MessagePool} with several producer threads.
+ * run it by 'gradle jmh'.
+ * @author heaven7
+ * @since 1.3.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessagePoolBenchmark {
+
+	final Message[] burst = new Message[64];
+
+	@Benchmark
+	@Threads(4)
+	public int obtainRecycle() {
+		final Message msg = Message.obtain(1, null);
+		final int what = msg.what;
+		msg.recycle();
+		return what;
+	}
+
+	/** the burst which overflows the thread cache. */
+	@Benchmark
+	@Threads(4)
+	public int obtainRecycleBurst() {
+		final Message[] burst = this.burst;
+		for (int i = 0; i < burst.length; i++) {
+			burst[i] = Message.obtain(i, null);
+		}
+		int sum = 0;
+		for (int i = 0; i < burst.length; i++) {
+			sum += burst[i].what;
+			burst[i].recycle();
+			burst[i] = null;
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,1159 @@
+package com.heaven7.java.mvcs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.heaven7.java.mvcs.util.BitmapIntSet;
+import com.heaven7.java.mvcs.util.Clock;
+import com.heaven7.java.mvcs.util.CopyOnWriteIntSet;
+import com.heaven7.java.mvcs.util.IntSet;
+
+/**
+ * the base controller which shares the all things which are independent of the state flags width.
+ * like: owner, share parameter, state factory, parameter merger, locked events, delayed messages,
+ * transaction and team mediator.
+ * <p>Use {@linkplain SimpleController} for 31 states, {@linkplain LongController} for 63 states and
+ * {@linkplain BitSetController} for unbounded states.</p>
+ *
+ * @param <S>
+ *            the state type .
+ * @param <P>
+ *            the state parameter type
+ * @author heaven7
+ * @since 1.3.0
+ * @see SimpleController
+ * @see LongController
+ * @see BitSetController
+ */
+public abstract class AbstractController<S extends AbstractState<P>, P> implements IController<S, P> {
+
+	private StateFactory<S, P> mFactory;
+	private ParameterMerger<P> mMerger;
+	/** true to enable state cache */
+	private boolean mEnableStateCache;
+
+	/** the locked event keys. lazy load. volatile for the concurrent check. */
+	private volatile IntSet mLockEvents;
+	/** true if the locked events can be checked by other threads. */
+	private boolean mConcurrentLockEvents;
+
+	private P mShareParam;
+	/** the owner of this controller or states. */
+	private Object mOwner;
+
+	/** the pooled transaction of every thread. */
+	private static final ThreadLocal<StateTransactionImpl> sTransactions = new ThreadLocal<StateTransactionImpl>();
+	/** the delay messages. lazy load. */
+	private MessageScheduler mDelayMessages;
+	/** the delayed message which is polled and dispatching. guarded by this. */
+	private MessageScheduler.Entry mPolledEntry;
+	/** the pending futures of requests. lazy load. guarded by this. */
+	private List<MessageFuture> mPendingRequests;
+	/** the target states of batch dispatch. null while in use. */
+	private List<S> mBatchTargets;
+	/** the temp list to collect states. lazy load. */
+	private List<S> mTempStates;
+	/** the pooled arrays of states to call back. one array per nested depth. */
+	private AbstractState<?>[][] mCallbackStates = new AbstractState<?>[2][];
+	private int mCallbackDepth;
+	/** the inbox of the messages which are posted by any thread. */
+	private final MessageInbox mInbox = new MessageInbox();
+	/** the clock of delay messages. */
+	private Clock mClock = Clock.monotonic();
+	/** the shared timer of delay messages. if not null, the delay messages are posted to it. */
+	private SharedMessageTimer mMessageTimer;
+	/** the pending entries on the shared timer. guarded by the timer. */
+	/*package*/ SharedMessageTimer.Entry mTimerEntries;
+	/** true if this controller is owned by an {@linkplain ActorController}. which can't use the shared timer. */
+	/*package*/ volatile boolean mActorOwned;
+
+	/** the team mediator, lazy load. */
+	private TeamMediator<P> mTeamMediator;
+
+	/** the world which ticks this controller. guarded by the world. */
+	/*package*/ ControllerWorld mWorld;
+	/** the index in the world. */
+	/*package*/ int mWorldIndex = -1;
+	/** true if this controller is dormant in the world. which is not ticked until it is woken up. */
+	/*package*/ volatile boolean mDormant;
+
+	/*package*/ AbstractController() {
+	}
+
+	// ======================== start internal method =============================
+
+	/**
+	 * dispatch the message to the target states now. may one method call this method twice.
+	 * @param states the target states. -1 means all.
+	 * @param wideStates the target wide states. if not null, this is used instead of states.
+	 * @param msg the message
+	 * @param policy the policy
+	 * @param scope the scope
+	 * @return true if handled.
+	 */
+	abstract boolean dispatchMessage0(int states, BitSet wideStates, Message msg, byte policy, byte scope);
+
+	/**
+	 * add the states which receive the message of the target scope to the list. in the dispatch order of
+	 * {@linkplain #dispatchMessage0(int, BitSet, Message, byte, byte)}.
+	 * @param scope the scope
+	 * @param outStates the out states
+	 */
+	abstract void getMessageTargets(byte scope, List<S> outStates);
+
+	/**
+	 * get the mask of states which can handle the message of target 'what'.
+	 * @param what the what of message
+	 * @return the state mask. -1 if all states can handle it.
+	 */
+	int getMessageRoute(int what) {
+		return -1;
+	}
+
+	/**
+	 * begin the callbacks of states which aren't transitions. like handling messages, updating and the team
+	 * reenter. the transitions which are requested in them may be deferred to {@linkplain #endCallback()}.
+	 */
+	void beginCallback() {
+	}
+
+	/**
+	 * end the callbacks which are begun by {@linkplain #beginCallback()}.
+	 */
+	void endCallback() {
+	}
+
+	/**
+	 * update the active states(global and current).
+	 * @param deltaTime the delta time
+	 * @param param the parameter
+	 */
+	abstract void updateStates(long deltaTime, P param);
+
+	/**
+	 * dispose the all states include cached states.
+	 */
+	abstract void disposeStates();
+
+	/**
+	 * indicate any active state(global or current) wants update or not.
+	 * @return true if any active state wants update.
+	 * @see AbstractState#isUpdateEnabled()
+	 */
+	abstract boolean hasUpdatableStates();
+
+	abstract void notifyStateEnter(int states, P param);
+
+	abstract void notifyStateExit(int states, P param);
+
+	abstract void notifyStateReenter(int states, P param);
+
+	/**
+	 * dispatch the delayed message which is due. and recycle it if it isn't periodic.
+	 * @return true if the message is periodic and need to be scheduled again. the 'when' of it is already updated.
+	 */
+	final boolean dispatchScheduledMessage(int states, BitSet wideStates, Message msg, byte policy, byte scope) {
+		wakeUp();
+		final PeriodicMessage periodic = msg.periodic;
+		if (periodic != null) {
+			if (!periodic.isCancelled()) {
+				dispatchMessage0(states, wideStates, msg, policy, scope);
+				periodic.onDispatched();
+			}
+			// may be cancelled by the states.
+			if (!periodic.isCancelled()) {
+				final SharedMessageTimer timer = this.mMessageTimer;
+				final long now = timer != null ? timer.getClock().nanoTime() : mClock.nanoTime();
+				msg.whenNanos = periodic.nextWhen(msg.whenNanos, now);
+				return true;
+			}
+		} else if (msg.isTimeout()) {
+			// the timeout of request. ignored if it is already replied.
+			((MessageFuture) msg.obj).timeout();
+		} else {
+			dispatchMessage0(states, wideStates, msg, policy, scope);
+		}
+		msg.recycleUnchecked();
+		return false;
+	}
+
+	final P mergeShareParam(P param) {
+		if (param != null) {
+			return mMerger.merge(mShareParam, param);
+		} else {
+			return mShareParam;
+		}
+	}
+
+	final StateFactory<S, P> getStateFactory() {
+		return mFactory;
+	}
+
+	final ParameterMerger<P> getParameterMerger() {
+		return mMerger;
+	}
+
+	/**
+	 * indicate the state factory is set or not. the sub class may have its own factory.
+	 * @return true if the state factory is set.
+	 */
+	boolean hasStateFactory() {
+		return mFactory != null;
+	}
+
+	/**
+	 * get the temp list to collect states. it must be cleared after use, and never be iterated while calling back
+	 * states. see {@linkplain #toCallbackStates(List)}.
+	 * @return the temp list
+	 */
+	final List<S> getTempStates() {
+		if (mTempStates == null) {
+			mTempStates = new ArrayList<S>(8);
+		}
+		return mTempStates;
+	}
+
+	/**
+	 * move the collected states to a pooled array which is terminated by null. so the states are called back by the
+	 * array, and the callbacks can reuse the temp list. must release by {@linkplain #releaseCallbackStates(AbstractState[])}.
+	 * @param states the collected states. which is cleared by this call.
+	 * @return the pooled array.
+	 */
+	final AbstractState<?>[] toCallbackStates(List<S> states) {
+		if (mCallbackDepth == mCallbackStates.length) {
+			mCallbackStates = Arrays.copyOf(mCallbackStates, mCallbackDepth << 1);
+		}
+		final int size = states.size();
+		AbstractState<?>[] array = mCallbackStates[mCallbackDepth];
+		if (array == null || array.length <= size) {
+			array = new AbstractState<?>[Math.max(8, size + 1)];
+			mCallbackStates[mCallbackDepth] = array;
+		}
+		// the element after the last one is set to null.
+		states.toArray(array);
+		states.clear();
+		mCallbackDepth++;
+		return array;
+	}
+
+	/**
+	 * release the pooled array which is obtained by {@linkplain #toCallbackStates(List)}.
+	 * @param states the pooled array
+	 */
+	final void releaseCallbackStates(AbstractState<?>[] states) {
+		for (int i = 0; states[i] != null; i++) {
+			states[i] = null;
+		}
+		mCallbackDepth--;
+	}
+
+	final void checkMemberState() {
+		if (!hasStateFactory()) {
+			throw new IllegalStateException("you must call setStateFactory(). first.");
+		}
+		if (mMerger == null) {
+			throw new IllegalStateException("you must call setParameterMerger(). first.");
+		}
+	}
+
+	// ======================== end internal method =============================
+
+	@Override
+	public final Object getOwner() {
+		return mOwner;
+	}
+
+	@Override
+	public final void setOwner(Object owner) {
+		if (owner == null) {
+			throw new NullPointerException();
+		}
+		this.mOwner = owner;
+	}
+
+	@Override
+	public final void setShareStateParam(P param) {
+		this.mShareParam = param;
+	}
+
+	@Override
+	public final P getShareStateParam() {
+		return mShareParam;
+	}
+
+	@Override
+	public final void setStateCacheEnabled(boolean enable) {
+		if (mEnableStateCache != enable) {
+			mEnableStateCache = enable;
+		}
+	}
+
+	@Override
+	public final boolean isStateCacheEnabled() {
+		return mEnableStateCache;
+	}
+
+	@Override
+	public final void setStateFactory(StateFactory<S, P> factory) {
+		if (factory == null) {
+			throw new NullPointerException();
+		}
+		this.mFactory = factory;
+	}
+
+	@Override
+	public final void setParameterMerger(ParameterMerger<P> merger) {
+		if (merger == null) {
+			throw new NullPointerException();
+		}
+		this.mMerger = merger;
+	}
+
+	/**
+	 * set the locked events can be checked by other threads or not. default is false.
+	 * if enabled, {@linkplain #isLockedEvent(int)} can be called by any thread(like input thread) without racing the
+	 * update thread. and lock/unlock event will copy the locked events.
+	 * @param concurrent true to enable
+	 * @since 1.3.0
+	 */
+	public final void setConcurrentLockEventsEnabled(boolean concurrent) {
+		if (mConcurrentLockEvents != concurrent) {
+			mConcurrentLockEvents = concurrent;
+			if (mLockEvents != null) {
+				final IntSet old = mLockEvents;
+				mLockEvents = newLockEvents();
+				mLockEvents.addAll(old.toArray());
+			}
+		}
+	}
+
+	/**
+	 * indicate the locked events can be checked by other threads or not.
+	 * @return true if can be checked by other threads.
+	 * @since 1.3.0
+	 */
+	public final boolean isConcurrentLockEventsEnabled() {
+		return mConcurrentLockEvents;
+	}
+
+	/**
+	 * get the snapshot iterator of the locked events. this never boxes the event keys.
+	 * @return the snapshot iterator. or null if no event locked.
+	 * @since 1.3.0
+	 */
+	public final IntSet.IntIterator getLockedEventIterator() {
+		final IntSet events = mLockEvents;
+		return events != null ? events.iterator() : null;
+	}
+
+	@Override
+	public final List<Integer> getLockedEvents() {
+		final IntSet events = mLockEvents;
+		if (events == null) {
+			return null;
+		}
+		final int[] keys = events.toArray();
+		final List<Integer> list = new ArrayList<Integer>(keys.length);
+		for (int key : keys) {
+			list.add(key);
+		}
+		return list;
+	}
+
+	@Override
+	public final boolean lockEvent(int... eventKeys) {
+		if (eventKeys == null || eventKeys.length == 0) {
+			throw new IllegalArgumentException();
+		}
+		if (mLockEvents == null) {
+			mLockEvents = newLockEvents();
+		}
+		return mLockEvents.addAll(eventKeys);
+	}
+
+	@Override
+	public final boolean unlockEvent(int... keys) throws IllegalArgumentException {
+		if (keys == null || keys.length == 0) {
+			throw new IllegalArgumentException();
+		}
+		if (mLockEvents == null) {
+			return false;
+		}
+		return mLockEvents.removeAll(keys);
+	}
+
+	@Override
+	public final boolean unlockAllEvent() {
+		if (mLockEvents == null) {
+			return false;
+		}
+		mLockEvents.clear();
+		return true;
+	}
+
+	@Override
+	public final boolean isLockedEvent(int eventKey) {
+		final IntSet events = mLockEvents;
+		return events != null && events.contains(eventKey);
+	}
+
+	private IntSet newLockEvents() {
+		return mConcurrentLockEvents ? new CopyOnWriteIntSet() : new BitmapIntSet();
+	}
+
+	@Override
+	public final void dispose() {
+		// destroy foreground states and back/cache state.
+		disposeStates();
+
+		synchronized (this) {
+			if (mDelayMessages != null) {
+				mDelayMessages.clear(true);
+			}
+			if (mPolledEntry != null) {
+				mPolledEntry.removed = true;
+			}
+		}
+		if (mMessageTimer != null) {
+			mMessageTimer.clearMessages(this, true);
+		}
+		cancelPendingRequests();
+		for (Message msg; (msg = mInbox.poll()) != null;) {
+			msg.recycleUnchecked();
+		}
+
+		final ControllerWorld world = this.mWorld;
+		if (world != null) {
+			world.remove(this);
+		}
+		// clean up controller
+		this.mOwner = null;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public final StateTransaction<P> beginTransaction() {
+		// every thread has its own transaction. so the concurrent builders never trample each other.
+		StateTransactionImpl transaction = sTransactions.get();
+		if (transaction == null) {
+			transaction = new StateTransactionImpl();
+			sTransactions.set(transaction);
+		} else if (transaction.mCommitting
+				|| (transaction.mController != null && transaction.mController != this)) {
+			// begin in the callback of the pooled one which is committing, or building for another controller.
+			transaction = new StateTransactionImpl();
+		}
+		transaction.mController = (AbstractController<?, Object>) this;
+		return (StateTransaction<P>) (StateTransaction<?>) transaction;
+	}
+
+	@Override
+	public boolean compareAndApply(int targetStates, int newStates, byte compareType, byte applyType, P param) {
+		return beginTransaction()
+				.compareStates(targetStates)
+				.compareType(compareType)
+				.operateParameter(param)
+				.operateAdd(newStates)
+				.applyType(applyType)
+				.commit();
+	}
+
+	/**
+	 * commit the transaction of this controller: compare the states, then run the start action and perform the
+	 * operations. the default implementation does them one by one, so it isn't atomic under concurrency.
+	 * {@linkplain SimpleController} overrides it to do them under the claim of its state word.
+	 * @param transaction the transaction
+	 * @return true if compare and perform success.
+	 * @since 1.3.0
+	 */
+	/*package*/ boolean commitTransaction(StateTransaction<?> transaction) {
+		return transaction.verifyCompareType(transaction.mCompareType) && transaction.startAndPerform();
+	}
+
+	/**
+	 * apply the folded batch operations of {@linkplain StateTransaction} as one change. the target states of a scope
+	 * are '(states & keep) | add'. the default implementation sets the target states by
+	 * {@linkplain #setState(int, Object)} and {@linkplain #setGlobalState(int, Object)} if they are changed. so the
+	 * states which are both kept and added aren't reentered.
+	 * {@linkplain SimpleController}, {@linkplain BitSetController} and {@linkplain LongController} override it to
+	 * dispatch the net change of each scope directly.
+	 * @param currentKeep the kept mask of current states
+	 * @param currentAdd the added current states
+	 * @param globalKeep the kept mask of global states
+	 * @param globalAdd the added global states
+	 * @param param the parameter
+	 * @return true if any state is changed or reentered.
+	 * @since 1.3.0
+	 */
+	/*package*/ boolean applyBatch(int currentKeep, int currentAdd, int globalKeep, int globalAdd, P param) {
+		boolean changed = false;
+		final int current = getCurrentStateFlags();
+		final int newCurrent = (current & currentKeep) | currentAdd;
+		if (newCurrent != current) {
+			if (newCurrent == 0) {
+				clearState(param);
+			} else {
+				setState(newCurrent, param);
+			}
+			changed = true;
+		}
+		final int global = getGlobalStateFlags();
+		final int newGlobal = (global & globalKeep) | globalAdd;
+		if (newGlobal != global) {
+			setGlobalState(newGlobal, param);
+			changed = true;
+		}
+		return changed;
+	}
+
+	@Deprecated
+	@Override
+	public boolean sendMessage(Message msg, @PolicyType byte policy) {
+		return dispatchMessage(msg, policy, FLAG_SCOPE_CURRENT);
+	}
+
+	@Deprecated
+	@Override
+	public boolean sendMessage(Message msg, @PolicyType byte policy, @ScopeFlags byte scope) {
+		return dispatchMessage(msg, policy, scope);
+	}
+
+	@Override
+	public boolean dispatchMessage(Message msg, @PolicyType byte policy) {
+		return dispatchMessage(msg, policy, FLAG_SCOPE_CURRENT);
+	}
+
+	@Override
+	public boolean dispatchMessage(Message msg, @PolicyType byte policy, @ScopeFlags byte scope) {
+		return dispatchMessageImpl(-1, null, msg, policy, scope, true);
+	}
+
+	@Override
+	public boolean dispatchCoalescedMessage(Message msg, @PolicyType byte policy, @ScopeFlags byte scope,
+			@CoalesceType byte coalesce) {
+		if (coalesce < COALESCE_REPLACE || coalesce > COALESCE_KEEP_LATEST) {
+			throw new IllegalArgumentException("error coalesce = " + coalesce);
+		}
+		if (msg.isInUse()) {
+			throw new IllegalStateException(msg + " This message is already in use.");
+		}
+		final SharedMessageTimer timer = this.mMessageTimer;
+		final long now = timer != null ? timer.getClock().nanoTime() : mClock.nanoTime();
+		if (msg.resolveWhenNanos(now) == now) {
+			dispatchMessageImpl(-1, null, msg, policy, scope, true);
+			return false;
+		}
+		msg.markInUse();
+		if (timer != null) {
+			return timer.coalesce(this, msg, policy, scope, -1, null, coalesce);
+		}
+		final boolean result;
+		synchronized (this) {
+			if (mDelayMessages == null) {
+				mDelayMessages = new MessageScheduler();
+			}
+			result = mDelayMessages.coalesce(msg, policy, scope, -1, null, coalesce);
+		}
+		wakeUp();
+		return result;
+	}
+
+	@Override
+	public PeriodicMessage dispatchPeriodicMessage(Message msg, @PolicyType byte policy, long initialDelay,
+			long period, TimeUnit unit, @PeriodType byte periodType) {
+		if (period <= 0) {
+			throw new IllegalArgumentException("period must > 0");
+		}
+		if (periodType < PERIOD_FIXED_DELAY || periodType > PERIOD_FIXED_RATE_CATCH_UP) {
+			throw new IllegalArgumentException("error periodType = " + periodType);
+		}
+		if (msg.isInUse()) {
+			throw new IllegalStateException(msg + " This message is already in use.");
+		}
+		msg.markInUse();
+		final PeriodicMessage periodic = new PeriodicMessage(periodType, unit.toNanos(period));
+		msg.periodic = periodic;
+		periodic.attach(this, msg);
+		final SharedMessageTimer timer = this.mMessageTimer;
+		final long now = timer != null ? timer.getClock().nanoTime() : mClock.nanoTime();
+		msg.whenNanos = now + unit.toNanos(Math.max(initialDelay, 0));
+		scheduleMessage(timer, -1, null, msg, policy, FLAG_SCOPE_CURRENT);
+		return periodic;
+	}
+
+	@Override
+	public MessageFuture request(Message msg, @PolicyType byte policy, long timeout, TimeUnit unit) {
+		final MessageFuture future = new MessageFuture(msg.what);
+		msg.replier = future;
+		msg.correlationId = future.getCorrelationId();
+		dispatchMessageImpl(-1, null, msg, policy, FLAG_SCOPE_CURRENT, true);
+		// the pending future is removed with its timeout message when it is done.
+		if (future.attach(this)) {
+			synchronized (this) {
+				if (mPendingRequests == null) {
+					mPendingRequests = new ArrayList<MessageFuture>(4);
+				}
+				mPendingRequests.add(future);
+			}
+			if (timeout > 0) {
+				// identified by the flag. so the 'what' of it is just the what of request.
+				final Message timeoutMsg = Message.obtain(future.getRequestWhat(), future);
+				timeoutMsg.markTimeout();
+				timeoutMsg.setDelay(timeout, unit);
+				future.setTimeoutMessage(timeoutMsg);
+				dispatchMessageImpl(-1, null, timeoutMsg, policy, FLAG_SCOPE_CURRENT, true);
+			}
+			// replied by another thread before it is pending.
+			if (future.isDone()) {
+				removeRequest(future);
+			}
+		}
+		return future;
+	}
+
+	/**
+	 * remove the pending future and its timeout message. called when the future is done.
+	 * @param future the future of request
+	 */
+	/*package*/ final void removeRequest(MessageFuture future) {
+		synchronized (this) {
+			if (mPendingRequests != null) {
+				mPendingRequests.remove(future);
+			}
+		}
+		final Message timeoutMsg = future.getTimeoutMessage();
+		if (timeoutMsg == null) {
+			return;
+		}
+		// not scheduled yet if not removed. the due one is ignored as the future is done.
+		if (removeExactMessage(timeoutMsg, future)) {
+			future.setTimeoutMessage(null);
+		}
+	}
+
+	/**
+	 * remove the periodic message which is cancelled.
+	 * @param msg the message of periodic
+	 * @param periodic the periodic handle
+	 */
+	/*package*/ final void removePeriodicMessage(Message msg, PeriodicMessage periodic) {
+		removeExactMessage(msg, periodic);
+	}
+
+	/**
+	 * remove the exact delayed message of the handle. the pending one is removed and recycled at once. the polled or
+	 * due one is marked as removed, which is recycled after it is dispatched or skipped.
+	 * @param msg the message which may be already dispatched and reused.
+	 * @param handle the handle of message. see {@linkplain Message#isHandledBy(Object)}.
+	 * @return true if removed.
+	 */
+	private boolean removeExactMessage(Message msg, Object handle) {
+		synchronized (this) {
+			if (mDelayMessages != null && mDelayMessages.removeExact(msg, handle)) {
+				return true;
+			}
+			if (mPolledEntry != null && mPolledEntry.msg == msg && msg.isHandledBy(handle)) {
+				mPolledEntry.removed = true;
+				return true;
+			}
+		}
+		return mMessageTimer != null && mMessageTimer.removeExact(this, msg, handle);
+	}
+
+	/** cancel the pending futures of requests. so the callers which wait for them never block forever. */
+	private void cancelPendingRequests() {
+		final List<MessageFuture> requests;
+		synchronized (this) {
+			requests = mPendingRequests;
+			mPendingRequests = null;
+		}
+		if (requests != null) {
+			for (MessageFuture future : requests) {
+				future.cancel(false);
+			}
+		}
+	}
+
+	@Override
+	public void postMessage(Message msg, @PolicyType byte policy) {
+		postMessage(msg, policy, FLAG_SCOPE_CURRENT);
+	}
+
+	@Override
+	public void postMessage(Message msg, @PolicyType byte policy, @ScopeFlags byte scope) {
+		if (msg.isInUse()) {
+			throw new IllegalStateException(msg + " This message is already in use.");
+		}
+		msg.markInUse();
+		msg.postedPolicy = policy;
+		msg.postedScope = scope;
+		mInbox.offer(msg);
+		// must after offer. see ControllerWorld#sleep.
+		wakeUp();
+	}
+
+	@Override
+	public boolean dispatchMessage(int states, Message msg, @PolicyType byte policy) {
+		return dispatchMessageImpl(states, null, msg, policy, (byte) (FLAG_SCOPE_CURRENT | FLAG_SCOPE_GLOBAL), false);
+	}
+
+	/**
+	 * dispatch the message to the target states. if the message is delayed, it will be handled in update method.
+	 * @param states the target states. -1 means all.
+	 * @param wideStates the target wide states. can be null.
+	 * @param msg the message
+	 * @param policy the policy
+	 * @param scope the scope
+	 * @param recycle true to recycle the message after it is dispatched now. the delayed message is always
+	 *              recycled after it is dispatched.
+	 * @return true if handled.
+	 */
+	final boolean dispatchMessageImpl(int states, BitSet wideStates, Message msg, @PolicyType byte policy,
+			@ScopeFlags byte scope, boolean recycle) {
+		// check in use or mark it.
+		if (msg.isInUse()) {
+			throw new IllegalStateException(msg + " This message is already in use.");
+		}
+		msg.markInUse();
+
+		// filter delay message.wait it will handle in update method.
+		final SharedMessageTimer timer = this.mMessageTimer;
+		final long now = timer != null ? timer.getClock().nanoTime() : mClock.nanoTime();
+		if (msg.resolveWhenNanos(now) != now) {
+			scheduleMessage(timer, states, wideStates, msg, policy, scope);
+			return false;
+		}
+		wakeUp();
+		// dispatch to states
+		final boolean result = dispatchMessage0(states, wideStates, msg, policy, scope);
+		if (recycle) {
+			msg.recycleUnchecked();
+		}
+		return result;
+	}
+
+	private void scheduleMessage(SharedMessageTimer timer, int states, BitSet wideStates, Message msg, byte policy,
+			byte scope) {
+		if (timer != null) {
+			timer.schedule(this, msg, policy, scope, states, wideStates != null ? (BitSet) wideStates.clone() : null);
+			return;
+		}
+		synchronized (this) {
+			if (mDelayMessages == null) {
+				mDelayMessages = new MessageScheduler();
+			}
+			mDelayMessages.schedule(msg, policy, scope, states, wideStates != null ? (BitSet) wideStates.clone() : null);
+		}
+		// must after schedule. see ControllerWorld#sleep.
+		wakeUp();
+	}
+
+	/**
+	 * wake up this controller if it is dormant in the world. called when this controller may need tick.
+	 * like: a message is dispatched or posted, or a state is entered.
+	 */
+	/*package*/ final void wakeUp() {
+		if (mDormant) {
+			final ControllerWorld world = this.mWorld;
+			if (world != null) {
+				world.wakeUp(this);
+			}
+		}
+	}
+
+	/**
+	 * indicate this controller doesn't need tick or not. that is no posted message, no delayed message
+	 * on its own scheduler and no active state wants update. the messages on the shared timer are dispatched by
+	 * the timer, so they are ignored.
+	 * <p>Note: this should be called on the update thread.</p>
+	 * @return true if idle.
+	 */
+	/*package*/ final boolean isIdle() {
+		if (!mInbox.isEmpty()) {
+			return false;
+		}
+		synchronized (this) {
+			if (mDelayMessages != null && mDelayMessages.size() > 0) {
+				return false;
+			}
+		}
+		return !hasUpdatableStates();
+	}
+
+	@Override
+	public int dispatchMessages(Message[] msgs, @PolicyType byte policy) {
+		return dispatchMessages(Arrays.asList(msgs), policy, FLAG_SCOPE_CURRENT);
+	}
+
+	@Override
+	public int dispatchMessages(Message[] msgs, @PolicyType byte policy, @ScopeFlags byte scope) {
+		return dispatchMessages(Arrays.asList(msgs), policy, scope);
+	}
+
+	@Override
+	public int dispatchMessages(List<Message> msgs, @PolicyType byte policy) {
+		return dispatchMessages(msgs, policy, FLAG_SCOPE_CURRENT);
+	}
+
+	@Override
+	public int dispatchMessages(List<Message> msgs, @PolicyType byte policy, @ScopeFlags byte scope) {
+		final int size = msgs.size();
+		if (policy != POLICY_CONSUME && policy != POLICY_BROADCAST) {
+			throw new IllegalStateException("error policy = " + policy);
+		}
+		wakeUp();
+		// check in use or mark them.
+		for (int i = 0; i < size; i++) {
+			final Message msg = msgs.get(i);
+			if (msg.isInUse()) {
+				for (int j = 0; j < i; j++) {
+					msgs.get(j).markInUse(false);
+				}
+				throw new IllegalStateException(msg + " This message is already in use.");
+			}
+			msg.markInUse();
+		}
+		// resolve the target states once. support the reentrant call.
+		List<S> targets = mBatchTargets;
+		mBatchTargets = null;
+		if (targets == null) {
+			targets = new ArrayList<S>();
+		}
+		getMessageTargets(scope, targets);
+
+		final SharedMessageTimer timer = this.mMessageTimer;
+		final long now = timer != null ? timer.getClock().nanoTime() : mClock.nanoTime();
+		final boolean consume = policy == POLICY_CONSUME;
+		final int targetCount = targets.size();
+		int count = 0;
+		beginCallback();
+		try {
+			for (int i = 0; i < size; i++) {
+				final Message msg = msgs.get(i);
+				if (msg.resolveWhenNanos(now) != now) {
+					scheduleMessage(timer, -1, null, msg, policy, scope);
+					continue;
+				}
+				final int route = getMessageRoute(msg.what);
+				boolean handled = false;
+				for (int j = 0; j < targetCount; j++) {
+					final S state = targets.get(j);
+					if (route != -1 && (route & state.getId()) == 0) {
+						continue;
+					}
+					if (state.handleMessage(msg)) {
+						handled = true;
+						if (consume) {
+							break;
+						}
+					}
+				}
+				if (handled) {
+					count++;
+				}
+				msg.recycleUnchecked();
+			}
+		} finally {
+			targets.clear();
+			mBatchTargets = targets;
+			endCallback();
+		}
+		return count;
+	}
+
+	@Override
+	public final void update(long deltaTime) {
+		update(deltaTime, null);
+	}
+
+	/**
+	 * update the controller. which is split into two phases: {@linkplain #dispatchPendingMessages()} and
+	 * {@linkplain #updateStates(long, Object)}. it is final, as {@linkplain ControllerWorld#tick(long, Object)} runs
+	 * the two phases of all controllers as separate barriers, without calling this.
+	 * @param deltaTime the delta time in mill second.
+	 * @param param the parameter to update.
+	 */
+	@Override
+	public final void update(long deltaTime, P param) {
+		dispatchPendingMessages();
+		// update active state
+		updateStates(deltaTime, param);
+	}
+
+	/**
+	 * dispatch the posted messages and the due delayed messages of this controller.
+	 * this is the first phase of {@linkplain #update(long, Object)}.
+	 */
+	/*package*/ final void dispatchPendingMessages() {
+		// drain the posted messages in FIFO order. the messages which are posted while draining are
+		// left to the next update.
+		final MessageInbox inbox = this.mInbox;
+		final Message last = inbox.getLast();
+		for (Message msg; (msg = inbox.poll(last)) != null;) {
+			msg.markInUse(false);
+			dispatchMessageImpl(-1, null, msg, msg.postedPolicy, msg.postedScope, true);
+			if (msg == last) {
+				break;
+			}
+		}
+
+		final MessageScheduler scheduler = this.mDelayMessages;
+		if (scheduler != null) {
+			final long now = mClock.nanoTime();
+			MessageScheduler.Entry entry;
+			for (;;) {
+				// poll in lock, but dispatch without lock.
+				synchronized (this) {
+					entry = scheduler.pollDue(now);
+					mPolledEntry = entry;
+				}
+				if (entry == null) {
+					break;
+				}
+				final boolean reschedule = dispatchScheduledMessage(entry.states, entry.wideStates, entry.msg,
+						entry.policy, entry.scope);
+				synchronized (this) {
+					mPolledEntry = null;
+					// may be removed while dispatching.
+					if (reschedule && !entry.removed) {
+						// reuse the slot for the next period.
+						scheduler.reschedule(entry);
+					} else {
+						if (reschedule) {
+							entry.msg.recycleUnchecked();
+						}
+						scheduler.recycle(entry);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * set the clock which is used to schedule the delay messages of this controller. default is
+	 * {@linkplain Clock#monotonic()}. if the shared timer is set, the clock of the timer is used instead.
+	 * <p>Note: should be called before any message is delayed.</p>
+	 * @param clock the clock. like {@linkplain com.heaven7.java.mvcs.util.VirtualClock} in simulation or test.
+	 * @since 1.3.0
+	 */
+	public final void setClock(Clock clock) {
+		if (clock == null) {
+			throw new IllegalArgumentException("clock can't be null.");
+		}
+		this.mClock = clock;
+	}
+
+	/**
+	 * get the clock which is used to schedule the delay messages of this controller.
+	 * @return the clock.
+	 * @since 1.3.0
+	 */
+	public final Clock getClock() {
+		return mClock;
+	}
+
+	/**
+	 * set the shared timer of delay messages. if set, the delay messages which are posted later will be owned by the
+	 * timer, and they are dispatched by {@linkplain SharedMessageTimer#advance()} when they are due. so
+	 * {@linkplain #update(long)} doesn't need to poll them.
+	 * @param timer the shared timer. null to use the timer of this controller.
+	 * @throws IllegalStateException if there are pending messages on the previous shared timer, or this controller
+	 *                               is owned by an {@linkplain ActorController}.
+	 * @since 1.3.0
+	 */
+	public final void setMessageTimer(SharedMessageTimer timer) {
+		if (timer != null && mActorOwned) {
+			throw new IllegalStateException("the controller of actor can't use the shared timer. "
+					+ "which dispatches the messages on the thread of timer.");
+		}
+		if (mMessageTimer != timer && mMessageTimer != null) {
+			synchronized (mMessageTimer) {
+				if (mTimerEntries != null) {
+					throw new IllegalStateException("there are pending messages on the previous shared timer. "
+							+ "you should clear messages first.");
+				}
+			}
+		}
+		this.mMessageTimer = timer;
+	}
+
+	/**
+	 * get the shared timer of delay messages.
+	 * @return the shared timer. or null if not set.
+	 * @since 1.3.0
+	 */
+	public final SharedMessageTimer getMessageTimer() {
+		return mMessageTimer;
+	}
+
+	@Override
+	public void clearMessages() {
+		synchronized (this) {
+			if (mDelayMessages != null) {
+				mDelayMessages.clear(false);
+			}
+			if (mPolledEntry != null) {
+				mPolledEntry.removed = true;
+			}
+		}
+		if (mMessageTimer != null) {
+			mMessageTimer.clearMessages(this, false);
+		}
+		// the timeout messages are cleared.
+		cancelPendingRequests();
+	}
+
+	@Override
+	public boolean hasMessage(Message expect) {
+		synchronized (this) {
+			if (mDelayMessages != null && mDelayMessages.hasMessage(expect)) {
+				return true;
+			}
+		}
+		return mMessageTimer != null && mMessageTimer.hasMessage(this, expect);
+	}
+
+	@Override
+	public boolean hasMessage(int what) {
+		synchronized (this) {
+			if (mDelayMessages != null && mDelayMessages.hasMessage(what)) {
+				return true;
+			}
+		}
+		return mMessageTimer != null && mMessageTimer.hasMessage(this, what);
+	}
+
+	@Override
+	public void removeMessage(int what) {
+		synchronized (this) {
+			if (mDelayMessages != null) {
+				mDelayMessages.removeMessages(what);
+			}
+			if (mPolledEntry != null && mPolledEntry.msg.what == what && !mPolledEntry.msg.isTimeout()) {
+				mPolledEntry.removed = true;
+			}
+		}
+		if (mMessageTimer != null) {
+			mMessageTimer.removeMessages(this, what);
+		}
+	}
+
+	@Override
+	public void removeMessage(Message expect) {
+		synchronized (this) {
+			if (mDelayMessages != null) {
+				mDelayMessages.removeMessages(expect);
+			}
+			if (mPolledEntry != null && !mPolledEntry.msg.isTimeout() && mPolledEntry.msg.equals(expect)) {
+				mPolledEntry.removed = true;
+			}
+		}
+		if (mMessageTimer != null) {
+			mMessageTimer.removeMessages(this, expect);
+		}
+	}
+
+	@Override
+	public TeamMediator<P> getTeamMediator() {
+		if (mTeamMediator == null) {
+			mTeamMediator = new TeamMediatorImpl<P>(this);
+		}
+		return mTeamMediator;
+	}
+
+	/**
+	 * the transaction which is pooled per thread. which is bound to a controller by
+	 * {@linkplain AbstractController#beginTransaction()}, and unbound after it is committed.
+	 */
+	private static class StateTransactionImpl extends StateTransaction<Object> {
+
+		AbstractController<?, Object> mController;
+		boolean mCommitting;
+
+		@Override
+		boolean compareAndPerform() {
+			// the start action and the callbacks may begin another transaction. which must not reuse this.
+			mCommitting = true;
+			try {
+				return mController.commitTransaction(this);
+			} finally {
+				mCommitting = false;
+			}
+		}
+
+		@Override
+		protected boolean verifyCompareType(byte type) {
+			switch (type) {
+			case COMPARE_TYPE_HAS:
+				return (mController.getCurrentStateFlags() & mCompareState) != 0;
+
+			case COMPARE_TYPE_EQUALS:
+				return mController.getCurrentStateFlags() == mCompareState;
+			}
+			return true;
+		}
+		@Override
+		protected boolean performTransaction() {
+
+			final AbstractController<?, Object> controller = this.mController;
+			final int states = mOperateStates;
+			final Object param = mParam;
+
+			if (mBatch) {
+				return controller.applyBatch(mCurrentKeep, mCurrentAdd, mGlobalKeep, mGlobalAdd, param);
+			}
+			boolean result = false;
+			switch (mOp) {
+			case StateTransaction.APPLY_TYPE_ADD:
+				result = controller.addState(states, param);
+				break;
+
+			case StateTransaction.APPLY_TYPE_SET:
+				result = controller.setState(states, param);
+				break;
+
+			case StateTransaction.APPLY_TYPE_REMOVE:
+				result = controller.removeState(states, param);
+				break;
+
+			default:
+				System.err.println("execute StateTransaction failed. " + this.toString());
+			}
+			return result;
+		}
+
+		@Override
+		void onReset() {
+			mController = null;
+		}
+	}
+}
+
+class TeamMediatorImpl<P> extends TeamMediator<P> {
+
+	final AbstractController<?, P> mController;
+
+	public TeamMediatorImpl(AbstractController<?, P> controller) {
+		super();
+		this.mController = controller;
+	}
+
+	@Override
+	public void notifyStateEnter(int states, P param) {
+		mController.notifyStateEnter(states, param);
+	}
+
+	@Override
+	public void notifyStateExit(int states, P param) {
+		mController.notifyStateExit(states, param);
+	}
+
+	@Override
+	public void notifyStateReenter(int states, P param) {
+		mController.notifyStateReenter(states, param);
+	}
+
+}
@@ -0,0 +1,143 @@
+package com.heaven7.java.mvcs;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * the base future of this library. which holds the state, result and callback, and wakes up the waiters when it
+ * is completed. the first completion wins, the later ones are ignored.
+ * @param <V> the result type
+ * @param <C> the callback type
+ * @author heaven7
+ * @since 1.3.0
+ * @see MessageFuture
+ * @see ActorController.Completion
+ */
+/* public */ abstract class AbstractFuture<V, C> implements Future<V> {
+
+	/*package*/ static final int STATE_PENDING = 0;
+	/*package*/ static final int STATE_DONE = 1;
+	/*package*/ static final int STATE_FAILED = 2;
+	/*package*/ static final int STATE_CANCELLED = 3;
+
+	private int mState = STATE_PENDING;
+	private V mResult;
+	private Throwable mError;
+	private C mCallback;
+
+	/**
+	 * set the callback. which is called at once if it is already done.
+	 * @param callback the callback
+	 */
+	/*package*/ final void setCallbackImpl(C callback) {
+		final boolean done;
+		synchronized (this) {
+			this.mCallback = callback;
+			done = mState != STATE_PENDING;
+		}
+		if (done && callback != null) {
+			onDone(callback);
+		}
+	}
+
+	/**
+	 * called when this is completed, or the callback is set after that. without lock.
+	 * @param callback the callback. may be null.
+	 */
+	/*package*/ abstract void onDone(C callback);
+
+	/**
+	 * get the error of the failed future.
+	 * @return the error. or null if not failed.
+	 */
+	public synchronized Throwable getError() {
+		return mError;
+	}
+
+	/**
+	 * cancel this future if it isn't done.
+	 * @param mayInterruptIfRunning ignored. the running operation is never interrupted.
+	 * @return true if cancelled.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return complete(STATE_CANCELLED, null, null);
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return mState == STATE_CANCELLED;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return mState != STATE_PENDING;
+	}
+
+	@Override
+	public synchronized V get() throws InterruptedException, ExecutionException {
+		while (mState == STATE_PENDING) {
+			wait();
+		}
+		return getResult();
+	}
+
+	@Override
+	public synchronized V get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (mState == STATE_PENDING) {
+			final long remain = deadline - System.nanoTime();
+			if (remain <= 0) {
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remain);
+		}
+		return getResult();
+	}
+
+	/*package*/ final synchronized int getState() {
+		return mState;
+	}
+
+	/*package*/ final synchronized V getResultNow() {
+		return mResult;
+	}
+
+	/**
+	 * complete this future. the waiters are woken up and the callback is called.
+	 * @param state the state. {@linkplain #STATE_DONE}, {@linkplain #STATE_FAILED} or {@linkplain #STATE_CANCELLED}.
+	 * @param result the result
+	 * @param error the error of failed.
+	 * @return true if completed. false if it is already done.
+	 */
+	/*package*/ final boolean complete(int state, V result, Throwable error) {
+		final C callback;
+		synchronized (this) {
+			if (mState != STATE_PENDING) {
+				return false;
+			}
+			mState = state;
+			mResult = result;
+			mError = error;
+			callback = mCallback;
+			notifyAll();
+		}
+		onDone(callback);
+		return true;
+	}
+
+	private V getResult() throws ExecutionException {
+		switch (mState) {
+		case STATE_DONE:
+			return mResult;
+		case STATE_CANCELLED:
+			throw new CancellationException();
+		default:
+			throw new ExecutionException(mError);
+		}
+	}
+}
@@ -54,6 +54,10 @@ public abstract class AbstractState<P> implements Disposeable {
 	 * @see AbstractState#onReenter()
 	 **/
 	private int mRealEnterCount;
+	/** the delta time which is accumulated since the last {@linkplain #onUpdate(long, Object)}. */
+	private long mPendingDeltaTime;
+	/** the count of updates since the last {@linkplain #onUpdate(long, Object)}. */
+	private int mPendingUpdates;
 
 	/**
 	 * called on attach this state. you shouldn't call it.
@@ -94,6 +98,9 @@ public abstract class AbstractState<P> implements Disposeable {
 	 */
 	void enter(int flags){
 		mRealEnterCount ++;
+		mPendingDeltaTime = 0;
+		mPendingUpdates = 0;
+		wakeUpController();
 		if(flags > 0){
 		    addFlags(flags);
 		}
@@ -106,6 +113,7 @@ public abstract class AbstractState<P> implements Disposeable {
 	 */
 	void reenter(int flags){
 		mRealEnterCount ++;
+		wakeUpController();
 		if(flags > 0){
 		    addFlags(flags);
 		}
@@ -123,6 +131,12 @@ public abstract class AbstractState<P> implements Disposeable {
 		}
 		onExit();
 	}
+	private void wakeUpController() {
+		if (mController instanceof AbstractController) {
+			((AbstractController<?, ?>) mController).wakeUp();
+		}
+	}
+
 	/**
 	 * clear the temp/once flags.
 	 * @since 1.1.8
@@ -258,6 +272,80 @@ public abstract class AbstractState<P> implements Disposeable {
 	protected abstract void onExit();
 
 	
+	/**
+	 * called by the update of controller. {@linkplain #onUpdate(long, Object)} is only called when it is due by
+	 * {@linkplain #getUpdateInterval()} and {@linkplain #getUpdateDivisor()}. with the accumulated delta time.
+	 * @param deltaTime the delta time of controller update. -1 indicate unknown delta time.
+	 * @param param the extra parameter.
+	 * @since 1.3.0
+	 */
+	/*package*/ final void update(long deltaTime, P param) {
+		if (!isUpdateEnabled()) {
+			return;
+		}
+		final long interval = getUpdateInterval();
+		final int divisor = getUpdateDivisor();
+		if (interval <= 0 && divisor <= 1) {
+			onUpdate(deltaTime, param);
+			return;
+		}
+		final int updates = ++mPendingUpdates;
+		if (divisor > 1 && updates < divisor) {
+			if (deltaTime > 0) {
+				mPendingDeltaTime += deltaTime;
+			}
+			return;
+		}
+		final long pendingDeltaTime;
+		if (deltaTime < 0) {
+			// unknown delta time. only the divisor works.
+			pendingDeltaTime = -1;
+		} else {
+			pendingDeltaTime = mPendingDeltaTime + deltaTime;
+			if (interval > 0 && pendingDeltaTime < interval) {
+				mPendingDeltaTime = pendingDeltaTime;
+				return;
+			}
+		}
+		mPendingDeltaTime = 0;
+		mPendingUpdates = 0;
+		onUpdate(pendingDeltaTime, param);
+	}
+
+	/**
+	 * indicate this state wants {@linkplain #onUpdate(long, Object)} by the update of controller or not.
+	 * the controller whose active states don't want update can be dormant in {@linkplain ControllerWorld}.
+	 * default is true.
+	 * @return true if this state wants update.
+	 * @since 1.3.0
+	 */
+	public boolean isUpdateEnabled() {
+		return true;
+	}
+
+	/**
+	 * get the min delta time between two calls of {@linkplain #onUpdate(long, Object)}. the delta time of updates
+	 * is accumulated until it reaches the interval, so the states which don't need every frame can skip the most
+	 * updates. default is 0 which means every update.
+	 * <p>Note: this is ignored if the delta time of update is unknown.</p>
+	 * @return the update interval. in the unit of delta time.
+	 * @since 1.3.0
+	 */
+	public long getUpdateInterval() {
+		return 0;
+	}
+
+	/**
+	 * get the count of updates per call of {@linkplain #onUpdate(long, Object)}. for example, 4 means
+	 * the state is updated once every 4 updates of controller. default is 1 which means every update.
+	 * if both this and {@linkplain #getUpdateInterval()} are set, the state is updated when both are reached.
+	 * @return the update divisor.
+	 * @since 1.3.0
+	 */
+	public int getUpdateDivisor() {
+		return 1;
+	}
+
 	/**
 	 * called on update this state. often called by
 	 * {@linkplain IController#notifyStateUpdate(Object)} . this method is very useful in game.
@@ -316,4 +404,17 @@ public abstract class AbstractState<P> implements Disposeable {
 
 		return false;
 	}
+
+	/**
+	 * get the 'what' codes of messages which can be handled by this state. the controller routes the messages
+	 * by them, so {@linkplain #handleMessage(Message)} is only called with these 'what' codes.
+	 * this is called when the state is entered. it should return the same codes for the same state,
+	 * a constant array is suggested.
+	 * <p>Note: only {@linkplain SimpleController} routes messages by them now.</p>
+	 * @return the 'what' codes. null means all messages. default is null.
+	 * @since 1.3.0
+	 */
+	public int[] getHandledMessages() {
+		return null;
+	}
 }
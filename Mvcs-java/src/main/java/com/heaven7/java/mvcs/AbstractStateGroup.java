@@ -0,0 +1,173 @@
+package com.heaven7.java.mvcs;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import com.heaven7.java.base.anno.IntDef;
+import com.heaven7.java.base.util.Disposeable;
+
+/**
+ * the base of state groups. it runs the lifecycle of a single state and dispatches the team callbacks. the sub class
+ * manages the current and cached states by its own state set.
+ *
+ * @param <S> the state type
+ * @param <P> the state parameter type.
+ * @author heaven7
+ * @since 1.3.0
+ * @see StateGroup
+ * @see BitSetStateGroup
+ */
+/* public */ abstract class AbstractStateGroup<S extends AbstractState<P>, P> implements Disposeable {
+
+	private static final byte ACTION_ENTER           = 1 ;
+	private static final byte ACTION_EXIT            = 2 ;
+	private static final byte ACTION_REENTER         = 3 ;
+
+	@IntDef({
+		ACTION_ENTER,
+		ACTION_EXIT,
+		ACTION_REENTER,
+	})
+	@Retention(RetentionPolicy.SOURCE)
+	@Target({ElementType.PARAMETER})
+	@interface ActionType{
+	}
+
+	private final IController<S, P> mController;
+	/** the parameter of current change. */
+	private P mParam;
+
+	/** if false. {@linkplain StateListener} will never call back. default is true.*/
+	private boolean mTeamEnabled = true;
+
+	AbstractStateGroup(IController<S, P> controller) {
+		this.mController = controller;
+	}
+
+	/**
+	 * get the parameter merger.
+	 * @return the parameter merger
+	 */
+	abstract ParameterMerger<P> getMerger();
+
+	// ========================== easy methods ===========================
+
+	final IController<S, P> getController() {
+		return mController;
+	}
+
+	final P getStateParameter() {
+		return mParam;
+	}
+
+	final void setStateParameter(P param) {
+		this.mParam = param;
+	}
+
+	final boolean isStateCacheEnabled() {
+		return mController.isStateCacheEnabled();
+	}
+	// ========================================================================
+
+	public final void setTeamEnabled(boolean enable) {
+		this.mTeamEnabled = enable;
+	}
+	public final boolean isTeamEnabled() {
+		return mTeamEnabled;
+	}
+
+	/**
+	 * enter the new state which is put to the state table already.
+	 * @param id the id of state
+	 * @param teamFlag the state flag in team. 0 if the state can't join team.
+	 * @param state the state
+	 */
+	final void enterState(int id, int teamFlag, S state) {
+		final P p = getMerger().merge(state.getStateParameter(), mParam);
+		state.setStateParameter(p);
+		state.onAttach(mController);
+		state.setId(id);
+		state.enter(0);
+		//dispatch callback
+		dispatchStateCallback(ACTION_ENTER, teamFlag, state);
+		state.clearOnceFlags();
+	}
+
+	/**
+	 * reenter the current state.
+	 * @param id the id of state
+	 * @param teamFlag the state flag in team. 0 if the state can't join team.
+	 * @param state the state
+	 */
+	final void reenterState(int id, int teamFlag, S state) {
+		final P p = getMerger().merge(state.getStateParameter(), mParam);
+		state.setStateParameter(p);
+		state.setId(id);
+		state.reenter(0);
+		dispatchStateCallback(ACTION_REENTER, teamFlag, state);
+		state.clearOnceFlags();
+	}
+
+	/**
+	 * exit the current state. the sub class should remove or cache it.
+	 * @param teamFlag the state flag in team. 0 if the state can't join team.
+	 * @param state the state
+	 * @param byMutex true if exit by mutex
+	 */
+	final void exitState(int teamFlag, S state, boolean byMutex) {
+		final P p = getMerger().merge(state.getStateParameter(), mParam);
+		state.setStateParameter(p);
+		state.exit(byMutex ? AbstractState.FLAG_MUTEX : 0);
+		dispatchStateCallback(ACTION_EXIT, teamFlag, state);
+		state.onDetach();
+	}
+
+	/**
+	 * exit the current state which is removed from team. no team callback.
+	 * @param state the state
+	 * @param teamP the team parameter
+	 */
+	final void exitStateByTeam(S state, P teamP) {
+		state.setTeamParameter(teamP);
+		state.exit(AbstractState.FLAG_TEAM);
+		state.clearOnceFlags();
+		state.onDetach();
+	}
+
+	/**
+	 * exit and dispose the current state.
+	 * @param state the state
+	 */
+	final void disposeState(S state) {
+		state.exit(0);
+		state.onDetach();
+		state.dispose();
+	}
+
+	private void dispatchStateCallback(@ActionType byte action, int teamFlag, S state) {
+		if (!mTeamEnabled || teamFlag == 0) {
+			return;
+		}
+		final StateTeamManager<P> mTeamM = mController.getTeamMediator().getStateTeamManager();
+		if (mTeamM != null) {
+			switch (action) {
+			case ACTION_ENTER:
+				mTeamM.onEnterState(teamFlag, state);
+				break;
+
+			case ACTION_EXIT:
+				mTeamM.onExitState(teamFlag, state);
+				break;
+
+			case ACTION_REENTER:
+				mTeamM.onReenterState(teamFlag, state);
+				break;
+
+			default:
+				throw new IllegalStateException("error action = " + action);
+			}
+		}
+	}
+}
@@ -0,0 +1,331 @@
+package com.heaven7.java.mvcs;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * the actor-style wrapper of a controller. the operations from any thread are enqueued to the mailbox, and executed
+ * in order by the executor. only one task of the mailbox runs at a time, so the controller is only touched by a
+ * single writer, without any lock. the mailbox is only scheduled to the executor when it has tasks, so thousands of
+ * actors can share a small thread pool.
+ * <p>Every operation returns a {@linkplain Completion} which is completed after the operation is executed.
+ * the compound operations(like a transaction) can be done by {@linkplain #submit(Action)}.</p>
+ * <p>Note: the wrapped controller must not be used directly after it is wrapped. And an operation which is
+ * called by the task of this actor is also enqueued, so don't wait for its completion in the task. The controller
+ * can't use the {@linkplain SharedMessageTimer}, as it dispatches the messages on its own thread. the delayed
+ * messages are dispatched by {@linkplain #update(long, Object)} instead.</p>
+ * @param <S> the state type
+ * @param <P> the state parameter type
+ * @author heaven7
+ * @since 1.3.0
+ */
+public final class ActorController<S extends AbstractState<P>, P> {
+
+	/** the default max count of tasks which are executed by a schedule. */
+	public static final int DEFAULT_THROUGHPUT = 64;
+
+	/**
+	 * the action which is executed with the exclusive access of controller.
+	 * @param <S> the state type
+	 * @param <P> the state parameter type
+	 * @param <V> the result type
+	 * @since 1.3.0
+	 */
+	public interface Action<S extends AbstractState<P>, P, V> {
+		/**
+		 * run this action on the executor.
+		 * @param controller the controller
+		 * @return the result
+		 * @throws Exception if failed. which is reported by the completion.
+		 */
+		V run(AbstractController<S, P> controller) throws Exception;
+	}
+
+	private final AbstractController<S, P> mController;
+	private final Executor mExecutor;
+	/** the mailbox. the pooled message carries the completion of a task by {@linkplain Message#obj}. */
+	private final MessageInbox mMailbox = new MessageInbox();
+	/** true if the mailbox is scheduled or running. */
+	private final AtomicBoolean mScheduled = new AtomicBoolean();
+	private volatile int mThroughput = DEFAULT_THROUGHPUT;
+
+	private final Runnable mRunner = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * create the actor controller.
+	 * @param controller the controller which is owned by this actor.
+	 * @param executor the executor which executes the tasks.
+	 * @throws IllegalArgumentException if the controller uses the shared timer.
+	 */
+	public ActorController(AbstractController<S, P> controller, Executor executor) {
+		if (controller == null || executor == null) {
+			throw new IllegalArgumentException("controller and executor can't be null.");
+		}
+		if (controller.getMessageTimer() != null) {
+			throw new IllegalArgumentException("the controller of actor can't use the shared timer.");
+		}
+		controller.mActorOwned = true;
+		this.mController = controller;
+		this.mExecutor = executor;
+	}
+
+	/**
+	 * set the max count of tasks which are executed by a schedule. the rest tasks are executed by the next
+	 * schedule. so the actors which share an executor are fair. default is {@linkplain #DEFAULT_THROUGHPUT}.
+	 * @param throughput the throughput
+	 */
+	public void setThroughput(int throughput) {
+		if (throughput <= 0) {
+			throw new IllegalArgumentException("throughput must > 0");
+		}
+		this.mThroughput = throughput;
+	}
+
+	public int getThroughput() {
+		return mThroughput;
+	}
+
+	/**
+	 * submit the action which is executed with the exclusive access of controller.
+	 * @param action the action
+	 * @param <V> the result type
+	 * @return the completion of action.
+	 */
+	public <V> Completion<V> submit(Action<S, P, V> action) {
+		if (action == null) {
+			throw new IllegalArgumentException("action can't be null.");
+		}
+		final Completion<V> completion = new Completion<V>(action);
+		final Message msg = Message.obtain();
+		msg.obj = completion;
+		mMailbox.offer(msg);
+		schedule();
+		return completion;
+	}
+
+	/**
+	 * add the states. see {@linkplain IController#addState(int, Object)}.
+	 * @param states the states
+	 * @param extra the extra parameter
+	 * @return the completion. the result is the same as {@linkplain IController#addState(int, Object)}.
+	 */
+	public Completion<Boolean> addState(final int states, final P extra) {
+		return submit(new Action<S, P, Boolean>() {
+			@Override
+			public Boolean run(AbstractController<S, P> controller) {
+				return controller.addState(states, extra);
+			}
+		});
+	}
+
+	public Completion<Boolean> addState(int states) {
+		return addState(states, null);
+	}
+
+	/**
+	 * remove the states. see {@linkplain IController#removeState(int, Object)}.
+	 * @param states the states
+	 * @param extra the extra parameter
+	 * @return the completion. the result is the same as {@linkplain IController#removeState(int, Object)}.
+	 */
+	public Completion<Boolean> removeState(final int states, final P extra) {
+		return submit(new Action<S, P, Boolean>() {
+			@Override
+			public Boolean run(AbstractController<S, P> controller) {
+				return controller.removeState(states, extra);
+			}
+		});
+	}
+
+	public Completion<Boolean> removeState(int states) {
+		return removeState(states, null);
+	}
+
+	/**
+	 * set the states. see {@linkplain IController#setState(int, Object)}.
+	 * @param states the states
+	 * @param extra the extra parameter
+	 * @return the completion. the result is the same as {@linkplain IController#setState(int, Object)}.
+	 */
+	public Completion<Boolean> setState(final int states, final P extra) {
+		return submit(new Action<S, P, Boolean>() {
+			@Override
+			public Boolean run(AbstractController<S, P> controller) {
+				return controller.setState(states, extra);
+			}
+		});
+	}
+
+	public Completion<Boolean> setState(int states) {
+		return setState(states, null);
+	}
+
+	/**
+	 * compare and apply the states by a transaction. see
+	 * {@linkplain IController#compareAndApply(int, int, byte, byte, Object)}.
+	 * @param targetStates the states to compare
+	 * @param newStates the states to apply
+	 * @param compareType the compare type
+	 * @param applyType the apply type
+	 * @param param the parameter
+	 * @return the completion. the result is true if the transaction is committed.
+	 */
+	public Completion<Boolean> compareAndApply(final int targetStates, final int newStates, final byte compareType,
+			final byte applyType, final P param) {
+		return submit(new Action<S, P, Boolean>() {
+			@Override
+			public Boolean run(AbstractController<S, P> controller) {
+				return controller.compareAndApply(targetStates, newStates, compareType, applyType, param);
+			}
+		});
+	}
+
+	/**
+	 * dispatch the message. see {@linkplain IController#dispatchMessage(Message, byte, byte)}.
+	 * @param msg the message
+	 * @param policy the policy
+	 * @param scope the scope
+	 * @return the completion. the result is true if the message is handled.
+	 */
+	public Completion<Boolean> dispatchMessage(final Message msg, final byte policy, final byte scope) {
+		return submit(new Action<S, P, Boolean>() {
+			@Override
+			public Boolean run(AbstractController<S, P> controller) {
+				return controller.dispatchMessage(msg, policy, scope);
+			}
+		});
+	}
+
+	public Completion<Boolean> dispatchMessage(Message msg, byte policy) {
+		return dispatchMessage(msg, policy, IController.FLAG_SCOPE_CURRENT);
+	}
+
+	/**
+	 * update the controller. see {@linkplain IController#update(long, Object)}.
+	 * @param deltaTime the delta time
+	 * @param param the parameter
+	 * @return the completion.
+	 */
+	public Completion<Void> update(final long deltaTime, final P param) {
+		return submit(new Action<S, P, Void>() {
+			@Override
+			public Void run(AbstractController<S, P> controller) {
+				controller.update(deltaTime, param);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * dispose the controller. see {@linkplain IController#dispose()}.
+	 * @return the completion.
+	 */
+	public Completion<Void> dispose() {
+		return submit(new Action<S, P, Void>() {
+			@Override
+			public Void run(AbstractController<S, P> controller) {
+				controller.dispose();
+				return null;
+			}
+		});
+	}
+
+	private void schedule() {
+		if (mScheduled.compareAndSet(false, true)) {
+			try {
+				mExecutor.execute(mRunner);
+			} catch (RejectedExecutionException e) {
+				mScheduled.set(false);
+				throw e;
+			}
+		}
+	}
+
+	private void drain() {
+		// the only consumer of mailbox. which is guaranteed by the scheduled flag.
+		final MessageInbox mailbox = this.mMailbox;
+		final int throughput = this.mThroughput;
+		try {
+			Message msg;
+			for (int i = 0; i < throughput && (msg = mailbox.poll()) != null; i++) {
+				final Completion<?> completion = (Completion<?>) msg.obj;
+				msg.recycleUnchecked();
+				completion.run(mController);
+			}
+		} finally {
+			mScheduled.set(false);
+			// the tasks which are offered before the flag is cleared.
+			if (!mailbox.isEmpty()) {
+				schedule();
+			}
+		}
+	}
+
+	/**
+	 * the completion of an operation of {@linkplain ActorController}.
+	 * @param <V> the result type
+	 * @since 1.3.0
+	 */
+	public static final class Completion<V> extends AbstractFuture<V, Completion.Callback<V>> {
+
+		/** the action. which is released once it is executed. */
+		private Action<?, ?, V> mAction;
+
+		/**
+		 * the callback of completion.
+		 * @param <V> the result type
+		 * @since 1.3.0
+		 */
+		public interface Callback<V> {
+			/**
+			 * called when the completion is done. that is executed, failed or cancelled. this is called on the
+			 * executor. or the thread which set the callback if it is already done.
+			 * @param completion the completion
+			 */
+			void onDone(Completion<V> completion);
+		}
+
+		/*package*/ Completion(Action<?, ?, V> action) {
+			this.mAction = action;
+		}
+
+		/**
+		 * set the callback. which is called at once if it is already done.
+		 * @param callback the callback
+		 */
+		public void setCallback(Callback<V> callback) {
+			setCallbackImpl(callback);
+		}
+
+		@Override
+		/*package*/ void onDone(Callback<V> callback) {
+			if (callback != null) {
+				callback.onDone(this);
+			}
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		/*package*/ void run(AbstractController<?, ?> controller) {
+			final Action<?, ?, V> action = mAction;
+			mAction = null;
+			if (isDone()) {
+				// cancelled.
+				return;
+			}
+			final V result;
+			try {
+				result = (V) ((Action) action).run(controller);
+			} catch (Throwable e) {
+				complete(STATE_FAILED, null, e);
+				return;
+			}
+			complete(STATE_DONE, result, null);
+		}
+	}
+}
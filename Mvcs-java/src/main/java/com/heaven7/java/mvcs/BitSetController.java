@@ -0,0 +1,1050 @@
+package com.heaven7.java.mvcs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import com.heaven7.java.mvcs.util.BitFlags;
+
+/**
+ * the controller which is backed by {@linkplain BitSet}. it support unbounded states (hundreds of states).
+ * <p>Different from {@linkplain SimpleController}, the state is indicated by its index(bit position) in a {@linkplain BitSet}.
+ * so the states are created by {@linkplain IndexStateFactory} which receives the state index, and the id of
+ * {@linkplain AbstractState} is the state index. And for the int state flags of {@linkplain IController}, bit n means
+ * the state of index n. so the all int flags methods only can indicate the first 31 states.</p>
+ * <p>The {@linkplain IController.StateFactory} still receives the state flag like {@linkplain SimpleController}.
+ * so it only can create the first 31 states, and it is used only if the {@linkplain IndexStateFactory} is not set.</p>
+ * <p>Note: only the first 31 states can join the state team. because {@linkplain StateTeamManager} is based on int flags.</p>
+ *
+ * @param <S>
+ *            the state type .
+ * @param <P>
+ *            the state parameter type
+ * @author heaven7
+ * @since 1.3.0
+ * @see LongController
+ * @see SimpleController
+ */
+public class BitSetController<S extends AbstractState<P>, P> extends AbstractController<S, P> {
+
+	/** the max state count */
+	private final int mMaxStateCount;
+
+	/** current state group/ */
+	private final BitSetStateGroup<S, P> mGroup;
+	private final BitSetStateGroup.Callback<S, P> mCallback;
+	private BitSetStateGroup<S, P> mGlobalGroup;
+
+	/** the state table. indexed by the state index. */
+	private final StateTable<S> mStateTable;
+
+	/**
+	 * the history state stack.
+	 */
+	private final StateStack<StateNode> mStateStack = new StateStack<StateNode>();
+
+	/** the factory which creates state by index. */
+	private IndexStateFactory<S, P> mIndexFactory;
+	/** create the first 31 states by the flag based {@linkplain IController.StateFactory}. */
+	private final IndexStateFactory<S, P> mFlagFactory = new IndexStateFactory<S, P>() {
+		@Override
+		public S createState(int index, P p) {
+			if (index >= 31) {
+				throw new IllegalStateException("the state of index = " + index + " can't be created by StateFactory."
+						+ " please call setIndexStateFactory() first.");
+			}
+			return getStateFactory().createState(1 << index, p);
+		}
+	};
+
+	/** the mutex state groups which added by {@linkplain #addMutexState(BitSet)}. index is state index. */
+	private BitSet[] mGroupMutexStates;
+	/** the mutex states which set by {@linkplain #setMutexState(BitSet, BitSet)}. index is state index. */
+	private BitSet[] mPairMutexStates;
+	/** the compiled mutex states, union of group and pair mutex states. index is state index. */
+	private BitSet[] mMutexStates;
+
+	/** the temp bit sets. used as a stack. */
+	private BitSet[] mTempSets = new BitSet[8];
+	private int mTempSetCount;
+
+	/**
+	 * the state factory which creates state by the state index. different from {@linkplain IController.StateFactory}
+	 * which creates state by the state flag.
+	 * @param <S> the state type
+	 * @param <P> the parameter type.
+	 * @since 1.3.0
+	 */
+	public interface IndexStateFactory<S extends AbstractState<P>, P> {
+
+		/**
+		 * create state by the state index and parameter.
+		 * @param index the state index. that is the bit position of state.
+		 * @param p the parameter
+		 * @return a new state.
+		 */
+		S createState(int index, P p);
+	}
+
+	private class StateNode {
+		final BitSet states;
+		final P param;
+
+		public StateNode(BitSet states, P param) {
+			this.states = (BitSet) states.clone();
+			this.param = param;
+		}
+
+		/** auto wrap share param. */
+		public P getParam() {
+			return mergeShareParam(param);
+		}
+	}
+
+	public BitSetController(Object owner) {
+		this();
+		setOwner(owner);
+	}
+
+	public BitSetController() {
+		this(Integer.MAX_VALUE);
+	}
+
+	/*package*/ BitSetController(int maxStateCount) {
+		this.mMaxStateCount = maxStateCount;
+		this.mStateTable = new StateTable<S>(Math.min(maxStateCount, 64), true);
+		this.mCallback = new BitSetStateGroup.Callback<S, P>() {
+			@Override
+			public ParameterMerger<P> getMerger() {
+				return getParameterMerger();
+			}
+
+			@Override
+			public IndexStateFactory<S, P> getStateFactory() {
+				return mIndexFactory != null ? mIndexFactory : mFlagFactory;
+			}
+
+			@Override
+			public StateTable<S> getStateTable() {
+				return mStateTable;
+			}
+
+			@Override
+			public BitSet getMutexStates(int index) {
+				final BitSet[] mutexStates = mMutexStates;
+				return mutexStates != null && index < mutexStates.length ? mutexStates[index] : null;
+			}
+
+			@Override
+			public BitSet obtainTemp() {
+				return obtainTempStates();
+			}
+
+			@Override
+			public int markTemp() {
+				return markTempStates();
+			}
+
+			@Override
+			public void resetTemp(int mark) {
+				resetTempStates(mark);
+			}
+		};
+		this.mGroup = new BitSetStateGroup<S, P>(this, mCallback);
+	}
+
+	/**
+	 * get the max state count of this controller.
+	 * @return the max state count
+	 */
+	public final int getMaxStateCount() {
+		return mMaxStateCount;
+	}
+
+	/**
+	 * set the state factory which creates state by the state index. it is used instead of the
+	 * {@linkplain #setStateFactory(IController.StateFactory)}.
+	 * @param factory the state factory
+	 */
+	public final void setIndexStateFactory(IndexStateFactory<S, P> factory) {
+		if (factory == null) {
+			throw new NullPointerException();
+		}
+		this.mIndexFactory = factory;
+	}
+
+	private void addHistory(BitSet states, P extra) {
+		if (mStateStack.canPush()) {
+			mStateStack.push(new StateNode(states, extra));
+		}
+	}
+
+	// ======================== start bit set states =============================
+
+	/**
+	 * add the target states.
+	 * @param states the states to add. bit n means the state of index n.
+	 * @param extra the extra parameter
+	 * @return true if add success.
+	 * @see #addState(int, Object)
+	 */
+	public final boolean addState(BitSet states, P extra) {
+		checkMemberState();
+		checkStates(states);
+		extra = mergeShareParam(extra);
+		if (mGroup.addState(states, extra)) {
+			addHistory(mGroup.getStates(), extra);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * add the target states.
+	 * @param states the states to add. bit n means the state of index n.
+	 * @return true if add success.
+	 * @see #addState(int)
+	 */
+	public final boolean addState(BitSet states) {
+		return addState(states, null);
+	}
+
+	/**
+	 * remove the target states.
+	 * @param states the states to remove. bit n means the state of index n.
+	 * @param param the parameter
+	 * @return true if remove all the states success.
+	 * @see #removeState(int, Object)
+	 */
+	public final boolean removeState(BitSet states, P param) {
+		checkMemberState();
+		checkStates(states);
+		param = mergeShareParam(param);
+		if (mGroup.removeState(states, param)) {
+			addHistory(mGroup.getStates(), param);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * remove the target states.
+	 * @param states the states to remove. bit n means the state of index n.
+	 * @return true if remove all the states success.
+	 * @see #removeState(int)
+	 */
+	public final boolean removeState(BitSet states) {
+		return removeState(states, null);
+	}
+
+	/**
+	 * set the target states as current states.
+	 * @param newStates the new states. bit n means the state of index n.
+	 * @param extra the extra parameter
+	 * @return true if set success.
+	 * @see #setState(int, Object)
+	 */
+	public final boolean setState(BitSet newStates, P extra) {
+		checkMemberState();
+		checkStates(newStates);
+		extra = mergeShareParam(extra);
+		if (mGroup.setStates(newStates, extra)) {
+			addHistory(mGroup.getStates(), extra);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * set the target states as current states.
+	 * @param newStates the new states. bit n means the state of index n.
+	 * @return true if set success.
+	 * @see #setState(int)
+	 */
+	public final boolean setState(BitSet newStates) {
+		return setState(newStates, null);
+	}
+
+	/**
+	 * set the global states.
+	 * @param states the global states. bit n means the state of index n.
+	 * @param extra the extra parameter
+	 * @see #setGlobalState(int, Object)
+	 */
+	public final void setGlobalState(BitSet states, P extra) {
+		checkStates(states);
+		if (mGlobalGroup == null) {
+			mGlobalGroup = new BitSetStateGroup<S, P>(this, mCallback);
+		}
+		mGlobalGroup.setStates(states, extra);
+	}
+
+	/**
+	 * set the global states.
+	 * @param states the global states. bit n means the state of index n.
+	 * @see #setGlobalState(int)
+	 */
+	public final void setGlobalState(BitSet states) {
+		setGlobalState(states, null);
+	}
+
+	/**
+	 * indicate the current states is the target states or not.
+	 * @param states the states. bit n means the state of index n.
+	 * @return true if the current states is the target states.
+	 * @see #isInState(int)
+	 */
+	public final boolean isInState(BitSet states) {
+		checkMemberState();
+		return mGroup.getStates().equals(states);
+	}
+
+	/**
+	 * indicate the current states has any of the target states or not.
+	 * @param states the states. bit n means the state of index n.
+	 * @return true if has.
+	 * @see #hasState(int)
+	 */
+	public final boolean hasState(BitSet states) {
+		checkMemberState();
+		return mGroup.hasState(states);
+	}
+
+	/**
+	 * get the current states.
+	 * @return the copy of current states. bit n means the state of index n.
+	 * @see #getCurrentStateFlags()
+	 */
+	public final BitSet getCurrentStateSet() {
+		return (BitSet) mGroup.getStates().clone();
+	}
+
+	/**
+	 * get the global states.
+	 * @return the copy of global states. bit n means the state of index n.
+	 * @see #getGlobalStateFlags()
+	 */
+	public final BitSet getGlobalStateSet() {
+		return mGlobalGroup != null ? (BitSet) mGlobalGroup.getStates().clone() : new BitSet();
+	}
+
+	/**
+	 * get the state of the target index. may be a current state, global state or cached state.
+	 * @param index the state index
+	 * @return the state. or null if not exists.
+	 * @see #getTargetState(int)
+	 */
+	public final S getTargetStateAt(int index) {
+		return mStateTable.getAt(index);
+	}
+
+	/**
+	 * get the target states by target scope.
+	 * @param states the target states. bit n means the state of index n.
+	 * @param scopeFlags the scope flags
+	 * @param outStates the out states. can be null.
+	 * @return the states.
+	 * @see #getTargetStates(int, int, List)
+	 */
+	public final List<S> getTargetStates(BitSet states, int scopeFlags, List<S> outStates) {
+		if (outStates == null) {
+			outStates = new ArrayList<S>();
+		}
+		if ((scopeFlags & FLAG_SCOPE_CURRENT) == FLAG_SCOPE_CURRENT) {
+			mGroup.getForegroundStates(states, outStates);
+		}
+		if ((scopeFlags & FLAG_SCOPE_GLOBAL) == FLAG_SCOPE_GLOBAL && mGlobalGroup != null) {
+			mGlobalGroup.getForegroundStates(states, outStates);
+		}
+		if ((scopeFlags & FLAG_SCOPE_CACHED) == FLAG_SCOPE_CACHED) {
+			mGroup.getBackgroundStates(states, outStates);
+			if (mGlobalGroup != null) {
+				mGlobalGroup.getBackgroundStates(states, outStates);
+			}
+		}
+		return outStates;
+	}
+
+	/**
+	 * add a mutex state group. any state of the group is mutex with each other.
+	 * @param groupStates the group states. bit n means the state of index n.
+	 * @see #addMutexState(int[])
+	 */
+	public final void addMutexState(BitSet groupStates) {
+		if (groupStates == null || groupStates.isEmpty()) {
+			throw new IllegalArgumentException();
+		}
+		checkStates(groupStates);
+		mGroupMutexStates = ensureCapacity(mGroupMutexStates, groupStates.length());
+		for (int i = groupStates.nextSetBit(0); i >= 0; i = groupStates.nextSetBit(i + 1)) {
+			addMutexStates(mGroupMutexStates, i, groupStates);
+		}
+		compileMutexStates();
+	}
+
+	/**
+	 * set the mutex states. any state of group1 is mutex with the all states of group2. and the
+	 * mutex states set before by this method are replaced.
+	 * @param groupStates1 the group states 1. bit n means the state of index n.
+	 * @param groupStates2 the group states 2. bit n means the state of index n.
+	 * @see #setMutexState(int[], int[])
+	 */
+	public final void setMutexState(BitSet groupStates1, BitSet groupStates2) {
+		mPairMutexStates = null;
+		if (groupStates1 != null && groupStates2 != null) {
+			checkStates(groupStates1);
+			checkStates(groupStates2);
+			mPairMutexStates = ensureCapacity(null, Math.max(groupStates1.length(), groupStates2.length()));
+			for (int i = groupStates1.nextSetBit(0); i >= 0; i = groupStates1.nextSetBit(i + 1)) {
+				addMutexStates(mPairMutexStates, i, groupStates2);
+			}
+			for (int i = groupStates2.nextSetBit(0); i >= 0; i = groupStates2.nextSetBit(i + 1)) {
+				addMutexStates(mPairMutexStates, i, groupStates1);
+			}
+		}
+		compileMutexStates();
+	}
+
+	/**
+	 * get the mutex states of the target state index.
+	 * @param index the state index
+	 * @return the copy of mutex states. or null if not have.
+	 * @see #getMutexState(int)
+	 */
+	public final BitSet getMutexStates(int index) {
+		final BitSet states = mCallback.getMutexStates(index);
+		return states != null ? (BitSet) states.clone() : null;
+	}
+
+	/**
+	 * dispatch the message to the target states.
+	 * @param states the target states. bit n means the state of index n.
+	 * @param msg the message
+	 * @param policy the policy
+	 * @return true if handled.
+	 * @see #dispatchMessage(int, Message, byte)
+	 */
+	public final boolean dispatchMessage(BitSet states, Message msg, @PolicyType byte policy) {
+		return dispatchMessageImpl(0, states, msg, policy, (byte) (FLAG_SCOPE_CURRENT | FLAG_SCOPE_GLOBAL), false);
+	}
+
+	/**
+	 * update the target active states(current and global).
+	 * @param activeStates the active states. bit n means the state of index n.
+	 * @param deltaTime the delta time
+	 * @param param the parameter
+	 * @see #updateActiveStates(int, long, Object)
+	 */
+	@SuppressWarnings("unchecked")
+	public final void updateActiveStates(BitSet activeStates, long deltaTime, P param) {
+		final List<S> tempStates = getTempStates();
+		getTargetStates(activeStates, FLAG_SCOPE_CURRENT | FLAG_SCOPE_GLOBAL, tempStates);
+		final AbstractState<?>[] states = toCallbackStates(tempStates);
+		try {
+			S state;
+			for (int i = 0; states[i] != null; i++) {
+				state = (S) states[i];
+				state.addFlags(AbstractState.FLAG_TEAM);
+				state.update(deltaTime, param);
+				state.clearOnceFlags();
+			}
+		} finally {
+			releaseCallbackStates(states);
+		}
+	}
+
+	// ======================== end bit set states =============================
+
+	@Override
+	public final void addMutexState(int[] groupState) {
+		if (groupState == null || groupState.length == 0) {
+			throw new IllegalArgumentException();
+		}
+		final int mark = markTempStates();
+		try {
+			addMutexState(toStates(groupState));
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	@Override
+	public final void setMutexState(int[] groupState1, int[] groupState2) {
+		final int mark = markTempStates();
+		try {
+			setMutexState(groupState1 != null ? toStates(groupState1) : null,
+					groupState2 != null ? toStates(groupState2) : null);
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	@Override
+	public final int[] getMutexState(int mainState) {
+		final BitSet states = mCallback.getMutexStates(BitFlags.indexOf(mainState));
+		if (states == null) {
+			return null;
+		}
+		final int flags = BitSetStateGroup.toIntFlags(states);
+		final int[] result = new int[BitFlags.count(flags)];
+		int i = 0;
+		for (int flag, rest = flags; rest != 0; rest ^= flag) {
+			flag = BitFlags.lowest(rest);
+			result[i++] = flag;
+		}
+		return result;
+	}
+
+	@Override
+	public final void destroyStateCache() {
+		if (mGlobalGroup != null) {
+			mGlobalGroup.destroyStateCache();
+		}
+		mGroup.destroyStateCache();
+	}
+
+	@Override
+	public final void clearStateStack() {
+		mStateStack.clear();
+	}
+
+	@Override
+	public final void setMaxStateStackSize(int max) {
+		mStateStack.setMaxSize(max);
+	}
+
+	@Override
+	public final int getMaxStateStackSize() {
+		return mStateStack.getMaxSize();
+	}
+
+	@Override
+	public final boolean isStateStackEnable() {
+		return mStateStack.isEnabled();
+	}
+
+	@Override
+	public final void setStateStackEnable(boolean enable) {
+		mStateStack.setEnabled(enable);
+	}
+
+	@Override
+	public final void notifyStateUpdate(P param) {
+		if (mGlobalGroup != null) {
+			mGlobalGroup.notifyStateUpdate(param);
+		}
+		mGroup.notifyStateUpdate(param);
+	}
+
+	@Override
+	public final boolean addState(@StateFlags int states, P extra) {
+		final int mark = markTempStates();
+		try {
+			return addState(toStates(states), extra);
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	@Override
+	public final boolean addState(@StateFlags int states) {
+		return addState(states, null);
+	}
+
+	@Override
+	public final boolean removeState(@StateFlags int states, P param) {
+		final int mark = markTempStates();
+		try {
+			return removeState(toStates(states), param);
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	@Override
+	public final boolean removeState(@StateFlags int states) {
+		return removeState(states, null);
+	}
+
+	@Override
+	public final void clearState() {
+		clearState(null);
+	}
+
+	@Override
+	public final void clearState(P param) {
+		checkMemberState();
+		param = mergeShareParam(param);
+		if (mGroup.clearState(param)) {
+			addHistory(mGroup.getStates(), param);
+		}
+	}
+
+	@Override
+	public final boolean setState(@StateFlags int newStates) {
+		return setState(newStates, null);
+	}
+
+	@Override
+	public final boolean setState(@StateFlags int newStates, P extra) {
+		final int mark = markTempStates();
+		try {
+			return setState(toStates(newStates), extra);
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	@Override
+	public final boolean revertToPreviousState() {
+		if (!isStateStackEnable()) {
+			throw new IllegalStateException("you must enable state stack b" + "y calling setStateStackEnable() first.");
+		}
+		checkMemberState();
+		StateNode node = mStateStack.pop();
+		final BitSet current = mGroup.getStates();
+		while (node != null && node.states.equals(current)) {
+			node = mStateStack.pop();
+		}
+		if (node == null) {
+			return false;
+		}
+		return mGroup.setStates(node.states, node.getParam());
+	}
+
+	@Override
+	public final void setGlobalState(@StateFlags int states) {
+		setGlobalState(states, null);
+	}
+
+	@Override
+	public final void setGlobalState(@StateFlags int states, P extra) {
+		final int mark = markTempStates();
+		try {
+			setGlobalState(toStates(states), extra);
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	/**
+	 * apply the folded batch operations as one net change of each scope. the masks only address the low 31 states,
+	 * the other states are always kept.
+	 */
+	@Override
+	/*package*/ final boolean applyBatch(int currentKeep, int currentAdd, int globalKeep, int globalAdd, P param) {
+		checkMemberState();
+		param = mergeShareParam(param);
+		final int mark = markTempStates();
+		try {
+			boolean changed = false;
+			final BitSet currentAdds = toStates(currentAdd);
+			checkStates(currentAdds);
+			if (mGroup.applyStates(toNetStates(mGroup.getStates(), currentKeep, currentAdds), currentAdds, param)) {
+				addHistory(mGroup.getStates(), param);
+				changed = true;
+			}
+			if (globalKeep != -1 || globalAdd != 0) {
+				final BitSet globalAdds = toStates(globalAdd);
+				checkStates(globalAdds);
+				if (mGlobalGroup == null) {
+					mGlobalGroup = new BitSetStateGroup<S, P>(this, mCallback);
+				}
+				changed |= mGlobalGroup.applyStates(toNetStates(mGlobalGroup.getStates(), globalKeep, globalAdds),
+						globalAdds, param);
+			}
+			return changed;
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	/** get the temp states '(states & keep) | adds'. the keep is int flags, the other states are kept. */
+	private BitSet toNetStates(BitSet states, int keep, BitSet adds) {
+		final BitSet set = obtainTempStates();
+		set.or(states);
+		for (int removed = ~keep & Integer.MAX_VALUE, flag; removed != 0; removed ^= flag) {
+			flag = BitFlags.lowest(removed);
+			set.clear(BitFlags.indexOf(flag));
+		}
+		set.or(adds);
+		return set;
+	}
+
+	@Override
+	public final int getGlobalStateFlags() {
+		return mGlobalGroup != null ? mGlobalGroup.getStateFlags() : 0;
+	}
+
+	@Override
+	public final List<S> getGlobalStates(List<S> outStates) {
+		return mGlobalGroup != null ? mGlobalGroup.getForegroundStates(null, outStates) : null;
+	}
+
+	@Override
+	public final List<S> getGlobalStates() {
+		return getGlobalStates(null);
+	}
+
+	@Override
+	public final S getGlobalState() {
+		return mGlobalGroup != null ? mGlobalGroup.getMaxState() : null;
+	}
+
+	@Override
+	public final boolean isInState(@StateFlags int states) {
+		final int mark = markTempStates();
+		try {
+			return isInState(toStates(states));
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	@Override
+	public final boolean hasState(@StateFlags int state) {
+		final int mark = markTempStates();
+		try {
+			return hasState(toStates(state));
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	@Override
+	public final List<S> getCurrentStates() {
+		return getCurrentStates(null);
+	}
+
+	@Override
+	public final List<S> getCurrentStates(List<S> outStates) {
+		checkMemberState();
+		return mGroup.getForegroundStates(null, outStates);
+	}
+
+	@Override
+	public final S getCurrentState() {
+		return mGroup.getMaxState();
+	}
+
+	@Override
+	public final int getCurrentStateFlags() {
+		return mGroup.getStateFlags();
+	}
+
+	@Override
+	public final void clearStateParameter() {
+		clearStateParameter(true);
+	}
+
+	@Override
+	public final void clearStateParameter(boolean includeCachedState) {
+		mGroup.clearStateParameter(includeCachedState);
+	}
+
+	@Override
+	public final S getTargetState(int state) {
+		return state > 0 ? getTargetStateAt(BitFlags.indexOf(state)) : null;
+	}
+
+	@Override
+	public final List<S> getTargetStates(int states, List<S> outStates) {
+		if (outStates == null) {
+			outStates = new ArrayList<S>();
+		}
+		S s;
+		//from the max state to the min.
+		for (int maxKey; states > 0; states ^= maxKey) {
+			maxKey = BitFlags.highest(states);
+			s = getTargetStateAt(BitFlags.indexOf(maxKey));
+			if (s != null) {
+				outStates.add(s);
+			}
+		}
+		return outStates;
+	}
+
+	@Override
+	public final List<S> getTargetStates(int states, int scopeFlags, List<S> outStates) {
+		final int mark = markTempStates();
+		try {
+			return getTargetStates(toStates(states), scopeFlags, outStates);
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	@Override
+	public final void updateActiveStates(int activeStates, long deltaTime, P param) {
+		final int mark = markTempStates();
+		try {
+			updateActiveStates(toStates(activeStates), deltaTime, param);
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	@Override
+	public final void setTeamEnabled(boolean enable) {
+		mGroup.setTeamEnabled(enable);
+		if (mGlobalGroup != null) {
+			mGlobalGroup.setTeamEnabled(enable);
+		}
+	}
+
+	@Override
+	public final boolean isTeamEnabled() {
+		return mGroup.isTeamEnabled();
+	}
+
+	// ======================== start internal method
+	// =============================
+
+	@Override
+	final boolean hasStateFactory() {
+		return mIndexFactory != null || super.hasStateFactory();
+	}
+
+	/** get the current states without copy. you must not modify it. */
+	final BitSet getCurrentStatesInternal() {
+		return mGroup.getStates();
+	}
+
+	/** get the global states without copy. you must not modify it. */
+	final BitSet getGlobalStatesInternal() {
+		return mGlobalGroup != null ? mGlobalGroup.getStates() : null;
+	}
+
+	/**
+	 * check the target states is in range of max state count.
+	 * @param states the states
+	 */
+	final void checkStates(BitSet states) {
+		if (states.length() > mMaxStateCount) {
+			throw new IllegalArgumentException("the max state count is " + mMaxStateCount
+					+ ", but state index is " + (states.length() - 1));
+		}
+	}
+
+	/** obtain a empty temp bit set. must reset by {@linkplain #resetTempStates(int)} later. */
+	final BitSet obtainTempStates() {
+		if (mTempSetCount == mTempSets.length) {
+			mTempSets = Arrays.copyOf(mTempSets, mTempSets.length << 1);
+		}
+		BitSet set = mTempSets[mTempSetCount];
+		if (set == null) {
+			set = new BitSet();
+			mTempSets[mTempSetCount] = set;
+		} else {
+			set.clear();
+		}
+		mTempSetCount++;
+		return set;
+	}
+
+	final int markTempStates() {
+		return mTempSetCount;
+	}
+
+	final void resetTempStates(int mark) {
+		mTempSetCount = mark;
+	}
+
+	/** convert the int flags to temp bit set. bit n means the state of index n. */
+	final BitSet toStates(int flags) {
+		final BitSet set = obtainTempStates();
+		for (int flag; flags > 0; flags ^= flag) {
+			flag = BitFlags.lowest(flags);
+			set.set(BitFlags.indexOf(flag));
+		}
+		return set;
+	}
+
+	private BitSet toStates(int[] groupState) {
+		final BitSet set = obtainTempStates();
+		for (int flags : groupState) {
+			for (int flag; flags > 0; flags ^= flag) {
+				flag = BitFlags.lowest(flags);
+				set.set(BitFlags.indexOf(flag));
+			}
+		}
+		return set;
+	}
+
+	private static BitSet[] ensureCapacity(BitSet[] table, int size) {
+		if (table == null) {
+			return new BitSet[size];
+		}
+		return table.length >= size ? table : Arrays.copyOf(table, size);
+	}
+
+	/** add the mutex states for the target state index. the state itself is excluded. */
+	private static void addMutexStates(BitSet[] table, int index, BitSet states) {
+		BitSet set = table[index];
+		if (set == null) {
+			set = new BitSet();
+			table[index] = set;
+		}
+		set.or(states);
+		set.clear(index);
+	}
+
+	private void compileMutexStates() {
+		final BitSet[] groups = mGroupMutexStates;
+		final BitSet[] pairs = mPairMutexStates;
+		final int size = Math.max(groups != null ? groups.length : 0, pairs != null ? pairs.length : 0);
+		if (size == 0) {
+			mMutexStates = null;
+			return;
+		}
+		final BitSet[] table = new BitSet[size];
+		for (int i = 0; i < size; i++) {
+			final BitSet group = groups != null && i < groups.length ? groups[i] : null;
+			final BitSet pair = pairs != null && i < pairs.length ? pairs[i] : null;
+			if (group == null && pair == null) {
+				continue;
+			}
+			final BitSet set = new BitSet();
+			if (group != null) {
+				set.or(group);
+			}
+			if (pair != null) {
+				set.or(pair);
+			}
+			if (!set.isEmpty()) {
+				table[i] = set;
+			}
+		}
+		mMutexStates = table;
+	}
+
+	// may one method call this method twice. states = -1 means all.
+	@Override
+	final boolean dispatchMessage0(int states, BitSet wideStates, Message msg, byte policy, byte scope) {
+		final int mark = markTempStates();
+		try {
+			final BitSet targetStates = wideStates != null ? wideStates : (states == -1 ? null : toStates(states));
+			boolean handled = false;
+			final boolean includeCache = (scope & FLAG_SCOPE_CACHED) != 0;
+			if ((scope & FLAG_SCOPE_GLOBAL) != 0 && mGlobalGroup != null) {
+				handled |= mGlobalGroup.handleMessage(targetStates, msg, policy, includeCache);
+			}
+			if (policy == POLICY_CONSUME && handled) {
+				return true;
+			}
+			if ((scope & FLAG_SCOPE_CURRENT) != 0) {
+				handled |= mGroup.handleMessage(targetStates, msg, policy, includeCache);
+			}
+			return handled;
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	@Override
+	final void getMessageTargets(byte scope, List<S> out) {
+		final boolean includeCache = (scope & FLAG_SCOPE_CACHED) != 0;
+		if ((scope & FLAG_SCOPE_GLOBAL) != 0 && mGlobalGroup != null) {
+			mGlobalGroup.getForegroundStates(null, out);
+			if (includeCache) {
+				mGlobalGroup.getBackgroundStates(null, out);
+			}
+		}
+		if ((scope & FLAG_SCOPE_CURRENT) != 0) {
+			mGroup.getForegroundStates(null, out);
+			if (includeCache) {
+				mGroup.getBackgroundStates(null, out);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	final void updateStates(long deltaTime, P param) {
+		final List<S> tempStates = getTempStates();
+		getGlobalStates(tempStates);
+		getCurrentStates(tempStates);
+		// the states may change the states of this controller. so iterate the array.
+		final AbstractState<?>[] states = toCallbackStates(tempStates);
+		try {
+			for (int i = 0; states[i] != null; i++) {
+				((S) states[i]).update(deltaTime, param);
+			}
+		} finally {
+			releaseCallbackStates(states);
+		}
+	}
+
+	@Override
+	final boolean hasUpdatableStates() {
+		return (mGlobalGroup != null && hasUpdatableStates(mGlobalGroup.getStates()))
+				|| hasUpdatableStates(mGroup.getStates());
+	}
+
+	private boolean hasUpdatableStates(BitSet states) {
+		S s;
+		for (int i = states.nextSetBit(0); i >= 0; i = states.nextSetBit(i + 1)) {
+			s = mStateTable.getAt(i);
+			if (s != null && s.isUpdateEnabled()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	final void disposeStates() {
+		// destroy foreground states.
+		if (mGlobalGroup != null) {
+			mGlobalGroup.dispose();
+		}
+		mGroup.dispose();
+
+		// destroy back/cache state. and clear
+		mStateTable.disposeAll();
+	}
+
+	@Override
+	final void notifyStateEnter(int states, P param) {
+		// enter. only online AbstractState can receive team callback. so just
+		// reenter.
+		notifyStateReenter(states, param);
+	}
+
+	@Override
+	final void notifyStateExit(int states, P param) {
+		final int mark = markTempStates();
+		try {
+			final BitSet set = toStates(states);
+			mGroup.removeForgroundStateFromTeam(set, param);
+			if (mGlobalGroup != null) {
+				mGlobalGroup.removeForgroundStateFromTeam(set, param);
+			}
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	final void notifyStateReenter(int states, P param) {
+		final List<S> tempStates = getTempStates();
+		getTargetStates(states, FLAG_SCOPE_CURRENT | FLAG_SCOPE_GLOBAL, tempStates);
+		final AbstractState<?>[] targets = toCallbackStates(tempStates);
+		try {
+			S s;
+			for (int i = 0; targets[i] != null; i++) {
+				s = (S) targets[i];
+				s.setTeamParameter(param);
+				s.reenter(AbstractState.FLAG_TEAM);
+				s.clearOnceFlags();
+			}
+		} finally {
+			releaseCallbackStates(targets);
+		}
+	}
+
+	// ======================== end internal method
+	// =============================
+}
@@ -0,0 +1,562 @@
+package com.heaven7.java.mvcs;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import com.heaven7.java.mvcs.BitSetController.IndexStateFactory;
+import com.heaven7.java.mvcs.util.MutexStateException;
+
+/**
+ * the state group which is backed by {@linkplain BitSet}. so it can manage unbounded states.
+ * the state is indicated by the index(bit position) of the bit set.
+ * the lifecycle of a single state is shared with {@linkplain StateGroup} by {@linkplain AbstractStateGroup}.
+ *
+ * @param <S> the state type
+ * @param <P> the state parameter type.
+ * @author heaven7
+ * @since 1.3.0
+ */
+/* public */ final class BitSetStateGroup<S extends AbstractState<P>, P> extends AbstractStateGroup<S, P> {
+
+	private final BitSet mCurrentStates = new BitSet();
+	/**
+	 * the cached all states without current states. that means background
+	 * states.
+	 */
+	private final BitSet mCachedStates = new BitSet();
+
+	private final Callback<S, P> mCallback;
+
+	public interface Callback<S extends AbstractState<P>, P> {
+
+		ParameterMerger<P> getMerger();
+
+		IndexStateFactory<S, P> getStateFactory();
+
+		/**
+		 * get the state table which is indexed by the state index.
+		 * @return the state table
+		 */
+		StateTable<S> getStateTable();
+
+		/** get the states which are mutex with the target state index. or null if not have. */
+		BitSet getMutexStates(int index);
+
+		/** obtain a empty temp bit set. it will be recycled by {@linkplain #resetTemp(int)}. */
+		BitSet obtainTemp();
+
+		/** get the mark of temp bit sets. */
+		int markTemp();
+
+		/** recycle the temp bit sets which are obtained after the mark. */
+		void resetTemp(int mark);
+	}
+
+	public BitSetStateGroup(IController<S, P> controller, Callback<S, P> callback) {
+		super(controller);
+		this.mCallback = callback;
+	}
+
+	@Override
+	ParameterMerger<P> getMerger() {
+		return mCallback.getMerger();
+	}
+
+	/**
+	 * get the current states. you must not modify it.
+	 * @return the current states
+	 */
+	public BitSet getStates() {
+		return mCurrentStates;
+	}
+
+	/**
+	 * get the cached states. you must not modify it.
+	 * @return the cached states
+	 */
+	public BitSet getCachedStates() {
+		return mCachedStates;
+	}
+
+	/**
+	 * get the low 31 states of current states as int flags.
+	 * @return the int flags.
+	 */
+	public int getStateFlags() {
+		return toIntFlags(mCurrentStates);
+	}
+
+	public boolean hasState(BitSet states) {
+		checkMutexState(states);
+		return mCurrentStates.intersects(states);
+	}
+
+	public boolean clearState(P param) {
+		if (mCurrentStates.isEmpty()) {
+			return false;
+		}
+		final int mark = mCallback.markTemp();
+		try {
+			final BitSet exit = mCallback.obtainTemp();
+			exit.or(mCurrentStates);
+			mCurrentStates.clear();
+			setStateParameter(param);
+			dispatchStateChange(null, null, exit);
+			setStateParameter(null);
+		} finally {
+			mCallback.resetTemp(mark);
+		}
+		return true;
+	}
+
+	/**
+	 * only if all states remove success return true.
+	 *
+	 * @param states
+	 *            the target states to remove
+	 * @param param
+	 *            the parameter
+	 * @return true if remove all states success.
+	 */
+	public boolean removeState(BitSet states, P param) {
+		if (states.isEmpty())
+			return false;
+		checkMutexState(states);
+		if (!mCurrentStates.intersects(states)) {
+			return false;
+		}
+		final int mark = mCallback.markTemp();
+		try {
+			final BitSet share = mCallback.obtainTemp();
+			share.or(mCurrentStates);
+			share.and(states);
+			final boolean all = share.equals(states);
+
+			mCurrentStates.andNot(states);
+			setStateParameter(param);
+			dispatchStateChange(null, null, share);
+			setStateParameter(null);
+			return all;
+		} finally {
+			mCallback.resetTemp(mark);
+		}
+	}
+
+	public void removeForgroundStateFromTeam(BitSet states, P teamP) {
+		if (!mCurrentStates.intersects(states)) {
+			return;
+		}
+		final int mark = mCallback.markTemp();
+		try {
+			final BitSet share = mCallback.obtainTemp();
+			share.or(mCurrentStates);
+			share.and(states);
+
+			final boolean cacheEnabled = isStateCacheEnabled();
+			//handle state exit. iterate the temp set, the temp list may be used by the caller.
+			final StateTable<S> stateTable = mCallback.getStateTable();
+			for (int i = share.nextSetBit(0); i >= 0; i = share.nextSetBit(i + 1)) {
+				final S s = stateTable.getAt(i);
+				if (s == null) {
+					continue;
+				}
+				s.setId(i);
+				exitStateByTeam(s, teamP);
+				//remove state instance if need
+				if (!cacheEnabled) {
+					stateTable.removeAt(i);
+				}
+			}
+			//handle current state and cache state.
+			mCurrentStates.andNot(share);
+			if (cacheEnabled) {
+				mCachedStates.or(share);
+			} else {
+				mCachedStates.andNot(share);
+			}
+		} finally {
+			mCallback.resetTemp(mark);
+		}
+	}
+
+	public boolean addState(BitSet states, P extra) {
+		if (states.isEmpty())
+			return false;
+		checkMutexState(states);
+		final int mark = mCallback.markTemp();
+		try {
+			final BitSet share = mCallback.obtainTemp();
+			share.or(mCurrentStates);
+			share.and(states);
+			final BitSet enter = mCallback.obtainTemp();
+			enter.or(states);
+			enter.andNot(share);
+
+			mCurrentStates.or(states);
+			setStateParameter(extra);
+			dispatchStateChange(share, enter, null);
+			setStateParameter(null);
+		} finally {
+			mCallback.resetTemp(mark);
+		}
+		return true;
+	}
+
+	public boolean setStates(BitSet newStates, P p) {
+		if (newStates.isEmpty())
+			return false;
+		checkMutexState(newStates);
+		if (mCurrentStates.equals(newStates)) {
+			// no reenter
+			return false;
+		}
+		final int mark = mCallback.markTemp();
+		try {
+			final BitSet share = mCallback.obtainTemp();
+			share.or(mCurrentStates);
+			share.and(newStates);
+			final BitSet enter = mCallback.obtainTemp();
+			enter.or(newStates);
+			enter.andNot(share);
+			final BitSet exit = mCallback.obtainTemp();
+			exit.or(mCurrentStates);
+			exit.andNot(share);
+
+			mCurrentStates.clear();
+			mCurrentStates.or(newStates);
+			setStateParameter(p);
+			dispatchStateChange(share, enter, exit);
+			setStateParameter(null);
+		} finally {
+			mCallback.resetTemp(mark);
+		}
+		return true;
+	}
+
+	/**
+	 * apply the new states as one change. the states which are not in new states are exited, the states which
+	 * are not in current states are entered, and the kept states are reentered only if they are in the reenter
+	 * states. this is the same as {@linkplain StateGroup#applyStates(int, int, Object)}.
+	 * @param newStates the new states. can be empty.
+	 * @param reenterStates the states to reenter if they are kept.
+	 * @param p the parameter
+	 * @return true if any state is entered, exited or reentered.
+	 */
+	public boolean applyStates(BitSet newStates, BitSet reenterStates, P p) {
+		final int mark = mCallback.markTemp();
+		try {
+			final BitSet share = mCallback.obtainTemp();
+			share.or(newStates);
+			share.and(reenterStates);
+			checkMutexState(share);
+			share.and(mCurrentStates);
+			final BitSet enter = mCallback.obtainTemp();
+			enter.or(newStates);
+			enter.andNot(mCurrentStates);
+			final BitSet exit = mCallback.obtainTemp();
+			exit.or(mCurrentStates);
+			exit.andNot(newStates);
+			if (share.isEmpty() && enter.isEmpty() && exit.isEmpty()) {
+				return false;
+			}
+			mCurrentStates.clear();
+			mCurrentStates.or(newStates);
+			setStateParameter(p);
+			dispatchStateChange(share, enter, exit);
+			setStateParameter(null);
+		} finally {
+			mCallback.resetTemp(mark);
+		}
+		return true;
+	}
+
+	/**
+	 * dispatch state change.
+	 *
+	 * @param share
+	 *            the share states to reenter. can be null.
+	 * @param enter
+	 *            the enter states to enter. can be null.
+	 * @param exit
+	 *            the exit states to exit. can be null.
+	 */
+	private void dispatchStateChange(BitSet share, BitSet enter, BitSet exit) {
+		// Call the exit method of the existing state
+		if (exit != null) {
+			for (int i = exit.previousSetBit(exit.length() - 1); i >= 0; i = exit.previousSetBit(i - 1)) {
+				exit0(i, false);
+			}
+		}
+		// Call the entry method of the new state
+		if (enter != null) {
+			final IndexStateFactory<S, P> factory = mCallback.getStateFactory();
+			final P sp = getStateParameter();
+			for (int i = enter.previousSetBit(enter.length() - 1); i >= 0; i = enter.previousSetBit(i - 1)) {
+				enter0(i, factory.createState(i, sp));
+			}
+		}
+		// call reenter state
+		if (share != null) {
+			for (int i = share.previousSetBit(share.length() - 1); i >= 0; i = share.previousSetBit(i - 1)) {
+				reenter0(i);
+			}
+		}
+	}
+
+	private void reenter0(int index) {
+		reenterState(index, toTeamFlag(index), mCallback.getStateTable().getAt(index));
+	}
+
+	private void enter0(int index, S state) {
+		if (state == null) {
+			throw new IllegalStateException("create state failed. Are you forget to create State "
+					+ "for state_index = " + index + " by IndexStateFactory? ");
+		}
+		// cache state
+		mCachedStates.clear(index);
+		mCallback.getStateTable().putAt(index, state);
+		enterState(index, toTeamFlag(index), state);
+
+		// handle mutex states
+		final BitSet mutexStates = mCallback.getMutexStates(index);
+		if (mutexStates != null && mutexStates.intersects(mCurrentStates)) {
+			final int mark = mCallback.markTemp();
+			try {
+				final BitSet opposite = mCallback.obtainTemp();
+				opposite.or(mutexStates);
+				opposite.and(mCurrentStates);
+				opposite.clear(index);
+				for (int i = opposite.nextSetBit(0); i >= 0; i = opposite.nextSetBit(i + 1)) {
+					exit0(i, true);
+				}
+				mCurrentStates.andNot(opposite);
+			} finally {
+				mCallback.resetTemp(mark);
+			}
+		}
+	}
+
+	private void exit0(int index, boolean byMutex) {
+		S state = mCallback.getStateTable().getAt(index);
+		// no cache ? remove from cache
+		if (!isStateCacheEnabled()) {
+			mCallback.getStateTable().removeAt(index);
+			mCachedStates.clear(index);
+		} else {
+			mCachedStates.set(index);
+		}
+		exitState(toTeamFlag(index), state, byMutex);
+	}
+
+	/**
+	 *  get the foreground states instance which is assigned by target states.
+	 * @param targetStates the target states. null means all.
+	 * @param outStates can be null
+	 * @return the states list
+	 */
+	public List<S> getForegroundStates(BitSet targetStates, List<S> outStates) {
+		return getOverlapStates(mCurrentStates, targetStates, outStates);
+	}
+
+	/**
+	 *  get the background states instance which is assigned by target states.
+	 * @param targetStates the target states. null means all.
+	 * @param outStates can be null
+	 * @return the states list
+	 */
+	public List<S> getBackgroundStates(BitSet targetStates, List<S> outStates) {
+		return getOverlapStates(mCachedStates, targetStates, outStates);
+	}
+
+	/**
+	 * get max state. And the max is indicated the by the index of state.
+	 *
+	 * @return the max state.
+	 */
+	public S getMaxState() {
+		if (mCurrentStates.isEmpty()) {
+			return null;
+		}
+		return mCallback.getStateTable().getAt(mCurrentStates.length() - 1);
+	}
+
+	public void notifyStateUpdate(P param) {
+		final List<S> states = getForegroundStates(null, null);
+		if (states != null) {
+			for (S s : states) {
+				s.onUpdate(-1, param);
+			}
+		}
+	}
+
+	/** destroy state cache without current states. */
+	public void destroyStateCache() {
+		final BitSet cached = mCachedStates;
+		for (int i = cached.nextSetBit(0); i >= 0; i = cached.nextSetBit(i + 1)) {
+			mCallback.getStateTable().removeAt(i);
+		}
+		cached.clear();
+	}
+
+	public void dispose() {
+		final BitSet current = mCurrentStates;
+		for (int i = current.nextSetBit(0); i >= 0; i = current.nextSetBit(i + 1)) {
+			disposeState(mCallback.getStateTable().getAt(i));
+			mCallback.getStateTable().removeAt(i);
+		}
+		mCurrentStates.clear();
+		mCachedStates.clear();
+		setStateParameter(null);
+	}
+
+	/**
+	 * clear state parameter
+	 * @param includeCachedState true to include cached state.
+	 */
+	public void clearStateParameter(boolean includeCachedState) {
+		clearStateParameter0(mCurrentStates);
+		if (includeCachedState) {
+			clearStateParameter0(mCachedStates);
+		}
+	}
+
+	private void clearStateParameter0(BitSet states) {
+		for (int i = states.nextSetBit(0); i >= 0; i = states.nextSetBit(i + 1)) {
+			mCallback.getStateTable().getAt(i).setStateParameter(null);
+		}
+	}
+
+	/**
+	 * handle the target message now.
+	 * @param states the target states to handle message. null means all.
+	 * @param msg the message to handle
+	 * @param policy the handle policy
+	 * @param includeCache true to include cache
+	 * @return true if handled the message.
+	 */
+	public boolean handleMessage(BitSet states, Message msg, byte policy, boolean includeCache) {
+		switch (policy) {
+		case IController.POLICY_CONSUME:
+			return handleMessage0(mCurrentStates, states, msg, true)
+					|| (includeCache && handleMessage0(mCachedStates, states, msg, true));
+
+		case IController.POLICY_BROADCAST:
+			boolean handled = handleMessage0(mCurrentStates, states, msg, false);
+			if (includeCache) {
+				handled |= handleMessage0(mCachedStates, states, msg, false);
+			}
+			return handled;
+
+		default:
+			throw new IllegalStateException("error policy = " + policy);
+		}
+	}
+
+	private boolean handleMessage0(BitSet scopeStates, BitSet targetStates, Message msg, boolean consume) {
+		final int mark = mCallback.markTemp();
+		try {
+			final BitSet flags = mCallback.obtainTemp();
+			flags.or(scopeStates);
+			if (targetStates != null) {
+				flags.and(targetStates);
+			}
+			boolean handled = false;
+			for (int i = flags.nextSetBit(0); i >= 0; i = flags.nextSetBit(i + 1)) {
+				if (mCallback.getStateTable().getAt(i).handleMessage(msg)) {
+					if (consume) {
+						return true;
+					}
+					handled = true;
+				}
+			}
+			return handled;
+		} finally {
+			mCallback.resetTemp(mark);
+		}
+	}
+
+	/**
+	 * get the state flag in team. only the int states can be member of team.
+	 * @param index the state index
+	 * @return the state flag. or 0 if the state can't join team.
+	 */
+	private static int toTeamFlag(int index) {
+		return index < 31 ? 1 << index : 0;
+	}
+
+	/**
+	 * check mutex state of the target expect states.
+	 *
+	 * @param expect
+	 *            the expect states
+	 * @throws MutexStateException
+	 *             if the expect states have multi states and have mutex state.
+	 */
+	private void checkMutexState(BitSet expect) throws MutexStateException {
+		// check only one state.
+		if (expect.cardinality() <= 1) {
+			return;
+		}
+		for (int i = expect.nextSetBit(0); i >= 0; i = expect.nextSetBit(i + 1)) {
+			final BitSet mutexStates = mCallback.getMutexStates(i);
+			if (mutexStates != null && mutexStates.intersects(expect)) {
+				for (int j = mutexStates.nextSetBit(0); j >= 0; j = mutexStates.nextSetBit(j + 1)) {
+					if (expect.get(j)) {
+						throw new MutexStateException("check parameter ,find unexpect mutex states, "
+								+ "mutex state indexes = (" + i + ", " + j + ")");
+					}
+				}
+			}
+		}
+	}
+
+	private List<S> getOverlapStates(BitSet scopeStates, BitSet targetStates, List<S> outStates) {
+		if (targetStates == null) {
+			return getTargetStates(scopeStates, outStates);
+		}
+		if (!scopeStates.intersects(targetStates)) {
+			return null;
+		}
+		final int mark = mCallback.markTemp();
+		try {
+			final BitSet flags = mCallback.obtainTemp();
+			flags.or(scopeStates);
+			flags.and(targetStates);
+			return getTargetStates(flags, outStates);
+		} finally {
+			mCallback.resetTemp(mark);
+		}
+	}
+
+	private List<S> getTargetStates(BitSet targetStates, List<S> outStates) {
+		if (targetStates.isEmpty()) {
+			return null;
+		}
+		if (outStates == null) {
+			outStates = new ArrayList<S>();
+		}
+		//sort ascending(up)
+		for (int i = targetStates.nextSetBit(0); i >= 0; i = targetStates.nextSetBit(i + 1)) {
+			S s = mCallback.getStateTable().getAt(i);
+			if (s != null) {
+				s.setId(i);
+				outStates.add(s);
+			}
+		}
+		return outStates;
+	}
+
+	/**
+	 * get the low 31 states of the target states as int flags.
+	 * @param states the states
+	 * @return the int flags.
+	 */
+	static int toIntFlags(BitSet states) {
+		int flags = 0;
+		for (int i = states.nextSetBit(0); i >= 0 && i < 31; i = states.nextSetBit(i + 1)) {
+			flags |= 1 << i;
+		}
+		return flags;
+	}
+}
@@ -0,0 +1,461 @@
+package com.heaven7.java.mvcs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * the world which owns many controllers and ticks them in parallel on a {@linkplain ForkJoinPool}.
+ * every {@linkplain #tick(long, Object)} is split into barriers which are deterministic. the last two are the two
+ * phases of {@linkplain AbstractController#update(long, Object)}:
+ * <ol>
+ * <li>the due messages of the shared timer(if set by {@linkplain #setMessageTimer(SharedMessageTimer)}) are
+ * dispatched on the tick thread, by post order.</li>
+ * <li>the posted messages and the due delayed messages of every controller are dispatched, in parallel.</li>
+ * <li>the active states of every controller are updated, in parallel.</li>
+ * </ol>
+ * so the messages which are due in this tick are always handled before any state is updated. the controllers are
+ * split into partitions which are stolen by the idle workers. if the count of controllers is less than the
+ * parallel threshold, they are ticked on the tick thread.
+ * <p>The controller which is idle after a tick(no posted message, no delayed message on its own scheduler, and no
+ * active state {@linkplain AbstractState#isUpdateEnabled() wants update}) becomes dormant. it is moved out of the
+ * tick set until it is woken up by a dispatched or posted message, a due message of the shared timer, or an entered
+ * state. so the cost of a tick is proportional to the awake controllers.</p>
+ * <p>Note: a controller is only ticked by one thread at a time, but different controllers are ticked by
+ * different threads. so the states shouldn't touch the other controllers without synchronization. The
+ * controllers which are added, removed or woken up while ticking take effect after the tick.</p>
+ * @author heaven7
+ * @since 1.3.0
+ */
+public final class ControllerWorld {
+
+	/** the default min count of controllers which are ticked in parallel. */
+	public static final int DEFAULT_PARALLEL_THRESHOLD = 1024;
+	/** the default max count of controllers which are ticked by one task. */
+	public static final int DEFAULT_PARTITION_SIZE = 256;
+
+	private static final int PHASE_MESSAGES = 1;
+	private static final int PHASE_UPDATE = 2;
+
+	private final ForkJoinPool mPool;
+	/** true if the pool is created by this world. */
+	private final boolean mOwnPool;
+
+	/**
+	 * the awake controllers which are ticked, and the dormant controllers. a controller is in one of them,
+	 * which is indicated by {@linkplain AbstractController#mDormant}, at {@linkplain AbstractController#mWorldIndex}.
+	 */
+	private AbstractController<?, ?>[] mAwake = new AbstractController<?, ?>[16];
+	private int mAwakeCount;
+	private AbstractController<?, ?>[] mDormant = new AbstractController<?, ?>[16];
+	private int mDormantCount;
+	/**
+	 * the controllers which are added, removed or woken up while ticking. the target place of them are derived
+	 * by their world and dormant flag after the tick.
+	 */
+	private final List<AbstractController<?, ?>> mPendingControllers = new ArrayList<AbstractController<?, ?>>();
+	/** true while a tick is running. */
+	private boolean mInTick;
+	/** true while the controllers are ticked. the tick set can't be changed. */
+	private boolean mTicking;
+	private long mTickCount;
+	private boolean mDormancyEnabled = true;
+
+	private int mParallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+	private int mPartitionSize = DEFAULT_PARTITION_SIZE;
+	private SharedMessageTimer mMessageTimer;
+
+	/**
+	 * create the world with a new pool whose parallelism is the count of processors.
+	 * the pool is shut down by {@linkplain #shutdown()}.
+	 */
+	public ControllerWorld() {
+		this.mPool = new ForkJoinPool();
+		this.mOwnPool = true;
+	}
+
+	/**
+	 * create the world with the target pool.
+	 * @param pool the fork join pool. which isn't shut down by {@linkplain #shutdown()}.
+	 */
+	public ControllerWorld(ForkJoinPool pool) {
+		if (pool == null) {
+			throw new IllegalArgumentException("pool can't be null.");
+		}
+		this.mPool = pool;
+		this.mOwnPool = false;
+	}
+
+	/**
+	 * set the min count of controllers which are ticked in parallel. default is
+	 * {@linkplain #DEFAULT_PARALLEL_THRESHOLD}.
+	 * @param threshold the parallel threshold. less than the count of controllers means tick them on the tick thread.
+	 */
+	public void setParallelThreshold(int threshold) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException("threshold must >= 0");
+		}
+		this.mParallelThreshold = threshold;
+	}
+
+	public int getParallelThreshold() {
+		return mParallelThreshold;
+	}
+
+	/**
+	 * set the max count of controllers which are ticked by one task. default is {@linkplain #DEFAULT_PARTITION_SIZE}.
+	 * @param size the partition size.
+	 */
+	public void setPartitionSize(int size) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("size must > 0");
+		}
+		this.mPartitionSize = size;
+	}
+
+	public int getPartitionSize() {
+		return mPartitionSize;
+	}
+
+	/**
+	 * set the shared timer which is advanced at the start of every tick.
+	 * @param timer the shared timer. null to not advance any timer.
+	 */
+	public void setMessageTimer(SharedMessageTimer timer) {
+		this.mMessageTimer = timer;
+	}
+
+	public SharedMessageTimer getMessageTimer() {
+		return mMessageTimer;
+	}
+
+	/**
+	 * set the idle controllers can be dormant or not. default is true.
+	 * @param enable true to enable dormancy. false to wake all and tick them every tick.
+	 */
+	public synchronized void setDormancyEnabled(boolean enable) {
+		this.mDormancyEnabled = enable;
+		if (!enable) {
+			while (mDormantCount > 0) {
+				wakeUp(mDormant[mDormantCount - 1]);
+			}
+		}
+	}
+
+	public synchronized boolean isDormancyEnabled() {
+		return mDormancyEnabled;
+	}
+
+	/**
+	 * add the controller to this world. a controller can only be added to one world. the added controller is awake.
+	 * @param controller the controller
+	 * @return true if added. false if it is already in this world.
+	 * @throws IllegalStateException if the controller is in another world.
+	 */
+	public synchronized boolean add(AbstractController<?, ?> controller) {
+		if (controller.mWorld == this) {
+			return false;
+		}
+		if (controller.mWorld != null) {
+			throw new IllegalStateException("the controller is already in another world.");
+		}
+		controller.mWorld = this;
+		controller.mDormant = false;
+		if (mTicking) {
+			mPendingControllers.add(controller);
+		} else {
+			place(controller);
+		}
+		return true;
+	}
+
+	/**
+	 * remove the controller from this world. the controller is also removed when it is disposed.
+	 * @param controller the controller
+	 * @return true if removed. false if it isn't in this world.
+	 */
+	public synchronized boolean remove(AbstractController<?, ?> controller) {
+		if (controller.mWorld != this) {
+			return false;
+		}
+		controller.mWorld = null;
+		if (mTicking) {
+			mPendingControllers.add(controller);
+		} else {
+			place(controller);
+		}
+		return true;
+	}
+
+	/**
+	 * indicate the controller is in this world or not.
+	 * @param controller the controller
+	 * @return true if the controller is in this world.
+	 */
+	public synchronized boolean contains(AbstractController<?, ?> controller) {
+		return controller.mWorld == this;
+	}
+
+	/**
+	 * get the count of controllers. include the dormant ones.
+	 * @return the count of controllers.
+	 */
+	public synchronized int size() {
+		return mAwakeCount + mDormantCount;
+	}
+
+	/**
+	 * get the count of awake controllers which are ticked.
+	 * @return the count of awake controllers.
+	 */
+	public synchronized int getAwakeCount() {
+		return mAwakeCount;
+	}
+
+	/**
+	 * get the count of ticks.
+	 * @return the tick count
+	 */
+	public synchronized long getTickCount() {
+		return mTickCount;
+	}
+
+	/**
+	 * tick the awake controllers with null parameter. see {@linkplain #tick(long, Object)}.
+	 * @param deltaTime the delta time which is passed to {@linkplain AbstractState#onUpdate(long, Object)}.
+	 */
+	public void tick(long deltaTime) {
+		tick(deltaTime, null);
+	}
+
+	/**
+	 * tick the awake controllers. see {@linkplain ControllerWorld} for the barriers of a tick.
+	 * this must not be called by the states of controllers in this world.
+	 * @param deltaTime the delta time which is passed to {@linkplain AbstractState#onUpdate(long, Object)}.
+	 * @param param the parameter which is passed to {@linkplain AbstractState#onUpdate(long, Object)} of all
+	 *              controllers. so it must be acceptable by the parameter type of them.
+	 */
+	public void tick(long deltaTime, Object param) {
+		synchronized (this) {
+			if (mInTick) {
+				throw new IllegalStateException("the world is ticking.");
+			}
+			mInTick = true;
+		}
+		try {
+			// the controllers which are woken up by the timer are ticked in this tick.
+			final SharedMessageTimer timer = this.mMessageTimer;
+			if (timer != null) {
+				timer.advance();
+			}
+			final AbstractController<?, ?>[] controllers;
+			final int count;
+			synchronized (this) {
+				mTicking = true;
+				controllers = this.mAwake;
+				count = this.mAwakeCount;
+			}
+			if (count < mParallelThreshold || mPool.getParallelism() <= 1) {
+				tickRange(controllers, 0, count, PHASE_MESSAGES, deltaTime, param);
+				tickRange(controllers, 0, count, PHASE_UPDATE, deltaTime, param);
+			} else {
+				final int partition = mPartitionSize;
+				mPool.invoke(new TickTask(controllers, 0, count, PHASE_MESSAGES, deltaTime, param, partition));
+				mPool.invoke(new TickTask(controllers, 0, count, PHASE_UPDATE, deltaTime, param, partition));
+			}
+		} finally {
+			synchronized (this) {
+				mTicking = false;
+				mInTick = false;
+				mTickCount++;
+				applyPending();
+				if (mDormancyEnabled) {
+					sleepIdleControllers();
+				}
+			}
+		}
+	}
+
+	/**
+	 * shutdown the pool if it is created by this world. the controllers are not disposed.
+	 */
+	public void shutdown() {
+		if (mOwnPool) {
+			mPool.shutdown();
+		}
+	}
+
+	/**
+	 * wake up the dormant controller. called by {@linkplain AbstractController#wakeUp()}.
+	 * @param controller the controller
+	 */
+	/*package*/ synchronized void wakeUp(AbstractController<?, ?> controller) {
+		if (controller.mWorld != this || !controller.mDormant) {
+			return;
+		}
+		controller.mDormant = false;
+		if (mTicking) {
+			mPendingControllers.add(controller);
+		} else {
+			place(controller);
+		}
+	}
+
+	/**
+	 * move the idle awake controllers to the dormant set.
+	 * the dormant flag is set before the idle check, and {@linkplain AbstractController#postMessage(Message, byte)}
+	 * checks the flag after the message is offered. so either the message is seen here, or the poster wakes up
+	 * the controller.
+	 */
+	private void sleepIdleControllers() {
+		final AbstractController<?, ?>[] controllers = this.mAwake;
+		// from the last, so the swapped one is already checked.
+		for (int i = mAwakeCount - 1; i >= 0; i--) {
+			final AbstractController<?, ?> controller = controllers[i];
+			controller.mDormant = true;
+			if (controller.isIdle()) {
+				removeAt(i, false);
+				append(controller, true);
+			} else {
+				controller.mDormant = false;
+			}
+		}
+	}
+
+	private void applyPending() {
+		final List<AbstractController<?, ?>> controllers = this.mPendingControllers;
+		final int size = controllers.size();
+		for (int i = 0; i < size; i++) {
+			place(controllers.get(i));
+		}
+		controllers.clear();
+	}
+
+	/**
+	 * move the controller to the place which is indicated by its world and dormant flag.
+	 * @param controller the controller
+	 */
+	private void place(AbstractController<?, ?> controller) {
+		// find the current place.
+		int index = controller.mWorldIndex;
+		boolean inDormant;
+		if (index >= 0 && index < mAwakeCount && mAwake[index] == controller) {
+			inDormant = false;
+		} else if (index >= 0 && index < mDormantCount && mDormant[index] == controller) {
+			inDormant = true;
+		} else if (controller.mWorld != this
+				&& (index = indexOf(mDormant, mDormantCount, controller)) >= 0) {
+			inDormant = true;
+		} else {
+			inDormant = false;
+			index = controller.mWorld != this ? indexOf(mAwake, mAwakeCount, controller) : -1;
+		}
+		if (controller.mWorld != this) {
+			if (index >= 0) {
+				removeAt(index, inDormant);
+				controller.mWorldIndex = -1;
+			}
+			return;
+		}
+		final boolean dormant = controller.mDormant;
+		if (index >= 0) {
+			if (inDormant == dormant) {
+				return;
+			}
+			removeAt(index, inDormant);
+		}
+		append(controller, dormant);
+	}
+
+	/**
+	 * find the controller whose index is changed by another world. which is removed while ticking and then
+	 * added to another world.
+	 */
+	private static int indexOf(AbstractController<?, ?>[] controllers, int count, AbstractController<?, ?> controller) {
+		for (int i = 0; i < count; i++) {
+			if (controllers[i] == controller) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void append(AbstractController<?, ?> controller, boolean dormant) {
+		if (dormant) {
+			if (mDormantCount == mDormant.length) {
+				mDormant = Arrays.copyOf(mDormant, mDormantCount << 1);
+			}
+			controller.mWorldIndex = mDormantCount;
+			mDormant[mDormantCount++] = controller;
+		} else {
+			if (mAwakeCount == mAwake.length) {
+				mAwake = Arrays.copyOf(mAwake, mAwakeCount << 1);
+			}
+			controller.mWorldIndex = mAwakeCount;
+			mAwake[mAwakeCount++] = controller;
+		}
+	}
+
+	private void removeAt(int index, boolean dormant) {
+		final AbstractController<?, ?>[] controllers = dormant ? mDormant : mAwake;
+		final int last = dormant ? --mDormantCount : --mAwakeCount;
+		// swap with the last one.
+		final AbstractController<?, ?> lastController = controllers[last];
+		controllers[index] = lastController;
+		lastController.mWorldIndex = index;
+		controllers[last] = null;
+	}
+
+	@SuppressWarnings("unchecked")
+	/*package*/ static void tickRange(AbstractController<?, ?>[] controllers, int from, int to, int phase,
+			long deltaTime, Object param) {
+		if (phase == PHASE_MESSAGES) {
+			for (int i = from; i < to; i++) {
+				controllers[i].dispatchPendingMessages();
+			}
+		} else {
+			for (int i = from; i < to; i++) {
+				((AbstractController<?, Object>) controllers[i]).updateStates(deltaTime, param);
+			}
+		}
+	}
+
+	/**
+	 * the task which ticks a range of controllers. which is split in half until the partition size.
+	 */
+	private static final class TickTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final AbstractController<?, ?>[] controllers;
+		private final int from;
+		private final int to;
+		private final int phase;
+		private final long deltaTime;
+		private final Object param;
+		private final int partition;
+
+		TickTask(AbstractController<?, ?>[] controllers, int from, int to, int phase, long deltaTime, Object param,
+				int partition) {
+			this.controllers = controllers;
+			this.from = from;
+			this.to = to;
+			this.phase = phase;
+			this.deltaTime = deltaTime;
+			this.param = param;
+			this.partition = partition;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= partition) {
+				tickRange(controllers, from, to, phase, deltaTime, param);
+				return;
+			}
+			final int mid = (from + to) >>> 1;
+			invokeAll(new TickTask(controllers, from, mid, phase, deltaTime, param, partition),
+					new TickTask(controllers, mid, to, phase, deltaTime, param, partition));
+		}
+	}
+}
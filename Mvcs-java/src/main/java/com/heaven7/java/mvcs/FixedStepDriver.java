@@ -0,0 +1,501 @@
+package com.heaven7.java.mvcs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.heaven7.java.mvcs.util.Clock;
+
+/**
+ * the driver which updates the targets(controllers, worlds, team managers or any {@linkplain Target}) at a fixed
+ * timestep. the elapsed time of clock is accumulated by every {@linkplain #frame()}, and the targets are stepped once
+ * per timestep with the same delta time.
+ * <ul>
+ * <li>Catch up: at most {@linkplain #setMaxStepsPerFrame(int)} steps are run by a frame. the rest of backlog is
+ * dropped and counted as an overrun, so a spike never causes a spiral of death.
+ * <li>Frame budget: if {@linkplain #setFrameBudget(long, TimeUnit)} is set, the frame stops when the budget is
+ * used up. even in the middle of a step, then the rest targets of the step are updated by the next frame.
+ * <li>Instrumentation: see {@linkplain #getStats()}. which reports the overruns and the percentiles of step time.
+ * </ul>
+ * <p>Usage(the driver thread):</p>
+ * <pre>
+ * FixedStepDriver driver = new FixedStepDriver(Clock.monotonic(), 20, TimeUnit.MILLISECONDS);
+ * driver.addController(controller);
+ * for (;;) {
+ *     driver.frame();
+ *     Thread.sleep(driver.getTimeToNextStep(TimeUnit.MILLISECONDS));
+ * }
+ * </pre>
+ * <p>Note: this class is not thread-safe. it should be used by the thread which updates the targets.</p>
+ * @author heaven7
+ * @since 1.3.0
+ */
+public final class FixedStepDriver {
+
+	/** the default max steps per frame. */
+	public static final int DEFAULT_MAX_STEPS_PER_FRAME = 5;
+	/** the count of latest step times which are recorded for percentiles. */
+	private static final int SAMPLE_COUNT = 1024;
+
+	/**
+	 * the target which is updated at a fixed timestep.
+	 * @since 1.3.0
+	 */
+	public interface Target {
+		/**
+		 * update this target by a step.
+		 * @param deltaTime the delta time of step. in the unit of {@linkplain FixedStepDriver}.
+		 */
+		void step(long deltaTime);
+	}
+
+	private final Clock mClock;
+	private final long mStepNanos;
+	private final long mStepDelta;
+	private final List<Target> mTargets = new ArrayList<Target>();
+
+	private int mMaxStepsPerFrame = DEFAULT_MAX_STEPS_PER_FRAME;
+	/** the frame budget in nanoseconds. 0 means no budget. */
+	private long mBudgetNanos;
+
+	private long mLastNanos = -1;
+	private long mAccumulator;
+	/** the index of target which is updated next in the current step. 0 means a new step. */
+	private int mCursor;
+	/** the time which is spent by the current step. which may be split to frames. */
+	private long mStepWorkNanos;
+
+	private long mSteps;
+	private long mFrames;
+	private long mOverruns;
+	private long mDroppedSteps;
+	private long mBudgetOverruns;
+	private long mSplitSteps;
+	private final long[] mSamples = new long[SAMPLE_COUNT];
+	private int mSampleCount;
+	private int mSampleIndex;
+
+	/**
+	 * create the fixed step driver.
+	 * @param clock the clock which measures the elapsed time.
+	 * @param step the timestep. which is also passed to the targets as delta time.
+	 * @param unit the time unit of step.
+	 */
+	public FixedStepDriver(Clock clock, long step, TimeUnit unit) {
+		if (clock == null) {
+			throw new IllegalArgumentException("clock can't be null.");
+		}
+		if (step <= 0) {
+			throw new IllegalArgumentException("step must > 0");
+		}
+		this.mClock = clock;
+		this.mStepDelta = step;
+		this.mStepNanos = unit.toNanos(step);
+	}
+
+	/**
+	 * set the max count of steps which are run by a frame. the backlog which exceeds it is dropped.
+	 * default is {@linkplain #DEFAULT_MAX_STEPS_PER_FRAME}.
+	 * @param max the max steps per frame
+	 */
+	public void setMaxStepsPerFrame(int max) {
+		if (max <= 0) {
+			throw new IllegalArgumentException("max must > 0");
+		}
+		this.mMaxStepsPerFrame = max;
+	}
+
+	public int getMaxStepsPerFrame() {
+		return mMaxStepsPerFrame;
+	}
+
+	/**
+	 * set the time budget of a frame. the frame stops when it is used up, the rest work is left to the next frame.
+	 * @param budget the budget. 0 means no budget. default is 0.
+	 * @param unit the time unit
+	 */
+	public void setFrameBudget(long budget, TimeUnit unit) {
+		if (budget < 0) {
+			throw new IllegalArgumentException("budget must >= 0");
+		}
+		this.mBudgetNanos = unit.toNanos(budget);
+	}
+
+	public long getFrameBudget(TimeUnit unit) {
+		return unit.convert(mBudgetNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * get the timestep.
+	 * @param unit the time unit
+	 * @return the timestep
+	 */
+	public long getStep(TimeUnit unit) {
+		return unit.convert(mStepNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * add the target.
+	 * @param target the target
+	 */
+	public void addTarget(Target target) {
+		if (target == null) {
+			throw new IllegalArgumentException("target can't be null.");
+		}
+		mTargets.add(target);
+	}
+
+	/**
+	 * remove the target.
+	 * @param target the target
+	 * @return true if removed.
+	 */
+	public boolean removeTarget(Target target) {
+		final int index = mTargets.indexOf(target);
+		if (index < 0) {
+			return false;
+		}
+		removeAt(index);
+		return true;
+	}
+
+	/**
+	 * add the controller. which is updated by {@linkplain IController#update(long)}.
+	 * @param controller the controller
+	 */
+	public void addController(IController<?, ?> controller) {
+		addTarget(new ControllerTarget(controller));
+	}
+
+	/**
+	 * remove the controller.
+	 * @param controller the controller
+	 * @return true if removed.
+	 */
+	public boolean removeController(IController<?, ?> controller) {
+		for (int i = 0, size = mTargets.size(); i < size; i++) {
+			final Target target = mTargets.get(i);
+			if (target instanceof ControllerTarget && ((ControllerTarget) target).controller == controller) {
+				removeAt(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * add the world. which is updated by {@linkplain ControllerWorld#tick(long)}.
+	 * @param world the world
+	 */
+	public void addWorld(ControllerWorld world) {
+		addTarget(new WorldTarget(world));
+	}
+
+	/**
+	 * remove the world.
+	 * @param world the world
+	 * @return true if removed.
+	 */
+	public boolean removeWorld(ControllerWorld world) {
+		for (int i = 0, size = mTargets.size(); i < size; i++) {
+			final Target target = mTargets.get(i);
+			if (target instanceof WorldTarget && ((WorldTarget) target).world == world) {
+				removeAt(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * add the team manager. which updates all teams by {@linkplain StateTeamManager#update(long, Object)}
+	 * with null parameter.
+	 * @param manager the team manager
+	 */
+	public void addTeamManager(StateTeamManager<?> manager) {
+		addTarget(new TeamManagerTarget<Object>(manager, null));
+	}
+
+	/**
+	 * add the team manager. which updates all teams by {@linkplain StateTeamManager#update(long, Object)}.
+	 * @param manager the team manager
+	 * @param param the parameter of team update.
+	 * @param <P> the parameter type
+	 */
+	public <P> void addTeamManager(StateTeamManager<P> manager, P param) {
+		addTarget(new TeamManagerTarget<P>(manager, param));
+	}
+
+	/**
+	 * remove the team manager.
+	 * @param manager the team manager
+	 * @return true if removed.
+	 */
+	public boolean removeTeamManager(StateTeamManager<?> manager) {
+		for (int i = 0, size = mTargets.size(); i < size; i++) {
+			final Target target = mTargets.get(i);
+			if (target instanceof TeamManagerTarget && ((TeamManagerTarget<?>) target).manager == manager) {
+				removeAt(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * run a frame. the elapsed time since the last frame is accumulated, and the due steps are run.
+	 * the first frame only starts the clock.
+	 * @return the count of steps which are completed by this frame.
+	 */
+	public int frame() {
+		final Clock clock = this.mClock;
+		final long frameStart = clock.nanoTime();
+		if (mLastNanos < 0) {
+			mLastNanos = frameStart;
+			return 0;
+		}
+		mAccumulator += frameStart - mLastNanos;
+		mLastNanos = frameStart;
+		mFrames++;
+
+		final long budget = this.mBudgetNanos;
+		final List<Target> targets = this.mTargets;
+		int steps = 0;
+		for (;;) {
+			if (mCursor == 0) {
+				// start a new step.
+				if (mAccumulator < mStepNanos) {
+					break;
+				}
+				if (steps >= mMaxStepsPerFrame) {
+					// can't catch up. drop the backlog.
+					final long dropped = mAccumulator / mStepNanos;
+					mDroppedSteps += dropped;
+					mAccumulator -= dropped * mStepNanos;
+					mOverruns++;
+					break;
+				}
+				mAccumulator -= mStepNanos;
+				mStepWorkNanos = 0;
+			}
+			long partStart = clock.nanoTime();
+			final int size = targets.size();
+			while (mCursor < size) {
+				targets.get(mCursor++).step(mStepDelta);
+				if (budget > 0 && mCursor < size && clock.nanoTime() - frameStart >= budget) {
+					// the budget is used up. the rest targets of this step are left to the next frame.
+					mStepWorkNanos += clock.nanoTime() - partStart;
+					mSplitSteps++;
+					mBudgetOverruns++;
+					return steps;
+				}
+			}
+			mCursor = 0;
+			mStepWorkNanos += clock.nanoTime() - partStart;
+			record(mStepWorkNanos);
+			mSteps++;
+			steps++;
+			if (budget > 0 && clock.nanoTime() - frameStart >= budget) {
+				if (mAccumulator >= mStepNanos) {
+					mBudgetOverruns++;
+				}
+				break;
+			}
+		}
+		return steps;
+	}
+
+	/**
+	 * get the interpolation factor between the last step and the next step. which is often used to render
+	 * between two steps.
+	 * @return the factor in [0, 1)
+	 */
+	public float getInterpolation() {
+		return Math.min(mAccumulator, mStepNanos - 1) / (float) mStepNanos;
+	}
+
+	/**
+	 * get the time to the next step. which is 0 if a step is due or a step is in progress.
+	 * @param unit the time unit
+	 * @return the time to next step
+	 */
+	public long getTimeToNextStep(TimeUnit unit) {
+		if (mCursor != 0 || mLastNanos < 0) {
+			return 0;
+		}
+		final long remain = mStepNanos - mAccumulator - (mClock.nanoTime() - mLastNanos);
+		return remain > 0 ? unit.convert(remain, TimeUnit.NANOSECONDS) : 0;
+	}
+
+	/**
+	 * get the snapshot of statistics.
+	 * @return the statistics
+	 */
+	public Stats getStats() {
+		final long[] samples = Arrays.copyOf(mSamples, mSampleCount);
+		Arrays.sort(samples);
+		return new Stats(mFrames, mSteps, mOverruns, mDroppedSteps, mBudgetOverruns, mSplitSteps, samples);
+	}
+
+	/**
+	 * reset the statistics.
+	 */
+	public void resetStats() {
+		mFrames = 0;
+		mSteps = 0;
+		mOverruns = 0;
+		mDroppedSteps = 0;
+		mBudgetOverruns = 0;
+		mSplitSteps = 0;
+		mSampleCount = 0;
+		mSampleIndex = 0;
+	}
+
+	private void record(long stepNanos) {
+		mSamples[mSampleIndex] = stepNanos;
+		mSampleIndex = (mSampleIndex + 1) % SAMPLE_COUNT;
+		if (mSampleCount < SAMPLE_COUNT) {
+			mSampleCount++;
+		}
+	}
+
+	private void removeAt(int index) {
+		mTargets.remove(index);
+		if (index < mCursor) {
+			mCursor--;
+		}
+	}
+
+	/**
+	 * the statistics of {@linkplain FixedStepDriver}.
+	 * @since 1.3.0
+	 */
+	public static final class Stats {
+		private final long frames;
+		private final long steps;
+		private final long overruns;
+		private final long droppedSteps;
+		private final long budgetOverruns;
+		private final long splitSteps;
+		/** the sorted step times in nanoseconds. */
+		private final long[] samples;
+
+		/*package*/ Stats(long frames, long steps, long overruns, long droppedSteps, long budgetOverruns,
+				long splitSteps, long[] samples) {
+			this.frames = frames;
+			this.steps = steps;
+			this.overruns = overruns;
+			this.droppedSteps = droppedSteps;
+			this.budgetOverruns = budgetOverruns;
+			this.splitSteps = splitSteps;
+			this.samples = samples;
+		}
+
+		/** @return the count of frames. */
+		public long getFrames() {
+			return frames;
+		}
+
+		/** @return the count of completed steps. */
+		public long getSteps() {
+			return steps;
+		}
+
+		/** @return the count of frames which can't catch up by the max steps per frame. */
+		public long getOverruns() {
+			return overruns;
+		}
+
+		/** @return the count of steps which are dropped by overruns. */
+		public long getDroppedSteps() {
+			return droppedSteps;
+		}
+
+		/** @return the count of frames which use up the frame budget with work left. */
+		public long getBudgetOverruns() {
+			return budgetOverruns;
+		}
+
+		/** @return the count of steps which are split to more than one frame. */
+		public long getSplitSteps() {
+			return splitSteps;
+		}
+
+		/**
+		 * get the percentile of step time. which is measured by the latest steps.
+		 * @param percentile the percentile in [0, 100]. e.g: 50, 99.
+		 * @param unit the time unit
+		 * @return the step time. or 0 if no step.
+		 */
+		public long getStepTime(double percentile, TimeUnit unit) {
+			if (percentile < 0 || percentile > 100) {
+				throw new IllegalArgumentException("percentile must in [0, 100]");
+			}
+			if (samples.length == 0) {
+				return 0;
+			}
+			final int index = (int) Math.ceil(percentile / 100 * samples.length) - 1;
+			return unit.convert(samples[Math.max(index, 0)], TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public String toString() {
+			return "Stats{frames=" + frames + ", steps=" + steps + ", overruns=" + overruns + ", droppedSteps="
+					+ droppedSteps + ", budgetOverruns=" + budgetOverruns + ", splitSteps=" + splitSteps
+					+ ", p50=" + getStepTime(50, TimeUnit.NANOSECONDS) + "ns, p99="
+					+ getStepTime(99, TimeUnit.NANOSECONDS) + "ns}";
+		}
+	}
+
+	private static final class ControllerTarget implements Target {
+		final IController<?, ?> controller;
+
+		ControllerTarget(IController<?, ?> controller) {
+			if (controller == null) {
+				throw new IllegalArgumentException("controller can't be null.");
+			}
+			this.controller = controller;
+		}
+
+		@Override
+		public void step(long deltaTime) {
+			controller.update(deltaTime);
+		}
+	}
+
+	private static final class WorldTarget implements Target {
+		final ControllerWorld world;
+
+		WorldTarget(ControllerWorld world) {
+			if (world == null) {
+				throw new IllegalArgumentException("world can't be null.");
+			}
+			this.world = world;
+		}
+
+		@Override
+		public void step(long deltaTime) {
+			world.tick(deltaTime);
+		}
+	}
+
+	private static final class TeamManagerTarget<P> implements Target {
+		final StateTeamManager<P> manager;
+		final P param;
+
+		@SuppressWarnings("unchecked")
+		TeamManagerTarget(StateTeamManager<?> manager, P param) {
+			if (manager == null) {
+				throw new IllegalArgumentException("team manager can't be null.");
+			}
+			this.manager = (StateTeamManager<P>) manager;
+			this.param = param;
+		}
+
+		@Override
+		public void step(long deltaTime) {
+			manager.update(deltaTime, param);
+		}
+	}
+}
@@ -5,6 +5,7 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import com.heaven7.java.base.anno.CalledInternal;
 import com.heaven7.java.base.anno.Hide;
@@ -55,6 +56,7 @@ import com.heaven7.java.mvcs.util.MutexStateException;
  *     </li>
  *     <li>Message Control: send, handle(with reply), has,  remove.<br>
  *         send: {@linkplain #sendMessage(Message, byte, byte)} and  {@linkplain #sendMessage(Message, byte)} <br>
+ *         post(from any thread): {@linkplain #postMessage(Message, byte, byte)} and  {@linkplain #postMessage(Message, byte)} <br>
  *         handle: {@linkplain AbstractState#handleMessage(Message)},suggest {@linkplain Message#replier} called in
  *                  {@linkplain AbstractState#handleMessage(Message)}. <br>
  *         has: {@linkplain #hasMessage(int) and  {@linkplain #hasMessage(Message)}. <br>
@@ -111,6 +113,68 @@ public interface IController<S extends AbstractState<P>, P> extends Disposeable{
 	@Target({ElementType.PARAMETER})
 	@Retention(RetentionPolicy.SOURCE)
 	@interface ScopeFlags{		}
+
+	/**
+	 * the coalesce type of delayed message: replace the pending message and its deadline.
+	 */
+	byte COALESCE_REPLACE          = 1;
+	/**
+	 * the coalesce type of delayed message: replace the pending message, but keep the earlier deadline. like throttle.
+	 */
+	byte COALESCE_KEEP_EARLIEST    = 2;
+	/**
+	 * the coalesce type of delayed message: replace the pending message, and keep the later deadline. like debounce.
+	 */
+	byte COALESCE_KEEP_LATEST      = 3;
+
+	@IntDef({
+		COALESCE_REPLACE,
+		COALESCE_KEEP_EARLIEST,
+		COALESCE_KEEP_LATEST,
+	})
+	@Target({ElementType.PARAMETER})
+	@Retention(RetentionPolicy.SOURCE)
+	@interface CoalesceType{		}
+
+	/**
+	 * the period type of periodic message: the next period starts after the message is handled.
+	 */
+	byte PERIOD_FIXED_DELAY          = 1;
+	/**
+	 * the period type of periodic message: fixed rate. the missed periods are skipped.
+	 */
+	byte PERIOD_FIXED_RATE           = 2;
+	/**
+	 * the period type of periodic message: fixed rate. the missed periods are dispatched at once to catch up.
+	 */
+	byte PERIOD_FIXED_RATE_CATCH_UP  = 3;
+
+	@IntDef({
+		PERIOD_FIXED_DELAY,
+		PERIOD_FIXED_RATE,
+		PERIOD_FIXED_RATE_CATCH_UP,
+	})
+	@Target({ElementType.PARAMETER})
+	@Retention(RetentionPolicy.SOURCE)
+	@interface PeriodType{		}
+
+	/**
+	 * the conflict policy of concurrent compare-and-apply: retry until no other transition is running.
+	 */
+	byte CONFLICT_RETRY      = 1;
+	/**
+	 * the conflict policy of concurrent compare-and-apply: fail at once if the states are changed or another
+	 * transition is running.
+	 */
+	byte CONFLICT_FAIL_FAST  = 2;
+
+	@IntDef({
+		CONFLICT_RETRY,
+		CONFLICT_FAIL_FAST,
+	})
+	@Target({ElementType.PARAMETER})
+	@Retention(RetentionPolicy.SOURCE)
+	@interface ConflictPolicy{		}
 	
 	/**
 	 * begin the state transaction with current states.
@@ -444,6 +508,9 @@ public interface IController<S extends AbstractState<P>, P> extends Disposeable{
 	//has, equals : add, remove, set
 	/**
 	 * compare the target states with current states, if right apply the newStates .
+	 * <p>Note: {@linkplain SimpleController} does it atomically, so it can be called by any thread. the other
+	 * controllers(like {@linkplain BitSetController} and {@linkplain LongController}) are not thread-safe,
+	 * the states may be changed between the compare and the apply if it is called by multi threads.</p>
 	 * @param targetStates the target states to compare
 	 * @param newStates the new states to apply
 	 * @param compareType the compare type, see {@linkplain StateTransaction#COMPARE_TYPE_HAS} and etc.
@@ -485,7 +552,8 @@ public interface IController<S extends AbstractState<P>, P> extends Disposeable{
 	boolean hasMessage(Message expect);
 	
 	/**
-	 * clear the all messages which are delayed in pool and have not handled.
+	 * clear the all messages which are delayed in pool and have not handled. the pending futures of
+	 * {@linkplain #request(Message, byte, long, TimeUnit)} are cancelled.
 	 * @since 1.1.6
 	 */
 	void clearMessages();
@@ -526,6 +594,110 @@ public interface IController<S extends AbstractState<P>, P> extends Disposeable{
 	 * @since 1.1.8
 	 */
     boolean dispatchMessage(Message msg, @PolicyType byte policy);
+    /**
+     * dispatch the target delayed message to the all state by the target policy. if there is a pending delayed message
+     * with the same 'what', it is replaced by the target message in place, and the deadline is decided by the coalesce
+     * type. so the debounce and throttle timers never accumulate duplicates.
+     * if the target message isn't delayed, it is dispatched as {@linkplain #dispatchMessage(Message, byte, byte)}
+     * and the pending message is kept. the periodic messages are never replaced.
+     * @param msg the target message
+     * @param policy the policy of send message
+     * @param scopeFlags the scope flags of this message apply to.
+     * @param coalesce the coalesce type
+     * @return true if replaced a pending message.
+     * @throws IllegalStateException if message is in use.
+     * @throws NullPointerException if the target message is null.
+     * @since 1.3.0
+     */
+    boolean dispatchCoalescedMessage(Message msg, @PolicyType byte policy, @ScopeFlags byte scopeFlags,
+    		@CoalesceType byte coalesce);
+
+    /**
+     * dispatch the target message to the all state periodically by the target policy, until it is cancelled by the
+     * returned handle. the same message is dispatched for every period, so the states should not modify or keep it.
+     * the periodic message is driven by {@linkplain #update(long)} as the delayed message.
+     * And the default scope is {@linkplain IController#FLAG_SCOPE_CURRENT}.
+     * @param msg the target message
+     * @param policy the policy of send message
+     * @param initialDelay the delay of the first period
+     * @param period the period. must be positive.
+     * @param unit the time unit of delay and period
+     * @param periodType the period type.
+     * @return the handle of periodic message.
+     * @throws IllegalStateException if message is in use.
+     * @throws IllegalArgumentException if the period or period type is invalid.
+     * @since 1.3.0
+     */
+    PeriodicMessage dispatchPeriodicMessage(Message msg, @PolicyType byte policy, long initialDelay, long period,
+    		TimeUnit unit, @PeriodType byte periodType);
+
+    /**
+     * send the target message as a request to the all state by the target policy. the message is dispatched as
+     * {@linkplain #dispatchMessage(Message, byte)}, and the {@linkplain Message#replier} of it is the returned future.
+     * so the state which handles the request should reply by it. if there is no reply in time, the future is completed
+     * as timeout by the delayed message of this controller. so {@linkplain #update(long)} should be called to drive it.
+     * the timeout message is removed once the future is done, and the future is cancelled by {@linkplain #clearMessages()}.
+     * <p>Note: the timeout message is internal. it is never matched by {@linkplain #hasMessage(int)},
+     * {@linkplain #removeMessage(int)} and etc, so no 'what' is reserved for it.</p>
+     * @param msg the request message
+     * @param policy the policy of send message
+     * @param timeout the timeout. 0 means never timeout.
+     * @param unit the time unit of timeout
+     * @return the future of response.
+     * @throws IllegalStateException if message is in use.
+     * @throws NullPointerException if the target message is null.
+     * @since 1.3.0
+     */
+    MessageFuture request(Message msg, @PolicyType byte policy, long timeout, TimeUnit unit);
+
+    /**
+     * dispatch the target messages to the all state by the target policy. the target states are resolved once
+     * for the whole batch, so the state changes by handlers don't affect the later messages of this batch.
+     * the messages which are handled now are recycled after dispatched. and the delayed messages are handled in
+     * {@linkplain #update(long)}.
+     * @param msgs the target messages
+     * @param policy the policy of send message
+     * @param scopeFlags the scope flags of this message apply to.
+     * @return the count of handled messages.
+     * @throws IllegalStateException if any message is in use.
+     * @throws NullPointerException if any message is null.
+     * @since 1.3.0
+     */
+    int dispatchMessages(List<Message> msgs, @PolicyType byte policy, @ScopeFlags byte scopeFlags);
+
+    /**
+     * dispatch the target messages to the all state by the target policy.
+     * And the default scope is {@linkplain IController#FLAG_SCOPE_CURRENT}.
+     * @param msgs the target messages
+     * @param policy the policy of send message
+     * @return the count of handled messages.
+     * @see #dispatchMessages(List, byte, byte)
+     * @since 1.3.0
+     */
+    int dispatchMessages(List<Message> msgs, @PolicyType byte policy);
+
+    /**
+     * dispatch the target messages to the all state by the target policy.
+     * @param msgs the target messages
+     * @param policy the policy of send message
+     * @param scopeFlags the scope flags of this message apply to.
+     * @return the count of handled messages.
+     * @see #dispatchMessages(List, byte, byte)
+     * @since 1.3.0
+     */
+    int dispatchMessages(Message[] msgs, @PolicyType byte policy, @ScopeFlags byte scopeFlags);
+
+    /**
+     * dispatch the target messages to the all state by the target policy.
+     * And the default scope is {@linkplain IController#FLAG_SCOPE_CURRENT}.
+     * @param msgs the target messages
+     * @param policy the policy of send message
+     * @return the count of handled messages.
+     * @see #dispatchMessages(List, byte, byte)
+     * @since 1.3.0
+     */
+    int dispatchMessages(Message[] msgs, @PolicyType byte policy);
+
     /**
      * send the target message to the all state by the target policy.
      * And the default scope is {@linkplain IController#FLAG_SCOPE_CURRENT}.
@@ -553,6 +725,30 @@ public interface IController<S extends AbstractState<P>, P> extends Disposeable{
 	 */
     @Deprecated
     boolean sendMessage(Message msg, @PolicyType byte policy,@ScopeFlags byte scopeFlags);
+
+    /**
+     * post the target message to the all state by the target policy. this can be called by any thread without lock.
+     * the posted messages are dispatched in FIFO order by {@linkplain #update(long)} on the update thread.
+     * And the default scope is {@linkplain IController#FLAG_SCOPE_CURRENT}.
+     * @param msg the target message
+     * @param policy the policy of send message
+     * @throws IllegalStateException if message is in use.
+     * @throws NullPointerException if the target message is null.
+     * @since 1.3.0
+     */
+    void postMessage(Message msg, @PolicyType byte policy);
+
+    /**
+     * post the target message to the all state by the target policy. this can be called by any thread without lock.
+     * the posted messages are dispatched in FIFO order by {@linkplain #update(long)} on the update thread.
+     * @param msg the target message
+     * @param policy the policy of send message
+     * @param scopeFlags the scope flags of this message apply to.
+     * @throws IllegalStateException if message is in use.
+     * @throws NullPointerException if the target message is null.
+     * @since 1.3.0
+     */
+    void postMessage(Message msg, @PolicyType byte policy, @ScopeFlags byte scopeFlags);
     
     /**
      * update the controller. this is often used by game.
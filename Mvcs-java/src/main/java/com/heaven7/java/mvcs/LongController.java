@@ -0,0 +1,301 @@
+package com.heaven7.java.mvcs;
+
+import java.util.BitSet;
+import java.util.List;
+
+import com.heaven7.java.mvcs.util.BitFlags;
+
+/**
+ * the controller which support 63 states by long state flags. bit n of the long flags means the state of index n.
+ * <p>Like {@linkplain BitSetController}, the states are created by {@linkplain BitSetController.IndexStateFactory}
+ * and the id of {@linkplain AbstractState} is the state index(not the flag). and only the first 31 states
+ * can join the state team.</p>
+ *
+ * @param <S>
+ *            the state type .
+ * @param <P>
+ *            the state parameter type
+ * @author heaven7
+ * @since 1.3.0
+ * @see BitSetController
+ * @see SimpleController
+ */
+public class LongController<S extends AbstractState<P>, P> extends BitSetController<S, P> {
+
+	/** the max state count of long flags. */
+	public static final int MAX_STATE_COUNT = 63;
+
+	public LongController(Object owner) {
+		this();
+		setOwner(owner);
+	}
+
+	public LongController() {
+		super(MAX_STATE_COUNT);
+	}
+
+	/**
+	 * add the target states.
+	 * @param states the long state flags
+	 * @param extra the extra parameter
+	 * @return true if add success.
+	 */
+	public final boolean addState(long states, P extra) {
+		final int mark = markTempStates();
+		try {
+			return addState(toStates(states), extra);
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	/**
+	 * add the target states.
+	 * @param states the long state flags
+	 * @return true if add success.
+	 */
+	public final boolean addState(long states) {
+		return addState(states, null);
+	}
+
+	/**
+	 * remove the target states.
+	 * @param states the long state flags
+	 * @param param the parameter
+	 * @return true if remove all the states success.
+	 */
+	public final boolean removeState(long states, P param) {
+		final int mark = markTempStates();
+		try {
+			return removeState(toStates(states), param);
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	/**
+	 * remove the target states.
+	 * @param states the long state flags
+	 * @return true if remove all the states success.
+	 */
+	public final boolean removeState(long states) {
+		return removeState(states, null);
+	}
+
+	/**
+	 * set the target states as current states.
+	 * @param newStates the long state flags
+	 * @param extra the extra parameter
+	 * @return true if set success.
+	 */
+	public final boolean setState(long newStates, P extra) {
+		final int mark = markTempStates();
+		try {
+			return setState(toStates(newStates), extra);
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	/**
+	 * set the target states as current states.
+	 * @param newStates the long state flags
+	 * @return true if set success.
+	 */
+	public final boolean setState(long newStates) {
+		return setState(newStates, null);
+	}
+
+	/**
+	 * set the global states.
+	 * @param states the long state flags
+	 * @param extra the extra parameter
+	 */
+	public final void setGlobalState(long states, P extra) {
+		final int mark = markTempStates();
+		try {
+			setGlobalState(toStates(states), extra);
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	/**
+	 * set the global states.
+	 * @param states the long state flags
+	 */
+	public final void setGlobalState(long states) {
+		setGlobalState(states, null);
+	}
+
+	/**
+	 * indicate the current states is the target states or not.
+	 * @param states the long state flags
+	 * @return true if the current states is the target states.
+	 */
+	public final boolean isInState(long states) {
+		final int mark = markTempStates();
+		try {
+			return isInState(toStates(states));
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	/**
+	 * indicate the current states has any of the target states or not.
+	 * @param states the long state flags
+	 * @return true if has.
+	 */
+	public final boolean hasState(long states) {
+		final int mark = markTempStates();
+		try {
+			return hasState(toStates(states));
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	/**
+	 * get the current long state flags.
+	 * @return the current long state flags
+	 */
+	public final long getCurrentStateLongFlags() {
+		return toLongFlags(getCurrentStatesInternal());
+	}
+
+	/**
+	 * get the global long state flags.
+	 * @return the global long state flags
+	 */
+	public final long getGlobalStateLongFlags() {
+		final BitSet states = getGlobalStatesInternal();
+		return states != null ? toLongFlags(states) : 0;
+	}
+
+	/**
+	 * get the target state by the single long state flag.
+	 * @param state the single long state flag
+	 * @return the state. or null if not exists.
+	 */
+	public final S getTargetState(long state) {
+		return state > 0 ? getTargetStateAt(BitFlags.indexOf(state)) : null;
+	}
+
+	/**
+	 * get the target states by target scope.
+	 * @param states the long state flags
+	 * @param scopeFlags the scope flags
+	 * @param outStates the out states. can be null.
+	 * @return the states.
+	 */
+	public final List<S> getTargetStates(long states, int scopeFlags, List<S> outStates) {
+		final int mark = markTempStates();
+		try {
+			return getTargetStates(toStates(states), scopeFlags, outStates);
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	/**
+	 * add a mutex state group. any state of the group is mutex with each other.
+	 * @param groupState the single long state flags of group
+	 */
+	public final void addMutexState(long[] groupState) {
+		if (groupState == null || groupState.length == 0) {
+			throw new IllegalArgumentException();
+		}
+		final int mark = markTempStates();
+		try {
+			addMutexState(toStates(groupState));
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	/**
+	 * set the mutex states. any state of group1 is mutex with the all states of group2.
+	 * @param groupState1 the single long state flags of group1
+	 * @param groupState2 the single long state flags of group2
+	 */
+	public final void setMutexState(long[] groupState1, long[] groupState2) {
+		final int mark = markTempStates();
+		try {
+			setMutexState(groupState1 != null ? toStates(groupState1) : null,
+					groupState2 != null ? toStates(groupState2) : null);
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	/**
+	 * get the mutex long state flags of the target single state.
+	 * @param mainState the single long state flag
+	 * @return the mutex long state flags. or 0 if not have.
+	 */
+	public final long getMutexStateFlags(long mainState) {
+		final BitSet states = mainState > 0 ? getMutexStates(BitFlags.indexOf(mainState)) : null;
+		return states != null ? toLongFlags(states) : 0;
+	}
+
+	/**
+	 * dispatch the message to the target states.
+	 * @param states the long state flags
+	 * @param msg the message
+	 * @param policy the policy
+	 * @return true if handled.
+	 */
+	public final boolean dispatchMessage(long states, Message msg, @PolicyType byte policy) {
+		final int mark = markTempStates();
+		try {
+			return dispatchMessage(toStates(states), msg, policy);
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	/**
+	 * update the target active states(current and global).
+	 * @param activeStates the long state flags
+	 * @param deltaTime the delta time
+	 * @param param the parameter
+	 */
+	public final void updateActiveStates(long activeStates, long deltaTime, P param) {
+		final int mark = markTempStates();
+		try {
+			updateActiveStates(toStates(activeStates), deltaTime, param);
+		} finally {
+			resetTempStates(mark);
+		}
+	}
+
+	/** convert the long flags to temp bit set. */
+	private BitSet toStates(long flags) {
+		final BitSet set = obtainTempStates();
+		for (long flag; flags > 0; flags ^= flag) {
+			flag = BitFlags.lowest(flags);
+			set.set(BitFlags.indexOf(flag));
+		}
+		return set;
+	}
+
+	private BitSet toStates(long[] groupState) {
+		final BitSet set = obtainTempStates();
+		for (long flags : groupState) {
+			for (long flag; flags > 0; flags ^= flag) {
+				flag = BitFlags.lowest(flags);
+				set.set(BitFlags.indexOf(flag));
+			}
+		}
+		return set;
+	}
+
+	private static long toLongFlags(BitSet states) {
+		long flags = 0;
+		for (int i = states.nextSetBit(0); i >= 0 && i < MAX_STATE_COUNT; i = states.nextSetBit(i + 1)) {
+			flags |= 1L << i;
+		}
+		return flags;
+	}
+}
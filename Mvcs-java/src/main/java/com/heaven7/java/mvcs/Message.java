@@ -2,6 +2,8 @@ package com.heaven7.java.mvcs;
 
 import com.heaven7.java.base.util.Objects;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * the message communicate between out side to {@linkplain AbstractState}, by calling {@linkplain IController#sendMessage(Message, byte, byte)}.
  * @author heaven7
@@ -44,11 +46,28 @@ public final class Message {
      * indicate the message will be handled in future or right now. 
      */
     public long when;
+
+    /**
+     * the delay in nanoseconds. which is converted to {@linkplain #whenNanos} by the clock of controller on dispatch.
+     */
+    private long delayNanos;
+    /**
+     * the due time of the controller clock in nanoseconds. which is resolved on dispatch.
+     */
+    /*package*/ long whenNanos;
     
     /**
      * indicate the message handler should reply this message.
      */
     public MessageReplier replier;
+
+    /**
+     * the correlation id of request and reply. 0 means not a request or reply.
+     */
+    /*package*/ int correlationId;
+
+    /** the handle of periodic message. null means not periodic. */
+    /*package*/ PeriodicMessage periodic;
     
     /** If set message is in use.
      * This flag is set when the message is enqueued and remains set while it
@@ -61,17 +80,18 @@ public final class Message {
     private static final int FLAG_IN_USE      = 1 << 0;
     /** a flag which indicate message comes from team .*/
     private static final int FLAG_FROM_TEAM   = 1 << 2;
+    /** a flag which indicate message is the timeout of {@linkplain MessageFuture}. */
+    private static final int FLAG_TIMEOUT     = 1 << 3;
     
     private int flags;
-    
-    private Message next;
-    private static final Object sPoolSync = new Object();
-    private static Message sPool;
-    private static int sPoolSize = 0;
 
-    private static final int MAX_POOL_SIZE = 20;
+    /** the next message of {@linkplain MessageInbox}. */
+    /*package*/ volatile Message nextPosted;
+    /** the policy and scope of posted message. */
+    /*package*/ byte postedPolicy;
+    /*package*/ byte postedScope;
     
-    private Message (){}
+    /*package*/ Message (){}
     
     /**
      * Return a new Message instance from the global pool. Allows us to
@@ -114,19 +134,12 @@ public final class Message {
     /**
      * Return a new Message instance from the global pool. Allows us to
      * avoid allocating new objects in many cases.
+     * @see MessagePool
      */
     public static Message obtain() {
-        synchronized (sPoolSync) {
-            if (sPool != null) {
-                Message m = sPool;
-                sPool = m.next;
-                m.next = null;
-                m.flags = 0; // clear in-use flag
-                sPoolSize--;
-                return m;
-            }
-        }
-        return new Message();
+        Message m = MessagePool.obtain();
+        m.flags = 0; // clear in-use flag
+        return m;
     }
     
     /**
@@ -139,21 +152,64 @@ public final class Message {
 
     	msg.what = other.what;
     	msg.when = other.when;
+    	msg.delayNanos = other.delayNanos;
     	msg.arg1 = other.arg1;
     	msg.arg2 = other.arg2;
     	
     	msg.data = other.data;
     	msg.obj = other.obj;
     	msg.replier = other.replier;
+    	msg.correlationId = other.correlationId;
     	return msg;
     }
     
     /**
-     * set the delay of this message to be handled.
+     * set the delay of this message to be handled. the delay is counted from the message is dispatched,
+     * by the clock of controller.
      * @param delayMillseconds the delay in millseconds.
      */
     public void setDelay(long delayMillseconds){
-    	this.when = System.currentTimeMillis() + delayMillseconds;
+    	setDelay(delayMillseconds, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * set the delay of this message to be handled. the delay is counted from the message is dispatched,
+     * by the clock of controller.
+     * @param delay the delay
+     * @param unit the time unit of delay
+     * @since 1.3.0
+     */
+    public void setDelay(long delay, TimeUnit unit){
+    	this.delayNanos = unit.toNanos(delay);
+    	this.when = System.currentTimeMillis() + unit.toMillis(delay);
+    }
+
+    /**
+     * get the delay in nanoseconds.
+     * @return the delay in nanoseconds.
+     * @since 1.3.0
+     */
+    public long getDelayNanos(){
+    	return delayNanos;
+    }
+
+    /**
+     * resolve the due time by the clock time. the message which only assigned {@linkplain #when} directly
+     * is resolved by the wall-clock.
+     * @param nowNanos the current time of clock in nanoseconds.
+     * @return the due time in nanoseconds.
+     */
+    /*package*/ long resolveWhenNanos(long nowNanos){
+    	long result = nowNanos;
+    	if (delayNanos > 0) {
+    		result = nowNanos + delayNanos;
+    	} else if (when != 0) {
+    		final long delta = when - System.currentTimeMillis();
+    		if (delta > 0) {
+    			result = nowNanos + TimeUnit.MILLISECONDS.toNanos(delta);
+    		}
+    	}
+    	return whenNanos = result;
     }
     /**
      * Return a Message instance to the global pool.
@@ -183,22 +239,44 @@ public final class Message {
         arg1 = 0;
         arg2 = 0;
         when = 0;
+        delayNanos = 0;
+        whenNanos = 0;
         
         obj = null;
         data = null;
         replier = null;
+        correlationId = 0;
+        periodic = null;
 
-        synchronized (sPoolSync) {
-            if (sPoolSize < MAX_POOL_SIZE) {
-                next = sPool;
-                sPool = this;
-                sPoolSize++;
-            }
-        }
+        MessagePool.recycle(this);
     }
     public boolean isFromTeam(){
     	return (flags & FLAG_FROM_TEAM) != 0;
     }
+
+    /**
+     * get the correlation id of request and reply. which is assigned by
+     * {@linkplain IController#request(Message, byte, long, TimeUnit)}.
+     * @return the correlation id. 0 means not a request or reply.
+     * @since 1.3.0
+     * @see MessageFuture#getCorrelationId()
+     */
+    public int getCorrelationId(){
+    	return correlationId;
+    }
+    /*package*/ boolean isTimeout(){
+    	return (flags & FLAG_TIMEOUT) != 0;
+    }
+    /*package*/ void markTimeout() {
+    	flags |= FLAG_TIMEOUT;
+    }
+    /**
+     * indicate this is the internal message of the handle. that is the timeout message of the future, or the
+     * message of the periodic handle. false if it is recycled or reused.
+     */
+    /*package*/ boolean isHandledBy(Object handle){
+    	return handle != null && (periodic == handle || (isTimeout() && obj == handle));
+    }
 	public boolean isInUse(){
     	return (flags & FLAG_IN_USE) != 0;
     }
@@ -260,6 +338,7 @@ public final class Message {
     	 .add("obj", obj)
     	 .add("data", data)
     	 .add("replier", replier)
+    	 .add("correlationId", correlationId)
     	 .add("in-use", isInUse())
     	 .add("from-team", isFromTeam())
     	 .toString();
@@ -0,0 +1,161 @@
+package com.heaven7.java.mvcs;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * the pending response of a request which is sent by {@linkplain IController#request(Message, byte, long, TimeUnit)}.
+ * this is the {@linkplain Message#replier} of the request message, so it is completed by the first reply of states.
+ * And it is completed as timeout by the delayed message of controller if no reply in time. the timeout message is
+ * removed once it is done. and it is cancelled if the messages of controller are cleared.
+ * <p>Use {@linkplain #setCallback(Callback)} to handle the response without blocking, or the methods of
+ * {@linkplain Future} to wait for it.</p>
+ * @author heaven7
+ * @since 1.3.0
+ */
+public final class MessageFuture extends AbstractFuture<Message, MessageFuture.Callback>
+		implements Message.MessageReplier {
+
+	private static final AtomicInteger sNextId = new AtomicInteger();
+
+	private final int mCorrelationId;
+	private final int mWhat;
+	/** the controller which sends the request. which removes the timeout message when this is done. */
+	private AbstractController<?, ?> mController;
+	/** the pending timeout message. which is marked as timeout, so it never matches the messages of user. */
+	private Message mTimeoutMsg;
+
+	/**
+	 * the callback of response.
+	 * @since 1.3.0
+	 */
+	public interface Callback {
+		/**
+		 * called when the future is done. that is replied, timeout or cancelled. this is called on the thread
+		 * which completes the future. or the thread which set the callback if it is already done.
+		 * @param future the future
+		 */
+		void onDone(MessageFuture future);
+	}
+
+	/*package*/ MessageFuture(int what) {
+		this.mWhat = what;
+		int id;
+		do {
+			id = sNextId.incrementAndGet();
+		} while (id == 0);
+		this.mCorrelationId = id;
+	}
+
+	/**
+	 * get the correlation id. which is carried by the request and reply message.
+	 * @return the correlation id
+	 * @see Message#getCorrelationId()
+	 */
+	public int getCorrelationId() {
+		return mCorrelationId;
+	}
+
+	/**
+	 * get the 'what' of request message.
+	 * @return the what of request
+	 */
+	public int getRequestWhat() {
+		return mWhat;
+	}
+
+	/**
+	 * set the callback. which is called at once if the future is already done.
+	 * @param callback the callback
+	 */
+	public void setCallback(Callback callback) {
+		setCallbackImpl(callback);
+	}
+
+	/**
+	 * get the reply message.
+	 * @return the reply message. or null if not replied.
+	 */
+	public Message getReply() {
+		return getResultNow();
+	}
+
+	/**
+	 * indicate the request is replied or not.
+	 * @return true if replied.
+	 */
+	public boolean isReplied() {
+		return getState() == STATE_DONE;
+	}
+
+	/**
+	 * indicate the request is timeout or not.
+	 * @return true if timeout.
+	 */
+	public boolean isTimeout() {
+		return getState() == STATE_FAILED;
+	}
+
+	/**
+	 * complete this future by the reply message. only the first reply is accepted.
+	 * @param msg the reply message
+	 */
+	@Override
+	public void reply(Message msg) {
+		msg.correlationId = mCorrelationId;
+		complete(STATE_DONE, msg, null);
+	}
+
+	/**
+	 * attach this future to the controller which sends the request.
+	 * @param controller the controller
+	 * @return true if attached. false if it is already done.
+	 */
+	/*package*/ synchronized boolean attach(AbstractController<?, ?> controller) {
+		if (isDone()) {
+			return false;
+		}
+		this.mController = controller;
+		return true;
+	}
+
+	/*package*/ synchronized Message getTimeoutMessage() {
+		return mTimeoutMsg;
+	}
+
+	/*package*/ synchronized void setTimeoutMessage(Message msg) {
+		this.mTimeoutMsg = msg;
+	}
+
+	/**
+	 * called by the timeout message of controller.
+	 */
+	/*package*/ void timeout() {
+		// it is dispatched and recycled by the controller.
+		setTimeoutMessage(null);
+		complete(STATE_FAILED, null, new TimeoutException("request timeout. what = " + mWhat
+				+ " ,correlationId = " + mCorrelationId));
+	}
+
+	@Override
+	/*package*/ void onDone(Callback callback) {
+		final AbstractController<?, ?> controller;
+		synchronized (this) {
+			controller = mController;
+			mController = null;
+		}
+		if (controller != null) {
+			controller.removeRequest(this);
+		}
+		if (callback != null) {
+			callback.onDone(this);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "MessageFuture{what=" + mWhat + ", correlationId=" + mCorrelationId + ", state=" + getState() + "}";
+	}
+}
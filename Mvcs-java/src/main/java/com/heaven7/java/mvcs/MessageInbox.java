@@ -0,0 +1,99 @@
+package com.heaven7.java.mvcs;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * the lock-free multi-producer single-consumer queue of posted messages. the message itself is the node of queue
+ * (linked by {@linkplain Message#nextPosted}), so post a message never allocates.
+ * <ul>
+ * <li>offer: wait-free, can be called by any thread.
+ * <li>poll: lock-free, must be called by the only consumer thread.
+ * </ul>
+ * <p>Note: a message can be in one queue at most. which is guaranteed by the in-use flag of message.</p>
+ * @author heaven7
+ * @since 1.3.0
+ */
+/* public */ final class MessageInbox {
+
+	/** the stub node. which makes the queue never empty. */
+	private final Message mStub = new Message();
+	/** the last node. shared by producers. */
+	private final AtomicReference<Message> mTail = new AtomicReference<Message>(mStub);
+	/** the first node. only accessed by consumer. */
+	private Message mHead = mStub;
+
+	/**
+	 * offer the message to the tail of queue.
+	 * @param msg the message
+	 */
+	public void offer(Message msg) {
+		msg.nextPosted = null;
+		final Message prev = mTail.getAndSet(msg);
+		// the queue is broken until this link. the consumer will see an empty queue for a while.
+		prev.nextPosted = msg;
+	}
+
+	/**
+	 * poll the first message of queue.
+	 * @return the message. or null if the queue is empty or the latest offer is not finished.
+	 */
+	public Message poll() {
+		return poll(null);
+	}
+
+	/**
+	 * poll the first message of queue which is offered before the target bound.
+	 * @param bound the bound which is got by {@linkplain #getLast()}. null means no bound.
+	 * @return the message. or null if the queue is empty, the bound is passed, or the latest offer is not finished.
+	 */
+	public Message poll(Message bound) {
+		Message head = mHead;
+		Message next = head.nextPosted;
+		if (head == mStub) {
+			if (next == null) {
+				return null;
+			}
+			// skip stub
+			mHead = head = next;
+			if (bound == mStub) {
+				return null;
+			}
+			next = next.nextPosted;
+		}
+		if (next != null) {
+			mHead = next;
+			head.nextPosted = null;
+			return head;
+		}
+		if (head != mTail.get()) {
+			// a producer is offering.
+			return null;
+		}
+		// the head is the last node. re-offer stub so that it can be unlinked.
+		offer(mStub);
+		next = head.nextPosted;
+		if (next != null) {
+			mHead = next;
+			head.nextPosted = null;
+			return head;
+		}
+		return null;
+	}
+
+	/**
+	 * indicate the queue is empty or not. should be called by the consumer thread.
+	 * @return true if no message is offered or all are polled.
+	 */
+	public boolean isEmpty() {
+		return mHead == mStub && mTail.get() == mStub;
+	}
+
+	/**
+	 * get the last node of queue. which is used to bound a drain by {@linkplain #poll(Message)}: the messages
+	 * which are offered after this are left to the next drain.
+	 * @return the last node. which may be the stub node. so the caller should only compare it.
+	 */
+	public Message getLast() {
+		return mTail.get();
+	}
+}
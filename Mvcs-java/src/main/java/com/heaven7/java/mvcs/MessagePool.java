@@ -0,0 +1,270 @@
+package com.heaven7.java.mvcs;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * the pool of {@linkplain Message}. which is used by {@linkplain Message#obtain()} and {@linkplain Message#recycle()}.
+ * every thread has its own cache which is accessed without any synchronization. the message which overflows
+ * the thread cache goes to a shared lock-free slot array, so the message which is obtained by a producer thread
+ * and recycled by a consumer thread can still be reused.
+ * <ul>
+ * <li>hit: the message is obtained from pool.
+ * <li>miss: the pool is empty, a new message is allocated.
+ * <li>drop: the pool is full, the recycled message is left to gc.
+ * </ul>
+ * @author heaven7
+ * @since 1.3.0
+ */
+public final class MessagePool {
+
+	public static final int DEFAULT_LOCAL_CAPACITY = 32;
+	public static final int DEFAULT_SHARED_CAPACITY = 256;
+
+	/** the stripe count of counters. must be power of 2. */
+	private static final int STRIPES = 16;
+	/** the counters of a stripe are placed in a cache line(8 longs), to avoid false sharing between stripes. */
+	private static final int STRIDE = 8;
+	private static final int HIT = 0;
+	private static final int MISS = 1;
+	private static final int DROP = 2;
+
+	private static final AtomicLongArray sCounters = new AtomicLongArray(STRIPES * STRIDE);
+	private static final AtomicInteger sNextStripe = new AtomicInteger();
+	private static volatile Shared sShared = new Shared(DEFAULT_LOCAL_CAPACITY, DEFAULT_SHARED_CAPACITY);
+
+	private static final ThreadLocal<LocalCache> sLocal = new ThreadLocal<LocalCache>() {
+		@Override
+		protected LocalCache initialValue() {
+			return new LocalCache(sNextStripe.getAndIncrement() & (STRIPES - 1));
+		}
+	};
+
+	private MessagePool() {
+	}
+
+	/**
+	 * set the capacity of pool. the pooled messages are discarded.
+	 * @param localCapacity the max count of messages cached by every thread. 0 to disable the thread cache.
+	 * @param sharedCapacity the max count of messages shared between threads. 0 to disable the shared pool.
+	 */
+	public static void setCapacity(int localCapacity, int sharedCapacity) {
+		if (localCapacity < 0 || sharedCapacity < 0) {
+			throw new IllegalArgumentException("capacity must >= 0");
+		}
+		sShared = new Shared(localCapacity, sharedCapacity);
+	}
+
+	/**
+	 * get the max count of messages cached by every thread.
+	 * @return the local capacity
+	 */
+	public static int getLocalCapacity() {
+		return sShared.localCapacity;
+	}
+
+	/**
+	 * get the max count of messages shared between threads.
+	 * @return the shared capacity
+	 */
+	public static int getSharedCapacity() {
+		return sShared.slots.length();
+	}
+
+	/**
+	 * get the statistics of pool since startup or the last {@linkplain #resetStats()}.
+	 * @return the statistics
+	 */
+	public static Stats getStats() {
+		long hits = 0, misses = 0, drops = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			final int base = i * STRIDE;
+			hits += sCounters.get(base + HIT);
+			misses += sCounters.get(base + MISS);
+			drops += sCounters.get(base + DROP);
+		}
+		return new Stats(hits, misses, drops);
+	}
+
+	/**
+	 * reset the statistics of pool.
+	 */
+	public static void resetStats() {
+		for (int i = 0, len = sCounters.length(); i < len; i++) {
+			sCounters.set(i, 0);
+		}
+	}
+
+	/*package*/ static Message obtain() {
+		final LocalCache cache = sLocal.get();
+		final Shared shared = sShared;
+		Message m = cache.pop(shared);
+		if (m == null) {
+			m = shared.pop(cache);
+		}
+		if (m != null) {
+			sCounters.incrementAndGet(cache.stripe * STRIDE + HIT);
+			return m;
+		}
+		sCounters.incrementAndGet(cache.stripe * STRIDE + MISS);
+		return new Message();
+	}
+
+	/*package*/ static void recycle(Message msg) {
+		final LocalCache cache = sLocal.get();
+		final Shared shared = sShared;
+		if (!cache.push(shared, msg) && !shared.push(cache, msg)) {
+			sCounters.incrementAndGet(cache.stripe * STRIDE + DROP);
+		}
+	}
+
+	/**
+	 * the statistics of pool.
+	 * @since 1.3.0
+	 */
+	public static final class Stats {
+		private final long hits;
+		private final long misses;
+		private final long drops;
+
+		/*package*/ Stats(long hits, long misses, long drops) {
+			this.hits = hits;
+			this.misses = misses;
+			this.drops = drops;
+		}
+
+		/**
+		 * get the count of obtained messages which come from pool.
+		 * @return the hit count
+		 */
+		public long getHits() {
+			return hits;
+		}
+
+		/**
+		 * get the count of obtained messages which are allocated.
+		 * @return the miss count
+		 */
+		public long getMisses() {
+			return misses;
+		}
+
+		/**
+		 * get the count of recycled messages which are dropped as the pool is full.
+		 * @return the drop count
+		 */
+		public long getDrops() {
+			return drops;
+		}
+
+		@Override
+		public String toString() {
+			return "MessagePool.Stats{hits=" + hits + ", misses=" + misses + ", drops=" + drops + "}";
+		}
+	}
+
+	/**
+	 * the cache of a thread. only accessed by the owner thread.
+	 */
+	private static final class LocalCache {
+		final int stripe;
+		/** the shared pool which this cache belongs to. */
+		Shared shared;
+		Message[] items;
+		int size;
+		/** the start slot of next scan in shared pool. */
+		int cursor;
+
+		LocalCache(int stripe) {
+			this.stripe = stripe;
+			this.cursor = stripe;
+		}
+
+		Message pop(Shared shared) {
+			if (this.shared != shared) {
+				reset(shared);
+			}
+			if (size == 0) {
+				return null;
+			}
+			final Message m = items[--size];
+			items[size] = null;
+			return m;
+		}
+
+		boolean push(Shared shared, Message msg) {
+			if (this.shared != shared) {
+				reset(shared);
+			}
+			if (size == items.length) {
+				return false;
+			}
+			items[size++] = msg;
+			return true;
+		}
+
+		/** the capacity is changed. discard the cached messages. */
+		private void reset(Shared shared) {
+			this.shared = shared;
+			this.items = new Message[shared.localCapacity];
+			this.size = 0;
+		}
+	}
+
+	/**
+	 * the shared pool. every slot is taken or filled by CAS independently. so it is free of ABA problem.
+	 */
+	private static final class Shared {
+		final int localCapacity;
+		final AtomicReferenceArray<Message> slots;
+		/** the approximate count of messages. used to skip the scan. */
+		final AtomicInteger count = new AtomicInteger();
+
+		Shared(int localCapacity, int sharedCapacity) {
+			this.localCapacity = localCapacity;
+			this.slots = new AtomicReferenceArray<Message>(sharedCapacity);
+		}
+
+		Message pop(LocalCache cache) {
+			final AtomicReferenceArray<Message> slots = this.slots;
+			final int len = slots.length();
+			if (count.get() <= 0) {
+				return null;
+			}
+			int index = cache.cursor % len;
+			for (int i = 0; i < len; i++) {
+				final Message m = slots.get(index);
+				if (m != null && slots.compareAndSet(index, m, null)) {
+					count.decrementAndGet();
+					cache.cursor = index;
+					return m;
+				}
+				if (++index == len) {
+					index = 0;
+				}
+			}
+			return null;
+		}
+
+		boolean push(LocalCache cache, Message msg) {
+			final AtomicReferenceArray<Message> slots = this.slots;
+			final int len = slots.length();
+			if (count.get() >= len) {
+				return false;
+			}
+			int index = cache.cursor % len;
+			for (int i = 0; i < len; i++) {
+				if (slots.get(index) == null && slots.compareAndSet(index, null, msg)) {
+					count.incrementAndGet();
+					cache.cursor = index;
+					return true;
+				}
+				if (++index == len) {
+					index = 0;
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package com.heaven7.java.mvcs;
+
+/**
+ * the routing index of messages: 'what' to the mask of states which declared it by
+ * {@linkplain AbstractState#getHandledMessages()}. the state which doesn't declare any 'what' receives all messages.
+ * the index is updated when a state is entered, and the mask is always filtered by the current(or cached) states
+ * on dispatch. so the states which are exited don't need to be removed from the index.
+ * <p>Note: this class is not thread-safe.</p>
+ * @author heaven7
+ * @since 1.3.0
+ */
+/* public */ final class MessageRouter {
+
+	/** the states which receive all messages. */
+	private int mWildcardStates = -1;
+	/** the declared 'what' codes of states. indexed by the bit position of state. */
+	private final int[][] mDeclared = new int[32][];
+
+	/** the 'what' index: open-addressing keys and the state masks. */
+	private int[] mKeys = new int[16];
+	private int[] mMasks = new int[16];
+	private boolean[] mUsed = new boolean[16];
+	private int mCount;
+
+	/**
+	 * register the declared 'what' codes of the state which is entered.
+	 * @param singleState the single state
+	 * @param whats the 'what' codes. null means all.
+	 */
+	public void register(int singleState, int[] whats) {
+		final int index = Integer.numberOfTrailingZeros(singleState);
+		final int[] old = mDeclared[index];
+		if (old == whats) {
+			// the same declaration. most states return a constant array.
+			if (whats == null) {
+				return;
+			}
+		} else if (old != null) {
+			for (int what : old) {
+				final int slot = slot(what, false);
+				mMasks[slot] &= ~singleState;
+			}
+		}
+		mDeclared[index] = whats;
+		if (whats == null) {
+			mWildcardStates |= singleState;
+			return;
+		}
+		mWildcardStates &= ~singleState;
+		for (int what : whats) {
+			final int slot = slot(what, true);
+			mMasks[slot] |= singleState;
+		}
+	}
+
+	/**
+	 * get the mask of states which can handle the message of target 'what'.
+	 * @param what the what of message
+	 * @return the state mask. -1 if all states can handle it.
+	 */
+	public int route(int what) {
+		if (mWildcardStates == -1) {
+			return -1;
+		}
+		final int slot = slot(what, false);
+		return slot >= 0 ? (mWildcardStates | mMasks[slot]) : mWildcardStates;
+	}
+
+	private int slot(int what, boolean create) {
+		int mask = mKeys.length - 1;
+		int i = hash(what) & mask;
+		for (; mUsed[i]; i = (i + 1) & mask) {
+			if (mKeys[i] == what) {
+				return i;
+			}
+		}
+		if (!create) {
+			return -1;
+		}
+		if ((mCount + 1) << 1 > mKeys.length) {
+			grow();
+			mask = mKeys.length - 1;
+			i = hash(what) & mask;
+			while (mUsed[i]) {
+				i = (i + 1) & mask;
+			}
+		}
+		mUsed[i] = true;
+		mKeys[i] = what;
+		mCount++;
+		return i;
+	}
+
+	private void grow() {
+		final int[] oldKeys = mKeys;
+		final int[] oldMasks = mMasks;
+		final boolean[] oldUsed = mUsed;
+		final int capacity = oldKeys.length << 1;
+		final int mask = capacity - 1;
+		mKeys = new int[capacity];
+		mMasks = new int[capacity];
+		mUsed = new boolean[capacity];
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldUsed[j]) {
+				int i = hash(oldKeys[j]) & mask;
+				while (mUsed[i]) {
+					i = (i + 1) & mask;
+				}
+				mUsed[i] = true;
+				mKeys[i] = oldKeys[j];
+				mMasks[i] = oldMasks[j];
+			}
+		}
+	}
+
+	private static int hash(int key) {
+		final int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
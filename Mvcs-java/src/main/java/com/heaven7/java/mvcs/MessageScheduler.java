@@ -0,0 +1,499 @@
+package com.heaven7.java.mvcs;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * the scheduler of delayed messages. which is a binary heap ordered by the resolved due time of {@linkplain Message}(and the post order
+ * for the same due time), with a secondary index by {@linkplain Message#what}.
+ * <ul>
+ * <li>schedule: O(log n)
+ * <li>peek: O(1)
+ * <li>has message by what: O(1), except the timeout messages of the same 'what'.
+ * <li>remove by what/message: O(k log n), k is the count of messages with the same 'what'.
+ * </ul>
+ * the entries are pooled. so schedule a message doesn't allocate in steady state. the timeout messages of requests
+ * are never matched by 'what' or message, they are only removed by {@linkplain #removeExact(Message, Object)}.
+ * <p>Note: this class is not thread-safe.</p>
+ * @author heaven7
+ * @since 1.3.0
+ */
+/* public */ final class MessageScheduler {
+
+	private static final int MAX_POOL_SIZE = 32;
+
+	/**
+	 * the entry of a scheduled message.
+	 */
+	static final class Entry {
+		Message msg;
+		byte policy;
+		byte scope;
+		/** the target states. -1 means all. */
+		int states = -1;
+		/** the target wide states. */
+		BitSet wideStates;
+
+		/** the post sequence. used to keep the post order of the same due time. */
+		long seq;
+		/** the index in heap. -1 means not in heap. */
+		int heapIndex = -1;
+		/** the linked list of the same 'what' */
+		Entry prevWhat;
+		Entry nextWhat;
+		/** the next entry of pool */
+		Entry nextPool;
+		/** true if it is removed while it is polled. which is not scheduled again. */
+		boolean removed;
+
+		void reset() {
+			msg = null;
+			removed = false;
+			states = -1;
+			wideStates = null;
+			heapIndex = -1;
+			prevWhat = null;
+			nextWhat = null;
+		}
+	}
+
+	private Entry[] mHeap = new Entry[16];
+	private int mSize;
+	private long mSeq;
+
+	/** the 'what' index: open-addressing keys and the head entries of the same 'what'. */
+	private int[] mWhatKeys = new int[16];
+	private Entry[] mWhatHeads = new Entry[16];
+	private boolean[] mWhatUsed = new boolean[16];
+	private int mWhatCount;
+
+	private Entry mPool;
+	private int mPoolSize;
+
+	/**
+	 * schedule the target message.
+	 * @param msg the message
+	 * @param policy the policy
+	 * @param scope the scope
+	 * @param states the target states. -1 means all.
+	 * @param wideStates the target wide states. can be null.
+	 */
+	public void schedule(Message msg, byte policy, byte scope, int states, BitSet wideStates) {
+		final Entry entry = obtainEntry();
+		entry.msg = msg;
+		entry.policy = policy;
+		entry.scope = scope;
+		entry.states = states;
+		entry.wideStates = wideStates;
+		reschedule(entry);
+	}
+
+	/**
+	 * schedule the entry which is polled by {@linkplain #pollDue(long)} again. the due time of message should be
+	 * updated before. this is used by the periodic message.
+	 * @param entry the entry
+	 */
+	public void reschedule(Entry entry) {
+		final Message msg = entry.msg;
+		entry.seq = mSeq++;
+		// add to heap
+		if (mSize == mHeap.length) {
+			mHeap = Arrays.copyOf(mHeap, mSize << 1);
+		}
+		mHeap[mSize] = entry;
+		entry.heapIndex = mSize;
+		siftUp(mSize++);
+		// add to what index
+		final int slot = whatSlot(msg.what, true);
+		final Entry head = mWhatHeads[slot];
+		entry.nextWhat = head;
+		if (head != null) {
+			head.prevWhat = entry;
+		}
+		mWhatHeads[slot] = entry;
+	}
+
+	/**
+	 * schedule the target message. the pending messages of the same 'what' are replaced by it in place.
+	 * the periodic messages are never replaced.
+	 * @param msg the message
+	 * @param policy the policy
+	 * @param scope the scope
+	 * @param states the target states. -1 means all.
+	 * @param wideStates the target wide states. can be null.
+	 * @param coalesce the coalesce type. see {@linkplain IController#COALESCE_REPLACE} and etc.
+	 * @return true if replaced.
+	 */
+	public boolean coalesce(Message msg, byte policy, byte scope, int states, BitSet wideStates, byte coalesce) {
+		final int slot = whatSlot(msg.what, false);
+		// keep the earliest one. and remove the duplicates if any. the periodic messages are never coalesced.
+		Entry keep = null;
+		for (Entry e = slot >= 0 ? mWhatHeads[slot] : null, next; e != null; e = next) {
+			next = e.nextWhat;
+			if (e.msg.periodic != null || e.msg.isTimeout()) {
+				continue;
+			}
+			final Entry removed;
+			if (keep == null) {
+				keep = e;
+				continue;
+			} else if (e.msg.whenNanos - keep.msg.whenNanos < 0) {
+				removed = keep;
+				keep = e;
+			} else {
+				removed = e;
+			}
+			removeFromHeap(removed.heapIndex);
+			unlinkWhat(removed);
+			removed.msg.recycleUnchecked();
+			recycle(removed);
+		}
+		if (keep == null) {
+			schedule(msg, policy, scope, states, wideStates);
+			return false;
+		}
+		msg.whenNanos = coalesceWhen(coalesce, keep.msg.whenNanos, msg.whenNanos);
+		keep.msg.recycleUnchecked();
+		keep.msg = msg;
+		keep.policy = policy;
+		keep.scope = scope;
+		keep.states = states;
+		keep.wideStates = wideStates;
+		keep.seq = mSeq++;
+		// re-key
+		if (!siftUp(keep.heapIndex)) {
+			siftDown(keep.heapIndex);
+		}
+		return true;
+	}
+
+	/**
+	 * get the due time of the coalesced message.
+	 * @param coalesce the coalesce type
+	 * @param oldWhen the due time of pending message
+	 * @param newWhen the due time of new message
+	 * @return the due time of the coalesced message.
+	 */
+	static long coalesceWhen(byte coalesce, long oldWhen, long newWhen) {
+		switch (coalesce) {
+		case IController.COALESCE_REPLACE:
+			return newWhen;
+		case IController.COALESCE_KEEP_EARLIEST:
+			return newWhen - oldWhen < 0 ? newWhen : oldWhen;
+		case IController.COALESCE_KEEP_LATEST:
+			return newWhen - oldWhen > 0 ? newWhen : oldWhen;
+		default:
+			throw new IllegalArgumentException("error coalesce = " + coalesce);
+		}
+	}
+
+	/**
+	 * get the count of scheduled messages.
+	 * @return the count
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * get the first due time of scheduled messages.
+	 * @return the first due time in nanoseconds. or {@linkplain Long#MAX_VALUE} if no message.
+	 */
+	public long peekWhen() {
+		return mSize > 0 ? mHeap[0].msg.whenNanos : Long.MAX_VALUE;
+	}
+
+	/**
+	 * poll the first entry if it is due.
+	 * @param nowNanos the current time of clock in nanoseconds.
+	 * @return the entry which must be recycled by {@linkplain #recycle(Entry)} after use. or null if no due message.
+	 */
+	public Entry pollDue(long nowNanos) {
+		if (mSize == 0 || mHeap[0].msg.whenNanos - nowNanos > 0) {
+			return null;
+		}
+		final Entry entry = mHeap[0];
+		removeFromHeap(0);
+		unlinkWhat(entry);
+		return entry;
+	}
+
+	/**
+	 * recycle the entry which is polled by {@linkplain #pollDue(long)}.
+	 * @param entry the entry
+	 */
+	public void recycle(Entry entry) {
+		entry.reset();
+		if (mPoolSize < MAX_POOL_SIZE) {
+			entry.nextPool = mPool;
+			mPool = entry;
+			mPoolSize++;
+		}
+	}
+
+	public boolean hasMessage(int what) {
+		final int slot = whatSlot(what, false);
+		if (slot >= 0) {
+			for (Entry e = mWhatHeads[slot]; e != null; e = e.nextWhat) {
+				if (!e.msg.isTimeout()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	public boolean hasMessage(Message expect) {
+		final int slot = whatSlot(expect.what, false);
+		if (slot >= 0) {
+			for (Entry e = mWhatHeads[slot]; e != null; e = e.nextWhat) {
+				if (!e.msg.isTimeout() && e.msg.equals(expect)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * remove the all messages of the target 'what'.
+	 * @param what the what
+	 * @return the count of removed messages.
+	 */
+	public int removeMessages(int what) {
+		final int slot = whatSlot(what, false);
+		if (slot < 0) {
+			return 0;
+		}
+		int count = 0;
+		Entry e = mWhatHeads[slot];
+		for (Entry next; e != null; e = next) {
+			next = e.nextWhat;
+			if (!e.msg.isTimeout()) {
+				removeFromHeap(e.heapIndex);
+				unlinkWhat(e);
+				recycle(e);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * remove the all messages which equals the expect message.
+	 * @param expect the expect message
+	 * @return the count of removed messages.
+	 */
+	public int removeMessages(Message expect) {
+		final int slot = whatSlot(expect.what, false);
+		if (slot < 0) {
+			return 0;
+		}
+		int count = 0;
+		Entry e = mWhatHeads[slot];
+		for (Entry next; e != null; e = next) {
+			next = e.nextWhat;
+			if (!e.msg.isTimeout() && e.msg.equals(expect)) {
+				removeFromHeap(e.heapIndex);
+				unlinkWhat(e);
+				recycle(e);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * remove the exact message of the handle and recycle it. this is used by the timeout message of request and the
+	 * cancelled periodic message.
+	 * @param msg the message. which may be already dispatched and reused.
+	 * @param handle the handle of message. see {@linkplain Message#isHandledBy(Object)}.
+	 * @return true if removed.
+	 */
+	public boolean removeExact(Message msg, Object handle) {
+		final int slot = whatSlot(msg.what, false);
+		if (slot < 0) {
+			return false;
+		}
+		for (Entry e = mWhatHeads[slot]; e != null; e = e.nextWhat) {
+			if (e.msg == msg && msg.isHandledBy(handle)) {
+				removeFromHeap(e.heapIndex);
+				unlinkWhat(e);
+				recycle(e);
+				msg.recycleUnchecked();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * clear the all messages.
+	 * @param recycleMessages true to recycle the messages.
+	 */
+	public void clear(boolean recycleMessages) {
+		final Entry[] heap = mHeap;
+		for (int i = 0, size = mSize; i < size; i++) {
+			if (recycleMessages) {
+				heap[i].msg.recycleUnchecked();
+			}
+			recycle(heap[i]);
+			heap[i] = null;
+		}
+		mSize = 0;
+		Arrays.fill(mWhatHeads, null);
+	}
+
+	// ================== heap ======================
+
+	private void removeFromHeap(int index) {
+		final Entry[] heap = mHeap;
+		final Entry removed = heap[index];
+		removed.heapIndex = -1;
+		final int last = --mSize;
+		if (index != last) {
+			final Entry moved = heap[last];
+			heap[index] = moved;
+			moved.heapIndex = index;
+			heap[last] = null;
+			if (!siftUp(index)) {
+				siftDown(index);
+			}
+		} else {
+			heap[last] = null;
+		}
+	}
+
+	/** @return true if the entry moved. */
+	private boolean siftUp(int index) {
+		final Entry[] heap = mHeap;
+		final Entry entry = heap[index];
+		final int start = index;
+		while (index > 0) {
+			final int parent = (index - 1) >>> 1;
+			final Entry p = heap[parent];
+			if (!less(entry, p)) {
+				break;
+			}
+			heap[index] = p;
+			p.heapIndex = index;
+			index = parent;
+		}
+		heap[index] = entry;
+		entry.heapIndex = index;
+		return index != start;
+	}
+
+	private void siftDown(int index) {
+		final Entry[] heap = mHeap;
+		final Entry entry = heap[index];
+		final int half = mSize >>> 1;
+		while (index < half) {
+			int child = (index << 1) + 1;
+			final int right = child + 1;
+			if (right < mSize && less(heap[right], heap[child])) {
+				child = right;
+			}
+			if (!less(heap[child], entry)) {
+				break;
+			}
+			heap[index] = heap[child];
+			heap[index].heapIndex = index;
+			index = child;
+		}
+		heap[index] = entry;
+		entry.heapIndex = index;
+	}
+
+	private static boolean less(Entry e1, Entry e2) {
+		// compare by difference. as the nano time may overflow.
+		final long diff = e1.msg.whenNanos - e2.msg.whenNanos;
+		return diff < 0 || (diff == 0 && e1.seq < e2.seq);
+	}
+
+	// ================== what index ======================
+
+	private void unlinkWhat(Entry entry) {
+		if (entry.prevWhat != null) {
+			entry.prevWhat.nextWhat = entry.nextWhat;
+		} else {
+			final int slot = whatSlot(entry.msg.what, false);
+			mWhatHeads[slot] = entry.nextWhat;
+		}
+		if (entry.nextWhat != null) {
+			entry.nextWhat.prevWhat = entry.prevWhat;
+		}
+		entry.prevWhat = null;
+		entry.nextWhat = null;
+	}
+
+	/**
+	 * find the slot of the target what. the key is never removed once added, which is fine as the count of
+	 * 'what' is small.
+	 * @param what the what
+	 * @param create true to create if not exists.
+	 * @return the slot. or -1 if not exists and not create.
+	 */
+	private int whatSlot(int what, boolean create) {
+		int mask = mWhatKeys.length - 1;
+		int i = hash(what) & mask;
+		for (; mWhatUsed[i]; i = (i + 1) & mask) {
+			if (mWhatKeys[i] == what) {
+				return i;
+			}
+		}
+		if (!create) {
+			return -1;
+		}
+		if ((mWhatCount + 1) << 1 > mWhatKeys.length) {
+			growWhatIndex();
+			mask = mWhatKeys.length - 1;
+			i = hash(what) & mask;
+			while (mWhatUsed[i]) {
+				i = (i + 1) & mask;
+			}
+		}
+		mWhatUsed[i] = true;
+		mWhatKeys[i] = what;
+		mWhatCount++;
+		return i;
+	}
+
+	private void growWhatIndex() {
+		final int[] oldKeys = mWhatKeys;
+		final Entry[] oldHeads = mWhatHeads;
+		final boolean[] oldUsed = mWhatUsed;
+		final int capacity = oldKeys.length << 1;
+		final int mask = capacity - 1;
+		mWhatKeys = new int[capacity];
+		mWhatHeads = new Entry[capacity];
+		mWhatUsed = new boolean[capacity];
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldUsed[j]) {
+				int i = hash(oldKeys[j]) & mask;
+				while (mWhatUsed[i]) {
+					i = (i + 1) & mask;
+				}
+				mWhatUsed[i] = true;
+				mWhatKeys[i] = oldKeys[j];
+				mWhatHeads[i] = oldHeads[j];
+			}
+		}
+	}
+
+	private static int hash(int key) {
+		final int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private Entry obtainEntry() {
+		final Entry entry = mPool;
+		if (entry != null) {
+			mPool = entry.nextPool;
+			entry.nextPool = null;
+			mPoolSize--;
+			return entry;
+		}
+		return new Entry();
+	}
+}
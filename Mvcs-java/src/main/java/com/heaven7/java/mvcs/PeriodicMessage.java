@@ -0,0 +1,114 @@
+package com.heaven7.java.mvcs;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * the handle of a periodic message which is dispatched by
+ * {@linkplain IController#dispatchPeriodicMessage(Message, byte, long, long, TimeUnit, byte)}.
+ * the same message and the same scheduler slot are reused for every period, until it is cancelled.
+ * @author heaven7
+ * @since 1.3.0
+ */
+public final class PeriodicMessage {
+
+	private final byte mPeriodType;
+	private final long mPeriodNanos;
+	private volatile boolean mCancelled;
+	private volatile int mCount;
+	/** the controller and the message. which are detached when it is cancelled. */
+	private AbstractController<?, ?> mController;
+	private Message mMsg;
+
+	/*package*/ PeriodicMessage(byte periodType, long periodNanos) {
+		this.mPeriodType = periodType;
+		this.mPeriodNanos = periodNanos;
+	}
+
+	/**
+	 * cancel the periodic message. it will not be dispatched any more, and it is removed from the controller at once.
+	 * if it is dispatching, it is recycled after that. this can be called by any thread.
+	 */
+	public void cancel() {
+		mCancelled = true;
+		final AbstractController<?, ?> controller;
+		final Message msg;
+		synchronized (this) {
+			controller = mController;
+			msg = mMsg;
+			mController = null;
+			mMsg = null;
+		}
+		if (controller != null) {
+			controller.removePeriodicMessage(msg, this);
+		}
+	}
+
+	/**
+	 * indicate the periodic message is cancelled or not.
+	 * @return true if cancelled.
+	 */
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * get the count of dispatched periods.
+	 * @return the dispatch count
+	 */
+	public int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * get the period.
+	 * @param unit the time unit
+	 * @return the period
+	 */
+	public long getPeriod(TimeUnit unit) {
+		return unit.convert(mPeriodNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * get the period type.
+	 * @return the period type. see {@linkplain IController#PERIOD_FIXED_DELAY} and etc.
+	 */
+	public byte getPeriodType() {
+		return mPeriodType;
+	}
+
+	/*package*/ synchronized void attach(AbstractController<?, ?> controller, Message msg) {
+		this.mController = controller;
+		this.mMsg = msg;
+	}
+
+	/*package*/ void onDispatched() {
+		mCount++;
+	}
+
+	/**
+	 * compute the next due time.
+	 * @param prevWhen the previous due time
+	 * @param now the current time of clock, after the message is handled.
+	 * @return the next due time
+	 */
+	/*package*/ long nextWhen(long prevWhen, long now) {
+		final long period = mPeriodNanos;
+		switch (mPeriodType) {
+		case IController.PERIOD_FIXED_DELAY:
+			return now + period;
+
+		case IController.PERIOD_FIXED_RATE_CATCH_UP:
+			// the missed periods are due at once.
+			return prevWhen + period;
+
+		case IController.PERIOD_FIXED_RATE:
+		default:
+			final long next = prevWhen + period;
+			if (next - now > 0) {
+				return next;
+			}
+			// skip the missed periods. keep the phase.
+			return prevWhen + ((now - prevWhen) / period + 1) * period;
+		}
+	}
+}
@@ -0,0 +1,603 @@
+package com.heaven7.java.mvcs;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import com.heaven7.java.mvcs.util.Clock;
+
+/**
+ * the shared timer of delayed messages for many controllers. which is a hierarchical timing wheel keyed by
+ * the due tick. the controller which is attached by {@linkplain AbstractController#setMessageTimer(SharedMessageTimer)}
+ * posts its delayed messages to this timer. and the messages are dispatched to the owner controller only when
+ * they are due by {@linkplain #advance()}. so the idle controllers cost nothing per tick. the due time is measured
+ * by the {@linkplain Clock} of timer, so a {@linkplain com.heaven7.java.mvcs.util.VirtualClock} can fast-forward
+ * the timer in simulation or test.
+ * <p>Usage(the driver thread):</p>
+ * <pre>
+ * for (;;) {
+ *     timer.awaitNextDeadline(maxWait);
+ *     timer.advance();
+ *     //... update controllers if need.
+ * }
+ * </pre>
+ * <p>Note: the messages are dispatched on the thread which calls {@linkplain #advance()}. so it should be the
+ * thread which updates the controllers. and the messages of the same tick are dispatched by post order.</p>
+ * @author heaven7
+ * @since 1.3.0
+ */
+public final class SharedMessageTimer {
+
+	/** the bits of wheel size. */
+	private static final int WHEEL_BITS = 6;
+	private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+	/** the level count of wheels. */
+	private static final int LEVELS = 4;
+	private static final int MAX_POOL_SIZE = 256;
+
+	/**
+	 * the entry of a delayed message.
+	 */
+	static final class Entry {
+		AbstractController<?, ?> owner;
+		Message msg;
+		byte policy;
+		byte scope;
+		/** the target states. -1 means all. */
+		int states = -1;
+		/** the target wide states. */
+		BitSet wideStates;
+		long deadlineTick;
+
+		/** true if it is removed while it is due. which is not dispatched or scheduled again. */
+		boolean removed;
+
+		/** the slot of wheel. -1 means not in wheel. */
+		int level = -1;
+		int slot;
+		Entry prev;
+		Entry next;
+		/** the pending list of owner. also used as the next entry of pool. */
+		Entry ownerPrev;
+		Entry ownerNext;
+	}
+
+	private final Clock mClock;
+	private final long mTickNanos;
+	private final Entry[][] mHeads = new Entry[LEVELS][WHEEL_SIZE];
+	private final Entry[][] mTails = new Entry[LEVELS][WHEEL_SIZE];
+	/** the count of entries in every level. */
+	private final int[] mLevelCounts = new int[LEVELS];
+	private long mCurrentTick;
+	private int mSize;
+	private int mWaiters;
+
+	private Entry mPool;
+	private int mPoolSize;
+	/** the due entries. only used by advance. */
+	private Entry mDueHead;
+	private Entry mDueTail;
+	/** the due entry which is dispatching, and the rest due entries which are linked by next. */
+	private Entry mDispatching;
+
+	/**
+	 * create the shared timer with the monotonic clock and tick duration 1 millisecond.
+	 */
+	public SharedMessageTimer() {
+		this(Clock.monotonic(), 1);
+	}
+
+	/**
+	 * create the shared timer with the monotonic clock.
+	 * @param tickMillis the tick duration in milliseconds. the message is never dispatched before it is due, but
+	 *                   may be dispatched at most a tick later.
+	 */
+	public SharedMessageTimer(long tickMillis) {
+		this(Clock.monotonic(), tickMillis);
+	}
+
+	/**
+	 * create the shared timer.
+	 * @param clock the clock which measures the due time.
+	 * @param tickMillis the tick duration in milliseconds. the message is never dispatched before it is due, but
+	 *                   may be dispatched at most a tick later.
+	 * @since 1.3.0
+	 */
+	public SharedMessageTimer(Clock clock, long tickMillis) {
+		if (clock == null) {
+			throw new IllegalArgumentException("clock can't be null.");
+		}
+		if (tickMillis <= 0) {
+			throw new IllegalArgumentException("tickMillis must > 0");
+		}
+		this.mClock = clock;
+		this.mTickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.mCurrentTick = clock.nanoTime() / mTickNanos;
+	}
+
+	/**
+	 * get the clock which measures the due time.
+	 * @return the clock
+	 */
+	public Clock getClock() {
+		return mClock;
+	}
+
+	/**
+	 * get the tick duration in milliseconds.
+	 * @return the tick duration
+	 */
+	public long getTickMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(mTickNanos);
+	}
+
+	/**
+	 * get the count of pending messages.
+	 * @return the count of pending messages.
+	 */
+	public synchronized int size() {
+		return mSize;
+	}
+
+	/**
+	 * dispatch the all due messages to their owner controllers by the current time of clock.
+	 * @return the count of dispatched messages.
+	 */
+	public int advance() {
+		return advance(mClock.nanoTime());
+	}
+
+	/**
+	 * dispatch the all due messages to their owner controllers.
+	 * @param nowNanos the current time of clock in nanoseconds.
+	 * @return the count of dispatched messages.
+	 */
+	public int advance(long nowNanos) {
+		Entry due;
+		synchronized (this) {
+			final long target = nowNanos / mTickNanos;
+			if (mSize == 0) {
+				if (target > mCurrentTick) {
+					mCurrentTick = target;
+				}
+				return 0;
+			}
+			while (mCurrentTick < target) {
+				if (mHeads[0][(int) ((mCurrentTick + 1) & WHEEL_MASK)] == null) {
+					// skip the empty ticks. jump to the next due slot or the next cascade of a non-empty slot.
+					final long next = Math.min(nextDeadlineTick(), target);
+					if (next - 1 > mCurrentTick) {
+						mCurrentTick = next - 1;
+					}
+				}
+				final long tick = ++mCurrentTick;
+				// cascade the higher levels. from the highest level to the lowest.
+				int maxLevel = 0;
+				while (maxLevel < LEVELS - 1 && ((tick >>> (WHEEL_BITS * maxLevel)) & WHEEL_MASK) == 0) {
+					maxLevel++;
+				}
+				for (int level = maxLevel; level >= 1; level--) {
+					cascade(level, (int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK));
+				}
+				collectDue(tick);
+				if (mSize == 0 && mCurrentTick < target) {
+					mCurrentTick = target;
+				}
+			}
+			due = mDueHead;
+			mDueHead = mDueTail = null;
+			mDispatching = due;
+		}
+		int count = 0;
+		for (;;) {
+			synchronized (this) {
+				// skip the due entries which are removed before they are dispatched. checked in lock, so a
+				// removed entry is never dispatched.
+				while (due != null && due.removed) {
+					final Entry removed = due;
+					due = removed.next;
+					removed.msg.recycleUnchecked();
+					recycle(removed);
+				}
+				mDispatching = due;
+				if (due == null) {
+					break;
+				}
+			}
+			final boolean reschedule = due.owner.dispatchScheduledMessage(due.states, due.wideStates, due.msg,
+					due.policy, due.scope);
+			count++;
+			synchronized (this) {
+				final Entry next = due.next;
+				if (reschedule) {
+					if (due.removed) {
+						// the periodic message which is removed while dispatching.
+						due.msg.recycleUnchecked();
+						recycle(due);
+					} else {
+						// reuse the entry for the next period.
+						enqueue(due);
+					}
+				} else {
+					recycle(due);
+				}
+				due = next;
+				mDispatching = next;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * get the clock time of next deadline. this may be earlier than the real due time of the next message.
+	 * it's fine to call {@linkplain #advance(long)} at that time.
+	 * @return the clock time of next deadline in nanoseconds. or {@linkplain Long#MAX_VALUE} if no pending message.
+	 */
+	public synchronized long getNextDeadline() {
+		final long tick = nextDeadlineTick();
+		return tick == Long.MAX_VALUE ? tick : tick * mTickNanos;
+	}
+
+	/**
+	 * wait until next deadline or a new message is posted.
+	 * @param maxWaitMillis the max wait time in milliseconds.
+	 * @throws InterruptedException if interrupted.
+	 */
+	public synchronized void awaitNextDeadline(long maxWaitMillis) throws InterruptedException {
+		final long tick = nextDeadlineTick();
+		// ceil. never wake up before the deadline.
+		long wait = tick == Long.MAX_VALUE ? maxWaitMillis
+				: Math.min(maxWaitMillis, (tick * mTickNanos - mClock.nanoTime() + 999999) / 1000000);
+		if (wait > 0) {
+			mWaiters++;
+			try {
+				wait(wait);
+			} finally {
+				mWaiters--;
+			}
+		}
+	}
+
+	// ===================== called by controller ===========================
+
+	/*package*/ synchronized void schedule(AbstractController<?, ?> owner, Message msg, byte policy, byte scope,
+			int states, BitSet wideStates) {
+		final Entry entry = obtainEntry();
+		entry.owner = owner;
+		entry.msg = msg;
+		entry.policy = policy;
+		entry.scope = scope;
+		entry.states = states;
+		entry.wideStates = wideStates;
+		enqueue(entry);
+	}
+
+	/**
+	 * insert the entry to wheel and link it to owner.
+	 * @param entry the entry whose owner and message are set.
+	 */
+	private void enqueue(Entry entry) {
+		final AbstractController<?, ?> owner = entry.owner;
+		// ceil. never dispatch before it is due.
+		entry.deadlineTick = (entry.msg.whenNanos + mTickNanos - 1) / mTickNanos;
+		// the current tick is already processed.
+		insert(entry, mCurrentTick + 1);
+		mSize++;
+		// link to owner
+		final Entry head = owner.mTimerEntries;
+		entry.ownerPrev = null;
+		entry.ownerNext = head;
+		if (head != null) {
+			head.ownerPrev = entry;
+		}
+		owner.mTimerEntries = entry;
+		if (mWaiters > 0) {
+			notifyAll();
+		}
+	}
+
+	/*package*/ synchronized boolean coalesce(AbstractController<?, ?> owner, Message msg, byte policy, byte scope,
+			int states, BitSet wideStates, byte coalesce) {
+		// keep the earliest one. and remove the duplicates if any. the periodic messages are never coalesced.
+		Entry keep = null;
+		for (Entry e = owner.mTimerEntries, next; e != null; e = next) {
+			next = e.ownerNext;
+			if (e.msg.what != msg.what || e.msg.periodic != null || e.msg.isTimeout()) {
+				continue;
+			}
+			final Entry removed;
+			if (keep == null) {
+				keep = e;
+				continue;
+			} else if (e.msg.whenNanos - keep.msg.whenNanos < 0) {
+				removed = keep;
+				keep = e;
+			} else {
+				removed = e;
+			}
+			removed.msg.recycleUnchecked();
+			remove(removed);
+		}
+		if (keep == null) {
+			schedule(owner, msg, policy, scope, states, wideStates);
+			return false;
+		}
+		msg.whenNanos = MessageScheduler.coalesceWhen(coalesce, keep.msg.whenNanos, msg.whenNanos);
+		keep.msg.recycleUnchecked();
+		keep.msg = msg;
+		keep.policy = policy;
+		keep.scope = scope;
+		keep.states = states;
+		keep.wideStates = wideStates;
+		// re-key. only the slot of wheel is changed, the entry is still linked to the owner.
+		unlinkSlot(keep);
+		keep.deadlineTick = (msg.whenNanos + mTickNanos - 1) / mTickNanos;
+		insert(keep, mCurrentTick + 1);
+		if (mWaiters > 0) {
+			notifyAll();
+		}
+		return true;
+	}
+
+	/*package*/ synchronized boolean hasMessage(AbstractController<?, ?> owner, int what) {
+		for (Entry e = owner.mTimerEntries; e != null; e = e.ownerNext) {
+			if (e.msg.what == what && !e.msg.isTimeout()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*package*/ synchronized boolean hasMessage(AbstractController<?, ?> owner, Message expect) {
+		for (Entry e = owner.mTimerEntries; e != null; e = e.ownerNext) {
+			if (!e.msg.isTimeout() && e.msg.equals(expect)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*package*/ synchronized void removeMessages(AbstractController<?, ?> owner, int what) {
+		for (Entry e = owner.mTimerEntries, next; e != null; e = next) {
+			next = e.ownerNext;
+			if (e.msg.what == what && !e.msg.isTimeout()) {
+				remove(e);
+			}
+		}
+		for (Entry e = mDispatching; e != null; e = e.next) {
+			if (e.owner == owner && e.msg.what == what && !e.msg.isTimeout()) {
+				e.removed = true;
+			}
+		}
+	}
+
+	/*package*/ synchronized void removeMessages(AbstractController<?, ?> owner, Message expect) {
+		for (Entry e = owner.mTimerEntries, next; e != null; e = next) {
+			next = e.ownerNext;
+			if (!e.msg.isTimeout() && e.msg.equals(expect)) {
+				remove(e);
+			}
+		}
+		for (Entry e = mDispatching; e != null; e = e.next) {
+			if (e.owner == owner && !e.msg.isTimeout() && e.msg.equals(expect)) {
+				e.removed = true;
+			}
+		}
+	}
+
+	/**
+	 * remove the exact message of the handle. the removed message is recycled.
+	 * @param owner the owner controller
+	 * @param msg the message. which may be already dispatched and reused.
+	 * @param handle the handle of message. see {@linkplain Message#isHandledBy(Object)}.
+	 * @return true if removed.
+	 */
+	/*package*/ synchronized boolean removeExact(AbstractController<?, ?> owner, Message msg, Object handle) {
+		if (!msg.isHandledBy(handle)) {
+			return false;
+		}
+		for (Entry e = owner.mTimerEntries; e != null; e = e.ownerNext) {
+			if (e.msg == msg) {
+				msg.recycleUnchecked();
+				remove(e);
+				return true;
+			}
+		}
+		// the due one. it is skipped and recycled if it isn't dispatched yet.
+		for (Entry e = mDispatching; e != null; e = e.next) {
+			if (e.msg == msg) {
+				e.removed = true;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * clear the messages of the owner. the due messages which are not dispatched yet are skipped and always
+	 * recycled by {@linkplain #advance(long)}.
+	 * @param owner the owner controller
+	 * @param recycleMessages true to recycle the messages in wheel too.
+	 */
+	/*package*/ synchronized void clearMessages(AbstractController<?, ?> owner, boolean recycleMessages) {
+		for (Entry e = owner.mTimerEntries, next; e != null; e = next) {
+			next = e.ownerNext;
+			if (recycleMessages) {
+				e.msg.recycleUnchecked();
+			}
+			remove(e);
+		}
+		// the due entries. the dispatching one is dispatched, and isn't scheduled again. the rest are skipped.
+		for (Entry e = mDispatching; e != null; e = e.next) {
+			if (e.owner == owner) {
+				e.removed = true;
+			}
+		}
+	}
+
+	// ===================== wheel ===========================
+
+	/**
+	 * insert the entry to the wheel.
+	 * @param entry the entry
+	 * @param minTick the min tick of slot. the entry which is already due is placed at this tick.
+	 */
+	private void insert(Entry entry, long minTick) {
+		final long delta = entry.deadlineTick - mCurrentTick;
+		long slotTick = Math.max(entry.deadlineTick, minTick);
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= (1L << (WHEEL_BITS * (level + 1)))) {
+			level++;
+		}
+		if (delta >= (1L << (WHEEL_BITS * LEVELS))) {
+			// too far. place it at the farthest slot, it will be re-inserted on cascade.
+			slotTick = mCurrentTick + (1L << (WHEEL_BITS * LEVELS)) - 1;
+		}
+		final int slot = (int) ((slotTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+		entry.level = level;
+		entry.slot = slot;
+		entry.next = null;
+		entry.prev = mTails[level][slot];
+		if (entry.prev != null) {
+			entry.prev.next = entry;
+		} else {
+			mHeads[level][slot] = entry;
+		}
+		mTails[level][slot] = entry;
+		mLevelCounts[level]++;
+	}
+
+	private void unlinkSlot(Entry entry) {
+		final int level = entry.level;
+		final int slot = entry.slot;
+		if (entry.prev != null) {
+			entry.prev.next = entry.next;
+		} else {
+			mHeads[level][slot] = entry.next;
+		}
+		if (entry.next != null) {
+			entry.next.prev = entry.prev;
+		} else {
+			mTails[level][slot] = entry.prev;
+		}
+		entry.prev = entry.next = null;
+		entry.level = -1;
+		mLevelCounts[level]--;
+	}
+
+	private void unlinkOwner(Entry entry) {
+		if (entry.ownerPrev != null) {
+			entry.ownerPrev.ownerNext = entry.ownerNext;
+		} else {
+			entry.owner.mTimerEntries = entry.ownerNext;
+		}
+		if (entry.ownerNext != null) {
+			entry.ownerNext.ownerPrev = entry.ownerPrev;
+		}
+		entry.ownerPrev = entry.ownerNext = null;
+	}
+
+	private void remove(Entry entry) {
+		unlinkSlot(entry);
+		unlinkOwner(entry);
+		mSize--;
+		recycle(entry);
+	}
+
+	private void cascade(int level, int slot) {
+		Entry e = mHeads[level][slot];
+		if (e == null) {
+			return;
+		}
+		mHeads[level][slot] = mTails[level][slot] = null;
+		for (Entry next; e != null; e = next) {
+			next = e.next;
+			mLevelCounts[level]--;
+			// the current tick is being processed.
+			insert(e, mCurrentTick);
+		}
+	}
+
+	private void collectDue(long tick) {
+		final int slot = (int) (tick & WHEEL_MASK);
+		Entry e = mHeads[0][slot];
+		for (Entry next; e != null; e = next) {
+			next = e.next;
+			if (e.deadlineTick <= tick) {
+				unlinkSlot(e);
+				unlinkOwner(e);
+				mSize--;
+				// append to due list
+				e.prev = mDueTail;
+				if (mDueTail != null) {
+					mDueTail.next = e;
+				} else {
+					mDueHead = e;
+				}
+				mDueTail = e;
+			}
+		}
+	}
+
+	private long nextDeadlineTick() {
+		if (mSize == 0) {
+			return Long.MAX_VALUE;
+		}
+		final long current = mCurrentTick;
+		long result = Long.MAX_VALUE;
+		// level 0 is exact.
+		if (mLevelCounts[0] > 0) {
+			for (int i = 1; i <= WHEEL_SIZE; i++) {
+				final Entry head = mHeads[0][(int) ((current + i) & WHEEL_MASK)];
+				if (head != null) {
+					result = Math.max(head.deadlineTick, current + 1);
+					break;
+				}
+			}
+		}
+		// the higher levels: the start tick of the first non-empty slot.
+		for (int level = 1; level < LEVELS; level++) {
+			if (mLevelCounts[level] == 0) {
+				continue;
+			}
+			final int shift = WHEEL_BITS * level;
+			final long base = current >>> shift;
+			for (int i = 1; i <= WHEEL_SIZE; i++) {
+				if (mHeads[level][(int) ((base + i) & WHEEL_MASK)] != null) {
+					result = Math.min(result, (base + i) << shift);
+					break;
+				}
+			}
+		}
+		return result;
+	}
+
+	private Entry obtainEntry() {
+		final Entry entry = mPool;
+		if (entry != null) {
+			mPool = entry.ownerNext;
+			entry.ownerNext = null;
+			mPoolSize--;
+			return entry;
+		}
+		return new Entry();
+	}
+
+	private void recycle(Entry entry) {
+		entry.owner = null;
+		entry.msg = null;
+		entry.wideStates = null;
+		entry.states = -1;
+		entry.prev = entry.next = null;
+		entry.ownerPrev = null;
+		entry.level = -1;
+		entry.removed = false;
+		if (mPoolSize < MAX_POOL_SIZE) {
+			entry.ownerNext = mPool;
+			mPool = entry;
+			mPoolSize++;
+		} else {
+			entry.ownerNext = null;
+		}
+	}
+}
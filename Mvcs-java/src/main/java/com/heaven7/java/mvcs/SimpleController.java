@@ -1,75 +1,112 @@
 package com.heaven7.java.mvcs;
 
-import static com.heaven7.java.mvcs.util.MathUtil.max2K;
-
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
-import com.heaven7.java.base.util.SearchUtils;
-import com.heaven7.java.base.util.SparseArray;
+import com.heaven7.java.mvcs.util.BitFlags;
+import com.heaven7.java.mvcs.util.MutexStateException;
 
 /**
- * a simple implements of {@linkplain IController}
+ * a simple implements of {@linkplain IController}, which support 31 states at most.
+ * if you need more states please use {@linkplain LongController} or {@linkplain BitSetController}.
  * 
  * @param <S>
  *            the state type .
  * @param <P>
  *            the state parameter type
  * @see IController
+ * @see LongController
+ * @see BitSetController
  * @see AbstractState
  * @see ParameterMerger
  */
-public class SimpleController<S extends AbstractState<P>, P> implements IController<S, P> {
+public class SimpleController<S extends AbstractState<P>, P> extends AbstractController<S, P> {
+
+	/** the count of busy spins, then the count of yields, before parking to wait for a transition. */
+	private static final int SPIN_WAITS = 64;
+	private static final int YIELD_WAITS = 64;
+	/** the park time per wait after spins and yields. */
+	private static final long PARK_NANOS = 50000;
+
+	/** the results of claimTransition. */
+	private static final int CLAIM_FAILED = 0;
+	private static final int CLAIM_NESTED = 1;
+	private static final int CLAIM_HELD = 2;
 
 	/** current state group/ */
 	private final StateGroup<S, P> mGroup;
 	private final StateGroup.Callback<S, P> mCallback;
 	private StateGroup<S, P> mGlobalGroup;
 
-	private final SparseArray<S> mStateMap;
-	private StateFactory<S, P> mFactory;
-	private ParameterMerger<P> mMerger;
-	/** true to enable state cache */
-	private boolean mEnableStateCache;
+	/** the state table. indexed by the bit position of state flag. */
+	private final StateTable<S> mStateTable;
+	/** the routing index of messages. */
+	private final MessageRouter mMessageRouter = new MessageRouter();
 
 	/**
 	 * the history state stack.
 	 */
-	private LinkedList<StateNode> mStateStack;
-	/** indicate the state history is enabled or not. */
-	private boolean mStateHistoryEnabled;
-
-	/** the locked event keys */
-	private ArrayList<Integer> mLockEvents;
-	/** the max size of state stack/history */
-	private int mMaxStackSize = 10;
-
-	private P mShareParam;
-	/** the owner of this controller or states. */
-	private Object mOwner;
-
-	/** mutex state group 1 */
-	private int[] mMutexStates1;
-	/** mutex state group 2 */
-	private int[] mMutexStates2;
+	private final StateStack<StateNode> mStateStack = new StateStack<StateNode>();
+
+	/** the mutex masks of groups which added by {@linkplain #addMutexState(int[])}. index is bit position of state. */
+	private int[] mGroupMutexMasks;
+	/** the mutex masks which set by {@linkplain #setMutexState(int[], int[])}. index is bit position of state. */
+	private int[] mPairMutexMasks;
 	/**
-	 * the mutex groups(key is the sum of states, value is group (indicate any
-	 * one is mutex with each other).)
+	 * the compiled mutex masks(union of group and pair masks). index is bit position of state.
+	 * the mask of a state never contains the state itself.
 	 */
-	private SparseArray<int[]> mMutexMap;
-
-	/** the transaction */
-	private StateTransactionImpl mTransaction;
-	/** the delay messages. */
-	private List<MessageInfo> mDelayMessages;
-
-	/** temp states */
-	private List<S> mTempStates;
-	/** the team mediator, lazy load. */
-	private TeamMediator<P> mTeamMediator;
+	private final int[] mMutexMasks = new int[32];
+
+	/** the snapshot of active states for update: global states then current states. both are ascending. */
+	private AbstractState<?>[] mActiveSnapshot = new AbstractState<?>[4];
+	/** the count of states in the snapshot. */
+	private int mActiveCount;
+	/** the global/current state flags and the modify count of state table which the snapshot is built by. */
+	private int mSnapshotGlobal;
+	private int mSnapshotCurrent;
+	private int mSnapshotModCount = -1;
+	/** indicate the snapshot is iterating by update or not. */
+	private boolean mUpdating;
+
+	/** the published snapshot of state flags. */
+	private volatile StateSnapshot mStateSnapshot = StateSnapshot.EMPTY;
+	/**
+	 * the versioned state word: the high 32 bits are the version, and the low 32 bits are the current state flags.
+	 * the version is odd while a transition is running. so the transitions are claimed by CAS on it, and the odd
+	 * word works as the lock of transitions.
+	 */
+	private final AtomicLong mStateWord = new AtomicLong();
+	/** the thread which runs the current transition. */
+	private Thread mTransitionOwner;
+	/** the depth of nested transitions. the snapshot is published when the outermost transition ends. */
+	private int mTransitionDepth;
+	/** true if the word is held by {@linkplain #claimTransition(int, byte, byte)}. which spans the inner transitions. */
+	private boolean mClaimHeld;
+
+	/** true if the transitions which are requested in callbacks are deferred. */
+	private boolean mRunToCompletion;
+	/** the depth of dispatching messages and updating states. and the thread which runs them. */
+	private int mCallbackDepth;
+	private Thread mCallbackThread;
+	/**
+	 * the folded deferred transitions. like the batch of {@linkplain StateTransaction}: the target states are
+	 * '(states & keep) | add'. the params are folded per scope without the share param, which is merged once when
+	 * they are applied.
+	 */
+	private boolean mDeferred;
+	private int mDeferredCurrentKeep = -1;
+	private int mDeferredCurrentAdd;
+	private int mDeferredGlobalKeep = -1;
+	private int mDeferredGlobalAdd;
+	private P mDeferredCurrentParam;
+	private P mDeferredGlobalParam;
+	/** true if the deferred transitions are applying. */
+	private boolean mDraining;
 
 	private class StateNode {
 		int states;
@@ -92,45 +129,39 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 	}
 
 	public SimpleController() {
-		this.mStateMap = new SparseArray<S>();
+		this.mStateTable = new StateTable<S>(32, false);
 		this.mCallback = new StateGroup.Callback<S, P>() {
 			@Override
 			public ParameterMerger<P> getMerger() {
-				return mMerger;
+				return getParameterMerger();
 			}
 
 			@Override
 			public StateFactory<S, P> getStateFactory() {
-				return mFactory;
+				return SimpleController.this.getStateFactory();
 			}
 
 			@Override
-			public SparseArray<S> getStateMap() {
-				return mStateMap;
+			public StateTable<S> getStateTable() {
+				return mStateTable;
 			}
 
 			@Override
-			public List<S> ensureAndGetTempList() {
-				if (mTempStates == null) {
-					mTempStates = new ArrayList<>(8);
-				}
-				return mTempStates;
+			public int getMutexMask(int singleState) {
+				return SimpleController.this.getMutexMask(singleState);
+			}
+
+			@Override
+			public MessageRouter getMessageRouter() {
+				return mMessageRouter;
 			}
 		};
 		this.mGroup = new StateGroup<S, P>(this, mCallback);
 	}
 
 	private void addHistory(int states, P extra) {
-		if (isStateStackEnable() && mStateStack.size() < mMaxStackSize) {
-			mStateStack.offerLast(new StateNode(states, extra));
-		}
-	}
-
-	private P mergeShareParam(P param) {
-		if (param != null) {
-			return mMerger.merge(mShareParam, param);
-		} else {
-			return mShareParam;
+		if (mStateStack.canPush()) {
+			mStateStack.push(new StateNode(states, extra));
 		}
 	}
 
@@ -139,128 +170,123 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 		if (groupState == null || groupState.length == 0) {
 			throw new IllegalArgumentException();
 		}
-		if (mMutexMap == null) {
-			mMutexMap = new SparseArray<int[]>(4);
-		}
-		int key = 0;
-		for (int s : groupState) {
-			key |= s;
-		}
-		final int[] val = mMutexMap.get(key);
-		if (val == null) {
-			mMutexMap.put(key, groupState);
+		if (mGroupMutexMasks == null) {
+			mGroupMutexMasks = new int[32];
 		}
+		final int group = toMask(groupState);
+		addMutexMasks(mGroupMutexMasks, group, group);
+		compileMutexMasks();
 	}
 
 	@Override
 	public final void setMutexState(int[] groupState1, int[] groupState2) {
-		this.mMutexStates1 = groupState1;
-		this.mMutexStates2 = groupState2;
+		if (groupState1 == null || groupState2 == null) {
+			mPairMutexMasks = null;
+		} else {
+			if (mPairMutexMasks == null) {
+				mPairMutexMasks = new int[32];
+			} else {
+				Arrays.fill(mPairMutexMasks, 0);
+			}
+			final int group1 = toMask(groupState1);
+			final int group2 = toMask(groupState2);
+			addMutexMasks(mPairMutexMasks, group1, group2);
+			addMutexMasks(mPairMutexMasks, group2, group1);
+		}
+		compileMutexMasks();
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>Note: the mutex states are the union of all mutex declarations of the main state.
+	 * and the main state itself is excluded.</p>
+	 */
 	@Override
 	public final int[] getMutexState(int mainState) {
-		if (mMutexStates1 != null && mMutexStates1.length > 0) {
-			for (int state : mMutexStates1) {
-				if (state == mainState) {
-					return mMutexStates2;
-				}
-			}
-		}
-		if (mMutexStates2 != null && mMutexStates2.length > 0) {
-			for (int state : mMutexStates2) {
-				if (state == mainState) {
-					return mMutexStates1;
-				}
-			}
+		final int mask = getMutexMask(mainState);
+		if (mask == 0) {
+			return null;
 		}
-		final SparseArray<int[]> mMutexMap = this.mMutexMap;
-		if (mMutexMap != null) {
-			final int size = mMutexMap.size();
-			for (int i = size - 1; i >= 0; i--) {
-				if ((mMutexMap.keyAt(i) & mainState) != 0) {
-					return mMutexMap.valueAt(i);
-				}
-			}
+		final int[] states = new int[BitFlags.count(mask)];
+		int i = 0;
+		for (int flags = mask, flag; flags != 0; flags ^= flag) {
+			flag = BitFlags.lowest(flags);
+			states[i++] = flag;
 		}
-		return null;
+		return states;
 	}
 
-	@Override
-	public final Object getOwner() {
-		return mOwner;
+	/**
+	 * get the mutex mask of the target single state.
+	 * @param singleState the single state
+	 * @return the mutex mask. 0 if not have mutex state.
+	 */
+	/*package*/ final int getMutexMask(int singleState) {
+		return singleState != 0 && BitFlags.isSingle(singleState)
+				? mMutexMasks[BitFlags.indexOf(singleState)] : 0;
 	}
 
-	@Override
-	public final void setOwner(Object owner) {
-		if (owner == null) {
-			throw new NullPointerException();
+	private static int toMask(int[] states) {
+		int mask = 0;
+		for (int s : states) {
+			mask |= s;
 		}
-		this.mOwner = owner;
-	}
-
-	@Override
-	public final void setShareStateParam(P param) {
-		this.mShareParam = param;
-	}
-
-	@Override
-	public final P getShareStateParam() {
-		return mShareParam;
+		return mask;
 	}
 
-	@Override
-	public final void setStateCacheEnabled(boolean enable) {
-		if (mEnableStateCache != enable) {
-			mEnableStateCache = enable;
+	/** let the every state of mainStates mutex with the mutexStates. */
+	private static void addMutexMasks(int[] masks, int mainStates, int mutexStates) {
+		for (int flags = mainStates, flag; flags != 0; flags ^= flag) {
+			flag = BitFlags.lowest(flags);
+			masks[BitFlags.indexOf(flag)] |= mutexStates & ~flag;
 		}
 	}
 
-	@Override
-	public final boolean isStateCacheEnabled() {
-		return mEnableStateCache;
+	private void compileMutexMasks() {
+		final int[] groups = mGroupMutexMasks;
+		final int[] pairs = mPairMutexMasks;
+		final int[] masks = mMutexMasks;
+		for (int i = masks.length - 1; i >= 0; i--) {
+			masks[i] = (groups != null ? groups[i] : 0) | (pairs != null ? pairs[i] : 0);
+		}
 	}
 
 	@Override
 	public final void destroyStateCache() {
-		if (mGlobalGroup != null) {
-			mGlobalGroup.destroyStateCache();
+		beginTransition();
+		try {
+			if (mGlobalGroup != null) {
+				mGlobalGroup.destroyStateCache();
+			}
+			mGroup.destroyStateCache();
+		} finally {
+			endTransition();
 		}
-		mGroup.destroyStateCache();
 	}
 
 	@Override
 	public final void clearStateStack() {
-		if (mStateStack != null) {
-			mStateStack.clear();
-		}
+		mStateStack.clear();
 	}
 
 	@Override
 	public final void setMaxStateStackSize(int max) {
-		this.mMaxStackSize = max;
+		mStateStack.setMaxSize(max);
 	}
 
 	@Override
 	public final int getMaxStateStackSize() {
-		return mMaxStackSize;
+		return mStateStack.getMaxSize();
 	}
 
 	@Override
 	public final boolean isStateStackEnable() {
-		return mStateHistoryEnabled;
+		return mStateStack.isEnabled();
 	}
 
 	@Override
 	public final void setStateStackEnable(boolean enable) {
-		mStateHistoryEnabled = enable;
-		if (enable) {
-			if (mStateStack == null) {
-				mStateStack = new LinkedList<StateNode>();
-			}
-		} else {
-			mStateStack.clear();
-		}
+		mStateStack.setEnabled(enable);
 	}
 
 	@Override
@@ -274,12 +300,20 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 	@Override
 	public final boolean addState(@StateFlags int states, P extra) {
 		checkMemberState();
-		extra = mergeShareParam(extra);
-		if (mGroup.addState(states, extra)) {
-			addHistory(mGroup.getStateFlags(), extra);
+		if (states > 0 && deferTransition(-1, states, -1, 0, extra, null)) {
 			return true;
 		}
-		return false;
+		extra = mergeShareParam(extra);
+		beginTransition();
+		try {
+			if (mGroup.addState(states, extra)) {
+				addHistory(mGroup.getStateFlags(), extra);
+				return true;
+			}
+			return false;
+		} finally {
+			endTransition();
+		}
 	}
 
 	@Override
@@ -290,12 +324,20 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 	@Override
 	public final boolean removeState(@StateFlags int states, P param) {
 		checkMemberState();
-		param = mergeShareParam(param);
-		if (mGroup.removeState(states, param)) {
-			addHistory(mGroup.getStateFlags(), param);
+		if (states > 0 && deferTransition(~states, 0, -1, 0, param, null)) {
 			return true;
 		}
-		return false;
+		param = mergeShareParam(param);
+		beginTransition();
+		try {
+			if (mGroup.removeState(states, param)) {
+				addHistory(mGroup.getStateFlags(), param);
+				return true;
+			}
+			return false;
+		} finally {
+			endTransition();
+		}
 	}
 
 	@Override
@@ -311,9 +353,17 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 	@Override
 	public final void clearState(P param) {
 		checkMemberState();
+		if (deferTransition(0, 0, -1, 0, param, null)) {
+			return;
+		}
 		param = mergeShareParam(param);
-		if (mGroup.clearState(param)) {
-			addHistory(mGroup.getStateFlags(), param);
+		beginTransition();
+		try {
+			if (mGroup.clearState(param)) {
+				addHistory(mGroup.getStateFlags(), param);
+			}
+		} finally {
+			endTransition();
 		}
 	}
 
@@ -325,12 +375,20 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 	@Override
 	public final boolean setState(@StateFlags int newStates, P extra) {
 		checkMemberState();
-		extra = mergeShareParam(extra);
-		if (mGroup.setStates(newStates, extra)) {
-			addHistory(mGroup.getStateFlags(), extra);
+		if (newStates > 0 && deferTransition(0, newStates, -1, 0, extra, null)) {
 			return true;
 		}
-		return false;
+		extra = mergeShareParam(extra);
+		beginTransition();
+		try {
+			if (mGroup.setStates(newStates, extra)) {
+				addHistory(mGroup.getStateFlags(), extra);
+				return true;
+			}
+			return false;
+		} finally {
+			endTransition();
+		}
 	}
 
 	@Override
@@ -339,15 +397,24 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 			throw new IllegalStateException("you must enable state stack b" + "y calling setStateStackEnable() first.");
 		}
 		checkMemberState();
-		StateNode node = mStateStack.pollLast();
+		StateNode node = mStateStack.pop();
 		if (node == null) {
 			return false;
 		}
 		final int stateFlags = mGroup.getStateFlags();
 		for (; node.states == stateFlags;) {
-			node = mStateStack.pollLast();
+			node = mStateStack.pop();
+		}
+		// the share param is merged when the deferred one is applied.
+		if (deferTransition(0, node.states, -1, 0, node.param, null)) {
+			return true;
+		}
+		beginTransition();
+		try {
+			return mGroup.setStates(node.states, node.getParam());
+		} finally {
+			endTransition();
 		}
-		return mGroup.setStates(node.states, node.getParam());
 	}
 
 	@Override
@@ -357,187 +424,456 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 
 	@Override
 	public final void setGlobalState(@StateFlags int states, P extra) {
+		if (states > 0 && deferTransition(-1, 0, 0, states, null, extra)) {
+			return;
+		}
 		if (mGlobalGroup == null) {
 			mGlobalGroup = new StateGroup<S, P>(this, mCallback);
 		}
-		mGlobalGroup.setStates(states, extra);
+		beginTransition();
+		try {
+			mGlobalGroup.setStates(states, extra);
+		} finally {
+			endTransition();
+		}
 	}
 
+	/**
+	 * apply the batch as one transition: the current states then the global states. every state is entered, exited
+	 * or reentered at most once, and only one history entry is added.
+	 */
 	@Override
-	public final int getGlobalStateFlags() {
-		return mGlobalGroup != null ? mGlobalGroup.getStateFlags() : 0;
+	/*package*/ final boolean applyBatch(int currentKeep, int currentAdd, int globalKeep, int globalAdd, P param) {
+		checkMemberState();
+		final boolean global = globalKeep != -1 || globalAdd != 0;
+		if (deferTransition(currentKeep, currentAdd, globalKeep, globalAdd, param, global ? param : null)) {
+			return true;
+		}
+		// like setGlobalState, the share param isn't merged to the global states.
+		return applyNetChange(currentKeep, currentAdd, globalKeep, globalAdd, mergeShareParam(param), param);
 	}
 
-	@Override
-	public final List<S> getGlobalStates(List<S> outStates) {
-		return mGlobalGroup != null ? mGlobalGroup.getForegroundStates(outStates) : null;
+	private boolean applyNetChange(int currentKeep, int currentAdd, int globalKeep, int globalAdd, P currentParam,
+			P globalParam) {
+		beginTransition();
+		try {
+			final int current = mGroup.getStateFlags();
+			boolean changed = false;
+			if (mGroup.applyStates((current & currentKeep) | currentAdd, currentAdd, currentParam)) {
+				addHistory(mGroup.getStateFlags(), currentParam);
+				changed = true;
+			}
+			if (globalKeep != -1 || globalAdd != 0) {
+				if (mGlobalGroup == null) {
+					mGlobalGroup = new StateGroup<S, P>(this, mCallback);
+				}
+				final int global = mGlobalGroup.getStateFlags();
+				changed |= mGlobalGroup.applyStates((global & globalKeep) | globalAdd, globalAdd, globalParam);
+			}
+			return changed;
+		} finally {
+			endTransition();
+		}
 	}
 
-	@Override
-	public final List<S> getGlobalStates() {
-		return mGlobalGroup != null ? mGlobalGroup.getForegroundStates(null) : null;
+	/**
+	 * set the run-to-completion mode enabled or not. default is false. if enabled, the transitions which are requested
+	 * in the callbacks(like {@linkplain AbstractState#onEnter()}, {@linkplain AbstractState#onExit()} and
+	 * {@linkplain AbstractState#handleMessage(Message)}) are not applied at once. they are folded into one net change,
+	 * and applied after the outer transition, message dispatching or updating is finished. so the nested transitions
+	 * never recurse, and a state which is removed then added again is just reentered. the deferred requests return
+	 * true. see {@linkplain StateTransaction#appendAdd(int, byte)} for the net change.
+	 * @param enable true to enable
+	 * @since 1.3.0
+	 */
+	public final void setRunToCompletion(boolean enable) {
+		this.mRunToCompletion = enable;
 	}
 
-	@Override
-	public final S getGlobalState() {
-		return mGlobalGroup != null ? mGlobalGroup.getMaxState() : null;
+	/**
+	 * indicate the run-to-completion mode is enabled or not.
+	 * @return true if enabled
+	 * @since 1.3.0
+	 * @see #setRunToCompletion(boolean)
+	 */
+	public final boolean isRunToCompletion() {
+		return mRunToCompletion;
 	}
 
-	@Override
-	public final boolean isInState(@StateFlags int states) {
-		checkMemberState();
-		return mGroup.getStateFlags() == states;
+	/**
+	 * defer the transition if it is requested in a callback of run-to-completion mode.
+	 * @param currentParam the param of current states. without the share param.
+	 * @param globalParam the param of global states.
+	 * @return true if deferred.
+	 */
+	private boolean deferTransition(int currentKeep, int currentAdd, int globalKeep, int globalAdd, P currentParam,
+			P globalParam) {
+		if (!mRunToCompletion || !isInCallback()) {
+			return false;
+		}
+		// the new states exit the deferred states which are mutex with them. like the immediate path, the mutex
+		// states of current are exited when the new states are entered. so the folded change never conflicts.
+		final int currentMutex = getMutexMasks(currentAdd);
+		final int globalMutex = getMutexMasks(globalAdd);
+		if ((currentMutex & currentAdd) != 0 || (globalMutex & globalAdd) != 0) {
+			throw new MutexStateException("check parameter ,find unexpect mutex states, states = ("
+					+ currentAdd + ", " + globalAdd + ")");
+		}
+		// fold: the new one is applied after the deferred ones.
+		mDeferredCurrentAdd = (mDeferredCurrentAdd & currentKeep & ~currentMutex) | currentAdd;
+		mDeferredCurrentKeep &= currentKeep;
+		mDeferredGlobalAdd = (mDeferredGlobalAdd & globalKeep & ~globalMutex) | globalAdd;
+		mDeferredGlobalKeep &= globalKeep;
+		mDeferredCurrentParam = foldParam(mDeferredCurrentParam, currentParam);
+		mDeferredGlobalParam = foldParam(mDeferredGlobalParam, globalParam);
+		mDeferred = true;
+		return true;
 	}
 
-	@Override
-	public final boolean hasState(@StateFlags int state) {
-		checkMemberState();
-		return mGroup.hasState(state);
+	private P foldParam(P deferred, P param) {
+		if (deferred == null) {
+			return param;
+		}
+		return param != null ? getParameterMerger().merge(deferred, param) : deferred;
 	}
 
-	@Override
-	public final List<S> getCurrentStates() {
-		return getCurrentStates(null);
+	/** get the union of mutex masks of the target states. */
+	private int getMutexMasks(int states) {
+		int mask = 0;
+		for (int state; states > 0; states ^= state) {
+			state = BitFlags.lowest(states);
+			mask |= getMutexMask(state);
+		}
+		return mask;
 	}
 
-	@Override
-	public final List<S> getCurrentStates(List<S> outStates) {
-		checkMemberState();
-		return mGroup.getForegroundStates(outStates);
+	private boolean isInCallback() {
+		final Thread current = Thread.currentThread();
+		return (mTransitionOwner == current && mTransitionDepth > 0)
+				|| (mCallbackDepth > 0 && mCallbackThread == current);
 	}
 
-	@Override
-	public final S getCurrentState() {
-		return mGroup.getMaxState();
+	/** apply the deferred transitions. the transitions which are requested by them are applied by the loop. */
+	private void runDeferredTransitions() {
+		mDraining = true;
+		try {
+			while (mDeferred) {
+				final int currentKeep = mDeferredCurrentKeep;
+				final int currentAdd = mDeferredCurrentAdd;
+				final int globalKeep = mDeferredGlobalKeep;
+				final int globalAdd = mDeferredGlobalAdd;
+				// merge the share param once. like the immediate path, the global param isn't merged.
+				final P currentParam = mergeShareParam(mDeferredCurrentParam);
+				final P globalParam = mDeferredGlobalParam;
+				clearDeferredTransitions();
+				applyNetChange(currentKeep, currentAdd, globalKeep, globalAdd, currentParam, globalParam);
+			}
+		} finally {
+			mDraining = false;
+			// the rest requests of a failed one are dropped.
+			clearDeferredTransitions();
+		}
 	}
 
-	@Override
-	public final int getCurrentStateFlags() {
-		return mGroup.getStateFlags();
+	private void clearDeferredTransitions() {
+		mDeferred = false;
+		mDeferredCurrentKeep = -1;
+		mDeferredCurrentAdd = 0;
+		mDeferredGlobalKeep = -1;
+		mDeferredGlobalAdd = 0;
+		mDeferredCurrentParam = null;
+		mDeferredGlobalParam = null;
 	}
 
-	@SuppressWarnings("unchecked")
+	/** begin the callbacks of message dispatching or updating. */
 	@Override
-	public final List<Integer> getLockedEvents() {
-		return mLockEvents != null ? (List<Integer>) mLockEvents.clone() : null;
+	final void beginCallback() {
+		if (mCallbackDepth++ == 0) {
+			mCallbackThread = Thread.currentThread();
+		}
 	}
 
+	/** end the callbacks. the deferred transitions are applied if it is the outermost. */
 	@Override
-	public final boolean lockEvent(int... eventKeys) {
-		if (eventKeys == null || eventKeys.length == 0) {
-			throw new IllegalArgumentException();
+	final void endCallback() {
+		if (--mCallbackDepth != 0) {
+			return;
 		}
-		if (mLockEvents == null) {
-			mLockEvents = new ArrayList<Integer>();
+		mCallbackThread = null;
+		if (mDeferred && !mDraining) {
+			// the deferred transitions are applied when the transition ends.
+			beginTransition();
+			endTransition();
 		}
-		boolean result = true;
-		final ArrayList<Integer> mLockEvents = this.mLockEvents;
-		for (int key : eventKeys) {
-			if (mLockEvents.contains(key)) {
-				result = false;
-			} else {
-				mLockEvents.add(key);
+	}
+
+	/**
+	 * get the snapshot of state flags which is published at the end of the latest transition. this can be called
+	 * by any thread without lock. the flags of the snapshot are always consistent. which never contains the middle
+	 * flags of a transition. like the flags after the new states are entered but before the mutex states are exited.
+	 * @return the state snapshot
+	 * @since 1.3.0
+	 */
+	public final StateSnapshot getStateSnapshot() {
+		return mStateSnapshot;
+	}
+
+	/**
+	 * compare the current states and apply the new states if matched. which is safe under concurrency: the compare
+	 * is done by the versioned state word, and the transition is claimed by CAS on the same word. so the states are
+	 * never changed between the compare and the apply. the transaction object is not used, so it doesn't allocate.
+	 * <p>Note: the claimed word is a lock which is held across the enter/exit callbacks of the transition. the other
+	 * threads wait by spinning, yielding, then parking. so the callbacks of a transition should be short. and only
+	 * the transitions are guarded. the other operations(like messages and update) should still be called by the
+	 * owner thread.</p>
+	 * @param targetStates the target states to compare
+	 * @param newStates the new states to apply
+	 * @param compareType the compare type, see {@linkplain StateTransaction#COMPARE_TYPE_HAS} and etc.
+	 * @param applyType the apply type , see {@linkplain StateTransaction#APPLY_TYPE_ADD} and etc.
+	 * @param param the parameter to carry
+	 * @param policy the conflict policy. {@linkplain #CONFLICT_RETRY} or {@linkplain #CONFLICT_FAIL_FAST}.
+	 * @return true if compare and apply success. false if compare failed, apply failed, or conflicted with
+	 *         fail-fast policy.
+	 * @since 1.3.0
+	 */
+	public final boolean compareAndApply(int targetStates, int newStates, byte compareType, byte applyType, P param,
+			@ConflictPolicy byte policy) {
+		if (policy != CONFLICT_RETRY && policy != CONFLICT_FAIL_FAST) {
+			throw new IllegalArgumentException("error policy = " + policy);
+		}
+		switch (claimTransition(targetStates, compareType, policy)) {
+		case CLAIM_NESTED:
+			return applyStates(newStates, applyType, param);
+		case CLAIM_HELD:
+			try {
+				return applyStates(newStates, applyType, param);
+			} finally {
+				releaseClaim();
 			}
+		default:
+			return false;
 		}
-		return result;
 	}
 
+	/**
+	 * commit the transaction under the claim of state word. so the compare, the start action and the operations
+	 * are atomic under concurrency. see {@linkplain #compareAndApply(int, int, byte, byte, Object, byte)}.
+	 */
 	@Override
-	public final boolean unlockEvent(int... keys) throws IllegalArgumentException {
-		if (keys == null || keys.length == 0) {
-			throw new IllegalArgumentException();
-		}
-		if (mLockEvents == null) {
+	/*package*/ final boolean commitTransaction(StateTransaction<?> transaction) {
+		switch (claimTransition(transaction.mCompareState, transaction.mCompareType, CONFLICT_RETRY)) {
+		case CLAIM_NESTED:
+			return transaction.startAndPerform();
+		case CLAIM_HELD:
+			try {
+				return transaction.startAndPerform();
+			} finally {
+				releaseClaim();
+			}
+		default:
 			return false;
 		}
-		boolean result = true;
-		int index;
-		for (int key : keys) {
-			index = mLockEvents.indexOf(key);
-			if (index != -1) {
-				mLockEvents.remove(index);
-			} else {
-				result = false;
+	}
+
+	/**
+	 * claim the state word if the current states are matched. the held word spans the inner transitions, and it
+	 * is released by {@linkplain #releaseClaim()}.
+	 * @return {@linkplain #CLAIM_HELD} if claimed, {@linkplain #CLAIM_NESTED} if matched in a transition of this
+	 *         thread. or {@linkplain #CLAIM_FAILED} if not matched or conflicted with fail-fast policy.
+	 */
+	private int claimTransition(int targetStates, byte compareType, byte policy) {
+		final Thread current = Thread.currentThread();
+		if (mTransitionOwner == current) {
+			// nested in a transition of this thread. the word is claimed by this thread already.
+			return compareStates(mGroup.getStateFlags(), targetStates, compareType) ? CLAIM_NESTED : CLAIM_FAILED;
+		}
+		final AtomicLong word = this.mStateWord;
+		for (int spins = 0;; spins = backoff(spins)) {
+			final long w = word.get();
+			if (((w >>> 32) & 1) == 0) {
+				if (!compareStates((int) w, targetStates, compareType)) {
+					return CLAIM_FAILED;
+				}
+				if (word.compareAndSet(w, w + (1L << 32))) {
+					break;
+				}
+			}
+			if (policy == CONFLICT_FAIL_FAST) {
+				return CLAIM_FAILED;
 			}
 		}
-		return result;
+		// the depth is 0: the inner transitions are the outermost ones for callbacks and deferring.
+		mTransitionOwner = current;
+		mTransitionDepth = 0;
+		mClaimHeld = true;
+		return CLAIM_HELD;
 	}
 
-	@Override
-	public final boolean unlockAllEvent() {
-		if (mLockEvents == null) {
-			return false;
-		}
-		mLockEvents.clear();
-		return true;
+	/** release the word which is held by {@linkplain #claimTransition(int, byte, byte)}. */
+	private void releaseClaim() {
+		mClaimHeld = false;
+		mTransitionDepth = 1;
+		endTransition();
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>this is the same as {@linkplain #compareAndApply(int, int, byte, byte, Object, byte)} with
+	 * {@linkplain #CONFLICT_RETRY}. so it is safe under concurrency and doesn't allocate.</p>
+	 */
 	@Override
-	public final boolean isLockedEvent(int eventKey) {
-		return mLockEvents != null && mLockEvents.contains(eventKey);
+	public final boolean compareAndApply(int targetStates, int newStates, byte compareType, byte applyType, P param) {
+		return compareAndApply(targetStates, newStates, compareType, applyType, param, CONFLICT_RETRY);
 	}
 
-	@Override
-	public final void setStateFactory(StateFactory<S, P> factory) {
-		if (factory == null) {
-			throw new NullPointerException();
+	private boolean applyStates(int newStates, byte applyType, P param) {
+		switch (applyType) {
+		case StateTransaction.APPLY_TYPE_ADD:
+			return addState(newStates, param);
+		case StateTransaction.APPLY_TYPE_SET:
+			return setState(newStates, param);
+		case StateTransaction.APPLY_TYPE_REMOVE:
+			return removeState(newStates, param);
+		default:
+			throw new IllegalArgumentException("error applyType = " + applyType);
 		}
-		this.mFactory = factory;
 	}
 
-	@Override
-	public final void setParameterMerger(ParameterMerger<P> merger) {
-		if (merger == null) {
-			throw new NullPointerException();
+	private static boolean compareStates(int current, int targetStates, byte compareType) {
+		switch (compareType) {
+		case StateTransaction.COMPARE_TYPE_HAS:
+			return (current & targetStates) != 0;
+		case StateTransaction.COMPARE_TYPE_EQUALS:
+			return current == targetStates;
+		default:
+			return true;
 		}
-		this.mMerger = merger;
 	}
 
-	@Override
-	public final void dispose() {
-		// destroy foreground states.
-		if (mGlobalGroup != null) {
-			mGlobalGroup.dispose();
+	/**
+	 * begin a transition. the outermost transition claims the versioned state word, it waits by
+	 * {@linkplain #backoff(int)} if a transition is running by another thread. so the word is a spin/yield/park
+	 * lock which is held until the outermost transition ends, across the enter/exit callbacks.
+	 */
+	private void beginTransition() {
+		final Thread current = Thread.currentThread();
+		if (mTransitionOwner == current) {
+			mTransitionDepth++;
+			return;
+		}
+		final AtomicLong word = this.mStateWord;
+		for (int spins = 0;; spins = backoff(spins)) {
+			final long w = word.get();
+			if (((w >>> 32) & 1) == 0 && word.compareAndSet(w, w + (1L << 32))) {
+				break;
+			}
 		}
-		mGroup.dispose();
+		mTransitionOwner = current;
+		mTransitionDepth = 1;
+	}
 
-		// destroy back/cache state. and clear
-		final SparseArray<S> map = this.mStateMap;
-		for (int size = map.size(), i = size - 1; i >= 0; i--) {
-			map.valueAt(i).dispose();
+	/**
+	 * wait for the transition which is running by another thread. it spins at first, then yields, then parks
+	 * for a short time. so a long transition(like a blocking callback) doesn't burn the cpu.
+	 * @param spins the count of waits
+	 * @return the next count of waits
+	 */
+	private static int backoff(int spins) {
+		if (spins < SPIN_WAITS) {
+			// busy spin. the transition is often short.
+		} else if (spins < SPIN_WAITS + YIELD_WAITS) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(PARK_NANOS);
+			return spins;
 		}
-		map.clear();
+		return spins + 1;
+	}
 
-		synchronized (this) {
-			if (mDelayMessages != null) {
-				for (MessageInfo info : mDelayMessages) {
-					info.msg.recycleUnchecked();
-				}
-				mDelayMessages.clear();
+	/**
+	 * end a transition. the snapshot is published if it is the outermost transition and the flags are changed.
+	 * then the state word is released with the new flags.
+	 */
+	private void endTransition() {
+		try {
+			if (mTransitionDepth == 1 && mDeferred && !mDraining
+					&& !(mCallbackDepth > 0 && mCallbackThread == Thread.currentThread())) {
+				// run to completion. they are nested in this transition, so the snapshot is published once.
+				runDeferredTransitions();
+			}
+		} finally {
+			// the depth, owner and state word are always released. even if a deferred transition failed.
+			if (--mTransitionDepth == 0 && !mClaimHeld) {
+				releaseTransition();
 			}
 		}
+	}
 
-		// clean up controller
-		this.mOwner = null;
+	/** publish the snapshot if the flags are changed, then release the state word with the new flags. */
+	private void releaseTransition() {
+		final int current = mGroup.getStateFlags();
+		final int global = mGlobalGroup != null ? mGlobalGroup.getStateFlags() : 0;
+		final int cached = mGroup.getCachedStateFlags();
+		final StateSnapshot snapshot = this.mStateSnapshot;
+		if (!snapshot.isSameFlags(current, global, cached)) {
+			mStateSnapshot = new StateSnapshot(current, global, cached, snapshot.getSequence() + 1);
+		}
+		mTransitionOwner = null;
+		final long w = mStateWord.get();
+		mStateWord.set((((w >>> 32) + 1) << 32) | (current & 0xFFFFFFFFL));
 	}
 
 	@Override
-	public final StateTransaction<P> beginTransaction() {
-		if (mTransaction == null) {
-			mTransaction = new StateTransactionImpl();
-		}
-		return mTransaction;
+	public final int getGlobalStateFlags() {
+		return mGlobalGroup != null ? mGlobalGroup.getStateFlags() : 0;
 	}
-	
+
 	@Override
-	public boolean compareAndApply(int targetStates, int newStates, byte compareType, byte applyType, P param) {
-		return beginTransaction()
-				.compareStates(targetStates)
-				.compareType(compareType)
-				.operateParameter(param)
-				.operateAdd(newStates)
-				.applyType(applyType)
-				.commit();
+	public final List<S> getGlobalStates(List<S> outStates) {
+		return mGlobalGroup != null ? mGlobalGroup.getForegroundStates(outStates) : null;
+	}
+
+	@Override
+	public final List<S> getGlobalStates() {
+		return mGlobalGroup != null ? mGlobalGroup.getForegroundStates(null) : null;
+	}
+
+	@Override
+	public final S getGlobalState() {
+		return mGlobalGroup != null ? mGlobalGroup.getMaxState() : null;
+	}
+
+	@Override
+	public final boolean isInState(@StateFlags int states) {
+		checkMemberState();
+		return mGroup.getStateFlags() == states;
+	}
+
+	@Override
+	public final boolean hasState(@StateFlags int state) {
+		checkMemberState();
+		return mGroup.hasState(state);
+	}
+
+	@Override
+	public final List<S> getCurrentStates() {
+		return getCurrentStates(null);
+	}
+
+	@Override
+	public final List<S> getCurrentStates(List<S> outStates) {
+		checkMemberState();
+		return mGroup.getForegroundStates(outStates);
+	}
+
+	@Override
+	public final S getCurrentState() {
+		return mGroup.getMaxState();
+	}
+
+	@Override
+	public final int getCurrentStateFlags() {
+		return mGroup.getStateFlags();
 	}
 
 	@Override
@@ -552,7 +888,7 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 
 	@Override
 	public final S getTargetState(int state) {
-		return mStateMap.get(state);
+		return mStateTable.get(state);
 	}
 
 	@Override
@@ -560,16 +896,15 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 		if (outStates == null) {
 			outStates = new ArrayList<S>();
 		}
-		final SparseArray<S> map = this.mStateMap;
-		int maxKey;
+		final StateTable<S> table = this.mStateTable;
 		S s;
-		for (; states > 0;) {
-			maxKey = max2K(states);
-			s = map.get(maxKey);
+		//from the max state to the min.
+		for (int maxKey; states > 0; states ^= maxKey) {
+			maxKey = BitFlags.highest(states);
+			s = table.get(maxKey);
 			if (s != null) {
 				outStates.add(s);
 			}
-			states -= maxKey;
 		}
 		return outStates;
 	}
@@ -596,374 +931,235 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 		return outStates;
 	}
 
-	@Deprecated
+	@SuppressWarnings("unchecked")
 	@Override
-	public boolean sendMessage(Message msg, @PolicyType byte policy) {
-		return dispatchMessage(msg, policy, FLAG_SCOPE_CURRENT);
+	public void updateActiveStates(int activeStates, long deltaTime, P param) {
+		final List<S> tempStates = getTempStates();
+		getTargetStates(activeStates, FLAG_SCOPE_CURRENT | FLAG_SCOPE_GLOBAL, tempStates);
+		final AbstractState<?>[] states = toCallbackStates(tempStates);
+
+		beginCallback();
+		try {
+			S state;
+			for (int i = 0; states[i] != null; i++) {
+				state = (S) states[i];
+				state.addFlags(AbstractState.FLAG_TEAM);
+				state.update(deltaTime, param);
+				state.clearOnceFlags();
+			}
+		} finally {
+			releaseCallbackStates(states);
+			endCallback();
+		}
 	}
 
-	@Deprecated
 	@Override
-	public boolean sendMessage(Message msg, @PolicyType byte policy, @ScopeFlags byte scope) {
-		return dispatchMessage(msg, policy, scope);
+	public final void setTeamEnabled(boolean enable) {
+		mGroup.setTeamEnabled(enable);
+		if (mGlobalGroup != null) {
+			mGlobalGroup.setTeamEnabled(enable);
+		}
 	}
 
 	@Override
-	public boolean dispatchMessage(Message msg, @PolicyType byte policy) {
-		return dispatchMessage(msg, policy, FLAG_SCOPE_CURRENT);
+	public final boolean isTeamEnabled() {
+		return mGroup.isTeamEnabled();
 	}
 
-	@Override
-	public boolean dispatchMessage(Message msg, @PolicyType byte policy, @ScopeFlags byte scope) {
-		
-		boolean result = dispatchMessageImpl(-1, msg, policy, scope);
-		msg.recycleUnchecked();
-		return result;
-		//return dispatchMessageImpl(-1, msg, policy, scope);
-	}
+	// ======================== start internal method
+	// =============================
 
+	// may one method call this method twice. states = -1 means all.
 	@Override
-	public boolean dispatchMessage(int states, Message msg, @PolicyType byte policy) {
-		return dispatchMessageImpl(states, msg, policy, (byte) (FLAG_SCOPE_CURRENT | FLAG_SCOPE_GLOBAL));
-	}
-
-	private boolean dispatchMessageImpl(int states, Message msg, @PolicyType byte policy, @ScopeFlags byte scope) {
-		// check in use or mark it.
-		if (msg.isInUse()) {
-			throw new IllegalStateException(msg + " This message is already in use.");
-		}
-		msg.markInUse();
-
-		// filter delay message.wait it will handle in update method.
-		long now = System.currentTimeMillis();
-		if (msg.when > now) {
-			//insert it in order.
-			final MessageInfo info = new MessageInfo(msg, policy, scope);
-			synchronized (this) {
-				if (mDelayMessages == null) {
-					mDelayMessages = new ArrayList<>(8);
-				}
-				int index = SearchUtils.binarySearch(mDelayMessages, info, CMP_MSG);
-				if( index < 0){
-					index = -(index + 1);
-				}
-				mDelayMessages.add(index, info);
+	final boolean dispatchMessage0(int states, BitSet wideStates, Message msg, byte policy, byte scope) {
+		boolean handled = false;
+		final boolean includeCache = (scope & FLAG_SCOPE_CACHED) != 0;
+		beginCallback();
+		try {
+			if ((scope & FLAG_SCOPE_GLOBAL) != 0 && mGlobalGroup != null) {
+				handled |= mGlobalGroup.handleMessage(states, msg, policy, includeCache);
 			}
-			return false;
+			if (policy == POLICY_CONSUME && handled) {
+				return true;
+			}
+			if ((scope & FLAG_SCOPE_CURRENT) != 0) {
+				handled |= mGroup.handleMessage(states, msg, policy, includeCache);
+			}
+			return handled;
+		} finally {
+			endCallback();
 		}
-		// dispatch to states
-		return dispatchMessage0(states, msg, policy, scope);
 	}
 
 	@Override
-	public void update(long deltaTime) {
-		update(deltaTime, null);
+	final int getMessageRoute(int what) {
+		return mMessageRouter.route(what);
 	}
 
 	@Override
-	public void update(long deltaTime, P param) {
-
-		final long now = System.currentTimeMillis();
-		synchronized (this) {
-			if (mDelayMessages != null) {
-				final Iterator<MessageInfo> it = mDelayMessages.iterator();
-				MessageInfo info;
-				for (; it.hasNext();) {
-					info = it.next();
-					//because the all message is in order(sort ascending).
-					if(info.msg.when > now){
-						break;
-					}
-					dispatchMessage0(-1, info.msg, info.policy, info.scope);
-					info.msg.recycleUnchecked();
-					it.remove();
-				}
+	final void getMessageTargets(byte scope, List<S> out) {
+		final boolean includeCache = (scope & FLAG_SCOPE_CACHED) != 0;
+		if ((scope & FLAG_SCOPE_GLOBAL) != 0 && mGlobalGroup != null) {
+			mGlobalGroup.getForegroundStates(out);
+			if (includeCache) {
+				mGlobalGroup.getBackgroundStates(out);
 			}
 		}
-
-		// update active state
-		if (mTempStates == null) {
-			mTempStates = new ArrayList<>();
-		}
-		final List<S> mTempStates = this.mTempStates;
-
-		getGlobalStates(mTempStates);
-		getCurrentStates(mTempStates);
-		for (S state : mTempStates) {
-			state.onUpdate(deltaTime, param);
-		}
-		mTempStates.clear();
-	}
-
-	@Override
-	public void updateActiveStates(int activeStates, long deltaTime, P param) {
-		if (mTempStates == null) {
-			mTempStates = new ArrayList<>();
-		}
-		final List<S> mTempStates = this.mTempStates;
-		getTargetStates(activeStates, FLAG_SCOPE_CURRENT | FLAG_SCOPE_GLOBAL, mTempStates);
-
-		for (S state : mTempStates) {
-			state.addFlags(AbstractState.FLAG_TEAM);
-			state.onUpdate(deltaTime, param);
-			state.clearOnceFlags();
+		if ((scope & FLAG_SCOPE_CURRENT) != 0) {
+			mGroup.getForegroundStates(out);
+			if (includeCache) {
+				mGroup.getBackgroundStates(out);
+			}
 		}
-		mTempStates.clear();
 	}
 
+	@SuppressWarnings("unchecked")
 	@Override
-	public void clearMessages() {
-		synchronized (this) {
-			if (mDelayMessages != null) {
-				mDelayMessages.clear();
+	final void updateStates(long deltaTime, P param) {
+		final int global = mGlobalGroup != null ? mGlobalGroup.getStateFlags() : 0;
+		final int current = mGroup.getStateFlags();
+		if (global != mSnapshotGlobal || current != mSnapshotCurrent
+				|| mStateTable.getModCount() != mSnapshotModCount) {
+			rebuildActiveSnapshot(global, current);
+		}
+		// the snapshot may be rebuilt by nested update. so iterate the local one.
+		final AbstractState<?>[] states = mActiveSnapshot;
+		final int count = mActiveCount;
+		final boolean updating = mUpdating;
+		mUpdating = true;
+		beginCallback();
+		try {
+			for (int i = 0; i < count; i++) {
+				((S) states[i]).update(deltaTime, param);
 			}
+		} finally {
+			mUpdating = updating;
+			endCallback();
 		}
 	}
 
-	@Override
-	public boolean hasMessage(Message expect) {
-		synchronized (this) {
-			if (mDelayMessages != null) {
-				return mDelayMessages.contains(new MessageInfo(expect));
-			}
+	/**
+	 * rebuild the snapshot of active states. the order is the same as {@linkplain #getGlobalStates(List)}
+	 * then {@linkplain #getCurrentStates(List)}.
+	 * @param global the global state flags
+	 * @param current the current state flags
+	 */
+	private void rebuildActiveSnapshot(int global, int current) {
+		final int size = Integer.bitCount(global) + Integer.bitCount(current);
+		AbstractState<?>[] states = mActiveSnapshot;
+		// never overwrite the snapshot which is iterating.
+		if (mUpdating || states.length < size) {
+			states = new AbstractState<?>[Math.max(size, states.length)];
 		}
-		return false;
+		int count = collectActiveStates(global, states, 0);
+		count = collectActiveStates(current, states, count);
+		for (int i = count; i < mActiveCount && i < states.length; i++) {
+			states[i] = null;
+		}
+		mActiveSnapshot = states;
+		mActiveCount = count;
+		mSnapshotGlobal = global;
+		mSnapshotCurrent = current;
+		mSnapshotModCount = mStateTable.getModCount();
 	}
 
 	@Override
-	public boolean hasMessage(int what) {
-
-		MessageInfo info;
-		synchronized (this) {
-			if (mDelayMessages != null) {
-				final Iterator<MessageInfo> it = mDelayMessages.iterator();
-				for (; it.hasNext();) {
-					info = it.next();
-					if (info.msg.what == what) {
-						return true;
-					}
-				}
+	final boolean hasUpdatableStates() {
+		final StateTable<S> table = this.mStateTable;
+		int flags = mGroup.getStateFlags();
+		if (mGlobalGroup != null) {
+			flags |= mGlobalGroup.getStateFlags();
+		}
+		S s;
+		for (int state; flags != 0; flags ^= state) {
+			state = BitFlags.lowest(flags);
+			s = table.get(state);
+			if (s != null && s.isUpdateEnabled()) {
+				return true;
 			}
 		}
 		return false;
 	}
 
-	@Override
-	public void removeMessage(int what) {
-		MessageInfo info;
-		synchronized (this) {
-			if (mDelayMessages != null) {
-				final Iterator<MessageInfo> it = mDelayMessages.iterator();
-				for (; it.hasNext();) {
-					info = it.next();
-					if (info.msg.what == what) {
-						it.remove();
-					}
-				}
+	private int collectActiveStates(int flags, AbstractState<?>[] out, int index) {
+		final StateTable<S> table = this.mStateTable;
+		S s;
+		//sort ascending(up)
+		for (int state; flags != 0; flags ^= state) {
+			state = BitFlags.lowest(flags);
+			s = table.get(state);
+			if (s != null) {
+				s.setId(state);
+				out[index++] = s;
 			}
 		}
+		return index;
 	}
 
 	@Override
-	public void removeMessage(Message expect) {
-		Message msg;
-		synchronized (this) {
-			if (mDelayMessages != null) {
-				final Iterator<MessageInfo> it = mDelayMessages.iterator();
-				for (; it.hasNext();) {
-					msg = it.next().msg;
-					if (msg.equals(expect)) {
-						it.remove();
-					}
-				}
+	final void disposeStates() {
+		beginTransition();
+		try {
+			// destroy foreground states.
+			if (mGlobalGroup != null) {
+				mGlobalGroup.dispose();
 			}
-		}
-	}
+			mGroup.dispose();
 
-	@Override
-	public final void setTeamEnabled(boolean enable) {
-		mGroup.setTeamEnabled(enable);
-		if (mGlobalGroup != null) {
-			mGlobalGroup.setTeamEnabled(enable);
+			// destroy back/cache state. and clear
+			mStateTable.disposeAll();
+		} finally {
+			// the transitions requested by the disposed states are dropped.
+			clearDeferredTransitions();
+			endTransition();
 		}
+		Arrays.fill(mActiveSnapshot, 0, mActiveCount, null);
+		mActiveCount = 0;
 	}
 
 	@Override
-	public final boolean isTeamEnabled() {
-		return mGroup.isTeamEnabled();
-	}
-
-	@Override
-	public TeamMediator<P> getTeamMediator() {
-		if (mTeamMediator == null) {
-			mTeamMediator = new TeamMediatorImpl<P>(this);
-		}
-		return mTeamMediator;
-	}
-
-	private void checkMemberState() {
-		if (mFactory == null) {
-			throw new IllegalStateException("you must call setStateFactory(). first.");
-		}
-		if (mMerger == null) {
-			throw new IllegalStateException("you must call setParameterMerger(). first.");
-		}
-	}
-
-	// may one method call this method twice. states = -1 means all.
-	private boolean dispatchMessage0(int states, Message msg, byte policy, byte scope) {
-		boolean handled = false;
-		final boolean includeCache = (scope & FLAG_SCOPE_CACHED) != 0;
-		if ((scope & FLAG_SCOPE_GLOBAL) != 0 && mGlobalGroup != null) {
-			handled |= mGlobalGroup.handleMessage(states, msg, policy, includeCache);
-		}
-		if (policy == POLICY_CONSUME && handled) {
-			return true;
-		}
-		if ((scope & FLAG_SCOPE_CURRENT) != 0) {
-			handled |= mGroup.handleMessage(states, msg, policy, includeCache);
-		}
-		return handled;
-	}
-
-	// ======================== start internal method
-	// =============================
-
-	void notifyStateEnter(int states, P param) {
+	final void notifyStateEnter(int states, P param) {
 		// enter. only online AbstractState can receive team callback. so just
 		// reenter.
 		notifyStateReenter(states, param);
 	}
 
-	void notifyStateExit(int states, P param) {
-		mGroup.removeForgroundStateFromTeam(states, param);
-		if (mGlobalGroup != null) {
-			mGlobalGroup.removeForgroundStateFromTeam(states, param);
+	@Override
+	final void notifyStateExit(int states, P param) {
+		beginTransition();
+		try {
+			mGroup.removeForgroundStateFromTeam(states, param);
+			if (mGlobalGroup != null) {
+				mGlobalGroup.removeForgroundStateFromTeam(states, param);
+			}
+		} finally {
+			endTransition();
 		}
 	}
 
-	void notifyStateReenter(int states, P param) {
-		if (mTempStates == null) {
-			mTempStates = new ArrayList<>();
-		}
-		getTargetStates(states, FLAG_SCOPE_CURRENT | FLAG_SCOPE_GLOBAL, mTempStates);
-		for (S s : mTempStates) {
-			s.setTeamParameter(param);
-			// s.onAttach(this);
-			// s.setId(singleState);
-			s.reenter(AbstractState.FLAG_TEAM);
-			s.clearOnceFlags();
+	@SuppressWarnings("unchecked")
+	@Override
+	final void notifyStateReenter(int states, P param) {
+		final List<S> tempStates = getTempStates();
+		getTargetStates(states, FLAG_SCOPE_CURRENT | FLAG_SCOPE_GLOBAL, tempStates);
+		final AbstractState<?>[] targets = toCallbackStates(tempStates);
+		beginCallback();
+		try {
+			S s;
+			for (int i = 0; targets[i] != null; i++) {
+				s = (S) targets[i];
+				s.setTeamParameter(param);
+				// s.onAttach(this);
+				// s.setId(singleState);
+				s.reenter(AbstractState.FLAG_TEAM);
+				s.clearOnceFlags();
+			}
+		} finally {
+			releaseCallbackStates(targets);
+			endCallback();
 		}
-		mTempStates.clear();
 	}
 
 	// ======================== end internal method
 	// =============================
-
-	private static class MessageInfo {
-		Message msg;
-		byte policy;
-		byte scope;
-
-		public MessageInfo(Message msg) {
-			this.msg = msg;
-		}
-
-		public MessageInfo(Message msg, byte policy, byte scope) {
-			super();
-			this.msg = msg;
-			this.policy = policy;
-			this.scope = scope;
-		}
-
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj)
-				return true;
-			if (obj == null)
-				return false;
-			if (getClass() != obj.getClass())
-				return false;
-			MessageInfo other = (MessageInfo) obj;
-			if (msg == null) {
-				if (other.msg != null)
-					return false;
-			} else if (!msg.equals(other.msg))
-				return false;
-			return true;
-		}
-	}
-
-	private class StateTransactionImpl extends StateTransaction<P> {
-		
-		@Override
-		protected boolean verifyCompareType(byte type) {
-			switch (type) {
-			case COMPARE_TYPE_HAS:
-				return (getCurrentStateFlags() & mCompareState) != 0;
-				
-			case COMPARE_TYPE_EQUALS:
-				return getCurrentStateFlags() == mCompareState;
-			}
-			return true;
-		}
-		@Override
-		protected boolean performTransaction() {
-
-			final int states = mOperateStates;
-			final P param = mParam;
-
-			boolean result = false;
-			switch (mOp) {
-			case StateTransaction.APPLY_TYPE_ADD:
-				result = addState(states, param);
-				break;
-
-			case StateTransaction.APPLY_TYPE_SET:
-				result = setState(states, param);
-				break;
-
-			case StateTransaction.APPLY_TYPE_REMOVE:
-				result = removeState(states, param);
-				break;
-
-			default:
-				System.err.println("execute StateTransaction failed. " + this.toString());
-			}
-			return result;
-		}
-	}
-	
-	private static final Comparator<MessageInfo> CMP_MSG = new Comparator<MessageInfo>() {
-		@Override
-		public int compare(MessageInfo o1, MessageInfo o2) {
-			return Long.compare(o1.msg.when, o2.msg.when);
-		}
-	};
-}
-
-class TeamMediatorImpl<P> extends TeamMediator<P> {
-
-	final SimpleController<?, P> mController;
-
-	public TeamMediatorImpl(SimpleController<?, P> controller) {
-		super();
-		this.mController = controller;
-	}
-
-	@Override
-	public void notifyStateEnter(int states, P param) {
-		mController.notifyStateEnter(states, param);
-	}
-
-	@Override
-	public void notifyStateExit(int states, P param) {
-		mController.notifyStateExit(states, param);
-	}
-
-	@Override
-	public void notifyStateReenter(int states, P param) {
-		mController.notifyStateReenter(states, param);
-	}
-
 }
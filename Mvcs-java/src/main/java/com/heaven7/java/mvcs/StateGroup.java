@@ -1,18 +1,10 @@
 package com.heaven7.java.mvcs;
 
-import static com.heaven7.java.mvcs.util.MathUtil.max2K;
-
-import java.lang.annotation.ElementType;
-import java.lang.annotation.Retention;
-import java.lang.annotation.RetentionPolicy;
-import java.lang.annotation.Target;
 import java.util.ArrayList;
 import java.util.List;
 
-import com.heaven7.java.base.anno.IntDef;
-import com.heaven7.java.base.util.Disposeable;
-import com.heaven7.java.base.util.SparseArray;
 import com.heaven7.java.mvcs.IController.StateFactory;
+import com.heaven7.java.mvcs.util.BitFlags;
 import com.heaven7.java.mvcs.util.MutexStateException;
 
 /**
@@ -23,39 +15,16 @@ import com.heaven7.java.mvcs.util.MutexStateException;
  *            the state parameter type.
  * @author heaven7
  */
-/* public */ final class StateGroup<S extends AbstractState<P>, P> implements Disposeable {
-	
-	private static final byte ACTION_ENTER           = 1 ;
-	private static final byte ACTION_EXIT            = 2 ;
-	private static final byte ACTION_REENTER         = 3 ;
-	//private static final byte ACTION_HANDLE_MESSAGE  = 4 ; //not use now
-	
-	@IntDef({
-		ACTION_ENTER, 
-		ACTION_EXIT,
-		ACTION_REENTER,
-	})
-	@Retention(RetentionPolicy.SOURCE)
-	@Target({ElementType.PARAMETER})
-	@interface ActionType{
-	}
+/* public */ final class StateGroup<S extends AbstractState<P>, P> extends AbstractStateGroup<S, P> {
 
 	private int mCurrentStates;
-	private P mParam;
 	
 	private final Callback<S, P> mCallback;
-	private final IController<S, P> mController;
 	/**
 	 * the cached all states without current states. that means background
 	 * states.
 	 */
 	private int mCachedState;
-	
-	/** the list which is lazy load. */
-	final List<Integer> sTempFlags = new ArrayList<Integer>(6);
-	
-	/** if false. {@linkplain StateListener} will never call back. default is true.*/
-	private boolean mTeamEnabled = true;
 
 	public interface Callback<S extends AbstractState<P>, P> {
 		
@@ -63,49 +32,49 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 
 		StateFactory<S, P> getStateFactory();
 
-		SparseArray<S> getStateMap();
-
-		List<S> ensureAndGetTempList();
+		/**
+		 * get the state table which is indexed by the bit position of state flag.
+		 * @return the state table
+		 * @since 1.3.0
+		 */
+		StateTable<S> getStateTable();
+
+		/**
+		 * get the precompiled mutex mask of the target single state. the mask never contains the state itself.
+		 * @param singleState the single state
+		 * @return the mutex mask. 0 if not have mutex state.
+		 * @since 1.3.0
+		 */
+		int getMutexMask(int singleState);
+
+		/**
+		 * get the routing index of messages.
+		 * @return the message router
+		 * @since 1.3.0
+		 */
+		MessageRouter getMessageRouter();
 	}
 
 	public StateGroup(IController<S, P> controller, Callback<S, P> callback) {
-		this.mController = controller;
+		super(controller);
 		this.mCallback = callback;
 	}
 
 	// ========================== easy methods ===========================
-	
-	private P getStateParameter() {
-		return mParam;
-	}
 
 	private StateFactory<S, P> getStateFactory() {
 		return mCallback.getStateFactory();
 	}
 
-	private SparseArray<S> getStateMap() {
-		return mCallback.getStateMap();
+	private StateTable<S> getStateTable() {
+		return mCallback.getStateTable();
 	}
 
-	private ParameterMerger<P> getMerger() {
+	@Override
+	ParameterMerger<P> getMerger() {
 		return mCallback.getMerger();
 	}
-
-	private IController<S, P> getController() {
-		return mController;
-	}
-
-	private boolean isStateCacheEnabled() {
-		return mController.isStateCacheEnabled();
-	}
 	// ========================================================================
-	
-	public void setTeamEnabled(boolean enable) {
-		this.mTeamEnabled = enable;
-	}
-	public boolean isTeamEnabled() {
-		return mTeamEnabled;
-	}
 
 	public int getCachedStateFlags() {
 		return mCachedState;
@@ -130,9 +99,9 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 			return false;
 		}
 		this.mCurrentStates = 0;
-		this.mParam = param;
+		setStateParameter(param);
 		dispatchStateChange(current, 0);
-		this.mParam = null;
+		setStateParameter(null);
 		return true;
 	}
 
@@ -155,9 +124,9 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 			return false;
 		}
 		this.mCurrentStates &= ~states;
-		this.mParam = param;
+		setStateParameter(param);
 		dispatchStateChange(0, 0, shareFlags);
-		this.mParam = null;
+		setStateParameter(null);
 		return shareFlags == states;
 	}
 	
@@ -168,21 +137,21 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 			return ;
 		}
 		final boolean cacheEnabled = isStateCacheEnabled();
-		//handle state exit
-		final SparseArray<S> stateMap = getStateMap();
-		final List<S> tempList = mCallback.ensureAndGetTempList();
-		getForegroundStates(share, tempList);
-		for (S s : tempList) {
-			s.setTeamParameter(teamP);
-			s.exit(AbstractState.FLAG_TEAM);
-			s.clearOnceFlags();
-			s.onDetach();
+		//handle state exit. iterate the flags, the temp list may be used by the caller.
+		final StateTable<S> stateMap = getStateTable();
+		for (int flags = share, state; flags != 0; flags ^= state) {
+			state = BitFlags.lowest(flags);
+			final S s = stateMap.get(state);
+			if (s == null) {
+				continue;
+			}
+			s.setId(state);
+			exitStateByTeam(s, teamP);
 			//remove state instance if need
 			if(!cacheEnabled){
-				stateMap.remove(s.getId());
+				stateMap.remove(state);
 			}
 		}
-		tempList.clear();
 		//handle current state and cache state.
 		mCurrentStates &= ~ share;
 		if(cacheEnabled){
@@ -203,9 +172,9 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 		} else {
 			this.mCurrentStates |= states;
 		}
-		this.mParam = extra;
+		setStateParameter(extra);
 		dispatchStateChange(shareFlags, states & ~shareFlags, 0);
-		this.mParam = null;
+		setStateParameter(null);
 		return true;
 	}
 
@@ -220,9 +189,38 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 			return false;
 		}
 		this.mCurrentStates = newStates;
-		this.mParam = p;
+		setStateParameter(p);
 		dispatchStateChange(mCurr, newStates);
-		mParam = null;
+		setStateParameter(null);
+		return true;
+	}
+
+	/**
+	 * apply the net change of states. only the changed states are exited or entered, and the kept states which
+	 * are in the reenter mask are reentered. the mutex is only checked by the reenter mask(the added states). so the
+	 * kept states which are mutex with the entered states are exited by mutex. like {@linkplain #addState(int, Object)}.
+	 * @param newStates the new states. can be 0.
+	 * @param reenterMask the states to reenter if they are kept.
+	 * @param p the parameter
+	 * @return true if any state is changed or reentered.
+	 * @since 1.3.0
+	 */
+	public boolean applyStates(int newStates, int reenterMask, P p) {
+		if (newStates < 0)
+			return false;
+		checkMutexState(reenterMask & newStates);
+
+		final int mCurr = this.mCurrentStates;
+		final int shareFlags = mCurr & newStates & reenterMask;
+		final int enterFlags = newStates & ~mCurr;
+		final int exitFlags = mCurr & ~newStates;
+		if ((shareFlags | enterFlags | exitFlags) == 0) {
+			return false;
+		}
+		this.mCurrentStates = newStates;
+		setStateParameter(p);
+		dispatchStateChange(shareFlags, enterFlags, exitFlags);
+		setStateParameter(null);
 		return true;
 	}
 
@@ -267,57 +265,39 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 	}
 
 	private void reenter(int sharFlags) {
-		int maxKey;
-		for (; sharFlags > 0;) {
-			maxKey = max2K(sharFlags);
-			if (maxKey > 0) {
-				reenter0(maxKey);
-				sharFlags -= maxKey;
-			}
+		//from the max state to the min.
+		for (int maxKey; sharFlags != 0; sharFlags ^= maxKey) {
+			maxKey = BitFlags.highest(sharFlags);
+			reenter0(maxKey);
 		}
 	}
 
 	private void exitState(int exitFlags) {
-		int maxKey;
-		for (; exitFlags > 0;) {
-			maxKey = max2K(exitFlags);
-			if (maxKey > 0) {
-				exit0(maxKey, false);
-				exitFlags -= maxKey;
-			}
+		for (int maxKey; exitFlags != 0; exitFlags ^= maxKey) {
+			maxKey = BitFlags.highest(exitFlags);
+			exit0(maxKey, false);
 		}
 	}
 
 	private void enterState(int enterFlags) {
 		final StateFactory<S, P> factory = getStateFactory();
 		final P sp = getStateParameter();
-		int maxKey;
-		for (; enterFlags > 0;) {
-			maxKey = max2K(enterFlags);
-			if (maxKey > 0) {
-				enter0(maxKey, factory.createState(maxKey, sp));
-				enterFlags -= maxKey;
-			}
+		for (int maxKey; enterFlags != 0; enterFlags ^= maxKey) {
+			maxKey = BitFlags.highest(enterFlags);
+			enter0(maxKey, factory.createState(maxKey, sp));
 		}
 	}
 
 	public S getStateByKey(int key) {
-		return getStateMap().get(key);
+		return getStateTable().get(key);
 	}
 
 	/*public int getStateCount() {
-		return getStateMap().size();
+		return getStateTable().size();
 	}*/
 
 	private void reenter0(int singleState) {
-		S state = getStateMap().get(singleState);
-		final P p = getMerger().merge(state.getStateParameter(), getStateParameter());
-		state.setStateParameter(p);
-		//state.onAttach(getController());
-		state.setId(singleState);
-		state.reenter(0);
-		dispatchStateCallback(ACTION_REENTER, singleState, state, null);
-		state.clearOnceFlags();
+		reenterState(singleState, singleState, getStateTable().get(singleState));
 	}
 
 	private void enter0(int singleState, S state) {
@@ -327,39 +307,23 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 		}
 		// cache state
 		mCachedState &= ~singleState;
-		getStateMap().put(singleState, state);
-		final P p = getMerger().merge(state.getStateParameter(), getStateParameter());
-		state.setStateParameter(p);
-		state.onAttach(getController());
-		state.setId(singleState);
-		state.enter(0);
-		//dispatch callback
-		dispatchStateCallback(ACTION_ENTER, singleState, state, null);
-		state.clearOnceFlags();
-
-		// handle mutex states
-		int[] mutexStates = getController().getMutexState(singleState);
-		if (mutexStates != null) {
-			final SparseArray<S> stateMap = getStateMap();
-			int oppositeState = 0;
-			for (int s : mutexStates) {
-				// state is not the main state.
-				if (s != singleState && stateMap.get(s) != null) {
-					oppositeState |= s;
-					exit0(s, true);
-				}
+		getStateTable().put(singleState, state);
+		mCallback.getMessageRouter().register(singleState, state.getHandledMessages());
+		enterState(singleState, singleState, state);
+
+		// handle mutex states. only the current states can be exited by mutex.
+		final int oppositeState = mCallback.getMutexMask(singleState) & mCurrentStates;
+		if (oppositeState != 0) {
+			for (int flags = oppositeState, s; flags != 0; flags ^= s) {
+				s = BitFlags.lowest(flags);
+				exit0(s, true);
 			}
 			this.mCurrentStates &= ~oppositeState;
-			// System.out.println("mutex state occurs. Main state : " +
-			// singleState + " , Mutex states : "+
-			// Arrays.toString(mutexStates));
-			// System.out.println("mutex state occurs. after adjust current
-			// state : " + mCurrentStates);
 		}
 	}
 
 	private void exit0(int singleState, boolean byMutex) {
-		final SparseArray<S> stateMap = getStateMap();
+		final StateTable<S> stateMap = getStateTable();
 		S state = stateMap.get(singleState);
 		// no cache ? remove from cache
 		if (!isStateCacheEnabled()) {
@@ -368,11 +332,7 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 		} else {
 			mCachedState |= singleState;
 		}
-		final P p = getMerger().merge(state.getStateParameter(), getStateParameter());
-		state.setStateParameter(p);
-		state.exit(byMutex ? AbstractState.FLAG_MUTEX : 0);
-		dispatchStateCallback(ACTION_EXIT, singleState, state, null);
-		state.onDetach();
+		exitState(singleState, state, byMutex);
 	}
 	
 	/**
@@ -424,8 +384,7 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 		if (mCurrentStates == 0) {
 			return null;
 		}
-		int maxKey = max2K(this.mCurrentStates);
-		return getStateByKey(maxKey);
+		return getStateByKey(BitFlags.highest(mCurrentStates));
 	}
 
 	public void notifyStateUpdate(P param) {
@@ -440,13 +399,12 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 	/** destroy state cache without current states. */
 	public void destroyStateCache() {
 		if (mCachedState > 0) {
-			final SparseArray<S> map = getStateMap();
-			getFlagsInternal(mCachedState, sTempFlags);
-			for(int state : sTempFlags){
+			final StateTable<S> map = getStateTable();
+			for (int flags = mCachedState, state; flags != 0; flags ^= state) {
+				state = BitFlags.lowest(flags);
 				map.remove(state);
 				// System.out.println("destroy state = " + state);
 			}
-			sTempFlags.clear();
 			mCachedState = 0;
 		} /*
 			 * else{ System.out.println("no state cache..."); }
@@ -454,22 +412,19 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 	}
 
 	public void dispose() {
-		final SparseArray<S> map = getStateMap();
-		getFlagsInternal(mCurrentStates, sTempFlags);
-		for(int state : sTempFlags){
+		final StateTable<S> map = getStateTable();
+		for (int flags = mCurrentStates, state; flags != 0; flags ^= state) {
+			state = BitFlags.lowest(flags);
 			final S s = map.get(state);
 			//TODO should destroy foreground state.?
-			s.exit(0);
-			s.onDetach();
-			s.dispose();
+			disposeState(s);
 			map.remove(state);
 			// System.out.println("dispose : " + s.toString());
 		}
-		sTempFlags.clear();
 		
 		this.mCurrentStates = 0;
 		this.mCachedState = 0;
-		this.mParam = null;
+		setStateParameter(null);
 	}
 
 	/**
@@ -478,12 +433,12 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 	 * @since 1.1.5
 	 */
 	public void clearStateParameter(boolean includeCachedState) {
-		final SparseArray<S> map = getStateMap();
-		getFlagsInternal(includeCachedState ? mCurrentStates | mCachedState : mCurrentStates, sTempFlags);
-		for(int state : sTempFlags){
+		final StateTable<S> map = getStateTable();
+		int flags = includeCachedState ? mCurrentStates | mCachedState : mCurrentStates;
+		for (int state; flags != 0; flags ^= state) {
+			state = BitFlags.lowest(flags);
 			map.get(state).setStateParameter(null);
 		}
-		sTempFlags.clear();
 	}
 	
 	/**
@@ -496,78 +451,46 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 	 * @since 1.1.6
 	 */
 	public boolean handleMessage(int states, Message msg, byte policy, boolean includeCache) {
-		final SparseArray<S> map = getStateMap();
-		final int curState = states == -1 ? mCurrentStates : mCurrentStates & states;
-		getFlagsInternal(curState, sTempFlags);
+		// only the states which can handle the 'what'.
+		states &= mCallback.getMessageRouter().route(msg.what);
+		final int curState = mCurrentStates & states;
+		final int cacheState = !includeCache ? 0 : mCachedState & states;
 		
-		boolean handled = false;
-		
-		outLoop:
 		switch (policy) {
 		case IController.POLICY_CONSUME:
-			for(int state : sTempFlags){
-				if(map.get(state).handleMessage(msg)){
-					handled = true;
-					break outLoop;
-				}
-			}
-			if(includeCache){
-				sTempFlags.clear();
-				getFlagsInternal(states == -1 ? mCachedState : mCachedState & states, sTempFlags);
-				for(int state : sTempFlags){
-					if(map.get(state).handleMessage(msg)){
-						handled = true;
-						break outLoop;
-					}
-				}
-			}
-			break;
+			return handleMessage0(curState, msg, true) || handleMessage0(cacheState, msg, true);
 			
 		case IController.POLICY_BROADCAST:
-			for(int state : sTempFlags){
-				handled |= map.get(state).handleMessage(msg);
-			}
-			if(includeCache){
-				sTempFlags.clear();
-				getFlagsInternal(states == -1 ? mCachedState : mCachedState & states, sTempFlags);
-				for(int state : sTempFlags){
-					handled |= map.get(state).handleMessage(msg);
-				}
-			}
-			break;
+			//handle the all states.
+			return handleMessage0(curState, msg, false) | handleMessage0(cacheState, msg, false);
 
 		default:
 			throw new IllegalStateException("error policy = " + policy);
 		}
-		//clear temp
-		sTempFlags.clear();
-		return handled;
 	}
 	
-	private void dispatchStateCallback(@ActionType byte action , int stateFlag, S state, Object param) {
-		final StateTeamManager<P> mTeamM = getController().getTeamMediator().getStateTeamManager();
-		if(mTeamEnabled && mTeamM != null){
-			//final IController<S, P> controller = getController();
-			switch (action) {
-			case ACTION_ENTER:
-				mTeamM.onEnterState(stateFlag, state);
-				break;
-				
-			case ACTION_EXIT:
-				mTeamM.onExitState(stateFlag, state);
-				break;
-				
-			case ACTION_REENTER:
-				mTeamM.onReenterState(stateFlag, state);
-				break;
-
-			default:
-				System.out.println("StateGroup >>> called dispatchStateCallback(): but action can't be resolved.");
-				break;
+	/**
+	 * handle the message by the target states. from the min state to the max.
+	 * @param flags the target states
+	 * @param msg the message
+	 * @param consume true if stop when the message is handled.
+	 * @return true if handled.
+	 */
+	private boolean handleMessage0(int flags, Message msg, boolean consume) {
+		final StateTable<S> map = getStateTable();
+		boolean handled = false;
+		for (int state; flags != 0; flags ^= state) {
+			state = BitFlags.lowest(flags);
+			if (map.get(state).handleMessage(msg)) {
+				if (consume) {
+					return true;
+				}
+				handled = true;
 			}
 		}
+		return handled;
 	}
-
+	
 	/**
 	 * check mutex state of the target expect states.
 	 * 
@@ -579,26 +502,18 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 	 */
 	private void checkMutexState(int expect) throws MutexStateException {
 		// check only one state.
-		if (max2K(expect) == expect) {
+		if (BitFlags.isSingle(expect)) {
 			// System.out.println("only one state. state = " + expect);
 			return;
 		}
-		final IController<S, P> contro = this.mController;
-		int flags = expect;
-		int key;
-		for (; flags > 0;) {
-			key = max2K(flags);
-			int[] mutexStates = contro.getMutexState(key);
-			if (mutexStates != null && mutexStates.length > 0) {
-				for (int s : mutexStates) {
-					if (s != key && (expect & s) != 0) {
-						// flags &= ~ s; //cancel state
-						throw new MutexStateException("check parameter ,find unexpect mutex states, "
-								+ "mutex states = (" + key + ", " + s + ")");
-					}
-				}
+		final Callback<S, P> callback = this.mCallback;
+		for (int flags = expect, key, mutex; flags != 0; flags ^= key) {
+			key = BitFlags.highest(flags);
+			mutex = callback.getMutexMask(key) & expect;
+			if (mutex != 0) {
+				throw new MutexStateException("check parameter ,find unexpect mutex states, "
+						+ "mutex states = (" + key + ", " + BitFlags.lowest(mutex) + ")");
 			}
-			flags -= key;
 		}
 	}
 	private List<S> getTargetStates(int targetStates, List<S> outStates) {
@@ -608,36 +523,17 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 		if(outStates == null){
 			outStates = new ArrayList<S>();
 		}
-		final SparseArray<S> stateMap = getStateMap();
-		getFlagsInternal(targetStates, sTempFlags);
-		for(int state : sTempFlags){
+		final StateTable<S> stateMap = getStateTable();
+		//sort ascending(up)
+		for (int state; targetStates != 0; targetStates ^= state) {
+			state = BitFlags.lowest(targetStates);
 			S s = stateMap.get(state);
 			if(s != null){
 			   s.setId(state);
 			   outStates.add(s);
-			}else{
-				System.err.println("[WARN] StateGroup >>> called [ getTargetStates()] : state not exit. state =" + state);
 			}
 		}
-		sTempFlags.clear();
 		return outStates;
 	}
-	private static List<Integer> getFlagsInternal(int targetFlags, List<Integer> outStates) {
-		if(outStates == null){
-			outStates = new ArrayList<Integer>();
-		}
-		//int curFlags = this.mCurrentStates;
-		int maxKey;
-		for (; targetFlags > 0;) {
-			maxKey = max2K(targetFlags);
-			if (maxKey > 0) {
-				//sort ascending(up)  
-				outStates.add(0, maxKey);
-				targetFlags -= maxKey;
-			}
-		}
-		return outStates;
-	}
-
 
 }
@@ -0,0 +1,91 @@
+package com.heaven7.java.mvcs;
+
+/**
+ * the immutable snapshot of the state flags of {@linkplain SimpleController}. which is published at the end of
+ * every transition, so it can be read by any thread without lock, and the flags of it are always consistent.
+ * the sequence is increased by every published snapshot. so the snapshots of the same controller can be ordered.
+ * @author heaven7
+ * @since 1.3.0
+ * @see SimpleController#getStateSnapshot()
+ */
+public final class StateSnapshot {
+
+	/** the empty snapshot. which is the snapshot of a new controller. */
+	/*package*/ static final StateSnapshot EMPTY = new StateSnapshot(0, 0, 0, 0);
+
+	private final int mCurrentStates;
+	private final int mGlobalStates;
+	private final int mCachedStates;
+	private final long mSequence;
+
+	/*package*/ StateSnapshot(int currentStates, int globalStates, int cachedStates, long sequence) {
+		this.mCurrentStates = currentStates;
+		this.mGlobalStates = globalStates;
+		this.mCachedStates = cachedStates;
+		this.mSequence = sequence;
+	}
+
+	/**
+	 * get the current state flags.
+	 * @return the current state flags
+	 * @see IController#getCurrentStateFlags()
+	 */
+	public int getCurrentStateFlags() {
+		return mCurrentStates;
+	}
+
+	/**
+	 * get the global state flags.
+	 * @return the global state flags
+	 * @see IController#getGlobalStateFlags()
+	 */
+	public int getGlobalStateFlags() {
+		return mGlobalStates;
+	}
+
+	/**
+	 * get the cached(background) state flags of the current states. which are exited but still cached.
+	 * @return the cached state flags
+	 */
+	public int getCachedStateFlags() {
+		return mCachedStates;
+	}
+
+	/**
+	 * get the sequence of this snapshot. which is increased by every transition that changes the flags.
+	 * @return the sequence
+	 */
+	public long getSequence() {
+		return mSequence;
+	}
+
+	/**
+	 * indicate the current states has the target state or not.
+	 * @param state the state
+	 * @return true if has the state
+	 * @see IController#hasState(int)
+	 */
+	public boolean hasState(int state) {
+		return state > 0 && (mCurrentStates & state) != 0;
+	}
+
+	/**
+	 * indicate the current states are the target states or not.
+	 * @param states the states
+	 * @return true if the current states equal the target states.
+	 * @see IController#isInState(int)
+	 */
+	public boolean isInState(int states) {
+		return mCurrentStates == states;
+	}
+
+	/*package*/ boolean isSameFlags(int currentStates, int globalStates, int cachedStates) {
+		return mCurrentStates == currentStates && mGlobalStates == globalStates && mCachedStates == cachedStates;
+	}
+
+	@Override
+	public String toString() {
+		return "StateSnapshot{current=" + mCurrentStates + ", global=" + mGlobalStates + ", cached=" + mCachedStates
+				+ ", sequence=" + mSequence + "}";
+	}
+}
@@ -0,0 +1,69 @@
+package com.heaven7.java.mvcs;
+
+import java.util.LinkedList;
+
+/**
+ * the history stack of states. which is shared by the controllers.
+ *
+ * @param <N> the node type of history.
+ * @author heaven7
+ * @since 1.3.0
+ */
+/* public */ final class StateStack<N> {
+
+	/** the history nodes. created when enabled. */
+	private LinkedList<N> mNodes;
+	/** indicate the state history is enabled or not. */
+	private boolean mEnabled;
+	/** the max size of state stack/history */
+	private int mMaxSize = 10;
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	public void setEnabled(boolean enable) {
+		this.mEnabled = enable;
+		if (enable) {
+			if (mNodes == null) {
+				mNodes = new LinkedList<N>();
+			}
+		} else {
+			clear();
+		}
+	}
+
+	public int getMaxSize() {
+		return mMaxSize;
+	}
+
+	public void setMaxSize(int max) {
+		this.mMaxSize = max;
+	}
+
+	public void clear() {
+		if (mNodes != null) {
+			mNodes.clear();
+		}
+	}
+
+	/**
+	 * indicate a node can be pushed or not. check it before create the node.
+	 * @return true if enabled and not full.
+	 */
+	public boolean canPush() {
+		return mEnabled && mNodes.size() < mMaxSize;
+	}
+
+	public void push(N node) {
+		mNodes.offerLast(node);
+	}
+
+	/**
+	 * pop the last node.
+	 * @return the last node. or null if empty.
+	 */
+	public N pop() {
+		return mNodes.pollLast();
+	}
+}
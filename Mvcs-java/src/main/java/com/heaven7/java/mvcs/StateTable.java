@@ -0,0 +1,146 @@
+package com.heaven7.java.mvcs;
+
+import java.util.Arrays;
+
+/**
+ * the state table which stores the state instances in slots. the slot is indexed by the bit position of state.
+ * so every lookup is O(1). single flag methods(like {@linkplain #get(int)}) are used by int flags,
+ * and index methods(like {@linkplain #getAt(int)}) are used by state index.
+ *
+ * @param <S> the state type
+ * @author heaven7
+ * @since 1.3.0
+ */
+/* public */ final class StateTable<S extends AbstractState<?>> {
+
+	private Object[] mSlots;
+	/** true if the slots can grow. */
+	private final boolean mGrowable;
+	/** the modify count. which is changed when any slot is changed. */
+	private int mModCount;
+
+	/**
+	 * create a state table.
+	 * @param capacity the initial slot count
+	 * @param growable true if the slots can grow on put.
+	 */
+	public StateTable(int capacity, boolean growable) {
+		this.mSlots = new Object[capacity];
+		this.mGrowable = growable;
+	}
+
+	/**
+	 * get the state of the target single flag.
+	 * @param flag the single flag
+	 * @return the state. or null if not exists or flag is not a single flag.
+	 */
+	public S get(int flag) {
+		if (flag == 0 || (flag & (flag - 1)) != 0) {
+			return null;
+		}
+		return getAt(Integer.numberOfTrailingZeros(flag));
+	}
+
+	/**
+	 * put the state for the target single flag.
+	 * @param flag the single flag
+	 * @param state the state
+	 */
+	public void put(int flag, S state) {
+		putAt(Integer.numberOfTrailingZeros(flag), state);
+	}
+
+	/**
+	 * remove the state of the target single flag.
+	 * @param flag the single flag
+	 * @return the removed state. or null.
+	 */
+	public S remove(int flag) {
+		if (flag == 0 || (flag & (flag - 1)) != 0) {
+			return null;
+		}
+		return removeAt(Integer.numberOfTrailingZeros(flag));
+	}
+
+	/**
+	 * get the state of the target index.
+	 * @param index the state index
+	 * @return the state. or null if not exists.
+	 */
+	@SuppressWarnings("unchecked")
+	public S getAt(int index) {
+		final Object[] slots = mSlots;
+		return index >= 0 && index < slots.length ? (S) slots[index] : null;
+	}
+
+	/**
+	 * put the state for the target index.
+	 * @param index the state index
+	 * @param state the state
+	 */
+	public void putAt(int index, S state) {
+		if (index >= mSlots.length) {
+			if (!mGrowable) {
+				throw new IndexOutOfBoundsException("index = " + index + " ,capacity = " + mSlots.length);
+			}
+			mSlots = Arrays.copyOf(mSlots, Math.max(index + 1, mSlots.length << 1));
+		}
+		mSlots[index] = state;
+		mModCount++;
+	}
+
+	/**
+	 * remove the state of the target index.
+	 * @param index the state index
+	 * @return the removed state. or null.
+	 */
+	@SuppressWarnings("unchecked")
+	public S removeAt(int index) {
+		final Object[] slots = mSlots;
+		if (index < 0 || index >= slots.length) {
+			return null;
+		}
+		final S old = (S) slots[index];
+		if (old != null) {
+			slots[index] = null;
+			mModCount++;
+		}
+		return old;
+	}
+
+	/**
+	 * get the modify count. which is changed when any slot is changed. so it can be used to check whether
+	 * a snapshot of states is stale or not.
+	 * @return the modify count
+	 */
+	public int getModCount() {
+		return mModCount;
+	}
+
+	/**
+	 * get the slot count.
+	 * @return the slot count
+	 */
+	public int capacity() {
+		return mSlots.length;
+	}
+
+	/**
+	 * dispose all states and clear the table.
+	 */
+	public void disposeAll() {
+		final Object[] slots = mSlots;
+		for (int i = slots.length - 1; i >= 0; i--) {
+			if (slots[i] != null) {
+				((AbstractState<?>) slots[i]).dispose();
+				slots[i] = null;
+			}
+		}
+		mModCount++;
+	}
+
+	public void clear() {
+		Arrays.fill(mSlots, null);
+		mModCount++;
+	}
+}
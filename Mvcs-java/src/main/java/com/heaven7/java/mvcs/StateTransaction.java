@@ -56,6 +56,19 @@ public abstract class StateTransaction<P> {
 	/* * the extra flags */
 	//int mFlags;
 
+	/**
+	 * the folded batch operations of current/global scope. the target states are
+	 * '(states & keep) | add'. the add masks are also the states which are reentered if they are kept.
+	 * @since 1.3.0
+	 */
+	int mCurrentKeep = -1;
+	int mCurrentAdd;
+	int mGlobalKeep = -1;
+	int mGlobalAdd;
+	/** true if any batch operation is appended.
+	 * @since 1.3.0 */
+	boolean mBatch;
+
 	private Runnable mStart;
 	private ResultAction<Boolean> mEnd;
 
@@ -98,6 +111,107 @@ public abstract class StateTransaction<P> {
 		return this;
 	}
 	
+	/**
+	 * append the 'add' operation to the batch of current scope. see {@linkplain #appendAdd(int, byte)}.
+	 * @param states the states to add.
+	 * @return this.
+	 * @since 1.3.0
+	 */
+	public StateTransaction<P> appendAdd(int states) {
+		return appendAdd(states, IController.FLAG_SCOPE_CURRENT);
+	}
+
+	/**
+	 * append the 'add' operation to the batch. the batch operations are folded and committed as one net
+	 * change: only the states which are really changed are entered or exited, and the added states which are kept
+	 * are reentered. so a state which is removed and added again is never exited and entered.
+	 * <p>Note: the batch operations can't be mixed with {@linkplain #operateAdd(int)} and etc.</p>
+	 * @param states the states to add.
+	 * @param scope the scope. {@linkplain IController#FLAG_SCOPE_CURRENT} or
+	 *         {@linkplain IController#FLAG_SCOPE_GLOBAL}.
+	 * @return this.
+	 * @since 1.3.0
+	 */
+	public StateTransaction<P> appendAdd(int states, byte scope) {
+		checkBatchOperation(states, scope);
+		if (scope == IController.FLAG_SCOPE_GLOBAL) {
+			mGlobalAdd |= states;
+		} else {
+			mCurrentAdd |= states;
+		}
+		return this;
+	}
+
+	/**
+	 * append the 'remove' operation to the batch of current scope. see {@linkplain #appendRemove(int, byte)}.
+	 * @param states the states to remove.
+	 * @return this.
+	 * @since 1.3.0
+	 */
+	public StateTransaction<P> appendRemove(int states) {
+		return appendRemove(states, IController.FLAG_SCOPE_CURRENT);
+	}
+
+	/**
+	 * append the 'remove' operation to the batch. see {@linkplain #appendAdd(int, byte)}.
+	 * @param states the states to remove.
+	 * @param scope the scope. {@linkplain IController#FLAG_SCOPE_CURRENT} or
+	 *         {@linkplain IController#FLAG_SCOPE_GLOBAL}.
+	 * @return this.
+	 * @since 1.3.0
+	 */
+	public StateTransaction<P> appendRemove(int states, byte scope) {
+		checkBatchOperation(states, scope);
+		if (scope == IController.FLAG_SCOPE_GLOBAL) {
+			mGlobalKeep &= ~states;
+			mGlobalAdd &= ~states;
+		} else {
+			mCurrentKeep &= ~states;
+			mCurrentAdd &= ~states;
+		}
+		return this;
+	}
+
+	/**
+	 * append the 'set' operation to the batch of current scope. see {@linkplain #appendSet(int, byte)}.
+	 * @param states the states to set.
+	 * @return this.
+	 * @since 1.3.0
+	 */
+	public StateTransaction<P> appendSet(int states) {
+		return appendSet(states, IController.FLAG_SCOPE_CURRENT);
+	}
+
+	/**
+	 * append the 'set' operation to the batch. see {@linkplain #appendAdd(int, byte)}.
+	 * @param states the states to set.
+	 * @param scope the scope. {@linkplain IController#FLAG_SCOPE_CURRENT} or
+	 *         {@linkplain IController#FLAG_SCOPE_GLOBAL}.
+	 * @return this.
+	 * @since 1.3.0
+	 */
+	public StateTransaction<P> appendSet(int states, byte scope) {
+		checkBatchOperation(states, scope);
+		if (scope == IController.FLAG_SCOPE_GLOBAL) {
+			mGlobalKeep = 0;
+			mGlobalAdd = states;
+		} else {
+			mCurrentKeep = 0;
+			mCurrentAdd = states;
+		}
+		return this;
+	}
+
+	private void checkBatchOperation(int states, byte scope) {
+		if (states < 0) {
+			throw new IllegalArgumentException("states can't be negative. states = " + states);
+		}
+		if (scope != IController.FLAG_SCOPE_CURRENT && scope != IController.FLAG_SCOPE_GLOBAL) {
+			throw new IllegalArgumentException("error scope = " + scope);
+		}
+		mBatch = true;
+	}
+
 	/**
 	 * set the compare type
 	 * @param cmpType the compare type
@@ -177,31 +291,54 @@ public abstract class StateTransaction<P> {
 	 * commit the transaction and perform the all operations.
 	 */
 	public boolean commit() {
-		if( mOp == 0 ){
+		if (mBatch) {
+			if (mOp != 0 || mOperateStates >= 0) {
+				reset();
+				throw new IllegalStateException("the batch operations can't be mixed with the single operate.");
+			}
+		} else if( mOp == 0 ){
+			reset();
 			throw new IllegalStateException("you must assign the operate of IController.");
 		}
-		if( mOperateStates < 0){
+		if(!mBatch && mOperateStates < 0){
+			reset();
 			throw new IllegalStateException("you must assign the states to operate.");
 		}
 		final ResultAction<Boolean> mEnd = this.mEnd;
-		if(!verifyCompareType(mCompareType)){
+		final boolean result;
+		try {
+			result = compareAndPerform();
+		} finally {
+			// the pooled transaction is always released. even if the operation failed.
 			reset();
-			if(mEnd != null){
-				mEnd.onActionResult(Boolean.FALSE);
-			}
-			return false;
-		}
-		
-		if(mStart != null){
-			mStart.run();
 		}
-		final boolean result = performTransaction();
-		reset();
 		if(mEnd != null){
 			mEnd.onActionResult(result);
 		}
 		return result;
 	}
+
+	/**
+	 * compare the states, then run the start action and perform the operations if matched. the controller
+	 * may override it to do them atomically.
+	 * @return true if compare and perform success.
+	 * @since 1.3.0
+	 */
+	boolean compareAndPerform(){
+		return verifyCompareType(mCompareType) && startAndPerform();
+	}
+
+	/**
+	 * run the start action and perform the operations. the compare is already passed.
+	 * @return true if perform success.
+	 * @since 1.3.0
+	 */
+	final boolean startAndPerform(){
+		if(mStart != null){
+			mStart.run();
+		}
+		return performTransaction();
+	}
 	
 	/**
 	 * verify the compare type
@@ -222,9 +359,23 @@ public abstract class StateTransaction<P> {
 		
 		this.mCompareState = 0;
 		this.mCompareType = 0;
+
+		this.mCurrentKeep = -1;
+		this.mCurrentAdd = 0;
+		this.mGlobalKeep = -1;
+		this.mGlobalAdd = 0;
+		this.mBatch = false;
 		
 		this.mStart = null;
 		this.mEnd = null;
+		onReset();
+	}
+
+	/**
+	 * called after the transaction is reset. that is it is committed or the compare is failed.
+	 * @since 1.3.0
+	 */
+	void onReset(){
 	}
 	
 	@Override
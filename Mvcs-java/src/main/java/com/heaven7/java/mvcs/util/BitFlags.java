@@ -0,0 +1,205 @@
+package com.heaven7.java.mvcs.util;
+
+/**
+ * the iteration helper of state flags(state masks). every single state is 2^n, so a mask is iterated
+ * by its set bits, which costs one bit operation per state and never allocates.
+ * <p>Ascending order(from lowest bit):</p>
+ * <pre>
+ * for (int flag; flags != 0; flags ^= flag) {
+ *     flag = BitFlags.lowest(flags);
+ *     ...
+ * }
+ * </pre>
+ * <p>Descending order(from highest bit): use {@linkplain #highest(int)} instead. Or use
+ * {@linkplain #visit(int, boolean, FlagVisitor)} with a reused visitor.</p>
+ * @author heaven7
+ * @since 1.3.0
+ * @see MathUtil#max2K(int)
+ */
+public final class BitFlags {
+
+	private BitFlags() {
+	}
+
+	/**
+	 * the visitor of single flags.
+	 * @since 1.3.0
+	 */
+	public interface FlagVisitor {
+		/**
+		 * called on visit a single flag.
+		 * @param flag the single flag (2^n).
+		 * @return true to continue visit, false to stop.
+		 */
+		boolean visit(int flag);
+	}
+
+	/**
+	 * the visitor of single long flags.
+	 * @since 1.3.0
+	 */
+	public interface LongFlagVisitor {
+		/**
+		 * called on visit a single flag.
+		 * @param flag the single flag (2^n).
+		 * @return true to continue visit, false to stop.
+		 */
+		boolean visit(long flag);
+	}
+
+	/**
+	 * get the lowest single flag of the target flags.
+	 * @param flags the flags
+	 * @return the lowest single flag. or 0 if flags is 0.
+	 */
+	public static int lowest(int flags) {
+		return flags & -flags;
+	}
+
+	/**
+	 * get the highest single flag of the target flags. the same as {@linkplain MathUtil#max2K(int)}
+	 * for positive flags.
+	 * @param flags the flags
+	 * @return the highest single flag. or 0 if flags is 0.
+	 */
+	public static int highest(int flags) {
+		return Integer.highestOneBit(flags);
+	}
+
+	/**
+	 * get the index(bit position) of the target single flag.
+	 * @param flag the single flag
+	 * @return the index of the flag. 32 if flag is 0.
+	 */
+	public static int indexOf(int flag) {
+		return Integer.numberOfTrailingZeros(flag);
+	}
+
+	/**
+	 * get the single flag of the target index.
+	 * @param index the index(bit position), [0, 31]
+	 * @return the single flag.
+	 */
+	public static int flagAt(int index) {
+		return 1 << index;
+	}
+
+	/**
+	 * get the count of single flags in the target flags.
+	 * @param flags the flags
+	 * @return the count of single flags.
+	 */
+	public static int count(int flags) {
+		return Integer.bitCount(flags);
+	}
+
+	/**
+	 * indicate the target flags only contains one single flag or not.
+	 * @param flags the flags
+	 * @return true if flags only contains one single flag or is zero.
+	 */
+	public static boolean isSingle(int flags) {
+		return (flags & (flags - 1)) == 0;
+	}
+
+	/**
+	 * visit the single flags of the target flags.
+	 * @param flags the flags to visit
+	 * @param descending true to visit from highest flag, false from lowest.
+	 * @param visitor the visitor
+	 * @return true if all flags visited. false if the visitor stopped it.
+	 */
+	public static boolean visit(int flags, boolean descending, FlagVisitor visitor) {
+		int flag;
+		if (descending) {
+			for (; flags != 0; flags ^= flag) {
+				flag = Integer.highestOneBit(flags);
+				if (!visitor.visit(flag)) {
+					return false;
+				}
+			}
+		} else {
+			for (; flags != 0; flags ^= flag) {
+				flag = flags & -flags;
+				if (!visitor.visit(flag)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	// ====================== long flags ============================
+
+	/**
+	 * get the lowest single flag of the target long flags.
+	 * @param flags the flags
+	 * @return the lowest single flag. or 0 if flags is 0.
+	 */
+	public static long lowest(long flags) {
+		return flags & -flags;
+	}
+
+	/**
+	 * get the highest single flag of the target long flags.
+	 * @param flags the flags
+	 * @return the highest single flag. or 0 if flags is 0.
+	 */
+	public static long highest(long flags) {
+		return Long.highestOneBit(flags);
+	}
+
+	/**
+	 * get the index(bit position) of the target single long flag.
+	 * @param flag the single flag
+	 * @return the index of the flag. 64 if flag is 0.
+	 */
+	public static int indexOf(long flag) {
+		return Long.numberOfTrailingZeros(flag);
+	}
+
+	/**
+	 * get the count of single flags in the target long flags.
+	 * @param flags the flags
+	 * @return the count of single flags.
+	 */
+	public static int count(long flags) {
+		return Long.bitCount(flags);
+	}
+
+	/**
+	 * indicate the target long flags only contains one single flag or not.
+	 * @param flags the flags
+	 * @return true if flags only contains one single flag or is zero.
+	 */
+	public static boolean isSingle(long flags) {
+		return (flags & (flags - 1)) == 0;
+	}
+
+	/**
+	 * visit the single flags of the target long flags.
+	 * @param flags the flags to visit
+	 * @param descending true to visit from highest flag, false from lowest.
+	 * @param visitor the visitor
+	 * @return true if all flags visited. false if the visitor stopped it.
+	 */
+	public static boolean visit(long flags, boolean descending, LongFlagVisitor visitor) {
+		long flag;
+		if (descending) {
+			for (; flags != 0; flags ^= flag) {
+				flag = Long.highestOneBit(flags);
+				if (!visitor.visit(flag)) {
+					return false;
+				}
+			}
+		} else {
+			for (; flags != 0; flags ^= flag) {
+				flag = flags & -flags;
+				if (!visitor.visit(flag)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
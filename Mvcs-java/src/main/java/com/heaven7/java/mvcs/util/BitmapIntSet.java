@@ -0,0 +1,266 @@
+package com.heaven7.java.mvcs.util;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * the {@linkplain IntSet} which uses a bitmap for small keys([0, 1024)) and an open-addressing hash
+ * for others. lock/unlock/check never allocate unless the storage need grow.
+ * <p>Note: this class is not thread-safe. use {@linkplain CopyOnWriteIntSet} if need.</p>
+ * @author heaven7
+ * @since 1.3.0
+ */
+public final class BitmapIntSet implements IntSet {
+
+	/** the keys in [0, BITMAP_LIMIT) are stored in bitmap. */
+	private static final int BITMAP_LIMIT = 1024;
+	/** the free slot of hash. 0 is always stored in bitmap. */
+	private static final int FREE = 0;
+
+	/** the bitmap words. lazy load. */
+	private long[] mWords;
+	/** the count of keys in bitmap. */
+	private int mBitmapSize;
+
+	/** the hash slots. lazy load. */
+	private int[] mSlots;
+	/** the count of keys in hash. */
+	private int mHashSize;
+
+	public BitmapIntSet() {
+	}
+
+	/**
+	 * create a copy of the target set.
+	 * @param src the source set
+	 */
+	public BitmapIntSet(BitmapIntSet src) {
+		this.mWords = src.mWords != null ? src.mWords.clone() : null;
+		this.mBitmapSize = src.mBitmapSize;
+		this.mSlots = src.mSlots != null ? src.mSlots.clone() : null;
+		this.mHashSize = src.mHashSize;
+	}
+
+	@Override
+	public boolean add(int key) {
+		if (key >= 0 && key < BITMAP_LIMIT) {
+			final int index = key >>> 6;
+			if (mWords == null || index >= mWords.length) {
+				mWords = mWords == null ? new long[index + 1] : Arrays.copyOf(mWords, index + 1);
+			}
+			final long bit = 1L << key;
+			if ((mWords[index] & bit) != 0) {
+				return false;
+			}
+			mWords[index] |= bit;
+			mBitmapSize++;
+			return true;
+		}
+		if (mSlots == null) {
+			mSlots = new int[8];
+		} else if ((mHashSize + 1) << 1 > mSlots.length) {
+			rehash(mSlots.length << 1);
+		}
+		final int[] slots = mSlots;
+		final int mask = slots.length - 1;
+		for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+			if (slots[i] == FREE) {
+				slots[i] = key;
+				mHashSize++;
+				return true;
+			}
+			if (slots[i] == key) {
+				return false;
+			}
+		}
+	}
+
+	@Override
+	public boolean addAll(int... keys) {
+		boolean result = true;
+		for (int key : keys) {
+			if (!add(key)) {
+				result = false;
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public boolean remove(int key) {
+		if (key >= 0 && key < BITMAP_LIMIT) {
+			final int index = key >>> 6;
+			final long bit = 1L << key;
+			if (mWords == null || index >= mWords.length || (mWords[index] & bit) == 0) {
+				return false;
+			}
+			mWords[index] &= ~bit;
+			mBitmapSize--;
+			return true;
+		}
+		final int[] slots = mSlots;
+		if (slots == null) {
+			return false;
+		}
+		final int mask = slots.length - 1;
+		int i = hash(key) & mask;
+		for (;; i = (i + 1) & mask) {
+			if (slots[i] == FREE) {
+				return false;
+			}
+			if (slots[i] == key) {
+				break;
+			}
+		}
+		// backward shift deletion. keep the probe sequence of others.
+		slots[i] = FREE;
+		mHashSize--;
+		for (int j = (i + 1) & mask, k, ideal; slots[j] != FREE; j = (j + 1) & mask) {
+			k = slots[j];
+			ideal = hash(k) & mask;
+			// the distance from ideal to j is greater than or equal to the distance from i to j. move it to i.
+			if (((j - ideal) & mask) >= ((j - i) & mask)) {
+				slots[i] = k;
+				slots[j] = FREE;
+				i = j;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean removeAll(int... keys) {
+		boolean result = true;
+		for (int key : keys) {
+			if (!remove(key)) {
+				result = false;
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public boolean contains(int key) {
+		if (key >= 0 && key < BITMAP_LIMIT) {
+			final long[] words = mWords;
+			final int index = key >>> 6;
+			return words != null && index < words.length && (words[index] & (1L << key)) != 0;
+		}
+		final int[] slots = mSlots;
+		if (slots == null) {
+			return false;
+		}
+		final int mask = slots.length - 1;
+		for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+			if (slots[i] == key) {
+				return true;
+			}
+			if (slots[i] == FREE) {
+				return false;
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		return mBitmapSize + mHashSize;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	@Override
+	public void clear() {
+		if (mWords != null) {
+			Arrays.fill(mWords, 0);
+		}
+		if (mSlots != null) {
+			Arrays.fill(mSlots, FREE);
+		}
+		mBitmapSize = 0;
+		mHashSize = 0;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>the keys of bitmap are in ascending order. and followed by the keys of hash.</p>
+	 */
+	@Override
+	public int[] toArray() {
+		final int[] result = new int[size()];
+		int count = 0;
+		final long[] words = mWords;
+		if (words != null) {
+			for (int i = 0; i < words.length; i++) {
+				for (long word = words[i], bit; word != 0; word ^= bit) {
+					bit = BitFlags.lowest(word);
+					result[count++] = (i << 6) + BitFlags.indexOf(bit);
+				}
+			}
+		}
+		final int[] slots = mSlots;
+		if (slots != null) {
+			for (int key : slots) {
+				if (key != FREE) {
+					result[count++] = key;
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public IntIterator iterator() {
+		return new ArrayIntIterator(toArray());
+	}
+
+	@Override
+	public String toString() {
+		return "BitmapIntSet" + Arrays.toString(toArray());
+	}
+
+	private void rehash(int newCapacity) {
+		final int[] old = mSlots;
+		final int[] slots = new int[newCapacity];
+		final int mask = newCapacity - 1;
+		for (int key : old) {
+			if (key != FREE) {
+				int i = hash(key) & mask;
+				while (slots[i] != FREE) {
+					i = (i + 1) & mask;
+				}
+				slots[i] = key;
+			}
+		}
+		mSlots = slots;
+	}
+
+	private static int hash(int key) {
+		final int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static final class ArrayIntIterator implements IntIterator {
+		private final int[] mKeys;
+		private int mIndex;
+
+		ArrayIntIterator(int[] keys) {
+			this.mKeys = keys;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return mIndex < mKeys.length;
+		}
+
+		@Override
+		public int next() {
+			if (mIndex >= mKeys.length) {
+				throw new NoSuchElementException();
+			}
+			return mKeys[mIndex++];
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package com.heaven7.java.mvcs.util;
+
+/**
+ * the clock which is used for message timing. the time is in nanoseconds and never goes back.
+ * @author heaven7
+ * @since 1.3.0
+ * @see VirtualClock
+ */
+public abstract class Clock {
+
+	/**
+	 * get the current time of this clock in nanoseconds. the origin of the time is not defined. but it is never negative.
+	 * @return the current time in nanoseconds.
+	 */
+	public abstract long nanoTime();
+
+	/**
+	 * get the monotonic clock which is based on {@linkplain System#nanoTime()}. it doesn't jump with wall-clock
+	 * adjustment.
+	 * @return the monotonic clock
+	 */
+	public static Clock monotonic() {
+		return MonotonicClock.INSTANCE;
+	}
+
+	private static final class MonotonicClock extends Clock {
+		static final MonotonicClock INSTANCE = new MonotonicClock();
+		/** the origin. make the time never negative. */
+		private final long mOrigin = System.nanoTime();
+
+		@Override
+		public long nanoTime() {
+			return System.nanoTime() - mOrigin;
+		}
+
+		@Override
+		public String toString() {
+			return "Clock.monotonic()";
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.heaven7.java.mvcs.util;
+
+import java.util.Arrays;
+
+/**
+ * the thread-safe {@linkplain IntSet}. every modify copies the backing {@linkplain BitmapIntSet} and
+ * publishes it. so {@linkplain #contains(int)} and {@linkplain #iterator()} never lock, and can be called
+ * by any thread at high rates. the modify should be rare.
+ * @author heaven7
+ * @since 1.3.0
+ */
+public final class CopyOnWriteIntSet implements IntSet {
+
+	/** the published set. never modified after published. */
+	private volatile BitmapIntSet mSet = new BitmapIntSet();
+
+	@Override
+	public boolean add(int key) {
+		synchronized (this) {
+			if (mSet.contains(key)) {
+				return false;
+			}
+			final BitmapIntSet set = new BitmapIntSet(mSet);
+			set.add(key);
+			mSet = set;
+			return true;
+		}
+	}
+
+	@Override
+	public boolean addAll(int... keys) {
+		synchronized (this) {
+			final BitmapIntSet set = new BitmapIntSet(mSet);
+			final boolean result = set.addAll(keys);
+			mSet = set;
+			return result;
+		}
+	}
+
+	@Override
+	public boolean remove(int key) {
+		synchronized (this) {
+			if (!mSet.contains(key)) {
+				return false;
+			}
+			final BitmapIntSet set = new BitmapIntSet(mSet);
+			set.remove(key);
+			mSet = set;
+			return true;
+		}
+	}
+
+	@Override
+	public boolean removeAll(int... keys) {
+		synchronized (this) {
+			final BitmapIntSet set = new BitmapIntSet(mSet);
+			final boolean result = set.removeAll(keys);
+			mSet = set;
+			return result;
+		}
+	}
+
+	@Override
+	public boolean contains(int key) {
+		return mSet.contains(key);
+	}
+
+	@Override
+	public int size() {
+		return mSet.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return mSet.isEmpty();
+	}
+
+	@Override
+	public void clear() {
+		synchronized (this) {
+			mSet = new BitmapIntSet();
+		}
+	}
+
+	@Override
+	public int[] toArray() {
+		return mSet.toArray();
+	}
+
+	@Override
+	public IntIterator iterator() {
+		return mSet.iterator();
+	}
+
+	@Override
+	public String toString() {
+		return "CopyOnWriteIntSet" + Arrays.toString(mSet.toArray());
+	}
+}
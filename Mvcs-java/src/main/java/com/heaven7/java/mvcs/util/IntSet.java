@@ -0,0 +1,94 @@
+package com.heaven7.java.mvcs.util;
+
+/**
+ * the set of primitive int. which never boxes the keys.
+ * @author heaven7
+ * @since 1.3.0
+ * @see BitmapIntSet
+ * @see CopyOnWriteIntSet
+ */
+public interface IntSet {
+
+	/**
+	 * the iterator of primitive int.
+	 * @since 1.3.0
+	 */
+	interface IntIterator {
+		/**
+		 * indicate has next key or not.
+		 * @return true if has next key.
+		 */
+		boolean hasNext();
+
+		/**
+		 * get the next key.
+		 * @return the next key
+		 * @throws java.util.NoSuchElementException if not have next key.
+		 */
+		int next();
+	}
+
+	/**
+	 * add the key.
+	 * @param key the key
+	 * @return true if the key is added. false if it already exists.
+	 */
+	boolean add(int key);
+
+	/**
+	 * add the all keys.
+	 * @param keys the keys
+	 * @return true if the all keys are added. false if any key already exists.
+	 */
+	boolean addAll(int... keys);
+
+	/**
+	 * remove the key.
+	 * @param key the key
+	 * @return true if the key is removed. false if it not exists.
+	 */
+	boolean remove(int key);
+
+	/**
+	 * remove the all keys.
+	 * @param keys the keys
+	 * @return true if the all keys are removed. false if any key not exists.
+	 */
+	boolean removeAll(int... keys);
+
+	/**
+	 * indicate the key is contained or not.
+	 * @param key the key
+	 * @return true if contains.
+	 */
+	boolean contains(int key);
+
+	/**
+	 * get the key count.
+	 * @return the key count.
+	 */
+	int size();
+
+	/**
+	 * indicate the set is empty or not.
+	 * @return true if empty.
+	 */
+	boolean isEmpty();
+
+	/**
+	 * clear all keys.
+	 */
+	void clear();
+
+	/**
+	 * get the all keys as array.
+	 * @return the keys array. never null.
+	 */
+	int[] toArray();
+
+	/**
+	 * get the snapshot iterator of keys. later modify of this set will not reflect to the iterator.
+	 * @return the snapshot iterator
+	 */
+	IntIterator iterator();
+}
@@ -19,6 +19,7 @@ public class MathUtil {
 	 *            the target
 	 * @return the max value(2^k) . which is the max value below n with value <=
 	 *         n.
+	 * @see BitFlags#highest(int)
 	 */
 	public static int max2K(int n) {
 		return (int) Math.pow(2, log2n(n));
@@ -0,0 +1,64 @@
+package com.heaven7.java.mvcs.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * the clock which is advanced manually. used by tests, simulations and benchmarks to fast-forward the timers.
+ * @author heaven7
+ * @since 1.3.0
+ */
+public final class VirtualClock extends Clock {
+
+	private volatile long mNanos;
+
+	/**
+	 * create a virtual clock which starts at 0.
+	 */
+	public VirtualClock() {
+	}
+
+	/**
+	 * create a virtual clock.
+	 * @param startNanos the start time in nanoseconds. must not be negative.
+	 */
+	public VirtualClock(long startNanos) {
+		if (startNanos < 0) {
+			throw new IllegalArgumentException("startNanos must >= 0");
+		}
+		this.mNanos = startNanos;
+	}
+
+	@Override
+	public long nanoTime() {
+		return mNanos;
+	}
+
+	/**
+	 * advance this clock.
+	 * @param delta the delta time. must not be negative.
+	 * @param unit the time unit of delta.
+	 * @return the new time in nanoseconds.
+	 */
+	public long advance(long delta, TimeUnit unit) {
+		if (delta < 0) {
+			throw new IllegalArgumentException("the clock can't go back.");
+		}
+		synchronized (this) {
+			return mNanos += unit.toNanos(delta);
+		}
+	}
+
+	/**
+	 * advance this clock by milliseconds.
+	 * @param deltaMillis the delta time in milliseconds. must not be negative.
+	 * @return the new time in nanoseconds.
+	 */
+	public long advance(long deltaMillis) {
+		return advance(deltaMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public String toString() {
+		return "VirtualClock{nanos=" + mNanos + "}";
+	}
+}
@@ -0,0 +1,223 @@
+package com.heaven7.java.mvcs.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.heaven7.java.mvcs.AbstractController;
+import com.heaven7.java.mvcs.ActorController;
+import com.heaven7.java.mvcs.IController;
+import com.heaven7.java.mvcs.Message;
+import com.heaven7.java.mvcs.SharedMessageTimer;
+import com.heaven7.java.mvcs.SimpleController;
+import com.heaven7.java.mvcs.SimpleState;
+import com.heaven7.java.mvcs.StateTransaction;
+
+import junit.framework.TestCase;
+
+/**
+ * the tests of {@linkplain ActorController}.
+ * @author heaven7
+ */
+public class ActorControllerTests extends TestCase {
+
+	private static final int ACTORS = 100;
+	private static final int STATE_COUNTER = 1;
+
+	/** the state which counts the messages. which is only touched by the actor. */
+	private static class CounterState extends SimpleState<String> {
+		final List<Long> values = new ArrayList<Long>();
+
+		@Override
+		public boolean handleMessage(Message msg) {
+			values.add((long) msg.arg1);
+			return true;
+		}
+	}
+
+	private ExecutorService mExecutor;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mExecutor = Executors.newFixedThreadPool(4);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mExecutor.shutdownNow();
+		super.tearDown();
+	}
+
+	private static SimpleController<SimpleState<String>, String> createController(final CounterState state) {
+		final SimpleController<SimpleState<String>, String> controller =
+				new SimpleController<SimpleState<String>, String>();
+		controller.setStateFactory(new IController.StateFactory<SimpleState<String>, String>() {
+			@Override
+			public SimpleState<String> createState(int stateKey, String s) {
+				return stateKey == STATE_COUNTER ? state : new CounterState();
+			}
+		});
+		controller.setParameterMerger(new ParamepterMergerImpl());
+		return controller;
+	}
+
+	public void testConcurrentDispatch() throws Exception {
+		final List<CounterState> states = new ArrayList<CounterState>();
+		final List<ActorController<SimpleState<String>, String>> actors =
+				new ArrayList<ActorController<SimpleState<String>, String>>();
+		for (int i = 0; i < ACTORS; i++) {
+			final CounterState state = new CounterState();
+			final ActorController<SimpleState<String>, String> actor =
+					new ActorController<SimpleState<String>, String>(createController(state), mExecutor);
+			actor.setThroughput(8);
+			assertTrue(actor.addState(STATE_COUNTER).get(5, TimeUnit.SECONDS));
+			states.add(state);
+			actors.add(actor);
+		}
+		final int producers = 4;
+		final int count = 200;
+		final Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			threads[p] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < count; j++) {
+						for (ActorController<SimpleState<String>, String> actor : actors) {
+							actor.dispatchMessage(Message.obtain(0, producer * count + j, null, null),
+									IController.POLICY_BROADCAST);
+						}
+					}
+				}
+			};
+			threads[p].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		// the mailbox is FIFO. so the last one is completed after the all.
+		for (ActorController<SimpleState<String>, String> actor : actors) {
+			actor.update(0, null).get(5, TimeUnit.SECONDS);
+		}
+		for (CounterState state : states) {
+			assertEquals(producers * count, state.values.size());
+			// the order of every producer is kept.
+			final long[] last = new long[producers];
+			for (int i = 0; i < producers; i++) {
+				last[i] = -1;
+			}
+			for (long value : state.values) {
+				final int producer = (int) (value / count);
+				assertTrue(value > last[producer]);
+				last[producer] = value;
+			}
+		}
+	}
+
+	public void testRejectSharedTimer() throws Exception {
+		SimpleController<SimpleState<String>, String> controller = createController(new CounterState());
+		controller.setMessageTimer(new SharedMessageTimer());
+		try {
+			new ActorController<SimpleState<String>, String>(controller, mExecutor);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		controller = createController(new CounterState());
+		final ActorController<SimpleState<String>, String> actor = new ActorController<SimpleState<String>, String>(
+				controller, mExecutor);
+		final ActorController.Completion<Void> result = actor
+				.submit(new ActorController.Action<SimpleState<String>, String, Void>() {
+					@Override
+					public Void run(AbstractController<SimpleState<String>, String> controller) {
+						controller.setMessageTimer(new SharedMessageTimer());
+						return null;
+					}
+				});
+		try {
+			result.get(5, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+
+	public void testSubmitAndFailure() throws Exception {
+		final ActorController<SimpleState<String>, String> actor = new ActorController<SimpleState<String>, String>(
+				createController(new CounterState()), mExecutor);
+		final ActorController.Completion<Boolean> result = actor
+				.submit(new ActorController.Action<SimpleState<String>, String, Boolean>() {
+					@Override
+					public Boolean run(AbstractController<SimpleState<String>, String> controller) {
+						controller.addState(2);
+						return controller.beginTransaction()
+								.compareStates(2)
+								.compareType(StateTransaction.COMPARE_TYPE_HAS)
+								.operateAdd(4)
+								.applyType(StateTransaction.APPLY_TYPE_ADD)
+								.commit();
+					}
+				});
+		assertTrue(result.get(5, TimeUnit.SECONDS));
+		assertTrue(actor.compareAndApply(2 | 4, 8, StateTransaction.COMPARE_TYPE_EQUALS,
+				StateTransaction.APPLY_TYPE_SET, null).get(5, TimeUnit.SECONDS));
+
+		final ActorController.Completion<Integer> flags = actor
+				.submit(new ActorController.Action<SimpleState<String>, String, Integer>() {
+					@Override
+					public Integer run(AbstractController<SimpleState<String>, String> controller) {
+						return controller.getCurrentStateFlags();
+					}
+				});
+		assertEquals(8, flags.get(5, TimeUnit.SECONDS).intValue());
+
+		final ActorController.Completion<Void> failed = actor
+				.submit(new ActorController.Action<SimpleState<String>, String, Void>() {
+					@Override
+					public Void run(AbstractController<SimpleState<String>, String> controller) {
+						throw new IllegalStateException("failed");
+					}
+				});
+		try {
+			failed.get(5, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		// the actor still works after a failure.
+		assertTrue(actor.removeState(8).get(5, TimeUnit.SECONDS));
+		assertTrue(failed.getError() instanceof IllegalStateException);
+
+		// the cancelled one is never executed. the callback is called once it is done.
+		final ActorController.Completion<Boolean> blocker = actor
+				.submit(new ActorController.Action<SimpleState<String>, String, Boolean>() {
+					@Override
+					public Boolean run(AbstractController<SimpleState<String>, String> controller)
+							throws Exception {
+						Thread.sleep(50);
+						return true;
+					}
+				});
+		final ActorController.Completion<Boolean> cancelled = actor.addState(16);
+		assertTrue(cancelled.cancel(false));
+		final List<Boolean> done = new ArrayList<Boolean>();
+		cancelled.setCallback(new ActorController.Completion.Callback<Boolean>() {
+			@Override
+			public void onDone(ActorController.Completion<Boolean> completion) {
+				done.add(completion.isCancelled());
+			}
+		});
+		assertEquals("[true]", done.toString());
+		assertTrue(blocker.get(5, TimeUnit.SECONDS));
+		assertEquals(0, actor.submit(new ActorController.Action<SimpleState<String>, String, Integer>() {
+			@Override
+			public Integer run(AbstractController<SimpleState<String>, String> controller) {
+				return controller.getCurrentStateFlags();
+			}
+		}).get(5, TimeUnit.SECONDS).intValue());
+	}
+}
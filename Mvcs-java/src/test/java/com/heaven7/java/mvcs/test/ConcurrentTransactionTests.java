@@ -0,0 +1,291 @@
+package com.heaven7.java.mvcs.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.heaven7.java.mvcs.IController;
+import com.heaven7.java.mvcs.SimpleController;
+import com.heaven7.java.mvcs.SimpleState;
+import com.heaven7.java.mvcs.StateTransaction;
+import com.heaven7.java.mvcs.util.MutexStateException;
+
+import junit.framework.TestCase;
+
+/**
+ * the tests of {@linkplain SimpleController#compareAndApply(int, int, byte, byte, Object, byte)}, the interface
+ * compare-and-apply and the pooled transactions.
+ * @author heaven7
+ */
+public class ConcurrentTransactionTests extends TestCase {
+
+	private static final int STATE_A = 1;
+	private static final int STATE_B = 2;
+	private static final int STATE_BLOCK = 4;
+
+	private final AtomicInteger mEnterA = new AtomicInteger();
+	private final AtomicInteger mEnterB = new AtomicInteger();
+	private CountDownLatch mEntered;
+	private CountDownLatch mRelease;
+	private SimpleController<SimpleState<String>, String> mController;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mController = new SimpleController<SimpleState<String>, String>();
+		mController.setStateFactory(new IController.StateFactory<SimpleState<String>, String>() {
+			@Override
+			public SimpleState<String> createState(final int stateKey, String s) {
+				return new SimpleState<String>() {
+					@Override
+					public void onEnter() {
+						super.onEnter();
+						switch (stateKey) {
+						case STATE_A:
+							mEnterA.incrementAndGet();
+							break;
+						case STATE_B:
+							mEnterB.incrementAndGet();
+							break;
+						case STATE_BLOCK:
+							mEntered.countDown();
+							try {
+								mRelease.await();
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+							break;
+						}
+					}
+				};
+			}
+		});
+		mController.setParameterMerger(new ParamepterMergerImpl());
+	}
+
+	public void testConcurrentCompareAndApply() throws InterruptedException {
+		mController.setState(STATE_A);
+		mEnterA.set(0);
+		final AtomicInteger toB = new AtomicInteger();
+		final AtomicInteger toA = new AtomicInteger();
+		final Thread[] threads = new Thread[4];
+		// the interface method is the same as the retry policy.
+		final IController<SimpleState<String>, String> controller = mController;
+		for (int i = 0; i < threads.length; i++) {
+			final boolean byInterface = i % 2 == 0;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 500; j++) {
+						if (byInterface ? controller.compareAndApply(STATE_A, STATE_B,
+								StateTransaction.COMPARE_TYPE_EQUALS, StateTransaction.APPLY_TYPE_SET, null)
+								: mController.compareAndApply(STATE_A, STATE_B, StateTransaction.COMPARE_TYPE_EQUALS,
+										StateTransaction.APPLY_TYPE_SET, null, IController.CONFLICT_RETRY)) {
+							toB.incrementAndGet();
+						}
+						if (byInterface ? controller.compareAndApply(STATE_B, STATE_A,
+								StateTransaction.COMPARE_TYPE_EQUALS, StateTransaction.APPLY_TYPE_SET, null)
+								: mController.compareAndApply(STATE_B, STATE_A, StateTransaction.COMPARE_TYPE_EQUALS,
+										StateTransaction.APPLY_TYPE_SET, null, IController.CONFLICT_RETRY)) {
+							toA.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		// every transition is applied to the states which are compared.
+		assertTrue(toB.get() > 0);
+		assertEquals(toB.get(), mEnterB.get());
+		assertEquals(toA.get(), mEnterA.get());
+		assertEquals(toB.get() == toA.get() ? STATE_A : STATE_B, mController.getCurrentStateFlags());
+		assertEquals(toA.get() + toB.get() + 1, mController.getStateSnapshot().getSequence());
+	}
+
+	public void testFailFast() throws InterruptedException {
+		mEntered = new CountDownLatch(1);
+		mRelease = new CountDownLatch(1);
+		final Thread blocker = new Thread() {
+			@Override
+			public void run() {
+				mController.addState(STATE_BLOCK);
+			}
+		};
+		blocker.start();
+		assertTrue(mEntered.await(5, TimeUnit.SECONDS));
+		// another transition is running.
+		assertFalse(mController.compareAndApply(STATE_BLOCK, STATE_A, StateTransaction.COMPARE_TYPE_HAS,
+				StateTransaction.APPLY_TYPE_ADD, null, IController.CONFLICT_FAIL_FAST));
+		mRelease.countDown();
+		blocker.join();
+		assertTrue(mController.compareAndApply(STATE_BLOCK, STATE_A, StateTransaction.COMPARE_TYPE_HAS,
+				StateTransaction.APPLY_TYPE_ADD, null, IController.CONFLICT_FAIL_FAST));
+		// compare failed.
+		assertFalse(mController.compareAndApply(STATE_B, STATE_A, StateTransaction.COMPARE_TYPE_HAS,
+				StateTransaction.APPLY_TYPE_ADD, null, IController.CONFLICT_RETRY));
+		assertEquals(STATE_BLOCK | STATE_A, mController.getCurrentStateFlags());
+	}
+
+	public void testConcurrentBuilder() throws InterruptedException {
+		mController.setState(STATE_A);
+		mEnterA.set(0);
+		final AtomicInteger toB = new AtomicInteger();
+		final AtomicInteger toA = new AtomicInteger();
+		final Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 500; j++) {
+						if (mController.beginTransaction().compareStates(STATE_A)
+								.compareType(StateTransaction.COMPARE_TYPE_EQUALS).operateSet(STATE_B).commit()) {
+							toB.incrementAndGet();
+						}
+						if (mController.beginTransaction().compareStates(STATE_B)
+								.compareType(StateTransaction.COMPARE_TYPE_EQUALS).operateSet(STATE_A).commit()) {
+							toA.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		// the compare and the operation of builder are atomic.
+		assertTrue(toB.get() > 0);
+		assertEquals(toB.get(), mEnterB.get());
+		assertEquals(toA.get(), mEnterA.get());
+		assertEquals(toB.get() == toA.get() ? STATE_A : STATE_B, mController.getCurrentStateFlags());
+	}
+
+	public void testFailedCommitResets() throws Throwable {
+		// a new thread. so its pooled transaction is clean.
+		final Throwable[] error = new Throwable[1];
+		final Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					doTestFailedCommitResets();
+				} catch (Throwable e) {
+					error[0] = e;
+				}
+			}
+		};
+		thread.start();
+		thread.join();
+		if (error[0] != null) {
+			throw error[0];
+		}
+	}
+
+	private void doTestFailedCommitResets() {
+		mController.setMutexState(new int[] { STATE_A }, new int[] { STATE_B });
+		final StateTransaction<String> transaction = mController.beginTransaction();
+		try {
+			transaction.operateAdd(STATE_A | STATE_B).commit();
+			fail();
+		} catch (MutexStateException e) {
+			// expected
+		}
+		// the pooled one is released and clean.
+		assertSame(transaction, mController.beginTransaction());
+		try {
+			transaction.compareStates(STATE_A).commit();
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertSame(transaction, mController.beginTransaction());
+		assertTrue(transaction.operateAdd(STATE_A).commit());
+		assertEquals(STATE_A, mController.getCurrentStateFlags());
+		// the transition is released.
+		assertFalse(mController.compareAndApply(STATE_B, STATE_A, StateTransaction.COMPARE_TYPE_HAS,
+				StateTransaction.APPLY_TYPE_ADD, null, IController.CONFLICT_FAIL_FAST));
+		assertTrue(mController.compareAndApply(STATE_A, STATE_B, StateTransaction.COMPARE_TYPE_HAS,
+				StateTransaction.APPLY_TYPE_SET, null, IController.CONFLICT_FAIL_FAST));
+	}
+
+	public void testRetryWaitsForBlocker() throws InterruptedException {
+		mEntered = new CountDownLatch(1);
+		mRelease = new CountDownLatch(1);
+		final Thread blocker = new Thread() {
+			@Override
+			public void run() {
+				mController.addState(STATE_BLOCK);
+			}
+		};
+		blocker.start();
+		assertTrue(mEntered.await(5, TimeUnit.SECONDS));
+		final boolean[] result = new boolean[1];
+		final Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				result[0] = mController.compareAndApply(STATE_BLOCK, STATE_A, StateTransaction.COMPARE_TYPE_HAS,
+						StateTransaction.APPLY_TYPE_ADD, null);
+			}
+		};
+		waiter.start();
+		// the waiter parks while the blocker is running. then it sees the flags of blocker.
+		Thread.sleep(50);
+		assertTrue(waiter.isAlive());
+		mRelease.countDown();
+		blocker.join();
+		waiter.join(5000);
+		assertFalse(waiter.isAlive());
+		assertTrue(result[0]);
+		assertEquals(STATE_BLOCK | STATE_A, mController.getCurrentStateFlags());
+	}
+
+	public void testNestedCompareAndApply() {
+		final SimpleController<SimpleState<String>, String> controller =
+				new SimpleController<SimpleState<String>, String>();
+		controller.setStateFactory(new IController.StateFactory<SimpleState<String>, String>() {
+			@Override
+			public SimpleState<String> createState(final int stateKey, String s) {
+				return new SimpleState<String>() {
+					@Override
+					public void onEnter() {
+						super.onEnter();
+						if (stateKey == STATE_A) {
+							// nested in the transition of this thread.
+							assertTrue(controller.compareAndApply(STATE_A, STATE_B,
+									StateTransaction.COMPARE_TYPE_HAS, StateTransaction.APPLY_TYPE_ADD, null));
+							assertFalse(controller.compareAndApply(STATE_BLOCK, STATE_B,
+									StateTransaction.COMPARE_TYPE_HAS, StateTransaction.APPLY_TYPE_ADD, null));
+						}
+					}
+				};
+			}
+		});
+		controller.setParameterMerger(new ParamepterMergerImpl());
+		assertTrue(controller.addState(STATE_A));
+		assertEquals(STATE_A | STATE_B, controller.getCurrentStateFlags());
+		assertEquals(STATE_A | STATE_B, controller.getStateSnapshot().getCurrentStateFlags());
+	}
+
+	public void testPooledTransaction() throws InterruptedException {
+		final StateTransaction<String> transaction = mController.beginTransaction();
+		assertTrue(transaction.operateAdd(STATE_A).applyType(StateTransaction.APPLY_TYPE_ADD).commit());
+		// pooled by thread.
+		assertSame(transaction, mController.beginTransaction());
+		final SimpleController<SimpleState<String>, String> other = new SimpleController<SimpleState<String>, String>();
+		// building for another controller.
+		assertNotSame(transaction, other.beginTransaction());
+
+		final Object[] otherThread = new Object[1];
+		final Thread thread = new Thread() {
+			@Override
+			public void run() {
+				otherThread[0] = mController.beginTransaction();
+			}
+		};
+		thread.start();
+		thread.join();
+		assertNotSame(transaction, otherThread[0]);
+	}
+}
@@ -0,0 +1,213 @@
+package com.heaven7.java.mvcs.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import com.heaven7.java.mvcs.ControllerWorld;
+import com.heaven7.java.mvcs.IController;
+import com.heaven7.java.mvcs.Message;
+import com.heaven7.java.mvcs.SharedMessageTimer;
+import com.heaven7.java.mvcs.SimpleController;
+import com.heaven7.java.mvcs.SimpleState;
+import com.heaven7.java.mvcs.util.VirtualClock;
+
+import junit.framework.TestCase;
+
+/**
+ * the tests of {@linkplain ControllerWorld}.
+ * @author heaven7
+ */
+public class ControllerWorldTests extends TestCase {
+
+	private static final int STATE_RECORD = 1;
+	private static final int COUNT = 2000;
+
+	/** the state which records the events: what of message or -1 for update. */
+	private static class RecordState extends SimpleState<String> {
+		final List<Integer> records = new ArrayList<Integer>();
+		IController<?, ?> controller;
+		boolean updateEnabled = true;
+		String updateParam;
+
+		@Override
+		public boolean isUpdateEnabled() {
+			return updateEnabled;
+		}
+
+		@Override
+		public boolean handleMessage(Message msg) {
+			records.add(msg.what);
+			if (msg.what == 3) {
+				controller.dispose();
+			}
+			return true;
+		}
+
+		@Override
+		protected void onUpdate(long deltaTime, String param) {
+			records.add(-1);
+			updateParam = param;
+		}
+	}
+
+	private ForkJoinPool mPool;
+	private ControllerWorld mWorld;
+	private VirtualClock mClock;
+	private final List<SimpleController<SimpleState<String>, String>> mControllers =
+			new ArrayList<SimpleController<SimpleState<String>, String>>();
+	private final List<RecordState> mStates = new ArrayList<RecordState>();
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mPool = new ForkJoinPool(4);
+		mWorld = new ControllerWorld(mPool);
+		mWorld.setParallelThreshold(0);
+		mWorld.setPartitionSize(16);
+		mClock = new VirtualClock();
+		for (int i = 0; i < COUNT; i++) {
+			final RecordState state = new RecordState();
+			final SimpleController<SimpleState<String>, String> controller =
+					new SimpleController<SimpleState<String>, String>();
+			controller.setStateFactory(new IController.StateFactory<SimpleState<String>, String>() {
+				@Override
+				public SimpleState<String> createState(int stateKey, String s) {
+					return state;
+				}
+			});
+			controller.setParameterMerger(new ParamepterMergerImpl());
+			controller.setClock(mClock);
+			controller.addState(STATE_RECORD);
+			state.controller = controller;
+			assertTrue(mWorld.add(controller));
+			mControllers.add(controller);
+			mStates.add(state);
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mPool.shutdown();
+		super.tearDown();
+	}
+
+	public void testMessagesBeforeUpdate() {
+		assertEquals(COUNT, mWorld.size());
+		for (SimpleController<SimpleState<String>, String> controller : mControllers) {
+			final Message msg = Message.obtain(1, null);
+			msg.setDelay(10);
+			controller.dispatchMessage(msg, IController.POLICY_BROADCAST);
+			controller.postMessage(Message.obtain(2, null), IController.POLICY_BROADCAST);
+		}
+		mWorld.tick(0);
+		mClock.advance(10);
+		mWorld.tick(0);
+		for (RecordState state : mStates) {
+			assertEquals("[2, -1, 1, -1]", state.records.toString());
+		}
+		assertEquals(2, mWorld.getTickCount());
+	}
+
+	public void testTickParameter() {
+		mWorld.tick(0, "world");
+		for (RecordState state : mStates) {
+			assertEquals("world", state.updateParam);
+		}
+		mWorld.tick(0);
+		for (RecordState state : mStates) {
+			assertNull(state.updateParam);
+		}
+	}
+
+	public void testSharedTimer() {
+		final SharedMessageTimer timer = new SharedMessageTimer(mClock, 1);
+		mWorld.setMessageTimer(timer);
+		for (SimpleController<SimpleState<String>, String> controller : mControllers) {
+			controller.setMessageTimer(timer);
+			final Message msg = Message.obtain(1, null);
+			msg.setDelay(5);
+			controller.dispatchMessage(msg, IController.POLICY_BROADCAST);
+		}
+		mClock.advance(5);
+		mWorld.tick(0);
+		for (RecordState state : mStates) {
+			assertEquals("[1, -1]", state.records.toString());
+		}
+		assertEquals(0, timer.size());
+	}
+
+	public void testAddRemove() {
+		final SimpleController<SimpleState<String>, String> first = mControllers.get(0);
+		assertTrue(mWorld.remove(first));
+		assertFalse(mWorld.remove(first));
+		assertFalse(mWorld.contains(first));
+		assertEquals(COUNT - 1, mWorld.size());
+		assertTrue(mWorld.add(first));
+		assertFalse(mWorld.add(first));
+		assertEquals(COUNT, mWorld.size());
+		try {
+			new ControllerWorld(mPool).add(first);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	public void testDormant() {
+		for (RecordState state : mStates) {
+			state.updateEnabled = false;
+		}
+		final SimpleController<SimpleState<String>, String> first = mControllers.get(0);
+		final Message delayed = Message.obtain(1, null);
+		delayed.setDelay(10);
+		first.dispatchMessage(delayed, IController.POLICY_BROADCAST);
+		mWorld.tick(0);
+		// only the controller which has a delayed message is awake.
+		assertEquals(1, mWorld.getAwakeCount());
+		assertEquals(COUNT, mWorld.size());
+		mClock.advance(10);
+		mWorld.tick(0);
+		assertEquals("[1]", mStates.get(0).records.toString());
+		assertEquals(0, mWorld.getAwakeCount());
+
+		// woken up by the posted message.
+		mControllers.get(1).postMessage(Message.obtain(2, null), IController.POLICY_BROADCAST);
+		assertEquals(1, mWorld.getAwakeCount());
+		mWorld.tick(0);
+		assertEquals("[2]", mStates.get(1).records.toString());
+		assertEquals(0, mWorld.getAwakeCount());
+
+		// woken up by the entered state which wants update.
+		mStates.get(2).updateEnabled = true;
+		mControllers.get(2).removeState(STATE_RECORD);
+		assertEquals(0, mWorld.getAwakeCount());
+		mControllers.get(2).addState(STATE_RECORD);
+		assertEquals(1, mWorld.getAwakeCount());
+		mWorld.tick(0);
+		mWorld.tick(0);
+		assertEquals("[-1, -1]", mStates.get(2).records.toString());
+		assertEquals(1, mWorld.getAwakeCount());
+
+		// the dormant controller can be removed.
+		assertTrue(mWorld.remove(mControllers.get(3)));
+		assertEquals(COUNT - 1, mWorld.size());
+
+		mWorld.setDormancyEnabled(false);
+		assertEquals(COUNT - 1, mWorld.getAwakeCount());
+	}
+
+	public void testDisposeWhileTicking() {
+		// the half of controllers are disposed by their states. they are removed after the tick.
+		for (int i = 0; i < COUNT; i += 2) {
+			mControllers.get(i).postMessage(Message.obtain(3, null), IController.POLICY_BROADCAST);
+		}
+		mWorld.tick(0);
+		assertEquals(COUNT / 2, mWorld.size());
+		assertEquals("[3]", mStates.get(0).records.toString());
+		assertEquals("[-1]", mStates.get(1).records.toString());
+		mWorld.tick(0);
+		assertEquals("[3]", mStates.get(0).records.toString());
+		assertEquals("[-1, -1]", mStates.get(1).records.toString());
+	}
+}
@@ -0,0 +1,159 @@
+package com.heaven7.java.mvcs.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.heaven7.java.mvcs.FixedStepDriver;
+import com.heaven7.java.mvcs.IController;
+import com.heaven7.java.mvcs.SimpleController;
+import com.heaven7.java.mvcs.SimpleState;
+import com.heaven7.java.mvcs.StateTeamManager;
+import com.heaven7.java.mvcs.util.VirtualClock;
+
+import junit.framework.TestCase;
+
+/**
+ * the tests of {@linkplain FixedStepDriver}.
+ * @author heaven7
+ */
+public class FixedStepDriverTests extends TestCase {
+
+	/** the target which records the steps, and costs the work time on the clock. */
+	private class RecordTarget implements FixedStepDriver.Target {
+		final String name;
+		long workMillis;
+
+		RecordTarget(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public void step(long deltaTime) {
+			records.add(name + ":" + deltaTime);
+			mClock.advance(workMillis);
+		}
+	}
+
+	private final List<String> records = new ArrayList<String>();
+	private VirtualClock mClock;
+	private FixedStepDriver mDriver;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mClock = new VirtualClock();
+		mDriver = new FixedStepDriver(mClock, 20, TimeUnit.MILLISECONDS);
+	}
+
+	public void testAccumulate() {
+		mDriver.addTarget(new RecordTarget("a"));
+		assertEquals(0, mDriver.frame());
+		mClock.advance(15);
+		assertEquals(0, mDriver.frame());
+		assertEquals(5, mDriver.getTimeToNextStep(TimeUnit.MILLISECONDS));
+		mClock.advance(30);
+		assertEquals(2, mDriver.frame());
+		assertEquals("[a:20, a:20]", records.toString());
+		assertEquals(0.25f, mDriver.getInterpolation(), 0.001f);
+		assertEquals(2, mDriver.getStats().getSteps());
+	}
+
+	public void testOverrun() {
+		mDriver.addTarget(new RecordTarget("a"));
+		mDriver.setMaxStepsPerFrame(3);
+		mDriver.frame();
+		mClock.advance(210);
+		assertEquals(3, mDriver.frame());
+		final FixedStepDriver.Stats stats = mDriver.getStats();
+		assertEquals(1, stats.getOverruns());
+		assertEquals(7, stats.getDroppedSteps());
+		// the backlog is dropped. but the phase is kept.
+		mClock.advance(10);
+		assertEquals(1, mDriver.frame());
+	}
+
+	public void testBudget() {
+		final RecordTarget a = new RecordTarget("a");
+		final RecordTarget b = new RecordTarget("b");
+		final RecordTarget c = new RecordTarget("c");
+		a.workMillis = 4;
+		b.workMillis = 4;
+		c.workMillis = 1;
+		mDriver.addTarget(a);
+		mDriver.addTarget(b);
+		mDriver.addTarget(c);
+		mDriver.setFrameBudget(6, TimeUnit.MILLISECONDS);
+		mDriver.frame();
+		mClock.advance(40);
+
+		// the step is split: a, b in this frame. c in the next.
+		assertEquals(0, mDriver.frame());
+		assertEquals("[a:20, b:20]", records.toString());
+		assertEquals(1, mDriver.frame());
+		assertEquals("[a:20, b:20, c:20, a:20, b:20]", records.toString());
+		final FixedStepDriver.Stats stats = mDriver.getStats();
+		assertEquals(2, stats.getSplitSteps());
+		assertEquals(2, stats.getBudgetOverruns());
+		// the work time of the split step: 4 + 4 + 1.
+		assertEquals(9, stats.getStepTime(50, TimeUnit.MILLISECONDS));
+
+		// the removed target which is passed is fine.
+		assertTrue(mDriver.removeTarget(a));
+		assertEquals(1, mDriver.frame());
+		assertEquals("[a:20, b:20, c:20, a:20, b:20, c:20]", records.toString());
+	}
+
+	public void testTeamManager() {
+		final SimpleController<SimpleState<String>, String> controller =
+				new SimpleController<SimpleState<String>, String>();
+		controller.setStateFactory(new IController.StateFactory<SimpleState<String>, String>() {
+			@Override
+			public SimpleState<String> createState(final int stateKey, String s) {
+				return new SimpleState<String>() {
+					@Override
+					protected void onUpdate(long deltaTime, String param) {
+						records.add(param + stateKey + ":" + deltaTime);
+					}
+				};
+			}
+		});
+		controller.setParameterMerger(new ParamepterMergerImpl());
+		controller.addState(1 | 2);
+		final StateTeamManager<String> manager = new StateTeamManager<String>();
+		final List<StateTeamManager.Member<String>> members = new ArrayList<StateTeamManager.Member<String>>();
+		members.add(StateTeamManager.createMember(controller, 2));
+		manager.registerTeam(members);
+
+		mDriver.addTeamManager(manager, "team");
+		mDriver.frame();
+		mClock.advance(40);
+		assertEquals(2, mDriver.frame());
+		// only the active states of team are updated.
+		assertEquals("[team2:20, team2:20]", records.toString());
+
+		assertTrue(mDriver.removeTeamManager(manager));
+		assertFalse(mDriver.removeTeamManager(manager));
+		mClock.advance(20);
+		mDriver.frame();
+		assertEquals(2, records.size());
+	}
+
+	public void testStepTimePercentile() {
+		final RecordTarget a = new RecordTarget("a");
+		mDriver.addTarget(a);
+		mDriver.setMaxStepsPerFrame(100);
+		mDriver.frame();
+		for (int i = 1; i <= 100; i++) {
+			a.workMillis = i;
+			mClock.advance(20 - i % 20);
+			mDriver.frame();
+		}
+		final FixedStepDriver.Stats stats = mDriver.getStats();
+		assertTrue(stats.getSteps() > 0);
+		assertTrue(stats.getStepTime(50, TimeUnit.MILLISECONDS) <= stats.getStepTime(99, TimeUnit.MILLISECONDS));
+		assertTrue(stats.getStepTime(99, TimeUnit.MILLISECONDS) <= 100);
+		mDriver.resetStats();
+		assertEquals(0, mDriver.getStats().getStepTime(50, TimeUnit.MILLISECONDS));
+	}
+}
@@ -0,0 +1,77 @@
+package com.heaven7.java.mvcs.test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import com.heaven7.java.mvcs.util.BitmapIntSet;
+import com.heaven7.java.mvcs.util.CopyOnWriteIntSet;
+import com.heaven7.java.mvcs.util.IntSet;
+
+import junit.framework.TestCase;
+
+/**
+ * the tests of {@linkplain IntSet}.
+ * @author heaven7
+ */
+public class IntSetTests extends TestCase {
+
+	public void testBitmapIntSet() {
+		final IntSet set = new BitmapIntSet();
+		assertTrue(set.addAll(1, 63, 64, 1023, 1024, -5, Integer.MAX_VALUE, Integer.MIN_VALUE));
+		assertFalse(set.add(64));
+		assertEquals(8, set.size());
+		assertTrue(set.contains(1023));
+		assertTrue(set.contains(-5));
+		assertFalse(set.contains(2));
+		assertFalse(set.contains(-6));
+
+		assertTrue(set.removeAll(63, -5));
+		assertFalse(set.remove(63));
+		assertFalse(set.contains(-5));
+		assertEquals(6, set.size());
+
+		final int[] keys = set.toArray();
+		Arrays.sort(keys);
+		assertTrue(Arrays.equals(new int[] { Integer.MIN_VALUE, 1, 64, 1023, 1024, Integer.MAX_VALUE }, keys));
+		set.clear();
+		assertTrue(set.isEmpty());
+	}
+
+	public void testRandomKeys() {
+		final IntSet set = new BitmapIntSet();
+		final Set<Integer> expect = new HashSet<Integer>();
+		final Random random = new Random(7);
+		for (int i = 0; i < 20000; i++) {
+			final int key = random.nextInt(4096) - 2048;
+			if (random.nextBoolean()) {
+				assertEquals(expect.add(key), set.add(key));
+			} else {
+				assertEquals(expect.remove(key), set.remove(key));
+			}
+			assertEquals(expect.size(), set.size());
+		}
+		for (int key = -2048; key < 2048; key++) {
+			assertEquals(expect.contains(key), set.contains(key));
+		}
+	}
+
+	public void testSnapshotIterator() {
+		final IntSet set = new CopyOnWriteIntSet();
+		set.addAll(3, 5, 2000);
+		final IntSet.IntIterator it = set.iterator();
+		set.remove(5);
+		set.add(7);
+
+		int count = 0;
+		while (it.hasNext()) {
+			final int key = it.next();
+			assertTrue(key == 3 || key == 5 || key == 2000);
+			count++;
+		}
+		assertEquals(3, count);
+		assertTrue(set.contains(7));
+		assertFalse(set.contains(5));
+	}
+}
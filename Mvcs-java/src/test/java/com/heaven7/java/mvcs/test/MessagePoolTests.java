@@ -0,0 +1,79 @@
+package com.heaven7.java.mvcs.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.heaven7.java.mvcs.Message;
+import com.heaven7.java.mvcs.MessagePool;
+
+import junit.framework.TestCase;
+
+/**
+ * the tests of {@linkplain MessagePool}.
+ * @author heaven7
+ */
+public class MessagePoolTests extends TestCase {
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		MessagePool.setCapacity(4, 8);
+		MessagePool.resetStats();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		MessagePool.setCapacity(MessagePool.DEFAULT_LOCAL_CAPACITY, MessagePool.DEFAULT_SHARED_CAPACITY);
+		super.tearDown();
+	}
+
+	public void testHitMissDrop() {
+		final List<Message> list = new ArrayList<Message>();
+		for (int i = 0; i < 16; i++) {
+			list.add(Message.obtain(i, null));
+		}
+		assertEquals(16, MessagePool.getStats().getMisses());
+		// 4 to local, 8 to shared and 4 dropped.
+		for (Message msg : list) {
+			msg.recycle();
+		}
+		assertEquals(4, MessagePool.getStats().getDrops());
+
+		final Message msg = Message.obtain(1, "obj");
+		assertFalse(msg.isInUse());
+		assertEquals(1, msg.what);
+		for (int i = 0; i < 11; i++) {
+			Message.obtain();
+		}
+		MessagePool.Stats stats = MessagePool.getStats();
+		assertEquals(12, stats.getHits());
+		assertEquals(16, stats.getMisses());
+		Message.obtain();
+		assertEquals(17, MessagePool.getStats().getMisses());
+	}
+
+	public void testRecycleByOtherThread() throws InterruptedException {
+		final List<Message> list = new ArrayList<Message>();
+		for (int i = 0; i < 12; i++) {
+			list.add(Message.obtain());
+		}
+		final Thread consumer = new Thread() {
+			@Override
+			public void run() {
+				for (Message msg : list) {
+					msg.recycle();
+				}
+			}
+		};
+		consumer.start();
+		consumer.join();
+		// the messages which overflow the cache of consumer are reused by this thread.
+		MessagePool.resetStats();
+		for (int i = 0; i < 8; i++) {
+			Message.obtain();
+		}
+		assertEquals(8, MessagePool.getStats().getHits());
+		Message.obtain();
+		assertEquals(1, MessagePool.getStats().getMisses());
+	}
+}
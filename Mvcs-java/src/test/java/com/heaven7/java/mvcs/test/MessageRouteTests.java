@@ -0,0 +1,100 @@
+package com.heaven7.java.mvcs.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.heaven7.java.mvcs.AbstractState;
+import com.heaven7.java.mvcs.IController;
+import com.heaven7.java.mvcs.Message;
+import com.heaven7.java.mvcs.SimpleController;
+import com.heaven7.java.mvcs.SimpleState;
+
+import junit.framework.TestCase;
+
+/**
+ * the tests of {@linkplain AbstractState#getHandledMessages()}.
+ * @author heaven7
+ */
+public class MessageRouteTests extends TestCase {
+
+	private static final int STATE_ALL = 1;
+	private static final int STATE_ROUTED = 2;
+	private static final int STATE_ROUTED2 = 4;
+
+	/** the state which records the 'what' of handled messages. */
+	private static class RecordState extends SimpleState<String> {
+		final List<Integer> records = new ArrayList<Integer>();
+		final int[] whats;
+
+		RecordState(int... whats) {
+			this.whats = whats;
+		}
+
+		@Override
+		public int[] getHandledMessages() {
+			return whats;
+		}
+
+		@Override
+		public boolean handleMessage(Message msg) {
+			records.add(msg.what);
+			return true;
+		}
+	}
+
+	private RecordState mAll;
+	private RecordState mRouted;
+	private RecordState mRouted2;
+	private SimpleController<SimpleState<String>, String> mController;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mAll = new RecordState((int[]) null);
+		mRouted = new RecordState(1, 2, 1000);
+		mRouted2 = new RecordState(2);
+		mController = new SimpleController<SimpleState<String>, String>();
+		mController.setStateFactory(new IController.StateFactory<SimpleState<String>, String>() {
+			@Override
+			public SimpleState<String> createState(int stateKey, String s) {
+				switch (stateKey) {
+				case STATE_ALL:
+					return mAll;
+				case STATE_ROUTED:
+					return mRouted;
+				default:
+					return mRouted2;
+				}
+			}
+		});
+		mController.setParameterMerger(new ParamepterMergerImpl());
+	}
+
+	public void testRoute() {
+		mController.addState(STATE_ALL | STATE_ROUTED | STATE_ROUTED2);
+		for (int what = 0; what < 4; what++) {
+			mController.dispatchMessage(Message.obtain(what, null), IController.POLICY_BROADCAST);
+		}
+		assertEquals("[0, 1, 2, 3]", mAll.records.toString());
+		assertEquals("[1, 2]", mRouted.records.toString());
+		assertEquals("[2]", mRouted2.records.toString());
+
+		mController.removeState(STATE_ALL);
+		assertFalse(mController.dispatchMessage(Message.obtain(3, null), IController.POLICY_BROADCAST));
+		// consume: the first state which can handle it.
+		assertTrue(mController.dispatchMessage(Message.obtain(2, null), IController.POLICY_CONSUME));
+		assertEquals("[1, 2, 2]", mRouted.records.toString());
+		assertEquals("[2]", mRouted2.records.toString());
+		assertTrue(mController.dispatchMessage(Message.obtain(1000, null), IController.POLICY_CONSUME));
+		assertEquals("[1, 2, 2, 1000]", mRouted.records.toString());
+	}
+
+	public void testRouteBatch() {
+		mController.addState(STATE_ROUTED | STATE_ROUTED2);
+		final Message[] msgs = new Message[] { Message.obtain(1, null), Message.obtain(2, null),
+				Message.obtain(3, null) };
+		assertEquals(2, mController.dispatchMessages(msgs, IController.POLICY_BROADCAST));
+		assertEquals("[1, 2]", mRouted.records.toString());
+		assertEquals("[2]", mRouted2.records.toString());
+	}
+}
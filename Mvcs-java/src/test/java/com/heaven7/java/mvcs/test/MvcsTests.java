@@ -1,14 +1,23 @@
 package com.heaven7.java.mvcs.test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import com.heaven7.java.mvcs.IController;
 import com.heaven7.java.mvcs.Message;
+import com.heaven7.java.mvcs.MessageFuture;
+import com.heaven7.java.mvcs.PeriodicMessage;
 import com.heaven7.java.mvcs.SimpleController;
 import com.heaven7.java.mvcs.SimpleState;
+import com.heaven7.java.mvcs.StateSnapshot;
 import com.heaven7.java.mvcs.StateTeamManager;
 import com.heaven7.java.mvcs.StateTransaction;
 import com.heaven7.java.mvcs.util.ResultAction;
+import com.heaven7.java.mvcs.util.VirtualClock;
 
 import junit.framework.TestCase;
 
@@ -55,6 +64,8 @@ public class MvcsTests extends TestCase {
     	final int what = 99;
     	mController.setStateCacheEnabled(true);
     	mController.addState(STATE_EAT | STATE_MOVING);
+    	final VirtualClock clock = new VirtualClock();
+    	mController.setClock(clock);
     	Message msg = Message.obtain(what, "testDelayMessage");
     	msg.setDelay(2000);
     	assertFalse(mController.dispatchMessage(msg, IController.POLICY_BROADCAST));
@@ -62,12 +73,274 @@ public class MvcsTests extends TestCase {
         assertTrue(mController.hasMessage(what)); 
         assertTrue(mController.hasMessage(Message.obtain(what, "testDelayMessage"))); 
         assertFalse(mController.hasMessage(Message.obtain(what, "12345"))); 
+
+        clock.advance(1999);
+        mController.update(0);
+        assertTrue(mController.hasMessage(what));
+        clock.advance(1);
+        mController.update(0);
+        assertFalse(mController.hasMessage(what));
+    }
+    
+    public void testDispatchMessages(){
+    	mController.setClock(new VirtualClock());
+    	mController.addState(STATE_EAT | STATE_MOVING);
+    	final int[] replies = new int[1];
+    	final Message.MessageReplier replier = new Message.MessageReplier() {
+			@Override
+			public void reply(Message msg) {
+				replies[0]++;
+			}
+		};
+    	final Message[] msgs = new Message[5];
+    	for(int i = 0 ; i < msgs.length ; i ++){
+    		msgs[i] = Message.obtain(i, "batch", replier);
+    	}
+    	msgs[4].setDelay(1000);
+    	// only EatState handles the message.
+    	assertEquals(4, mController.dispatchMessages(msgs, IController.POLICY_BROADCAST));
+    	assertEquals(4, replies[0]);
+    	assertTrue(mController.hasMessage(4));
+
+    	// the posted message is in use until it is handled.
+    	final Message inUse = Message.obtain(5, "batch");
+    	mController.postMessage(inUse, IController.POLICY_BROADCAST);
+    	try {
+    		mController.dispatchMessages(Arrays.asList(Message.obtain(6, null), inUse), IController.POLICY_CONSUME);
+    		fail();
+    	} catch (IllegalStateException e) {
+    		// expected
+    	}
+    }
+
+    public void testRequest() throws Exception{
+    	final VirtualClock clock = new VirtualClock();
+    	mController.setClock(clock);
+    	mController.addState(STATE_EAT);
+    	// replied at once.
+    	MessageFuture future = mController.request(Message.obtain(1, "request"), IController.POLICY_CONSUME,
+    			100, TimeUnit.MILLISECONDS);
+    	assertTrue(future.isReplied());
+    	assertEquals("EatState", future.get().obj);
+    	assertEquals(future.getCorrelationId(), future.get().getCorrelationId());
+
+    	// no reply. timeout by the delayed message.
+    	mController.setState(STATE_MOVING);
+    	final MessageFuture[] done = new MessageFuture[1];
+    	future = mController.request(Message.obtain(2, "request"), IController.POLICY_CONSUME,
+    			100, TimeUnit.MILLISECONDS);
+    	future.setCallback(new MessageFuture.Callback() {
+			@Override
+			public void onDone(MessageFuture future) {
+				done[0] = future;
+			}
+		});
+    	assertFalse(future.isDone());
+    	clock.advance(99);
+    	mController.update(0);
+    	assertNull(done[0]);
+    	clock.advance(1);
+    	mController.update(0);
+    	assertSame(future, done[0]);
+    	assertTrue(future.isTimeout());
     	try {
-			Thread.sleep(2000);
-			mController.update(0);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
+    		future.get();
+    		fail();
+    	} catch (ExecutionException e) {
+    		// expected
+    	}
+
+    	// the timeout message is internal. it isn't matched by the 'what' of request.
+    	future = mController.request(Message.obtain(3, "request"), IController.POLICY_CONSUME,
+    			100, TimeUnit.MILLISECONDS);
+    	assertFalse(mController.hasMessage(3));
+    	mController.removeMessage(3);
+    	clock.advance(100);
+    	mController.update(0);
+    	assertTrue(future.isTimeout());
+
+    	// replied later. the timeout is ignored.
+    	future = mController.request(Message.obtain(3, "request"), IController.POLICY_CONSUME,
+    			100, TimeUnit.MILLISECONDS);
+    	future.reply(Message.obtain(3, "later"));
+    	assertTrue(future.isReplied());
+    	clock.advance(100);
+    	mController.update(0);
+    	assertTrue(future.isReplied());
+
+    	// the pending future is cancelled when the messages are cleared.
+    	future = mController.request(Message.obtain(4, "request"), IController.POLICY_CONSUME,
+    			100, TimeUnit.MILLISECONDS);
+    	mController.clearMessages();
+    	assertTrue(future.isCancelled());
+    	try {
+    		future.get();
+    		fail();
+    	} catch (CancellationException e) {
+    		// expected
+    	}
+    }
+
+    public void testCoalesceDelayMessage(){
+    	final VirtualClock clock = new VirtualClock();
+    	mController.setClock(clock);
+    	mController.addState(STATE_EAT);
+    	final List<Message> replies = new ArrayList<Message>();
+    	final Message.MessageReplier replier = new Message.MessageReplier() {
+			@Override
+			public void reply(Message msg) {
+				replies.add(msg);
+			}
+		};
+    	// debounce: re-armed 10 times. only the last one is handled 100ms after the last re-arm.
+    	for(int i = 0 ; i < 10 ; i ++){
+    		Message msg = Message.obtain(1, i, "debounce", replier);
+    		msg.setDelay(100);
+    		assertEquals(i > 0, mController.dispatchCoalescedMessage(msg, IController.POLICY_BROADCAST,
+    				IController.FLAG_SCOPE_CURRENT, IController.COALESCE_KEEP_LATEST));
+    		clock.advance(50);
+    		mController.update(0);
+    	}
+    	assertTrue(replies.isEmpty());
+    	clock.advance(50);
+    	mController.update(0);
+    	assertEquals(1, replies.size());
+    	assertFalse(mController.hasMessage(1));
+
+    	// throttle: keep the earliest deadline, but the latest message.
+    	final int[] handled = new int[1];
+    	final Message.MessageReplier replier2 = new Message.MessageReplier() {
+			@Override
+			public void reply(Message msg) {
+				handled[0]++;
+			}
+		};
+    	for(int i = 0 ; i < 10 ; i ++){
+    		Message msg = Message.obtain(2, i, "throttle", replier2);
+    		msg.setDelay(100);
+    		mController.dispatchCoalescedMessage(msg, IController.POLICY_BROADCAST,
+    				IController.FLAG_SCOPE_CURRENT, IController.COALESCE_KEEP_EARLIEST);
+    		clock.advance(30);
+    		mController.update(0);
+    	}
+    	// due at 100, 220(120 + 100), ...
+    	assertEquals(2, handled[0]);
+    }
+
+    public void testPeriodicMessage(){
+    	final VirtualClock clock = new VirtualClock();
+    	mController.setClock(clock);
+    	mController.addState(STATE_EAT);
+    	final int[] counts = new int[3];
+    	final PeriodicMessage[] periodics = new PeriodicMessage[3];
+    	final byte[] types = { IController.PERIOD_FIXED_DELAY, IController.PERIOD_FIXED_RATE,
+    			IController.PERIOD_FIXED_RATE_CATCH_UP };
+    	for(int i = 0 ; i < 3 ; i ++){
+    		final int index = i;
+    		Message msg = Message.obtain(i, "periodic", new Message.MessageReplier() {
+				@Override
+				public void reply(Message msg) {
+					counts[index]++;
+				}
+			});
+    		periodics[i] = mController.dispatchPeriodicMessage(msg, IController.POLICY_BROADCAST, 0, 100,
+    				TimeUnit.MILLISECONDS, types[i]);
+    	}
+    	mController.update(0);
+    	assertTrue(Arrays.equals(new int[] { 1, 1, 1 }, counts));
+    	for(int i = 0 ; i < 5 ; i ++){
+    		clock.advance(100);
+    		mController.update(0);
+    	}
+    	assertTrue(Arrays.equals(new int[] { 6, 6, 6 }, counts));
+    	// missed 4 periods.
+    	clock.advance(450);
+    	mController.update(0);
+    	assertTrue(Arrays.equals(new int[] { 7, 7, 10 }, counts));
+    	// fixed delay: 450 + 100. fixed rate: keep the phase.
+    	clock.advance(50);
+    	mController.update(0);
+    	assertTrue(Arrays.equals(new int[] { 7, 8, 11 }, counts));
+    	clock.advance(50);
+    	mController.update(0);
+    	assertTrue(Arrays.equals(new int[] { 8, 8, 11 }, counts));
+    	assertEquals(11, periodics[2].getCount());
+
+    	for(PeriodicMessage periodic : periodics){
+    		periodic.cancel();
+    	}
+    	// removed at once.
+    	assertFalse(mController.hasMessage(1));
+    	clock.advance(1000);
+    	mController.update(0);
+    	assertTrue(Arrays.equals(new int[] { 8, 8, 11 }, counts));
+    	assertFalse(mController.hasMessage(0));
+    	assertFalse(mController.hasMessage(2));
+    }
+
+    public void testPeriodicRemoveAndCoalesce(){
+    	final VirtualClock clock = new VirtualClock();
+    	mController.setClock(clock);
+    	mController.addState(STATE_EAT);
+    	final int[] counts = new int[2];
+    	// removed by its handler while dispatching.
+    	Message msg = Message.obtain(1, "periodic", new Message.MessageReplier() {
+			@Override
+			public void reply(Message msg) {
+				counts[0]++;
+				mController.removeMessage(1);
+			}
+		});
+    	mController.dispatchPeriodicMessage(msg, IController.POLICY_BROADCAST, 0, 100,
+    			TimeUnit.MILLISECONDS, IController.PERIOD_FIXED_RATE);
+    	mController.update(0);
+    	clock.advance(200);
+    	mController.update(0);
+    	assertEquals(1, counts[0]);
+    	assertFalse(mController.hasMessage(1));
+
+    	// the periodic message is never coalesced.
+    	msg = Message.obtain(2, "periodic", new Message.MessageReplier() {
+			@Override
+			public void reply(Message msg) {
+				counts[1]++;
+			}
+		});
+    	final PeriodicMessage periodic = mController.dispatchPeriodicMessage(msg, IController.POLICY_BROADCAST,
+    			100, 100, TimeUnit.MILLISECONDS, IController.PERIOD_FIXED_RATE);
+    	msg = Message.obtain(2, "debounce");
+    	msg.setDelay(50);
+    	assertFalse(mController.dispatchCoalescedMessage(msg, IController.POLICY_BROADCAST,
+    			IController.FLAG_SCOPE_CURRENT, IController.COALESCE_REPLACE));
+    	for(int i = 0 ; i < 3 ; i ++){
+    		clock.advance(100);
+    		mController.update(0);
+    	}
+    	assertEquals(3, counts[1]);
+    	assertEquals(3, periodic.getCount());
+    	periodic.cancel();
+    	assertFalse(mController.hasMessage(2));
+    }
+
+    public void testRemoveDelayMessage(){
+    	mController.addState(STATE_EAT);
+    	for(int i = 0 ; i < 100 ; i ++){
+    		Message msg = Message.obtain(i % 3, "delay_" + (i % 5));
+    		msg.setDelay(1000 + i);
+    		mController.dispatchMessage(msg, IController.POLICY_BROADCAST);
+    	}
+    	assertTrue(mController.hasMessage(0));
+    	assertTrue(mController.hasMessage(Message.obtain(1, "delay_1")));
+    	mController.removeMessage(0);
+    	assertFalse(mController.hasMessage(0));
+    	assertTrue(mController.hasMessage(1));
+
+    	mController.removeMessage(Message.obtain(1, "delay_1"));
+    	assertFalse(mController.hasMessage(Message.obtain(1, "delay_1")));
+    	assertTrue(mController.hasMessage(Message.obtain(1, "delay_2")));
+    	mController.clearMessages();
+    	assertFalse(mController.hasMessage(1));
+    	assertFalse(mController.hasMessage(2));
     }
     
     @SuppressWarnings("deprecation")
@@ -136,6 +409,223 @@ public class MvcsTests extends TestCase {
 	    	.commit();
 	}
     
+    public void testBatchTransaction(){
+        final List<String> events = new ArrayList<String>();
+        final SimpleController<SimpleState<String>, String> controller =
+                new SimpleController<SimpleState<String>, String>();
+        controller.setStateFactory(new IController.StateFactory<SimpleState<String>, String>() {
+            @Override
+            public SimpleState<String> createState(final int stateKey, String s) {
+                return new SimpleState<String>() {
+                    @Override
+                    public void onEnter() {
+                        events.add("enter" + stateKey);
+                    }
+                    @Override
+                    public void onReenter() {
+                        events.add("reenter" + stateKey);
+                    }
+                    @Override
+                    public void onExit() {
+                        events.add("exit" + stateKey);
+                    }
+                };
+            }
+        });
+        controller.setParameterMerger(new ParamepterMergerImpl());
+        controller.setStateStackEnable(true);
+        controller.addState(STATE_MOVING | STATE_EAT);
+        events.clear();
+
+        // remove MOVING|EAT, add SLEEP, add MOVING again, then set global EAT_MUTEX.
+        assertTrue(controller.beginTransaction()
+                .appendRemove(STATE_MOVING | STATE_EAT)
+                .appendAdd(STATE_SLEEP)
+                .appendAdd(STATE_MOVING)
+                .appendSet(STATE_EAT_MUTEX, IController.FLAG_SCOPE_GLOBAL)
+                .commit());
+        // MOVING is never exited.
+        assertEquals("[exit2, enter4, reenter1, enter8]", events.toString());
+        assertEquals(STATE_MOVING | STATE_SLEEP, controller.getCurrentStateFlags());
+        assertEquals(STATE_EAT_MUTEX, controller.getGlobalStateFlags());
+
+        // no net change.
+        events.clear();
+        assertFalse(controller.beginTransaction()
+                .appendAdd(STATE_EAT)
+                .appendRemove(STATE_EAT)
+                .commit());
+        assertEquals("[]", events.toString());
+
+        // only one history entry for the batch.
+        assertTrue(controller.revertToPreviousState());
+        assertEquals(STATE_MOVING | STATE_EAT, controller.getCurrentStateFlags());
+
+        // the compare is still checked.
+        assertFalse(controller.beginTransaction()
+                .compareStates(STATE_SLEEP)
+                .compareType(StateTransaction.COMPARE_TYPE_HAS)
+                .appendRemove(STATE_EAT)
+                .commit());
+        try {
+            controller.beginTransaction().operateAdd(STATE_SLEEP).appendAdd(STATE_EAT).commit();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testRunToCompletion(){
+        final List<String> events = new ArrayList<String>();
+        final SimpleController<SimpleState<String>, String> controller =
+                new SimpleController<SimpleState<String>, String>();
+        controller.setStateFactory(new IController.StateFactory<SimpleState<String>, String>() {
+            @Override
+            public SimpleState<String> createState(final int stateKey, String s) {
+                return new SimpleState<String>() {
+                    @Override
+                    public void onEnter() {
+                        events.add("enter" + stateKey);
+                        if (stateKey == STATE_MOVING) {
+                            controller.addState(STATE_SLEEP);
+                            controller.removeState(STATE_SLEEP);
+                            controller.addState(STATE_EAT);
+                            events.add("entered" + stateKey);
+                        }
+                    }
+                    @Override
+                    public void onExit() {
+                        events.add("exit" + stateKey);
+                    }
+                    @Override
+                    public boolean handleMessage(Message msg) {
+                        events.add("msg" + stateKey);
+                        if (stateKey == STATE_MOVING) {
+                            controller.setState(STATE_SLEEP);
+                        }
+                        return true;
+                    }
+                };
+            }
+        });
+        controller.setParameterMerger(new ParamepterMergerImpl());
+        controller.setRunToCompletion(true);
+
+        // the nested transitions are applied after the outer one. SLEEP is never entered.
+        assertTrue(controller.addState(STATE_MOVING));
+        assertEquals("[enter1, entered1, enter2]", events.toString());
+        assertEquals(STATE_MOVING | STATE_EAT, controller.getCurrentStateFlags());
+        assertEquals(1, controller.getStateSnapshot().getSequence());
+
+        // the all states receive the message. then the transition is applied.
+        events.clear();
+        assertTrue(controller.dispatchMessage(Message.obtain(1, 0, null, null), IController.POLICY_BROADCAST));
+        assertEquals("[msg1, msg2, exit2, exit1, enter4]", events.toString());
+        assertEquals(STATE_SLEEP, controller.getCurrentStateFlags());
+    }
+
+    public void testRunToCompletionParam() {
+        final List<String> events = new ArrayList<String>();
+        final SimpleController<SimpleState<String>, String> controller =
+                new SimpleController<SimpleState<String>, String>();
+        controller.setStateFactory(new IController.StateFactory<SimpleState<String>, String>() {
+            @Override
+            public SimpleState<String> createState(final int stateKey, String s) {
+                return new SimpleState<String>() {
+                    @Override
+                    public void onEnter() {
+                        events.add(stateKey + ":" + getStateParameter());
+                        if (stateKey == STATE_MOVING) {
+                            controller.addState(STATE_EAT, "a");
+                            controller.setGlobalState(STATE_SLEEP, "g");
+                            controller.addState(STATE_EAT, "b");
+                        }
+                    }
+                };
+            }
+        });
+        controller.setParameterMerger(new ParamepterMergerImpl());
+        controller.setShareStateParam("share");
+        controller.setRunToCompletion(true);
+
+        // the params are folded per scope. and the share param is merged once.
+        assertTrue(controller.addState(STATE_MOVING, "m"));
+        assertEquals("[1:share__m, 2:share__a__b, 4:g]", events.toString());
+    }
+
+    public void testRunToCompletionMutex() throws InterruptedException {
+        final List<String> events = new ArrayList<String>();
+        final boolean[] fail = new boolean[1];
+        final SimpleController<SimpleState<String>, String> controller =
+                new SimpleController<SimpleState<String>, String>();
+        controller.setStateFactory(new IController.StateFactory<SimpleState<String>, String>() {
+            @Override
+            public SimpleState<String> createState(final int stateKey, String s) {
+                return new SimpleState<String>() {
+                    @Override
+                    public void onEnter() {
+                        events.add("enter" + stateKey);
+                        if (stateKey == STATE_MOVING) {
+                            controller.addState(STATE_EAT);
+                            controller.addState(STATE_EAT_MUTEX);
+                        } else if (stateKey == STATE_UNKNOWN && fail[0]) {
+                            throw new IllegalStateException("failed");
+                        }
+                    }
+                    @Override
+                    public void onExit() {
+                        events.add("exit" + stateKey);
+                    }
+                    @Override
+                    public boolean handleMessage(Message msg) {
+                        if (stateKey == STATE_MOVING) {
+                            controller.addState(msg.what);
+                            events.add("msg" + controller.getCurrentStateFlags());
+                        }
+                        return true;
+                    }
+                };
+            }
+        });
+        controller.setParameterMerger(new ParamepterMergerImpl());
+        controller.setMutexState(new int[]{ STATE_EAT }, new int[]{ STATE_EAT_MUTEX });
+        controller.setRunToCompletion(true);
+
+        // the deferred mutex pair is folded like the immediate path: EAT is never entered.
+        assertTrue(controller.addState(STATE_MOVING));
+        assertEquals("[enter1, enter8]", events.toString());
+        assertEquals(STATE_MOVING | STATE_EAT_MUTEX, controller.getCurrentStateFlags());
+
+        // the batch dispatching defers too. the current EAT_MUTEX is exited by mutex.
+        events.clear();
+        final List<Message> msgs = new ArrayList<Message>();
+        msgs.add(Message.obtain(STATE_EAT, null));
+        assertEquals(1, controller.dispatchMessages(msgs, IController.POLICY_CONSUME, IController.FLAG_SCOPE_CURRENT));
+        assertEquals("[msg9, enter2, exit8]", events.toString());
+        assertEquals(STATE_MOVING | STATE_EAT, controller.getCurrentStateFlags());
+
+        // a failed deferred transition still releases the transition.
+        fail[0] = true;
+        try {
+            controller.dispatchMessage(Message.obtain(STATE_UNKNOWN, null), IController.POLICY_CONSUME);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        fail[0] = false;
+        final Thread other = new Thread() {
+            @Override
+            public void run() {
+                controller.removeState(STATE_UNKNOWN);
+                controller.addState(STATE_SLEEP);
+            }
+        };
+        other.start();
+        other.join(5000);
+        assertFalse(other.isAlive());
+        assertTrue(controller.hasState(STATE_SLEEP));
+    }
+
     public void testMutex3(){
     	mController.addState(STATE_EAT);
         mController.addState(STATE_EAT | STATE_EAT_MUTEX);
@@ -227,6 +717,155 @@ public class MvcsTests extends TestCase {
         
     }
 
+    public void testUpdateSnapshot(){
+        final List<Integer> updates = new ArrayList<Integer>();
+        final SimpleController<SimpleState<String>, String> controller =
+                new SimpleController<SimpleState<String>, String>();
+        controller.setStateFactory(new IController.StateFactory<SimpleState<String>, String>() {
+            @Override
+            public SimpleState<String> createState(final int stateKey, String s) {
+                return new SimpleState<String>() {
+                    @Override
+                    protected void onUpdate(long deltaTime, String param) {
+                        updates.add(stateKey);
+                    }
+                };
+            }
+        });
+        controller.setParameterMerger(new ParamepterMergerImpl());
+        controller.addState(STATE_EAT | STATE_MOVING);
+        controller.update(0);
+        controller.update(0);
+        assertEquals("[1, 2, 1, 2]", updates.toString());
+
+        // the snapshot is rebuilt when the states are changed.
+        updates.clear();
+        controller.removeState(STATE_MOVING);
+        controller.setGlobalState(STATE_SLEEP);
+        controller.update(0);
+        assertEquals("[4, 2]", updates.toString());
+
+        updates.clear();
+        controller.clearState();
+        controller.update(0);
+        assertEquals("[4]", updates.toString());
+    }
+
+    public void testUpdateInterval(){
+        final List<String> updates = new ArrayList<String>();
+        final SimpleController<SimpleState<String>, String> controller =
+                new SimpleController<SimpleState<String>, String>();
+        controller.setStateFactory(new IController.StateFactory<SimpleState<String>, String>() {
+            @Override
+            public SimpleState<String> createState(final int stateKey, String s) {
+                return new SimpleState<String>() {
+                    @Override
+                    public long getUpdateInterval() {
+                        return stateKey == STATE_EAT ? 100 : 0;
+                    }
+                    @Override
+                    public int getUpdateDivisor() {
+                        return stateKey == STATE_SLEEP ? 3 : 1;
+                    }
+                    @Override
+                    protected void onUpdate(long deltaTime, String param) {
+                        updates.add(stateKey + ":" + deltaTime);
+                    }
+                };
+            }
+        });
+        controller.setParameterMerger(new ParamepterMergerImpl());
+        controller.addState(STATE_MOVING | STATE_EAT | STATE_SLEEP);
+        for (int i = 0; i < 6; i++) {
+            controller.update(40);
+        }
+        // eat: every 100ms with the accumulated delta time. sleep: every 3 updates.
+        assertEquals("[1:40, 1:40, 1:40, 2:120, 4:120, 1:40, 1:40, 1:40, 2:120, 4:120]", updates.toString());
+
+        // unknown delta time: only the divisor works.
+        updates.clear();
+        for (int i = 0; i < 3; i++) {
+            controller.update(-1);
+        }
+        assertEquals("[1:-1, 2:-1, 1:-1, 2:-1, 1:-1, 2:-1, 4:-1]", updates.toString());
+
+        // the team update is due by the interval too.
+        updates.clear();
+        for (int i = 0; i < 3; i++) {
+            controller.updateActiveStates(STATE_EAT, 40, null);
+        }
+        assertEquals("[2:120]", updates.toString());
+    }
+
+    public void testStateSnapshot() throws InterruptedException {
+        final StateSnapshot[] inEnter = new StateSnapshot[1];
+        final SimpleController<SimpleState<String>, String> controller =
+                new SimpleController<SimpleState<String>, String>();
+        controller.setStateFactory(new IController.StateFactory<SimpleState<String>, String>() {
+            @Override
+            public SimpleState<String> createState(final int stateKey, String s) {
+                return new SimpleState<String>() {
+                    @Override
+                    public void onEnter() {
+                        super.onEnter();
+                        if (stateKey == STATE_SLEEP) {
+                            // the nested transition is published with the outer one.
+                            controller.addState(STATE_MOVING);
+                            inEnter[0] = controller.getStateSnapshot();
+                        }
+                    }
+                };
+            }
+        });
+        controller.setParameterMerger(new ParamepterMergerImpl());
+        controller.setMutexState(new int[]{ STATE_EAT }, new int[]{ STATE_SLEEP });
+
+        assertEquals(0, controller.getStateSnapshot().getSequence());
+        controller.addState(STATE_EAT);
+        StateSnapshot snapshot = controller.getStateSnapshot();
+        assertEquals(1, snapshot.getSequence());
+        assertTrue(snapshot.isInState(STATE_EAT));
+
+        controller.addState(STATE_SLEEP);
+        assertSame(snapshot, inEnter[0]);
+        snapshot = controller.getStateSnapshot();
+        assertEquals(2, snapshot.getSequence());
+        assertEquals(STATE_SLEEP | STATE_MOVING, snapshot.getCurrentStateFlags());
+        assertFalse(snapshot.hasState(STATE_EAT));
+
+        // no change, no publish.
+        controller.addState(STATE_SLEEP);
+        assertSame(snapshot, controller.getStateSnapshot());
+
+        controller.setGlobalState(STATE_EAT);
+        assertEquals(STATE_EAT, controller.getStateSnapshot().getGlobalStateFlags());
+
+        // the reader never sees the middle flags of a transition.
+        final boolean[] broken = new boolean[1];
+        final Thread reader = new Thread() {
+            @Override
+            public void run() {
+                long last = 0;
+                for (int i = 0; i < 100000; i++) {
+                    final StateSnapshot s = controller.getStateSnapshot();
+                    final int flags = s.getCurrentStateFlags();
+                    if (s.getSequence() < last || (flags != (STATE_SLEEP | STATE_MOVING) && flags != STATE_MOVING)) {
+                        broken[0] = true;
+                    }
+                    last = s.getSequence();
+                }
+            }
+        };
+        controller.removeState(STATE_SLEEP);
+        reader.start();
+        for (int i = 0; i < 2000; i++) {
+            controller.addState(STATE_SLEEP);
+            controller.removeState(STATE_SLEEP);
+        }
+        reader.join();
+        assertFalse(broken[0]);
+    }
+
     public void testState(){
         mController.setStateStackEnable(true);
         mController.setShareStateParam("__share__");
@@ -0,0 +1,111 @@
+package com.heaven7.java.mvcs.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.heaven7.java.mvcs.IController;
+import com.heaven7.java.mvcs.Message;
+import com.heaven7.java.mvcs.SimpleController;
+import com.heaven7.java.mvcs.SimpleState;
+
+import junit.framework.TestCase;
+
+/**
+ * the tests of {@linkplain IController#postMessage(Message, byte, byte)}.
+ * @author heaven7
+ */
+public class PostMessageTests extends TestCase {
+
+	private static final int STATE_RECORD = 1;
+
+	/** the state which records the handled messages: {what, arg1, thread}. */
+	private static class RecordState extends SimpleState<String> {
+		final List<long[]> records = new ArrayList<long[]>();
+		IController<?, ?> controller;
+
+		@Override
+		public boolean handleMessage(Message msg) {
+			records.add(new long[] { msg.what, msg.arg1, Thread.currentThread().getId() });
+			if (msg.obj == "repost") {
+				controller.postMessage(Message.obtain(msg.what + 1, null), IController.POLICY_BROADCAST);
+			}
+			return true;
+		}
+	}
+
+	private RecordState mState;
+	private SimpleController<SimpleState<String>, String> mController;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mState = new RecordState();
+		mController = new SimpleController<SimpleState<String>, String>();
+		mController.setStateFactory(new IController.StateFactory<SimpleState<String>, String>() {
+			@Override
+			public SimpleState<String> createState(int stateKey, String s) {
+				return mState;
+			}
+		});
+		mController.setParameterMerger(new ParamepterMergerImpl());
+		mController.addState(STATE_RECORD);
+		mState.controller = mController;
+	}
+
+	public void testPostFromThreads() throws InterruptedException {
+		final int producers = 4;
+		final int count = 5000;
+		final Thread[] threads = new Thread[producers];
+		for (int i = 0; i < producers; i++) {
+			final int what = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < count; j++) {
+						mController.postMessage(Message.obtain(what, j, null, null), IController.POLICY_BROADCAST);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		// drain while posting.
+		boolean alive = true;
+		while (alive) {
+			mController.update(0);
+			alive = false;
+			for (Thread t : threads) {
+				alive |= t.isAlive();
+			}
+		}
+		mController.update(0);
+
+		assertEquals(producers * count, mState.records.size());
+		final int[] expects = new int[producers];
+		final long updateThread = Thread.currentThread().getId();
+		for (long[] record : mState.records) {
+			// FIFO of every producer. and handled on the update thread.
+			assertEquals(expects[(int) record[0]]++, record[1]);
+			assertEquals(updateThread, record[2]);
+		}
+	}
+
+	public void testPostWhileDraining() {
+		mController.postMessage(Message.obtain(1, "repost"), IController.POLICY_BROADCAST);
+		assertTrue(mState.records.isEmpty());
+		mController.update(0);
+		// the message which is posted while draining is left to the next update.
+		assertEquals(1, mState.records.size());
+		mController.update(0);
+		assertEquals(2, mState.records.size());
+		assertEquals(2, mState.records.get(1)[0]);
+
+		final Message msg = Message.obtain(3, null);
+		mController.postMessage(msg, IController.POLICY_BROADCAST);
+		try {
+			mController.postMessage(msg, IController.POLICY_BROADCAST);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package com.heaven7.java.mvcs.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.heaven7.java.mvcs.IController;
+import com.heaven7.java.mvcs.Message;
+import com.heaven7.java.mvcs.MessageFuture;
+import com.heaven7.java.mvcs.PeriodicMessage;
+import com.heaven7.java.mvcs.SharedMessageTimer;
+import com.heaven7.java.mvcs.SimpleController;
+import com.heaven7.java.mvcs.SimpleState;
+import com.heaven7.java.mvcs.util.VirtualClock;
+
+import junit.framework.TestCase;
+
+/**
+ * the tests of {@linkplain SharedMessageTimer}.
+ * @author heaven7
+ */
+public class SharedMessageTimerTests extends TestCase {
+
+	private static final int STATE_RECORD = 1;
+
+	/** the state which records the delay of handled messages with the time of clock. */
+	private static class RecordState extends SimpleState<String> {
+		final List<long[]> records = new ArrayList<long[]>();
+		VirtualClock clock;
+		/** the 'what' of message which is removed by its handler. */
+		int removeWhat = -1;
+		/** the 'what' of message which is removed when any message is handled. */
+		int removeOtherWhat = -1;
+
+		@Override
+		public boolean handleMessage(Message msg) {
+			records.add(new long[] { msg.getDelayNanos(), clock.nanoTime() });
+			if (msg.what == removeWhat) {
+				getController().removeMessage(removeWhat);
+			}
+			if (removeOtherWhat != -1) {
+				getController().removeMessage(removeOtherWhat);
+			}
+			return true;
+		}
+	}
+
+	private VirtualClock mClock;
+	private SharedMessageTimer mTimer;
+	private RecordState mState;
+	private SimpleController<SimpleState<String>, String> mController;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mClock = new VirtualClock(TimeUnit.HOURS.toNanos(1));
+		mTimer = new SharedMessageTimer(mClock, 1);
+		mState = new RecordState();
+		mState.clock = mClock;
+		mController = createController(mState);
+		mController.setMessageTimer(mTimer);
+	}
+
+	private static SimpleController<SimpleState<String>, String> createController(final RecordState state) {
+		SimpleController<SimpleState<String>, String> controller = new SimpleController<SimpleState<String>, String>();
+		controller.setStateFactory(new IController.StateFactory<SimpleState<String>, String>() {
+			@Override
+			public SimpleState<String> createState(int stateKey, String s) {
+				return state;
+			}
+		});
+		controller.setParameterMerger(new ParamepterMergerImpl());
+		controller.addState(STATE_RECORD);
+		return controller;
+	}
+
+	public void testDispatchWhenDue() {
+		final long start = mClock.nanoTime();
+		Message msg = Message.obtain(1, "short");
+		msg.setDelay(50);
+		mController.dispatchMessage(msg, IController.POLICY_BROADCAST);
+		msg = Message.obtain(2, "long");
+		msg.setDelay(5, TimeUnit.SECONDS);
+		mController.dispatchMessage(msg, IController.POLICY_BROADCAST);
+
+		assertEquals(2, mTimer.size());
+		assertTrue(mController.hasMessage(1));
+		assertEquals(start + TimeUnit.MILLISECONDS.toNanos(50), mTimer.getNextDeadline());
+		// update doesn't dispatch the messages of shared timer.
+		mController.update(0);
+		assertEquals(0, mTimer.advance());
+		mClock.advance(49);
+		assertEquals(0, mTimer.advance());
+		mClock.advance(1);
+		assertEquals(1, mTimer.advance());
+		assertFalse(mController.hasMessage(1));
+		assertTrue(mController.hasMessage(2));
+
+		mController.removeMessage(2);
+		assertEquals(0, mTimer.size());
+		mClock.advance(6000);
+		assertEquals(0, mTimer.advance());
+		assertEquals(1, mState.records.size());
+	}
+
+	public void testCoalesce() {
+		for (int i = 0; i < 5; i++) {
+			Message msg = Message.obtain(1, "debounce");
+			msg.setDelay(100 - i);
+			mController.dispatchCoalescedMessage(msg, IController.POLICY_BROADCAST, IController.FLAG_SCOPE_CURRENT,
+					IController.COALESCE_KEEP_EARLIEST);
+		}
+		assertEquals(1, mTimer.size());
+		mClock.advance(96);
+		assertEquals(1, mTimer.advance());
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(96), mState.records.get(0)[0]);
+	}
+
+	public void testFastForward() {
+		final long start = mClock.nanoTime();
+		Message msg = Message.obtain(1, "hour");
+		msg.setDelay(1, TimeUnit.HOURS);
+		mController.dispatchMessage(msg, IController.POLICY_BROADCAST);
+		msg = Message.obtain(2, "days");
+		msg.setDelay(10, TimeUnit.DAYS);
+		mController.dispatchMessage(msg, IController.POLICY_BROADCAST);
+
+		// about 2.6 billion ticks of 1 millisecond. the empty ticks are skipped.
+		final long begin = System.nanoTime();
+		mClock.advance(TimeUnit.DAYS.toMillis(30));
+		assertEquals(2, mTimer.advance());
+		assertTrue(System.nanoTime() - begin < TimeUnit.SECONDS.toNanos(5));
+		assertEquals(0, mTimer.size());
+		assertEquals(2, mState.records.size());
+		assertEquals(TimeUnit.HOURS.toNanos(1), mState.records.get(0)[0]);
+		assertEquals(TimeUnit.DAYS.toNanos(10), mState.records.get(1)[0]);
+
+		// the phase is kept after the jump.
+		msg = Message.obtain(3, "short");
+		msg.setDelay(50);
+		mController.dispatchMessage(msg, IController.POLICY_BROADCAST);
+		assertEquals(start + TimeUnit.DAYS.toNanos(30) + TimeUnit.MILLISECONDS.toNanos(50), mTimer.getNextDeadline());
+		mClock.advance(49);
+		assertEquals(0, mTimer.advance());
+		mClock.advance(1);
+		assertEquals(1, mTimer.advance());
+	}
+
+	public void testCoalescePeriodic() {
+		final PeriodicMessage periodic = mController.dispatchPeriodicMessage(Message.obtain(1, "periodic"),
+				IController.POLICY_BROADCAST, 10, 10, TimeUnit.MILLISECONDS, IController.PERIOD_FIXED_RATE);
+		Message msg = Message.obtain(1, "debounce");
+		msg.setDelay(25);
+		// the periodic message is never coalesced.
+		assertFalse(mController.dispatchCoalescedMessage(msg, IController.POLICY_BROADCAST,
+				IController.FLAG_SCOPE_CURRENT, IController.COALESCE_REPLACE));
+		msg = Message.obtain(1, "debounce");
+		msg.setDelay(35);
+		assertTrue(mController.dispatchCoalescedMessage(msg, IController.POLICY_BROADCAST,
+				IController.FLAG_SCOPE_CURRENT, IController.COALESCE_REPLACE));
+		assertEquals(2, mTimer.size());
+		for (int i = 0; i < 5; i++) {
+			mClock.advance(10);
+			mTimer.advance();
+		}
+		// 10, 20, 30, 35(debounce), 40, 50.
+		assertEquals(6, mState.records.size());
+		assertEquals(5, periodic.getCount());
+		assertFalse(periodic.isCancelled());
+		periodic.cancel();
+	}
+
+	public void testRemoveInFlight() {
+		mState.removeWhat = 1;
+		mController.dispatchPeriodicMessage(Message.obtain(1, "periodic"), IController.POLICY_BROADCAST, 10, 10,
+				TimeUnit.MILLISECONDS, IController.PERIOD_FIXED_RATE);
+		mClock.advance(10);
+		assertEquals(1, mTimer.advance());
+		// removed by its handler while dispatching.
+		assertEquals(0, mTimer.size());
+		assertFalse(mController.hasMessage(1));
+		mClock.advance(100);
+		assertEquals(0, mTimer.advance());
+		assertEquals(1, mState.records.size());
+	}
+
+	public void testCancelPeriodic() {
+		final PeriodicMessage periodic = mController.dispatchPeriodicMessage(Message.obtain(1, "periodic"),
+				IController.POLICY_BROADCAST, 10, 10, TimeUnit.MILLISECONDS, IController.PERIOD_FIXED_RATE);
+		mClock.advance(10);
+		assertEquals(1, mTimer.advance());
+		assertTrue(mController.hasMessage(1));
+		// removed at once. not when it is due next time.
+		periodic.cancel();
+		assertTrue(periodic.isCancelled());
+		assertFalse(mController.hasMessage(1));
+		assertEquals(0, mTimer.size());
+		mClock.advance(100);
+		assertEquals(0, mTimer.advance());
+		assertEquals(1, mState.records.size());
+	}
+
+	public void testRemoveDue() {
+		mState.removeOtherWhat = 2;
+		Message msg = Message.obtain(1, "first");
+		msg.setDelay(10);
+		mController.dispatchMessage(msg, IController.POLICY_BROADCAST);
+		final Message second = Message.obtain(2, "second");
+		second.setDelay(10);
+		mController.dispatchMessage(second, IController.POLICY_BROADCAST);
+		mClock.advance(10);
+		// the second is due too, but it is removed by the handler of first.
+		assertEquals(1, mTimer.advance());
+		assertEquals(1, mState.records.size());
+		// and recycled.
+		assertNull(second.obj);
+		assertEquals(0, mTimer.size());
+	}
+
+	public void testRequestTimeout() {
+		MessageFuture future = mController.request(Message.obtain(1, "request"), IController.POLICY_CONSUME, 100,
+				TimeUnit.MILLISECONDS);
+		assertEquals(1, mTimer.size());
+		// the timeout message is never matched by the 'what' of user.
+		assertFalse(mController.hasMessage(1));
+		mController.removeMessage(1);
+		assertEquals(1, mTimer.size());
+		// removed exactly once it is replied.
+		future.reply(Message.obtain(1, "reply"));
+		assertTrue(future.isReplied());
+		assertEquals(0, mTimer.size());
+
+		future = mController.request(Message.obtain(1, "request"), IController.POLICY_CONSUME, 100,
+				TimeUnit.MILLISECONDS);
+		mClock.advance(100);
+		assertEquals(1, mTimer.advance());
+		assertTrue(future.isTimeout());
+		assertEquals(0, mTimer.size());
+	}
+
+	public void testRandomDeadlines() {
+		final Random random = new Random(17);
+		final long start = mClock.nanoTime();
+		final int count = 2000;
+		for (int i = 0; i < count; i++) {
+			Message msg = Message.obtain(i, null);
+			// some of them are out of the range of wheels.
+			msg.setDelay(1 + (i % 100 == 0 ? 20000000 + random.nextInt(1000) : random.nextInt(5000000)));
+			mController.dispatchMessage(msg, IController.POLICY_BROADCAST);
+		}
+		// fast-forward about 6 hours of the clock.
+		final long maxStep = TimeUnit.MILLISECONDS.toNanos(50000);
+		while (mTimer.size() > 0) {
+			final long now = mClock.nanoTime();
+			final long next = Math.max(now + 1 + random.nextInt(50000) * 1000000L,
+					Math.min(now + maxStep, mTimer.getNextDeadline()));
+			mClock.advance(next - now, TimeUnit.NANOSECONDS);
+			mTimer.advance();
+		}
+		assertEquals(count, mState.records.size());
+		for (long[] record : mState.records) {
+			// never dispatched before it is due. and at most one advance later.
+			final long due = start + record[0];
+			assertTrue(due <= record[1]);
+			assertTrue(record[1] - due <= maxStep + 1000000L);
+		}
+	}
+}
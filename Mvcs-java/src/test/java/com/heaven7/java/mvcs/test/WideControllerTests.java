@@ -0,0 +1,205 @@
+package com.heaven7.java.mvcs.test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import com.heaven7.java.mvcs.BitSetController;
+import com.heaven7.java.mvcs.IController;
+import com.heaven7.java.mvcs.LongController;
+import com.heaven7.java.mvcs.Message;
+import com.heaven7.java.mvcs.SimpleState;
+import com.heaven7.java.mvcs.StateTransaction;
+import com.heaven7.java.mvcs.util.MutexStateException;
+
+import junit.framework.TestCase;
+
+/**
+ * the tests of {@linkplain LongController} and {@linkplain BitSetController}.
+ * @author heaven7
+ */
+public class WideControllerTests extends TestCase {
+
+	private static final BitSetController.IndexStateFactory<SimpleState<String>, String> FACTORY =
+			new BitSetController.IndexStateFactory<SimpleState<String>, String>() {
+		@Override
+		public SimpleState<String> createState(int index, String s) {
+			return index % 2 == 0 ? new EatState() : new MovingState();
+		}
+	};
+
+	private LongController<SimpleState<String>, String> mLongController;
+	private BitSetController<SimpleState<String>, String> mBitSetController;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mLongController = new LongController<SimpleState<String>, String>();
+		mLongController.setIndexStateFactory(FACTORY);
+		mLongController.setParameterMerger(new ParamepterMergerImpl());
+
+		mBitSetController = new BitSetController<SimpleState<String>, String>();
+		mBitSetController.setIndexStateFactory(FACTORY);
+		mBitSetController.setParameterMerger(new ParamepterMergerImpl());
+	}
+
+	public void testLongStates() {
+		final long s1 = 1L << 40;
+		final long s2 = 1L << 62;
+		assertTrue(mLongController.addState(s1 | 1));
+		assertTrue(mLongController.hasState(s1));
+		assertTrue(mLongController.isInState(s1 | 1));
+		assertEquals(1, mLongController.getCurrentStateFlags());
+		assertEquals(40, mLongController.getTargetState(s1).getId());
+
+		assertTrue(mLongController.setState(s2));
+		assertEquals(s2, mLongController.getCurrentStateLongFlags());
+		assertEquals(62, mLongController.getCurrentState().getId());
+		assertNull(mLongController.getTargetState(s1));
+
+		assertTrue(mLongController.removeState(s2));
+		assertEquals(0, mLongController.getCurrentStateLongFlags());
+	}
+
+	public void testLongMutexState() {
+		final long s1 = 1L << 35;
+		final long s2 = 1L << 50;
+		mLongController.addMutexState(new long[] { s1, s2 });
+		assertEquals(s2, mLongController.getMutexStateFlags(s1));
+
+		mLongController.addState(s1);
+		mLongController.addState(s2);
+		assertEquals(s2, mLongController.getCurrentStateLongFlags());
+		try {
+			mLongController.setState(s1 | s2);
+			fail();
+		} catch (MutexStateException e) {
+			// expected
+		}
+	}
+
+	public void testLongBatchTransaction() {
+		final List<String> events = new ArrayList<String>();
+		final LongController<SimpleState<String>, String> controller =
+				new LongController<SimpleState<String>, String>();
+		controller.setIndexStateFactory(new BitSetController.IndexStateFactory<SimpleState<String>, String>() {
+			@Override
+			public SimpleState<String> createState(final int index, String s) {
+				return new SimpleState<String>() {
+					@Override
+					public void onEnter() {
+						events.add("enter" + index);
+					}
+					@Override
+					public void onReenter() {
+						events.add("reenter" + index);
+					}
+					@Override
+					public void onExit() {
+						events.add("exit" + index);
+					}
+				};
+			}
+		});
+		controller.setParameterMerger(new ParamepterMergerImpl());
+		final long s40 = 1L << 40;
+		controller.addState(s40 | 2 | 4);
+		events.clear();
+
+		// the flags address the states of index: 2 -> 1, 4 -> 2, 8 -> 3, 16 -> 4.
+		final StateTransaction<String> transaction = controller.beginTransaction()
+				.appendRemove(2 | 4)
+				.appendAdd(8)
+				.appendAdd(2)
+				.appendSet(16, IController.FLAG_SCOPE_GLOBAL);
+		assertTrue(transaction.commit());
+		// one net change: state 1 is never exited, and the wide state 40 is kept.
+		assertEquals("[exit2, enter3, reenter1, enter4]", events.toString());
+		assertEquals(s40 | 2 | 8, controller.getCurrentStateLongFlags());
+		assertEquals(16, controller.getGlobalStateLongFlags());
+
+		// no net change.
+		events.clear();
+		assertFalse(controller.beginTransaction().appendAdd(4).appendRemove(4).commit());
+		assertEquals("[]", events.toString());
+	}
+
+	public void testBitSetStates() {
+		final BitSet states = new BitSet();
+		states.set(3);
+		states.set(200);
+		states.set(500);
+		assertTrue(mBitSetController.addState(states));
+		assertEquals(states, mBitSetController.getCurrentStateSet());
+		assertEquals(500, mBitSetController.getCurrentState().getId());
+		assertEquals(1 << 3, mBitSetController.getCurrentStateFlags());
+
+		final BitSet target = new BitSet();
+		target.set(200);
+		// state 200 is EatState, which handles the message.
+		assertTrue(mBitSetController.dispatchMessage(target, Message.obtain(1, "wide"), IController.POLICY_CONSUME));
+
+		states.clear(500);
+		assertTrue(mBitSetController.removeState(states));
+		final BitSet expect = new BitSet();
+		expect.set(500);
+		assertTrue(mBitSetController.isInState(expect));
+	}
+
+	public void testFlagStateFactory() {
+		final List<Integer> keys = new ArrayList<Integer>();
+		final BitSetController<SimpleState<String>, String> controller =
+				new BitSetController<SimpleState<String>, String>();
+		controller.setStateFactory(new IController.StateFactory<SimpleState<String>, String>() {
+			@Override
+			public SimpleState<String> createState(int stateKey, String s) {
+				keys.add(stateKey);
+				return new EatState();
+			}
+		});
+		controller.setParameterMerger(new ParamepterMergerImpl());
+		// the flag factory receives the state flag, like the simple controller.
+		assertTrue(controller.addState(1 << 3));
+		assertEquals("[8]", keys.toString());
+		assertEquals(3, controller.getCurrentState().getId());
+
+		final BitSet states = new BitSet();
+		states.set(40);
+		try {
+			controller.addState(states);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected. need the index factory.
+		}
+	}
+
+	public void testUpdateReentrant() {
+		final List<String> events = new ArrayList<String>();
+		final BitSetController<SimpleState<String>, String> controller =
+				new BitSetController<SimpleState<String>, String>();
+		controller.setIndexStateFactory(new BitSetController.IndexStateFactory<SimpleState<String>, String>() {
+			@Override
+			public SimpleState<String> createState(final int index, String s) {
+				return new SimpleState<String>() {
+					@Override
+					protected void onUpdate(long deltaTime, String param) {
+						events.add("update" + index);
+						if (index == 0) {
+							// collects the states while the outer update is iterating.
+							controller.updateActiveStates(1 << 1, deltaTime, param);
+						}
+					}
+				};
+			}
+		});
+		controller.setParameterMerger(new ParamepterMergerImpl());
+		final BitSet states = new BitSet();
+		states.set(0);
+		states.set(1);
+		states.set(100);
+		controller.addState(states);
+
+		controller.update(16);
+		assertEquals("[update0, update1, update1, update100]", events.toString());
+	}
+}